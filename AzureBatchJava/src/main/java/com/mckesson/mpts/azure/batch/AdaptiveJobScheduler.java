@@ -0,0 +1,512 @@
+package com.mckesson.mpts.azure.batch;
+
+import com.mckesson.mpts.azure.tasks.io.EDIDocumentReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ *      Splits the input files for a run into Jobs and keeps up to "concurrency" of them in flight at all times: as soon
+ * as one Job completes the next is started, so one slow Job never holds the others back. The size of each new Job and
+ * the number run in parallel are adjusted as Jobs complete, from what was measured for the most recent Jobs. This
+ * replaces sending fixed-size sets of files to a fixed-size thread pool, so Pools of different sizes are kept busy
+ * without hand tuning inputFileLimit and maxThreadLimit, which are now only the starting point.
+ *
+ *      Jobs are sized by the estimated number of EDI segments (lines) they hold rather than by number of files. The
+ * estimate is taken from the uncompressed size of each input: the file size for plain files, the entry sizes held in the
+ * directory of a zip archive and the size trailer of a gzip file, divided by AVERAGE_SEGMENT_BYTES.
+ *
+ *      An AIMD (additive increase, multiplicative decrease) controller looks at a sliding window of the last completed
+ * Jobs, at least MIN_WINDOW_JOBS and at least "concurrency" of them. It adjusts the two settings once as many Jobs have
+ * completed since its last adjustment as are run in parallel, so each decision mostly reflects Jobs started under the
+ * previous settings, and at once when a Job fails:
+ *
+ * - Job size: if the median Job turnaround in the window was under TARGET_JOB_MILLIS the target grows by a fixed step (a
+ *   quarter of the starting size), so the fixed per-Job cost of creating the Job and starting the Tasks is spread over
+ *   more work. If it was well over the target, or a Job failed, the target is halved.
+ * - Concurrency: if the throughput over the window (segments per second completed, across all Jobs) improved on the
+ *   previous adjustment, one more Job is run in parallel, up to maxConcurrency. If it dropped, or a Job failed,
+ *   concurrency is halved. Jobs already in flight are left to finish; fewer new ones are started until the number in
+ *   flight is back under the new concurrency.
+ *
+ *      Jobs are submitted to an ExecutorCompletionService and their JobResults are collected in the order they finish.
+ * The calling thread blocks on the completion service rather than polling, waking every PROGRESS_INTERVAL_SECONDS to
+ * print the progress of the whole run: files and segments done, throughput and the estimated time remaining.
+ *
+ *      Jobs left unfinished by an earlier run, as found in the RunManifest, are started first, each with the same files
+ * it had before so its staged bundle or submitted Job can be picked up again (see OpiodOrderingWorker). Every worker is
+ * given the manifest, so the state of each file is journaled as the run goes along.
+ *
+ *      Files whose documents failed for a transient reason, such as the database being unavailable, are put on a
+ * RetryQueue and started again in small Jobs once their backoff has passed, whenever there is room for another Job.
+ * The run waits for the backoff when only retries are left. Files with a document that can never be processed are
+ * moved to the DeadLetterDirectory by their worker.
+ *
+ *      Every worker shares one JobDurationEstimator, so a Job that runs well past the time expected for its size gets a
+ * speculative copy, and a stuck Job is stopped and its files retried once it runs past a timeout scaled to its size.
+ *
+ *      When the compute backend is in virtual thread mode (JOB_THREAD_MODE=virtual) there is no AIMD control: every Job
+ * is sized at the starting Job size and started at once on its own thread from JobExecutors, virtual where the Java
+ * runtime supports it. Each worker then waits for free task slots in the compute backend, so the number of Jobs in
+ * flight follows the capacity of the Pool rather than the number of client threads.
+ */
+public class AdaptiveJobScheduler {
+
+    public static final int AVERAGE_SEGMENT_BYTES = 40;
+    public static final long TARGET_JOB_MILLIS = 3 * 60 * 1000L;
+    public static final double OVER_TARGET_FACTOR = 1.5;
+    public static final double INCREASE_FRACTION = 0.25;
+    public static final double DECREASE_FACTOR = 0.5;
+    public static final double THROUGHPUT_TOLERANCE = 0.05;
+    public static final long MIN_JOB_SEGMENTS = 100;
+    public static final int MIN_WINDOW_JOBS = 4;
+    public static final long PROGRESS_INTERVAL_SECONDS = 30;
+
+    /**
+     * @param inputFiles all input files for the run
+     * @param initialFilesPerJob number of files per Job to size the first Jobs from
+     * @param initialConcurrency number of Jobs to run in parallel at first
+     * @param maxConcurrency most Jobs ever run in parallel
+     */
+    public AdaptiveJobScheduler(File[] inputFiles, int initialFilesPerJob, int initialConcurrency, int maxConcurrency) {
+        this(inputFiles, initialFilesPerJob, initialConcurrency, maxConcurrency, null, null, new HashMap<String, List<File>>());
+    }
+
+    /**
+     * @param inputFiles input files for the run not part of an unfinished Job
+     * @param initialFilesPerJob number of files per Job to size the first Jobs from
+     * @param initialConcurrency number of Jobs to run in parallel at first
+     * @param maxConcurrency most Jobs ever run in parallel
+     * @param manifest RunManifest shared by every worker, or null to run without one
+     * @param deadLetter DeadLetterDirectory shared by every worker, or null to keep files that fail permanently in place
+     * @param unfinishedJobs files of each Job left unfinished by an earlier run, by Job Id
+     */
+    public AdaptiveJobScheduler(File[] inputFiles, int initialFilesPerJob, int initialConcurrency, int maxConcurrency,
+                                RunManifest manifest, DeadLetterDirectory deadLetter, Map<String, List<File>> unfinishedJobs) {
+        this.manifest = manifest;
+        this.deadLetter = deadLetter;
+        this.unfinishedJobs = new LinkedHashMap<String, List<File>>(unfinishedJobs);
+        for (List<File> files : unfinishedJobs.values()) {
+            unfinishedFiles += files.size();
+        }
+        this.inputFiles = inputFiles;
+        this.inputSegments = new long[inputFiles.length];
+        this.totalSegments = 0;
+        for (int i=0; i<inputFiles.length; i++) {
+            inputSegments[i] = AdaptiveJobScheduler.estimateSegments(inputFiles[i]);
+            totalSegments += inputSegments[i];
+        }
+        long averageSegments = inputFiles.length == 0 ? MIN_JOB_SEGMENTS : totalSegments / inputFiles.length;
+
+        this.targetSegments = Math.max(MIN_JOB_SEGMENTS, averageSegments * Math.max(1, initialFilesPerJob));
+        this.segmentStep = Math.max(1, (long)(targetSegments * INCREASE_FRACTION));
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.concurrency = Math.min(this.maxConcurrency, Math.max(1, initialConcurrency));
+
+        for (List<File> files : unfinishedJobs.values()) {
+            for (File file : files) {
+                totalSegments += AdaptiveJobScheduler.estimateSegments(file);
+            }
+        }
+        System.out.println("Estimated " + totalSegments + " EDI segments in " + (inputFiles.length + unfinishedFiles) + " input files");
+        if (!unfinishedJobs.isEmpty()) {
+            System.out.println("Resuming " + unfinishedJobs.size() + " unfinished jobs holding " + unfinishedFiles + " files");
+        }
+    }
+
+    /**
+     * Run every input file through OpiodOrderingWorker instances, starting a new Job whenever fewer than "concurrency"
+     * are in flight, until all have been sent
+     * @param backend ComputeBackend shared by all workers in the run
+     * @param jdbcURL JDBC URL passed to each worker
+     * @return the JobResult of every Job in the run, in the order the Jobs completed
+     * @throws InterruptedException Thrown if the run is interrupted while waiting for Jobs to complete
+     */
+    public List<JobResult> run(ComputeBackend backend, String jdbcURL) throws InterruptedException {
+        //In virtual thread mode all jobs are started at once and the pool capacity limits how many run
+        boolean capacityLimited = backend.isVirtualThreadMode();
+        ExecutorService executor = JobExecutors.newJobExecutor(capacityLimited);
+        CompletionService<JobResult> completionService = new ExecutorCompletionService<JobResult>(executor);
+        List<JobResult> results = new ArrayList<JobResult>();
+        Map<Future<JobResult>, File[]> jobFiles = new HashMap<Future<JobResult>, File[]>();
+        Map<Future<JobResult>, Long> jobSegments = new HashMap<Future<JobResult>, Long>();
+        runStart = System.currentTimeMillis();
+        windowStartMillis = runStart;
+        try {
+            while (nextFile < inputFiles.length || !unfinishedJobs.isEmpty() || !retryQueue.isEmpty() || !jobFiles.isEmpty()) {
+                //Top up the jobs in flight: unfinished jobs first, then retries that are due, then new files
+                int started = 0;
+                while (capacityLimited || jobFiles.size() < concurrency) {
+                    File[] files = takeNextJobFiles();
+                    if (files == null) {
+                        break;
+                    }
+                    long segmentCount = 0;
+                    for (File file : files) {
+                        segmentCount += AdaptiveJobScheduler.estimateSegments(file);
+                    }
+                    Future<JobResult> job = completionService.submit(createWorker(files, backend, jdbcURL, nextUnfinishedJobId));
+                    jobFiles.put(job, files);
+                    jobSegments.put(job, Long.valueOf(segmentCount));
+                    started++;
+                }
+                if (started > 0) {
+                    System.out.println("Started " + started + " jobs of up to " + targetSegments + " segments each, " +
+                            jobFiles.size() + " in flight, " + (inputFiles.length - nextFile + unfinishedFilesRemaining() +
+                            retryQueue.getPendingFiles()) + " files remain");
+                }
+
+                //When only retries are left, wait for the first of them to be due
+                if (jobFiles.isEmpty()) {
+                    long backoff = retryQueue.getMillisUntilDue();
+                    if (backoff > 0 && backoff != Long.MAX_VALUE) {
+                        System.out.println("Waiting " + (backoff / 1000) + " s to retry " + retryQueue.getPendingFiles() + " files");
+                        Thread.sleep(backoff);
+                    }
+                    continue;
+                }
+
+                //Wait for the next job to finish, waking to print progress and to start retries as they fall due
+                long waitMillis = PROGRESS_INTERVAL_SECONDS * 1000;
+                if (capacityLimited || jobFiles.size() < concurrency) {
+                    waitMillis = Math.max(1, Math.min(waitMillis, retryQueue.getMillisUntilDue()));
+                }
+                Future<JobResult> job = completionService.poll(waitMillis, TimeUnit.MILLISECONDS);
+                if (job == null) {
+                    if (waitMillis >= PROGRESS_INTERVAL_SECONDS * 1000) {
+                        printProgress();
+                    }
+                    continue;
+                }
+
+                File[] files = jobFiles.remove(job);
+                long segments = jobSegments.remove(job).longValue();
+                JobResult result = AdaptiveJobScheduler.getResult(job, files.length);
+                results.add(result);
+                recordCompletion(result, segments);
+                System.out.println(result);
+                printProgress();
+                if (!capacityLimited) {
+                    recordMeasurement(segments, result.getTotalMillis(), result.isSucceeded(), System.currentTimeMillis());
+                }
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        System.out.println(String.format("Run complete: %d jobs (%d failed), %d files, %d documents, %d lines, " +
+                        "%d opioid rows in %s. %d file retries, %d files dead-lettered, %d kept for a later run", completedJobs,
+                failedJobs, completedFiles, completedDocuments, completedLines, completedOpioidRows,
+                AdaptiveJobScheduler.formatDuration(System.currentTimeMillis() - runStart), retriedFiles,
+                deadLetterFiles, keptFiles));
+        return results;
+    }
+
+    /**
+     * Take the files for the next Job to start: the next unfinished Job, a retry that is due or up to targetSegments
+     * of new files. nextUnfinishedJobId is set to the Id of the unfinished Job, or null for any other Job.
+     * @return the files of the Job, or null if no Job can be started now
+     */
+    private File[] takeNextJobFiles() {
+        nextUnfinishedJobId = null;
+        if (!unfinishedJobs.isEmpty()) {
+            Iterator<Map.Entry<String, List<File>>> unfinished = unfinishedJobs.entrySet().iterator();
+            Map.Entry<String, List<File>> unfinishedJob = unfinished.next();
+            unfinished.remove();
+            nextUnfinishedJobId = unfinishedJob.getKey();
+            return unfinishedJob.getValue().toArray(new File[0]);
+        }
+        List<File[]> due = retryQueue.takeDue(1);
+        if (!due.isEmpty()) {
+            return due.get(0);
+        }
+        if (nextFile < inputFiles.length) {
+            int firstFile = nextFile;
+            long segmentCount = 0;
+            while (nextFile < inputFiles.length && (nextFile == firstFile || segmentCount + inputSegments[nextFile] <= targetSegments)) {
+                segmentCount += inputSegments[nextFile];
+                nextFile++;
+            }
+            return Arrays.copyOfRange(inputFiles, firstFile, nextFile);
+        }
+        return null;
+    }
+
+    /**
+     * Return the JobResult of a completed job. A worker that threw rather than returning a result is reported as a
+     * failed JobResult.
+     */
+    private static JobResult getResult(Future<JobResult> job, int inputFiles) throws InterruptedException {
+        try {
+            return job.get();
+        }
+        catch (ExecutionException ee) {
+            JobResult failed = new JobResult(null, inputFiles);
+            failed.setFailureReason("Worker failed: " + ee.getCause());
+            return failed;
+        }
+    }
+
+    /**
+     * Add a completed job to the totals for the run, and queue the files it could not process for a transient reason
+     * to be retried. Retried files count as done only once they have been retried.
+     */
+    private void recordCompletion(JobResult result, long segments) {
+        completedJobs++;
+        if (!result.isSucceeded()) {
+            failedJobs++;
+        }
+        List<File> queued = retryQueue.offer(result.getRetryFiles());
+        retriedFiles += queued.size();
+        keptFiles += result.getRetryFiles().size() - queued.size();
+        deadLetterFiles += result.getDeadLetterFiles().size();
+        for (File file : queued) {
+            totalSegments += AdaptiveJobScheduler.estimateSegments(file);
+        }
+        completedFiles += result.getInputFiles() - queued.size();
+        completedSegments += segments;
+        completedDocuments += result.getDocuments();
+        completedLines += result.getLines();
+        completedOpioidRows += result.getOpioidRows();
+    }
+
+    /**
+     * Print the progress of the run: files and segments done, throughput since the run started and, once any job has
+     * completed, the estimated time remaining at that throughput
+     */
+    private void printProgress() {
+        long elapsedMillis = System.currentTimeMillis() - runStart;
+        double segmentsPerSecond = elapsedMillis <= 0 ? 0 : completedSegments * 1000.0 / elapsedMillis;
+        double filesPerSecond = elapsedMillis <= 0 ? 0 : completedFiles * 1000.0 / elapsedMillis;
+        String eta = segmentsPerSecond <= 0 ? "unknown" :
+                AdaptiveJobScheduler.formatDuration((long)((totalSegments - completedSegments) * 1000.0 / segmentsPerSecond));
+
+        System.out.println(String.format("Progress: %d of %d files (%.1f%%), %d jobs done (%d failed), %d opioid rows, " +
+                        "%.2f files/s, %.1f segments/s, elapsed %s, ETA %s",
+                completedFiles, inputFiles.length + unfinishedFiles, totalSegments <= 0 ? 100.0 : completedSegments * 100.0 / totalSegments,
+                completedJobs, failedJobs, completedOpioidRows, filesPerSecond, segmentsPerSecond,
+                AdaptiveJobScheduler.formatDuration(elapsedMillis), eta));
+    }
+
+    private int unfinishedFilesRemaining() {
+        int files = 0;
+        for (List<File> unfinished : unfinishedJobs.values()) {
+            files += unfinished.size();
+        }
+        return files;
+    }
+
+    private static String formatDuration(long millis) {
+        long seconds = millis / 1000;
+        return String.format("%dh%02dm%02ds", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+
+    /**
+     * Add a completed Job to the sliding window and apply the AIMD rules once enough Jobs have completed since the last
+     * adjustment, or at once if the Job failed
+     * @param segments estimated segments in the Job
+     * @param elapsedMillis turnaround of the Job
+     * @param succeeded true if the Job succeeded
+     * @param completedMillis time the Job completed
+     * @return true if the settings were adjusted
+     */
+    boolean recordMeasurement(long segments, long elapsedMillis, boolean succeeded, long completedMillis) {
+        window.addLast(new JobMeasurement(segments, elapsedMillis, succeeded, completedMillis));
+        while (window.size() > Math.max(MIN_WINDOW_JOBS, concurrency)) {
+            windowStartMillis = window.removeFirst().completedMillis;
+        }
+        sinceAdjustment++;
+        if (!succeeded) {
+            failuresSinceAdjustment++;
+        }
+        if (succeeded && sinceAdjustment < concurrency) {
+            return false;
+        }
+        adjust(completedMillis);
+        return true;
+    }
+
+    /**
+     * Apply the AIMD rules to the Jobs in the sliding window
+     */
+    private void adjust(long now) {
+        long windowSegments = 0;
+        long[] turnarounds = new long[window.size()];
+        int i = 0;
+        for (JobMeasurement measurement : window) {
+            windowSegments += measurement.segments;
+            turnarounds[i++] = measurement.elapsedMillis;
+        }
+        Arrays.sort(turnarounds);
+        long medianTurnaround = turnarounds.length == 0 ? 0 : turnarounds[turnarounds.length / 2];
+        long windowMillis = now - windowStartMillis;
+        double throughput = windowMillis <= 0 ? 0 : windowSegments * 1000.0 / windowMillis;
+        int failures = failuresSinceAdjustment;
+
+        int previousConcurrency = concurrency;
+        long previousTarget = targetSegments;
+
+        if (failures > 0 || medianTurnaround > TARGET_JOB_MILLIS * OVER_TARGET_FACTOR) {
+            targetSegments = Math.max(MIN_JOB_SEGMENTS, (long)(targetSegments * DECREASE_FACTOR));
+        }
+        else if (medianTurnaround < TARGET_JOB_MILLIS) {
+            targetSegments += segmentStep;
+        }
+
+        if (failures > 0 || (lastThroughput > 0 && throughput < lastThroughput * (1 - THROUGHPUT_TOLERANCE))) {
+            concurrency = Math.max(1, (int)(concurrency * DECREASE_FACTOR));
+        }
+        else if (lastThroughput <= 0 || throughput > lastThroughput * (1 + THROUGHPUT_TOLERANCE)) {
+            concurrency = Math.min(maxConcurrency, concurrency + 1);
+        }
+        lastThroughput = throughput;
+        sinceAdjustment = 0;
+        failuresSinceAdjustment = 0;
+
+        System.out.println(String.format("Last %d jobs: %d failed since the last adjustment, median turnaround %d s, " +
+                        "%.1f segments/s. Job size %d -> %d segments, concurrency %d -> %d",
+                window.size(), failures, medianTurnaround / 1000, throughput,
+                previousTarget, targetSegments, previousConcurrency, concurrency));
+    }
+
+    /**
+     * @return the number of segments new Jobs are sized to
+     */
+    public long getTargetSegments() {
+        return targetSegments;
+    }
+
+    /**
+     * @return the number of Jobs kept in flight
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Create the worker for one Job. Every worker shares the run's JobDurationEstimator, so each Job's straggler limit
+     * and timeout follow the Jobs that completed before it.
+     * @param files input files of the Job
+     * @param backend ComputeBackend shared by all workers in the run
+     * @param jdbcURL The URL to use when connecting to the database
+     * @param unfinishedJobId Id of the earlier job holding the files, or null for a new job
+     * @return OpiodOrderingWorker to submit
+     */
+    private OpiodOrderingWorker createWorker(File[] files, ComputeBackend backend, String jdbcURL, String unfinishedJobId) {
+        OpiodOrderingWorker worker = new OpiodOrderingWorker(files, backend, jdbcURL, manifest, deadLetter, unfinishedJobId);
+        worker.setDurationEstimator(durationEstimator);
+        return worker;
+    }
+
+    /**
+     * @param inputFile plain, .zip or .gz input file
+     * @return estimated number of EDI segments in the file, at least 1
+     */
+    public static long estimateSegments(File inputFile) {
+        return Math.max(1, AdaptiveJobScheduler.estimateUncompressedBytes(inputFile) / AVERAGE_SEGMENT_BYTES);
+    }
+
+    /**
+     * Estimate the uncompressed size of the EDI documents in an input file without reading them
+     * @param inputFile plain, .zip or .gz input file
+     * @return estimated number of uncompressed bytes
+     */
+    public static long estimateUncompressedBytes(File inputFile) {
+        String lowercaseName = inputFile.getName().toLowerCase();
+        try {
+            if (lowercaseName.endsWith(EDIDocumentReader.ZIP_EXTENSION)) {
+                long bytes = 0;
+                ZipFile zip = new ZipFile(inputFile);
+                try {
+                    Enumeration<? extends ZipEntry> entries = zip.entries();
+                    while (entries.hasMoreElements()) {
+                        ZipEntry entry = entries.nextElement();
+                        if (!entry.isDirectory()) {
+                            bytes += entry.getSize() >= 0 ? entry.getSize() : entry.getCompressedSize() * 4;
+                        }
+                    }
+                }
+                finally {
+                    zip.close();
+                }
+                return bytes;
+            }
+            else if (lowercaseName.endsWith(EDIDocumentReader.GZIP_EXTENSION)) {
+                //The last 4 bytes of a gzip file hold the uncompressed size (modulo 2^32), little-endian
+                RandomAccessFile gzip = new RandomAccessFile(inputFile, "r");
+                try {
+                    if (gzip.length() >= 4) {
+                        gzip.seek(gzip.length() - 4);
+                        return Integer.reverseBytes(gzip.readInt()) & 0xFFFFFFFFL;
+                    }
+                }
+                finally {
+                    gzip.close();
+                }
+            }
+        }
+        catch (IOException ioe) {
+            System.err.println("Unable to read the size of " + inputFile.getName() + ", using its file size");
+        }
+        return inputFile.length();
+    }
+
+    /**
+     * What was measured for one Job
+     */
+    private static class JobMeasurement {
+        JobMeasurement(long segments, long elapsedMillis, boolean succeeded, long completedMillis) {
+            this.segments = segments;
+            this.elapsedMillis = elapsedMillis;
+            this.succeeded = succeeded;
+            this.completedMillis = completedMillis;
+        }
+
+        private long segments;
+        private long elapsedMillis;
+        private boolean succeeded;
+        private long completedMillis;
+    }
+
+    private File[] inputFiles = null;
+    private RunManifest manifest = null;
+    private DeadLetterDirectory deadLetter = null;
+    private RetryQueue retryQueue = new RetryQueue();
+    private JobDurationEstimator durationEstimator = new JobDurationEstimator();
+    private Map<String, List<File>> unfinishedJobs = null;
+    private int unfinishedFiles = 0;
+    private long[] inputSegments = null;
+    private long totalSegments = 0;
+    private int nextFile = 0;
+    private String nextUnfinishedJobId = null;
+
+    private long targetSegments = MIN_JOB_SEGMENTS;
+    private long segmentStep = 1;
+    private int concurrency = 1;
+    private int maxConcurrency = 1;
+    private double lastThroughput = 0;
+
+    //Most recently completed Jobs, oldest first, and the time the Job before the oldest completed
+    private Deque<JobMeasurement> window = new ArrayDeque<JobMeasurement>();
+    private long windowStartMillis = 0;
+    private int sinceAdjustment = 0;
+    private int failuresSinceAdjustment = 0;
+
+    private long runStart = 0;
+    private int completedJobs = 0;
+    private int failedJobs = 0;
+    private int completedFiles = 0;
+    private long completedSegments = 0;
+    private long completedDocuments = 0;
+    private long completedLines = 0;
+    private long completedOpioidRows = 0;
+    private int retriedFiles = 0;
+    private int deadLetterFiles = 0;
+    private int keptFiles = 0;
+}
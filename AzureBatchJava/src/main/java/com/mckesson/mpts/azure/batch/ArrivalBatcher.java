@@ -0,0 +1,129 @@
+package com.mckesson.mpts.azure.batch;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ *      Groups input files into micro-batches as they arrive in a watched input directory (see InputDirectoryWatcher).
+ * A file is only batched once it has settled, that is its length and last modified time have not changed for
+ * settleMillis, so a file a partner is still writing is never sent half written.
+ *
+ *      A batch is closed as soon as batchFiles settled files are waiting, so a burst of arrivals is sent in full-sized
+ * Jobs, or once the first settled file has waited windowMillis since it arrived, so a quiet trickle of files is not held
+ * back waiting for the batch to fill. Files are batched in the order they arrived.
+ *
+ *      The batcher is used by the watcher's thread only and is not synchronized.
+ */
+public class ArrivalBatcher {
+
+    /**
+     * @param batchFiles most files in a batch, and the number that closes a batch at once
+     * @param windowMillis longest a settled file waits for its batch to fill
+     * @param settleMillis how long a file must be unchanged before it is batched
+     */
+    public ArrivalBatcher(int batchFiles, long windowMillis, long settleMillis) {
+        this.batchFiles = Math.max(1, batchFiles);
+        this.windowMillis = windowMillis;
+        this.settleMillis = settleMillis;
+    }
+
+    /**
+     * Add a newly arrived file. A file already waiting keeps its first arrival time.
+     * @param file input file
+     * @param arrivalMillis time the file was first seen
+     * @return true if the file was added, false if it was already waiting
+     */
+    public boolean offer(File file, long arrivalMillis) {
+        if (pending.containsKey(file)) {
+            return false;
+        }
+        pending.put(file, new PendingFile(arrivalMillis, file.length(), file.lastModified(), arrivalMillis));
+        return true;
+    }
+
+    /**
+     * Take the next batch if one is ready. Files that have been removed from the directory while waiting are dropped.
+     * @param now current time
+     * @return the files of the batch, or null if no batch is ready
+     */
+    public File[] takeBatch(long now) {
+        List<File> settled = new ArrayList<File>();
+        long firstSettledArrival = Long.MAX_VALUE;
+        for (Iterator<Map.Entry<File, PendingFile>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<File, PendingFile> entry = it.next();
+            File file = entry.getKey();
+            PendingFile waiting = entry.getValue();
+            if (!file.isFile()) {
+                it.remove();
+                continue;
+            }
+            long length = file.length();
+            long lastModified = file.lastModified();
+            if (length != waiting.length || lastModified != waiting.lastModified) {
+                waiting.length = length;
+                waiting.lastModified = lastModified;
+                waiting.unchangedSince = now;
+            }
+            else if (now - waiting.unchangedSince >= settleMillis) {
+                settled.add(file);
+                firstSettledArrival = Math.min(firstSettledArrival, waiting.arrivalMillis);
+            }
+        }
+
+        if (settled.size() < batchFiles && (settled.isEmpty() || now - firstSettledArrival < windowMillis)) {
+            return null;
+        }
+        List<File> batch = settled.subList(0, Math.min(batchFiles, settled.size()));
+        for (File file : batch) {
+            pending.remove(file);
+        }
+        return batch.toArray(new File[0]);
+    }
+
+    /**
+     * @param file input file
+     * @return true if the file is waiting to be batched
+     */
+    public boolean isPending(File file) {
+        return pending.containsKey(file);
+    }
+
+    /**
+     * @return the number of files waiting to be batched
+     */
+    public int getPendingFiles() {
+        return pending.size();
+    }
+
+    public int getBatchFiles() {
+        return batchFiles;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * One file waiting to be batched
+     */
+    private static class PendingFile {
+        PendingFile(long arrivalMillis, long length, long lastModified, long unchangedSince) {
+            this.arrivalMillis = arrivalMillis;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.unchangedSince = unchangedSince;
+        }
+
+        private long arrivalMillis;
+        private long length;
+        private long lastModified;
+        private long unchangedSince;
+    }
+
+    private int batchFiles = 0;
+    private long windowMillis = 0;
+    private long settleMillis = 0;
+
+    //In arrival order
+    private Map<File, PendingFile> pending = new LinkedHashMap<File, PendingFile>();
+}
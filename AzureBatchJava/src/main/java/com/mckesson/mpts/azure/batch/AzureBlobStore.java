@@ -0,0 +1,182 @@
+package com.mckesson.mpts.azure.batch;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.*;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.util.*;
+
+/**
+ *      BlobStore held in an Azure Storage Container.
+ *
+ * - Files larger than PARALLEL_UPLOAD_THRESHOLD are uploaded as blocks of BLOCK_SIZE bytes with up to
+ *   BLOCK_CONCURRENCY blocks in flight at once; smaller files are uploaded with a single request.
+ * - Rather than a SAS per blob, one read-only SAS and one read/create/write SAS are generated for the container and appended
+ *   to every URL handed out. The SAS are valid for SAS_EXPIRY_DAYS and are generated again once less than
+ *   SAS_REFRESH_HOURS remain, so every URL handed out stays valid for at least SAS_REFRESH_HOURS. Callers that keep
+ *   URLs for longer should keep the blob name instead and ask for the URL again when it is used.
+ * - The container is created, if necessary, the first time it is used.
+ *
+ *      Storage errors are reported as IOExceptions caused by the StorageException. Errors that cannot succeed on retry
+ * (4xx other than 408 and 429) are not retryable.
+ */
+public class AzureBlobStore implements BlobStore {
+
+    public static final int PARALLEL_UPLOAD_THRESHOLD = 4 * 1024 * 1024;
+    public static final int BLOCK_SIZE = 4 * 1024 * 1024;
+    public static final int BLOCK_CONCURRENCY = 4;
+    public static final int SAS_EXPIRY_DAYS = 1;
+    public static final int SAS_REFRESH_HOURS = 6;
+
+    /**
+     * @param container Storage Container holding the blobs. CloudBlobContainer is safe for use by multiple threads.
+     */
+    public AzureBlobStore(CloudBlobContainer container) {
+        this.container = container;
+    }
+
+    public void put(String blobName, File source) throws IOException {
+        try {
+            ensureContainer();
+            CloudBlockBlob blob = container.getBlockBlobReference(blobName);
+            blob.setStreamWriteSizeInBytes(BLOCK_SIZE);
+            BlobRequestOptions options = new BlobRequestOptions();
+            options.setSingleBlobPutThresholdInBytes(PARALLEL_UPLOAD_THRESHOLD);
+            options.setConcurrentRequestCount(BLOCK_CONCURRENCY);
+
+            InputStream in = new BufferedInputStream(new FileInputStream(source), BLOCK_SIZE);
+            try {
+                blob.upload(in, source.length(), null, options, null);
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (StorageException | URISyntaxException e) {
+            throw new IOException("Unable to write blob " + blobName + ": " + e.getMessage(), e);
+        }
+    }
+
+    public void get(String blobName, File target) throws IOException {
+        try {
+            container.getBlockBlobReference(blobName).downloadToFile(target.getAbsolutePath());
+        }
+        catch (StorageException | URISyntaxException e) {
+            throw new IOException("Unable to read blob " + blobName + ": " + e.getMessage(), e);
+        }
+    }
+
+    public boolean exists(String blobName) throws IOException {
+        try {
+            return container.getBlockBlobReference(blobName).exists();
+        }
+        catch (StorageException | URISyntaxException e) {
+            throw new IOException("Unable to check blob " + blobName + ": " + e.getMessage(), e);
+        }
+    }
+
+    public List<String> list(String prefix) throws IOException {
+        List<String> names = new ArrayList<String>();
+        try {
+            for (ListBlobItem item : container.listBlobs(prefix, true)) {
+                if (item instanceof CloudBlob) {
+                    names.add(((CloudBlob)item).getName());
+                }
+            }
+        }
+        catch (URISyntaxException use) {
+            throw new IOException("Unable to list blobs under " + prefix + ": " + use.getMessage(), use);
+        }
+        catch (NoSuchElementException nsee) {
+            //The listing iterator reports storage errors this way
+            throw new IOException("Unable to list blobs under " + prefix + ": " + nsee.getMessage(), nsee);
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    public String getReadUrl(String blobName) throws IOException {
+        try {
+            return container.getBlockBlobReference(blobName).getUri() + "?" +
+                    getSas(EnumSet.of(SharedAccessBlobPermissions.READ));
+        }
+        catch (StorageException | URISyntaxException | InvalidKeyException e) {
+            throw new IOException("Unable to create a URL for blob " + blobName + ": " + e.getMessage(), e);
+        }
+    }
+
+    public String getWriteLocation(String prefix) throws IOException {
+        try {
+            return container.getUri() + "/" + prefix + "?" +
+                    getSas(EnumSet.of(SharedAccessBlobPermissions.READ, SharedAccessBlobPermissions.CREATE,
+                            SharedAccessBlobPermissions.WRITE));
+        }
+        catch (StorageException | InvalidKeyException e) {
+            throw new IOException("Unable to create a location for " + prefix + ": " + e.getMessage(), e);
+        }
+    }
+
+    public boolean isRetryable(IOException e) {
+        if (e.getCause() instanceof StorageException) {
+            int status = ((StorageException)e.getCause()).getHttpStatusCode();
+            //A status below 0 means no response was received
+            return status < 0 || status == 408 || status == 429 || status >= 500;
+        }
+        return !(e.getCause() instanceof URISyntaxException || e.getCause() instanceof InvalidKeyException);
+    }
+
+    private void ensureContainer() throws StorageException {
+        if (!containerChecked) {
+            synchronized (sasByPermissions) {
+                if (!containerChecked) {
+                    container.createIfNotExists();
+                    containerChecked = true;
+                }
+            }
+        }
+    }
+
+    private String getSas(EnumSet<SharedAccessBlobPermissions> permissions) throws StorageException, InvalidKeyException {
+        synchronized (sasByPermissions) {
+            ContainerSas sas = sasByPermissions.get(permissions);
+            if (sas == null || System.currentTimeMillis() >= sas.refreshTime) {
+                ensureContainer();
+
+                SharedAccessBlobPolicy policy = new SharedAccessBlobPolicy();
+                policy.setPermissions(permissions);
+                Calendar c = Calendar.getInstance();
+                c.setTime(new Date());
+                c.add(Calendar.DATE, SAS_EXPIRY_DAYS);
+                policy.setSharedAccessExpiryTime(c.getTime());
+
+                sas = new ContainerSas(container.generateSharedAccessSignature(policy, null),
+                        c.getTimeInMillis() - SAS_REFRESH_HOURS * 60L * 60L * 1000L);
+                sasByPermissions.put(permissions, sas);
+            }
+            return sas.token;
+        }
+    }
+
+    private CloudBlobContainer container = null;
+    private volatile boolean containerChecked = false;
+    private Map<EnumSet<SharedAccessBlobPermissions>, ContainerSas> sasByPermissions = new HashMap<EnumSet<SharedAccessBlobPermissions>, ContainerSas>();
+
+    /**
+     * A container SAS and the time after which it is generated again
+     */
+    private static class ContainerSas {
+        ContainerSas(String token, long refreshTime) {
+            this.token = token;
+            this.refreshTime = refreshTime;
+        }
+
+        private final String token;
+        private final long refreshTime;
+    }
+}
@@ -0,0 +1,761 @@
+package com.mckesson.mpts.azure.batch;
+
+import com.microsoft.azure.batch.BatchClient;
+import com.microsoft.azure.batch.DetailLevel;
+import com.microsoft.azure.batch.auth.BatchSharedKeyCredentials;
+import com.microsoft.azure.batch.protocol.models.*;
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageCredentials;
+import com.microsoft.azure.storage.StorageCredentialsAccountAndKey;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.*;
+
+import com.mckesson.mpts.azure.tasks.DocumentResult;
+import com.mckesson.mpts.azure.tasks.TaskSummary;
+import com.mckesson.mpts.azure.tasks.daemon.TaskDaemon;
+import com.mckesson.mpts.azure.tasks.daemon.TaskDaemonClient;
+import com.mckesson.mpts.azure.tasks.io.EDIDocumentBundle;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *      The Azure Batch ComputeBackend. Holds the Azure resources used by every OpiodOrderingWorker in one run of the
+ * application. A single instance is created by ComputeBackends and handed to each worker, so that the following are set
+ * up once per run rather than once per Job:
+ *
+ * - the BatchSharedKeyCredentials and BatchClient for the Azure Batch Account
+ * - the AzureBlobStore over the Storage Container
+ * - the TaskJarStager and BlobUploader used to load files to the store
+ * - the JobCompletionPoller that watches every Job in flight
+ * - the check that the Pool exists and has a Node ready to run tasks
+ *
+ *      The Pool check polls the pool and node state and can take many minutes if the pool has to be allocated. It is
+ * done by the first worker to call getReadyPool(); other workers wait for that check and then reuse its result. If
+ * the check fails it is tried again by the next worker that asks. The check is guarded by a ReentrantLock rather than
+ * a synchronized method so workers running on virtual threads do not pin their carrier thread while it sleeps.
+ *
+ *      When JOB_THREAD_MODE is "virtual" every Job is started at once on its own (virtual, where available) thread and
+ * the number of tasks in flight is limited by a TaskSlotLimiter holding TASK_SLOT_OVERSUBSCRIPTION permits per task
+ * slot in the Pool. The Pool size is re-read at most every CAPACITY_REFRESH_MILLIS, so the limit follows the Pool as it
+ * is scaled out or in.
+ *
+ *      The Azure settings are read from the same environment variables documented on OpiodOrderingWorker, along with
+ * DISPATCH_MODE and JOB_THREAD_MODE (see OpiodOrderingRecorder).
+ *
+ *      Each Job's bundle is uploaded to the store and, with the task jars, attached as resource files to every
+ * parse task. The Job is created with OnAllTasksComplete.TERMINATE_JOB and its tasks are added as one task collection.
+ *
+ *      When the jar path holds the shaded task jar built by "mvn -P appcds package", the tasks run from it rather than
+ * from the five separate jars, using a class data sharing (AppCDS) archive of the classes its training run loaded so
+ * each task JVM maps them in already parsed and verified. An archive only works with the JVM that wrote it and the jar
+ * at the path it was written for, so the first task on each Node writes one from the staged class list, with the
+ * jar copied to TASK_CDS_DIR/{jar hash} in the Node's shared directory, and later tasks run the jar from there with
+ * the archive. A Node whose JVM cannot write the archive runs the tasks without one.
+ *
+ *      When TASK_RUNTIME is "native" the tasks run the native executable of EDI855ParseTask instead, staged in place of
+ * the jars (see OpiodOrderingWorker). Resource files are downloaded without execute permission, so the task sets it
+ * before starting the executable.
+ *
+ *      When TASK_DAEMON is "true" the Pool is created with a start task that leaves a TaskDaemon running on each Node,
+ * and the parse tasks are started as TaskDaemonClients that hand their work to it (see TaskDaemon). The start task is
+ * only added to a Pool this class creates; an existing Pool needs one added to it for the daemon to run, and the
+ * clients run their tasks themselves until it does. The daemon keeps the jars it started with, so the Nodes must be
+ * rebooted after new task jars are deployed.
+ *
+ *      BatchClient and AzureBlobStore are safe for use by multiple threads.
+ */
+public class BatchRunContext implements ComputeBackend {
+
+    public static final String DISPATCH_MODE_QUEUE = "queue";
+    public static final String WORK_QUEUE_PREFIX = "queue/";
+    public static final String JOB_THREAD_MODE_VIRTUAL = "virtual";
+    //Permits per Pool task slot, so the next Job can be submitted while the tasks of the last are still finishing
+    public static final int TASK_SLOT_OVERSUBSCRIPTION = 2;
+    public static final long CAPACITY_REFRESH_MILLIS = 60 * 1000L;
+    public static final long TASK_SLOT_WAIT_SECONDS = 30;
+    public static final String JOB_NOT_FOUND = "JobNotFound";
+    //Files a task writes to its working directory are found under this path of the task's directory on the Node
+    public static final String TASK_WORKING_DIR = "wd/";
+    public static final String TASK_DAEMON_ENV = "TASK_DAEMON";
+    //A client only waits on the daemon, so it is started with the quick-starting JIT compiler alone
+    public static final String TASK_DAEMON_CLIENT_OPTIONS = "-XX:TieredStopAtLevel=1 -Xshare:auto";
+    public static final String TASK_CDS_DIR = "task-cds";
+
+    /**
+     * Create the context for a run from the Azure environment variables
+     * @param jarFilePath Path to a directory containing jar files needed by the Azure Batch Tasks
+     * @throws URISyntaxException Thrown if the Storage Account settings are not valid
+     * @throws StorageException Thrown if the Storage Container cannot be referenced
+     */
+    public BatchRunContext(String jarFilePath) throws URISyntaxException, StorageException {
+        String batchAccount = System.getenv("AZURE_BATCH_ACCOUNT");
+        String batchKey = System.getenv("AZURE_BATCH_ACCESS_KEY");
+        String batchUri = System.getenv("AZURE_BATCH_ENDPOINT");
+        batchSharedDir = System.getenv("AZ_BATCH_NODE_SHARED_DIR");
+
+        String storageAccountName = System.getenv("STORAGE_ACCOUNT_NAME");
+        String storageAccountKey = System.getenv("STORAGE_ACCOUNT_KEY");
+        String containerName = System.getenv("CONTAINER_NAME");
+        if (containerName != null) {
+            storageContainerName = containerName;
+        }
+
+        poolId = System.getenv("BATCH_POOL_ID");
+
+        queueDispatch = DISPATCH_MODE_QUEUE.equalsIgnoreCase(System.getenv("DISPATCH_MODE"));
+        virtualThreadMode = JOB_THREAD_MODE_VIRTUAL.equalsIgnoreCase(System.getenv("JOB_THREAD_MODE"));
+
+        String deleteJobOpt = System.getenv("DELETE_JOBS");
+        if (deleteJobOpt != null) {
+            deleteJobWhenDone = Boolean.parseBoolean(deleteJobOpt);
+        }
+        taskDaemon = Boolean.parseBoolean(System.getenv(TASK_DAEMON_ENV));
+
+        //Create a BatchClient instance. this will be used by every worker when any resource is required
+        this.cred = new BatchSharedKeyCredentials(batchUri, batchAccount, batchKey);
+        this.client = BatchClient.open(cred);
+
+        this.blobStore = new AzureBlobStore(createBlobContainer(storageAccountName, storageAccountKey));
+
+        this.jarFilePath = jarFilePath;
+        this.shadedTaskJar = OpiodOrderingWorker.hasShadedTaskJar(jarFilePath);
+        this.nativeTask = OpiodOrderingWorker.useNativeTask(jarFilePath);
+        this.jarStager = OpiodOrderingWorker.createTaskJarStager(jarFilePath, nativeTask);
+        this.uploader = new BlobUploader();
+        this.completionPoller = new JobCompletionPoller(client);
+    }
+
+    /**
+     * Return the Pool to run Jobs on, creating it if it does not exist and waiting for it to be ready the first time
+     * this method is called. Later calls return the same Pool immediately.
+     * @return the pool instance
+     * @throws BatchErrorException
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws TimeoutException
+     */
+    public CloudPool getReadyPool() throws BatchErrorException, IOException, InterruptedException, TimeoutException {
+        poolLock.lockInterruptibly();
+        try {
+            if (readyPool == null) {
+                long startTime = System.currentTimeMillis();
+                readyPool = createPoolIfNotExists(client, poolId);
+                lastCapacityCheck = System.currentTimeMillis();
+                System.out.println("Pool " + poolId + " ready after " + (lastCapacityCheck - startTime) + " ms");
+            }
+            return readyPool;
+        }
+        finally {
+            poolLock.unlock();
+        }
+    }
+
+    public void prepare() throws BatchErrorException, IOException, InterruptedException, TimeoutException {
+        getReadyPool();
+    }
+
+    public int getTaskSlots() {
+        return getPoolTaskSlots();
+    }
+
+    /**
+     * Upload a Job's bundle to the store. The blob name is kept for submitJob(), which asks the store for its URL so the
+     * URL carries a current SAS however long the Job waits to be submitted.
+     * @param jobId Azure Batch Job Id
+     * @param bundleFile bundle written by EDIDocumentBundle
+     * @throws IOException Thrown if the upload fails after all retries
+     * @throws InterruptedException Thrown if the calling thread is interrupted while waiting for the upload
+     */
+    public void stageBundle(String jobId, File bundleFile) throws IOException, InterruptedException {
+        String bundleName = EDIDocumentBundle.getBundleName(jobId);
+        uploader.upload(blobStore, bundleName, bundleFile);
+        bundleNames.put(jobId, bundleName);
+    }
+
+    /**
+     * Use the bundle blob of an earlier Job for a new Job if it is still in the store. The blob is attached to the new
+     * Job's tasks under the new Job's bundle name.
+     * @param jobId Azure Batch Job Id of the new Job
+     * @param stagedJobId Azure Batch Job Id the bundle was staged for
+     * @return true if the bundle blob exists
+     * @throws IOException Thrown if the store cannot be read
+     */
+    public boolean reuseBundle(String jobId, String stagedJobId) throws IOException {
+        String bundleName = EDIDocumentBundle.getBundleName(stagedJobId);
+        if (!blobStore.exists(bundleName)) {
+            return false;
+        }
+        bundleNames.put(jobId, bundleName);
+        return true;
+    }
+
+    /**
+     * Look up a Job submitted by an earlier run. Its creation time is kept so the JobCompletionPoller includes it when
+     * filtering the completed Jobs.
+     * @param jobId Azure Batch Job Id
+     * @return true if the Job still exists
+     * @throws BatchErrorException
+     * @throws IOException
+     */
+    public boolean attachJob(String jobId) throws BatchErrorException, IOException {
+        try {
+            CloudJob job = client.jobOperations().getJob(jobId,
+                    new DetailLevel.Builder().withSelectClause("id,creationTime").build());
+            jobCreationTimes.put(jobId, Long.valueOf(job.creationTime() != null ? job.creationTime().getMillis() :
+                    System.currentTimeMillis()));
+            return true;
+        }
+        catch (BatchErrorException err) {
+            if (err.body() != null && JOB_NOT_FOUND.equals(err.body().code())) {
+                return false;
+            }
+            throw err;
+        }
+    }
+
+    /**
+     * Create the Azure Batch Job on the Pool and add its parse tasks as one task collection. Every task is given the
+     * Job's bundle and the task jars as resource files.
+     * @param jobId Azure Batch Job Id
+     * @param tasks one ParseTaskSpec per parse task
+     * @throws BatchErrorException
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void submitJob(String jobId, List<ParseTaskSpec> tasks) throws BatchErrorException, IOException, InterruptedException {
+        String bundleName = bundleNames.remove(jobId);
+        if (bundleName == null) {
+            throw new IllegalStateException("No bundle has been staged for job " + jobId);
+        }
+        String bundleUrl = blobStore.getReadUrl(bundleName);
+
+        // Create job run at the specified pool
+        PoolInformation poolInfo = new PoolInformation();
+        poolInfo.withPoolId(poolId);
+        JobAddParameter jap =
+                new JobAddParameter().withDisplayName("OpiodDrugOrderingJob").withId(jobId).withUsesTaskDependencies(Boolean.TRUE)
+                        .withOnAllTasksComplete(OnAllTasksComplete.TERMINATE_JOB).withPoolInfo(poolInfo);
+
+        //The creation time is kept so a Job waited on more than once, such as while racing a speculative copy, is still
+        //  found by the JobCompletionPoller however long it runs
+        jobCreationTimes.put(jobId, Long.valueOf(System.currentTimeMillis()));
+        client.jobOperations().createJob(jap);
+
+        List<ResourceFile> files = new ArrayList<ResourceFile>();
+        ResourceFile bundleResource = new ResourceFile();
+        bundleResource.withFilePath(EDIDocumentBundle.getBundleName(jobId)).withBlobSource(bundleUrl);
+        files.add(bundleResource);
+
+        //The jars are staged once per run and shared by every job
+        files.addAll(jarStager.getResourceFiles(blobStore, uploader));
+
+        List<TaskAddParameter> tasksToAdd = new ArrayList<TaskAddParameter>(tasks.size());
+        for (ParseTaskSpec task : tasks) {
+            TaskAddParameter taskToAdd = new TaskAddParameter();
+            taskToAdd.withId(task.getTaskId()).withCommandLine(getTaskCommandLine(task.getArguments()));
+            taskToAdd.withResourceFiles(files);
+            if (!task.getEnvironment().isEmpty()) {
+                List<EnvironmentSetting> settings = new ArrayList<EnvironmentSetting>();
+                for (Map.Entry<String, String> setting : task.getEnvironment().entrySet()) {
+                    settings.add(new EnvironmentSetting().withName(setting.getKey()).withValue(setting.getValue()));
+                }
+                taskToAdd.withEnvironmentSettings(settings);
+            }
+            tasksToAdd.add(taskToAdd);
+        }
+
+        // Add the 855 parse tasks to the job as one task collection
+        client.taskOperations().createTasks(jobId, tasksToAdd);
+    }
+
+    public boolean awaitJob(String jobId, Duration timeout) throws InterruptedException {
+        Long creationTime = jobCreationTimes.get(jobId);
+        if (creationTime != null) {
+            return completionPoller.awaitCompletion(jobId, timeout, creationTime.longValue());
+        }
+        return completionPoller.awaitCompletion(jobId, timeout);
+    }
+
+    /**
+     * List the tasks of a completed Job and download the summary and document results files of each, rather than the
+     * whole of their console output. A task that wrote no summary or document results, such as one that failed to
+     * start, is given none.
+     * @param jobId Azure Batch Job Id
+     * @return TaskOutcome for each task
+     * @throws BatchErrorException
+     * @throws IOException
+     */
+    public List<TaskOutcome> getTaskOutcomes(String jobId) throws BatchErrorException, IOException {
+        List<CloudTask> tasks = client.taskOperations().listTasks(jobId,
+                new DetailLevel.Builder().withSelectClause("id,state,executionInfo").build());
+        List<TaskOutcome> outcomes = new ArrayList<TaskOutcome>(tasks.size());
+        for (CloudTask task : tasks) {
+            TaskSummary summary = TaskSummary.parse(getTaskFile(jobId, task.id(), TASK_WORKING_DIR + TaskSummary.SUMMARY_FILENAME));
+            List<DocumentResult> documentResults = DocumentResult.parseAll(
+                    getTaskFile(jobId, task.id(), TASK_WORKING_DIR + DocumentResult.RESULTS_FILENAME));
+
+            Integer exitCode = (task.executionInfo() != null) ? task.executionInfo().exitCode() : null;
+            outcomes.add(new TaskOutcome(task.id(), exitCode, summary, documentResults));
+        }
+        return outcomes;
+    }
+
+    /**
+     * Download stdout.txt or stderr.txt of a task
+     * @param jobId Azure Batch Job Id
+     * @param taskId task id
+     * @param fileName name of the log file
+     * @return content of the file, empty if there is none
+     * @throws IOException
+     */
+    public String getTaskLog(String jobId, String taskId, String fileName) throws IOException {
+        String log = getTaskFile(jobId, taskId, fileName);
+        return log != null ? log : "";
+    }
+
+    /**
+     * Download a file from a task's directory on its Node
+     * @return content of the file, or null if the task has no such file
+     * @throws BatchErrorException Thrown for any error other than the file not being found, so a file that could not
+     *         be read is not taken for one the task never wrote
+     */
+    private String getTaskFile(String jobId, String taskId, String filePath) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try {
+            client.fileOperations().getFileFromTask(jobId, taskId, filePath, stream);
+        }
+        catch (BatchErrorException err) {
+            if (err.response() != null && err.response().code() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return null;
+            }
+            throw err;
+        }
+        return stream.toString("UTF-8");
+    }
+
+    /**
+     * Terminate a Job, stopping its running tasks and any not yet started. The Job then completes and its task files
+     * stay on the Nodes until it is deleted.
+     * @param jobId Azure Batch Job Id
+     * @throws BatchErrorException
+     * @throws IOException
+     */
+    public void terminateJob(String jobId) throws BatchErrorException, IOException {
+        client.jobOperations().terminateJob(jobId);
+    }
+
+    /**
+     * Delete a Job. Deleting the Job removes its tasks and the files on the Nodes as well.
+     * @param jobId Azure Batch Job Id
+     * @throws BatchErrorException
+     * @throws IOException
+     */
+    public void deleteJob(String jobId) throws BatchErrorException, IOException {
+        bundleNames.remove(jobId);
+        jobCreationTimes.remove(jobId);
+        client.jobOperations().deleteJob(jobId);
+    }
+
+    /**
+     * Return the number of tasks the Pool can run at once: the number of dedicated Nodes multiplied by the maximum
+     * tasks per Node. getReadyPool() must have been called first.
+     * @return number of task slots in the Pool, at least 1
+     */
+    public int getPoolTaskSlots() {
+        int nodes = 1;
+        int slotsPerNode = 1;
+        CloudPool readyPool = this.readyPool;
+        if (readyPool != null) {
+            if (readyPool.currentDedicated() != null && readyPool.currentDedicated() > 0) {
+                nodes = readyPool.currentDedicated();
+            }
+            if (readyPool.maxTasksPerNode() != null && readyPool.maxTasksPerNode() > 0) {
+                slotsPerNode = readyPool.maxTasksPerNode();
+            }
+        }
+        return nodes * slotsPerNode;
+    }
+
+    /**
+     * Wait for task slots in the Pool before submitting a Job in virtual thread mode. The Pool size is re-read, at
+     * most every CAPACITY_REFRESH_MILLIS, while waiting so a Pool that is scaled out frees slots for waiting Jobs.
+     * getReadyPool() must have been called first.
+     * @param tasks number of tasks in the Job
+     * @return number of slots acquired, to pass to releaseTaskSlots() once the Job has completed. 0 when not in
+     * virtual thread mode.
+     * @throws InterruptedException Thrown if the calling thread is interrupted while waiting
+     */
+    public int acquireTaskSlots(int tasks) throws InterruptedException {
+        if (!virtualThreadMode) {
+            return 0;
+        }
+        int acquired = 0;
+        while (acquired == 0) {
+            refreshPoolCapacity();
+            acquired = getTaskSlotLimiter().tryAcquire(tasks, TASK_SLOT_WAIT_SECONDS, TimeUnit.SECONDS);
+        }
+        return acquired;
+    }
+
+    /**
+     * Return task slots acquired by acquireTaskSlots()
+     * @param slots value returned by acquireTaskSlots()
+     */
+    public void releaseTaskSlots(int slots) {
+        if (slots > 0) {
+            getTaskSlotLimiter().release(slots);
+        }
+    }
+
+    /**
+     * Return the location of the work queue for a Job, for tasks using queue dispatch. The location is a URL under
+     * queue/{jobId} in the container with a SAS allowing claim blobs to be created and read back.
+     * @param jobId Azure Batch Job Id
+     * @return work queue location including SAS
+     * @throws IOException Thrown if the SAS cannot be created
+     */
+    public String getWorkQueueLocation(String jobId) throws IOException {
+        return blobStore.getWriteLocation(WORK_QUEUE_PREFIX + jobId);
+    }
+
+    /**
+     * @return true if DISPATCH_MODE is "queue": all files go to one job whose tasks pull work from a shared queue
+     */
+    public boolean isQueueDispatch() {
+        return queueDispatch;
+    }
+
+    /**
+     * @return true if JOB_THREAD_MODE is "virtual": every Job is started at once and limited by Pool capacity
+     */
+    public boolean isVirtualThreadMode() {
+        return virtualThreadMode;
+    }
+
+    public BatchClient getClient() {
+        return client;
+    }
+
+    public BlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    public TaskJarStager getJarStager() {
+        return jarStager;
+    }
+
+    public BlobUploader getUploader() {
+        return uploader;
+    }
+
+    public JobCompletionPoller getCompletionPoller() {
+        return completionPoller;
+    }
+
+    public String getBatchSharedDir() {
+        return batchSharedDir;
+    }
+
+    public boolean isDeleteJobWhenDone() {
+        return deleteJobWhenDone;
+    }
+
+    /**
+     * Release the resources held for the run. Uploads already started are completed.
+     */
+    public void close() {
+        uploader.shutdown();
+        completionPoller.shutdown();
+        System.out.println("Checked job completion with " + completionPoller.getPollCount() + " listJobs calls");
+    }
+
+    /**
+     * Create IaaS pool if pool isn't exist. The Pool should be pre-created as the tasks requires Java be installed ahead of time...
+     * The Pool attributes are ones used by the example Azure Batch class and may be changed as needed if not pre-allocating
+     * the pool.
+     * @param client batch client instance
+     * @param poolId the pool id
+     * @return the pool instance
+     * @throws BatchErrorException
+     * @throws IllegalArgumentException
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws TimeoutException
+     */
+    private  CloudPool createPoolIfNotExists(BatchClient client, String poolId) throws BatchErrorException, IllegalArgumentException, IOException, InterruptedException, TimeoutException {
+        // Create a pool with 1 A1 VM
+        String osPublisher = "OpenLogic";
+        String osOffer = "CentOS";
+        String poolVMSize = "STANDARD_A1";
+        //Canonical UbuntuServer 16.04.0-LTS
+        int poolVMCount = 1;
+        Duration POOL_STEADY_TIMEOUT = Duration.ofMinutes(5);
+        Duration VM_READY_TIMEOUT = Duration.ofMinutes(20);
+
+        // Check if pool exists
+        if (!client.poolOperations().existsPool(poolId)) {
+
+            // See detail of creating IaaS pool at https://blogs.technet.microsoft.com/windowshpc/2016/03/29/introducing-linux-support-on-azure-batch/
+            // Get the sku image reference
+            List<NodeAgentSku> skus = client.accountOperations().listNodeAgentSkus();
+            String skuId = null;
+            ImageReference imageRef = null;
+
+            for (NodeAgentSku sku : skus) {
+                if (sku.osType() == OSType.LINUX) {
+                    System.out.println("NodeAgentSku=" + sku.toString());
+                    for (ImageReference imgRef : sku.verifiedImageReferences()) {
+                        System.out.println("ImageReferece Publisher = " + imgRef.publisher());
+                        System.out.println("ImageReferece Offer = " + imgRef.offer());
+                        System.out.println("ImageReferece Version = " + imgRef.version());
+                        System.out.println("ImageReferece Sku = " + imgRef.sku());
+                    }
+                }
+            }
+
+            for (NodeAgentSku sku : skus) {
+                if (sku.osType() == OSType.LINUX) {
+                    for (ImageReference imgRef : sku.verifiedImageReferences()) {
+                        if (imgRef.publisher().equalsIgnoreCase(osPublisher) && imgRef.offer().equalsIgnoreCase(osOffer)) {
+                            imageRef = imgRef;
+                            skuId = sku.id();
+                            break;
+                        }
+                    }
+                }
+            }
+
+            // Use IaaS VM with Linux
+            VirtualMachineConfiguration configuration = new VirtualMachineConfiguration();
+            configuration.withNodeAgentSKUId(skuId).withImageReference(imageRef);
+
+            if (taskDaemon) {
+                PoolAddParameter poolToAdd = new PoolAddParameter().withId(poolId).withVmSize(poolVMSize)
+                        .withVirtualMachineConfiguration(configuration).withTargetDedicated(poolVMCount)
+                        .withStartTask(createTaskDaemonStartTask());
+                client.poolOperations().createPool(poolToAdd);
+            }
+            else {
+                client.poolOperations().createPool(poolId, poolVMSize, configuration, poolVMCount);
+            }
+        }
+        else if (taskDaemon) {
+            //The start task of an existing Pool holds jar URLs whose SAS may have expired, so Nodes that join or reboot
+            //  later would fail to start their TaskDaemon
+            client.poolOperations().patchPool(poolId, createTaskDaemonStartTask(), null, null, null);
+        }
+
+        long startTime = System.currentTimeMillis();
+        long elapsedTime = 0L;
+        boolean steady = false;
+
+        // Wait for the VM to be allocated
+        while (elapsedTime < POOL_STEADY_TIMEOUT.toMillis()) {
+            CloudPool pool = client.poolOperations().getPool(poolId);
+            if (pool.allocationState() == AllocationState.STEADY) {
+                steady = true;
+                break;
+            }
+            System.out.println("wait 30 seconds for pool steady...");
+            Thread.sleep(30 * 1000);
+            elapsedTime = (new Date()).getTime() - startTime;
+        }
+
+        if (!steady) {
+            throw new TimeoutException("The pool did not reach a steady state in the allotted time");
+        }
+
+        // The VMs in the pool don't need to be in and IDLE state in order to submit a job.
+        // The following code is just an example of how to poll for the VM state
+        startTime = System.currentTimeMillis();
+        elapsedTime = 0L;
+        boolean hasIdleVM = false;
+
+        // Wait for at least 1 VM to reach the IDLE state
+        while (elapsedTime < VM_READY_TIMEOUT.toMillis()) {
+            List<ComputeNode> nodeCollection = client.computeNodeOperations().listComputeNodes(poolId, new DetailLevel.Builder().withSelectClause("id, state").withFilterClause("state eq 'idle'").build());
+            if (!nodeCollection.isEmpty()) {
+                hasIdleVM = true;
+                break;
+            }
+
+            System.out.println("wait 30 seconds for VM start...");
+            Thread.sleep(30 * 1000);
+            elapsedTime = (new Date()).getTime() - startTime;
+        }
+
+        if (!hasIdleVM) {
+            throw new TimeoutException("The node did not reach an IDLE state in the allotted time");
+        }
+
+        return client.poolOperations().getPool(poolId);
+    }
+
+    /**
+     * Create the start task that leaves a TaskDaemon running on each Node of the Pool. The daemon is started in the
+     * background with its own session so it outlives the start task, and logs to the Node's shared directory.
+     * @return StartTask for the Pool
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private StartTask createTaskDaemonStartTask() throws IOException, InterruptedException {
+        String commandLine = String.format("/bin/bash -c 'setsid nohup /usr/bin/java -classpath %s %s " +
+                        "> $AZ_BATCH_NODE_SHARED_DIR/%s.log 2>&1 < /dev/null &'",
+                getTaskClasspath(), TaskDaemon.class.getName(), TaskDaemon.DEFAULT_DIRECTORY_NAME);
+        return new StartTask().withCommandLine(commandLine)
+                .withResourceFiles(jarStager.getResourceFiles(blobStore, uploader))
+                .withWaitForSuccess(Boolean.TRUE).withMaxTaskRetryCount(Integer.valueOf(2));
+    }
+
+    /**
+     * @return class path of the task jars as downloaded to a task's working directory
+     */
+    private String getTaskClasspath() {
+        if (shadedTaskJar) {
+            return "./" + OpiodOrderingWorker.TASK_SHADED_JAR;
+        }
+        return String.format("./%s:./%s:./%s:./%s:./%s", OpiodOrderingWorker.TASK_JAR,
+                OpiodOrderingWorker.JACKSON_CORE_JAR, OpiodOrderingWorker.JACKSON_DATABIND_JAR,
+                OpiodOrderingWorker.JACKSON_ANNOTATIONS_JAR, OpiodOrderingWorker.MYSQL_JDBC_JAR);
+    }
+
+    /**
+     * Build the command line of a parse task. The native executable is started through a shell that makes it
+     * executable first. With the shaded task jar the task is started through a shell that writes the Node's class data
+     * sharing archive if it has not been written yet (see the class comment). The archive and the copy of the jar are
+     * written under temporary names and renamed, so tasks starting together on a Node never use one part written. The
+     * arguments are passed to the shell as its own, so they are not parsed again.
+     * @param arguments arguments for the task
+     * @return the task's command line
+     * @throws IOException Thrown if the shaded task jar cannot be read to hash it
+     */
+    private String getTaskCommandLine(List<String> arguments) throws IOException {
+        if (nativeTask) {
+            return String.format("/bin/bash -c 'chmod u+x ./%1$s && exec ./%1$s \"$@\"' opioid-task %2$s",
+                    OpiodOrderingWorker.TASK_NATIVE_EXECUTABLE, String.join(" ", arguments));
+        }
+        String taskMain = taskDaemon ? TASK_DAEMON_CLIENT_OPTIONS + " " + TaskDaemonClient.class.getName() :
+                "com.mckesson.mpts.azure.tasks.poackparser.EDI855ParseTask";
+        if (!shadedTaskJar) {
+            return String.format("/usr/bin/java -classpath %s %s %s", getTaskClasspath(), taskMain,
+                    String.join(" ", arguments));
+        }
+
+        String script = String.format("C=$AZ_BATCH_NODE_SHARED_DIR/%1$s/%2$s; J=%3$s; A=%4$s; O=; " +
+                "if [ -f ./%5$s ] && [ ! -f $C/$A ] && [ ! -f $C/$A.failed ]; then mkdir -p $C; " +
+                "if [ ! -f $C/$J ]; then cp ./$J $C/$J.$$ && mv -n $C/$J.$$ $C/$J; rm -f $C/$J.$$; fi; " +
+                "if /usr/bin/java -Xshare:dump -XX:SharedClassListFile=./%5$s -XX:SharedArchiveFile=$C/$A.$$ " +
+                "-classpath $C/$J > $C/$A.log 2>&1; then mv -n $C/$A.$$ $C/$A; else touch $C/$A.failed; fi; " +
+                "rm -f $C/$A.$$; fi; " +
+                "if [ -f $C/$A ]; then O=\"-Xshare:auto -XX:SharedArchiveFile=$C/$A\"; P=$C/$J; else P=./$J; fi; " +
+                "exec /usr/bin/java $O -classpath $P %6$s \"$@\"",
+                TASK_CDS_DIR, getTaskJarHash(), OpiodOrderingWorker.TASK_SHADED_JAR,
+                OpiodOrderingWorker.TASK_CDS_ARCHIVE, OpiodOrderingWorker.TASK_CLASS_LIST, taskMain);
+        return "/bin/bash -c '" + script + "' opioid-task " + String.join(" ", arguments);
+    }
+
+    /**
+     * @return the start of the SHA-256 hash of the shaded task jar, naming the Node directory its archive is kept in
+     */
+    private synchronized String getTaskJarHash() throws IOException {
+        if (taskJarHash == null) {
+            taskJarHash = TaskJarStager.hashFile(new File(jarFilePath + OpiodOrderingWorker.TASK_SHADED_JAR)).substring(0, 16);
+        }
+        return taskJarHash;
+    }
+
+    /**
+     * Create blob container in order to upload files
+     * @param storageAccountName storage account name
+     * @param storageAccountKey storage account key
+     * @return CloudBlobContainer instance
+     * @throws URISyntaxException
+     * @throws StorageException
+     */
+    private  CloudBlobContainer createBlobContainer(String storageAccountName, String storageAccountKey) throws URISyntaxException, StorageException {
+
+        // Create storage credential from name and key
+        StorageCredentials credentials = new StorageCredentialsAccountAndKey(storageAccountName, storageAccountKey);
+
+        // Create storage account
+        CloudStorageAccount storageAccount = new CloudStorageAccount(credentials);
+
+        // Create the blob client
+        CloudBlobClient blobClient =  storageAccount.createCloudBlobClient();
+
+        // Get a reference to a container.
+        // The container name must be lower case
+        return blobClient.getContainerReference(storageContainerName);
+    }
+
+    private synchronized TaskSlotLimiter getTaskSlotLimiter() {
+        if (taskSlotLimiter == null) {
+            taskSlotLimiter = new TaskSlotLimiter(getPoolTaskSlots() * TASK_SLOT_OVERSUBSCRIPTION);
+        }
+        return taskSlotLimiter;
+    }
+
+    /**
+     * Re-read the Pool size if it has not been read for CAPACITY_REFRESH_MILLIS and resize the TaskSlotLimiter to match
+     */
+    private void refreshPoolCapacity() {
+        if (readyPool == null || System.currentTimeMillis() - lastCapacityCheck < CAPACITY_REFRESH_MILLIS || !poolLock.tryLock()) {
+            return;
+        }
+        try {
+            lastCapacityCheck = System.currentTimeMillis();
+            readyPool = client.poolOperations().getPool(poolId,
+                    new DetailLevel.Builder().withSelectClause("id,currentDedicated,maxTasksPerNode").build());
+            TaskSlotLimiter limiter = getTaskSlotLimiter();
+            int capacity = getPoolTaskSlots() * TASK_SLOT_OVERSUBSCRIPTION;
+            if (capacity != limiter.getCapacity()) {
+                System.out.println("Pool " + poolId + " now has " + getPoolTaskSlots() + " task slots, allowing " +
+                        capacity + " tasks in flight");
+                limiter.resize(capacity);
+            }
+        }
+        catch (Exception e) {
+            System.err.println("Unable to refresh the size of pool " + poolId + ": " + e.getMessage());
+        }
+        finally {
+            poolLock.unlock();
+        }
+    }
+
+    private BatchSharedKeyCredentials cred = null;
+    private BatchClient client = null;
+    private AzureBlobStore blobStore = null;
+    private TaskJarStager jarStager = null;
+    private BlobUploader uploader = null;
+    private JobCompletionPoller completionPoller = null;
+
+    private String batchSharedDir = null;
+    private String storageContainerName = "parsedx12855files";
+    private String poolId = null;
+    private boolean deleteJobWhenDone = false;
+    private boolean queueDispatch = false;
+    private boolean virtualThreadMode = false;
+    private boolean taskDaemon = false;
+    private String jarFilePath = null;
+    private boolean shadedTaskJar = false;
+    private boolean nativeTask = false;
+    private String taskJarHash = null;
+    private Map<String, String> bundleNames = new ConcurrentHashMap<String, String>();
+    //Creation time of each Job submitted or attached by this run
+    private Map<String, Long> jobCreationTimes = new ConcurrentHashMap<String, Long>();
+
+    private final ReentrantLock poolLock = new ReentrantLock();
+    private volatile CloudPool readyPool = null;
+    private volatile long lastCapacityCheck = 0;
+    private TaskSlotLimiter taskSlotLimiter = null;
+}
@@ -0,0 +1,70 @@
+package com.mckesson.mpts.azure.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ *      A flat store of named blobs used to stage the files a Job needs: the document bundle, the task jars and the work
+ * queue. Blob names may contain "/" to group blobs under a prefix, as in jars/{sha256}/{jar file name}.
+ *
+ * - AzureBlobStore keeps the blobs in an Azure Storage Container and hands out SAS URLs.
+ * - LocalBlobStore keeps them in a local directory, so uploads and bundle strategies can be run and measured without
+ *   any network I/O.
+ *
+ *      put() replaces a blob as a whole: a reader sees either the old or the new content, never part of it. Errors are
+ * reported as IOExceptions; BlobUploader decides from isRetryable() whether a failed put is worth trying again.
+ */
+public interface BlobStore {
+
+    /**
+     * Create or replace a blob with the content of a file
+     * @param blobName name of the blob
+     * @param source local file to store
+     * @throws IOException Thrown if the blob cannot be written
+     */
+    void put(String blobName, File source) throws IOException;
+
+    /**
+     * Copy the content of a blob to a local file, replacing the file if it exists
+     * @param blobName name of the blob
+     * @param target local file to write
+     * @throws IOException Thrown if the blob does not exist or cannot be read
+     */
+    void get(String blobName, File target) throws IOException;
+
+    /**
+     * @param blobName name of the blob
+     * @return true if the blob exists
+     * @throws IOException Thrown if the store cannot be read
+     */
+    boolean exists(String blobName) throws IOException;
+
+    /**
+     * @param prefix start of the blob names to list, or "" for all blobs
+     * @return names of the blobs starting with the prefix, in name order
+     * @throws IOException Thrown if the store cannot be read
+     */
+    List<String> list(String prefix) throws IOException;
+
+    /**
+     * @param blobName name of the blob
+     * @return URL from which the blob can be read without other credentials
+     * @throws IOException Thrown if the URL cannot be created
+     */
+    String getReadUrl(String blobName) throws IOException;
+
+    /**
+     * @param prefix blob name prefix, without a trailing "/"
+     * @return location under which new blobs can be created and read back without other credentials, for use with
+     *         WorkQueues.open()
+     * @throws IOException Thrown if the location cannot be created
+     */
+    String getWriteLocation(String prefix) throws IOException;
+
+    /**
+     * @param e exception thrown by one of the methods of this store
+     * @return true if repeating the call may succeed
+     */
+    boolean isRetryable(IOException e);
+}
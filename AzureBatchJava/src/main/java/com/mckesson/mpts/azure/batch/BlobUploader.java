@@ -0,0 +1,130 @@
+package com.mckesson.mpts.azure.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *      Uploads files to blobs in a BlobStore. One instance is shared by all workers in a run so the number of uploads
+ * in flight is bounded for the whole process rather than per worker.
+ *
+ * - Uploads run on a fixed-size pool of daemon threads. uploadAsync() returns a Future so a caller can start several
+ *   uploads and wait for them together; upload() waits for a single upload.
+ * - Each upload is retried up to maxAttempts times with exponential backoff. Every attempt is a fresh
+ *   BlobStore.put() of the source file, so a retry never re-reads a stream that an earlier attempt has already
+ *   consumed. Errors the store reports as not retryable fail at once.
+ * - How a file is written (block sizes, links, SAS) is left to the BlobStore.
+ */
+public class BlobUploader {
+
+    public static final int DEFAULT_UPLOAD_THREADS = 8;
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000L;
+    public static final long MAX_BACKOFF_MILLIS = 30 * 1000L;
+
+    public BlobUploader() {
+        this(DEFAULT_UPLOAD_THREADS, DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MILLIS);
+    }
+
+    /**
+     * @param uploadThreads maximum number of blob uploads in flight at once
+     * @param maxAttempts number of times an upload is attempted before it fails
+     * @param initialBackoffMillis wait before the first retry. The wait doubles for each following retry.
+     */
+    public BlobUploader(int uploadThreads, int maxAttempts, long initialBackoffMillis) {
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(uploadThreads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "blob-upload-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Start uploading a file to a blob
+     * @param store blob store
+     * @param blobName name of the blob to create or replace
+     * @param source local file to upload
+     * @return Future holding the blob's read URL once the upload completes
+     */
+    public Future<String> uploadAsync(final BlobStore store, final String blobName, final File source) {
+        return executor.submit(new Callable<String>() {
+            public String call() throws Exception {
+                return BlobUploader.this.uploadWithRetry(store, blobName, source);
+            }
+        });
+    }
+
+    /**
+     * Upload a file to a blob and wait for the upload to complete
+     * @param store blob store
+     * @param blobName name of the blob to create or replace
+     * @param source local file to upload
+     * @return the blob's read URL
+     * @throws IOException Thrown if the upload fails after all retries
+     * @throws InterruptedException Thrown if the calling thread is interrupted while waiting
+     */
+    public String upload(BlobStore store, String blobName, File source) throws IOException, InterruptedException {
+        return BlobUploader.getResult(uploadAsync(store, blobName, source));
+    }
+
+    /**
+     * Wait for an upload started with uploadAsync() and return its blob URL
+     * @param upload Future returned by uploadAsync()
+     * @return the blob's read URL
+     * @throws IOException Thrown if the upload failed after all retries
+     * @throws InterruptedException Thrown if the calling thread is interrupted while waiting
+     */
+    public static String getResult(Future<String> upload) throws IOException, InterruptedException {
+        try {
+            return upload.get();
+        }
+        catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Stop accepting uploads. Uploads already started are completed.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private String uploadWithRetry(BlobStore store, String blobName, File source) throws IOException, InterruptedException {
+        long backoffMillis = initialBackoffMillis;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                store.put(blobName, source);
+                return store.getReadUrl(blobName);
+            }
+            catch (IOException e) {
+                if (attempt >= maxAttempts || !store.isRetryable(e)) {
+                    System.err.println("Storage error writing file " + blobName + " to the blob store after " +
+                            attempt + " attempts, aborting...");
+                    throw e;
+                }
+                System.err.println("Storage error writing file " + blobName + " to the blob store (" +
+                        e.getMessage() + "), retrying in " + backoffMillis + " ms");
+            }
+
+            //Add up to 20% jitter so uploads that failed together do not all retry together
+            Thread.sleep(backoffMillis + ThreadLocalRandom.current().nextLong(backoffMillis / 5 + 1));
+            backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    private ExecutorService executor = null;
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+}
@@ -0,0 +1,151 @@
+package com.mckesson.mpts.azure.batch;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ *      Where the parse tasks of a Job run. OpiodOrderingWorker bundles the input files, decides how many parse tasks to
+ * run and with which arguments, and reads the results back; the backend only stages the bundle, runs the tasks and
+ * reports how each one ended. One instance is shared by every worker in a run.
+ *
+ * - BatchRunContext runs each Job as an Azure Batch Job on a Pool, with the bundle and task jars in a Storage Container.
+ * - LocalComputeBackend runs each task as a child JVM in a local directory, so a whole run can be made on one machine
+ *   with the same code path and no Azure resources.
+ *
+ *      A Job goes through stageBundle(), submitJob(), awaitJob(), getTaskOutcomes() and finally deleteJob() when the
+ * backend is set to delete Jobs once they are done. getTaskOutcomes() only reads each task's small summary and document
+ * results files; the console logs are read with getTaskLog() when a Job has failed. A run resuming the Jobs of an earlier run uses reuseBundle() in
+ * place of stageBundle(), or attachJob() in place of both stageBundle() and submitJob(). See ComputeBackends for how the
+ * backend for a run is chosen.
+ */
+public interface ComputeBackend {
+
+    /**
+     * Make sure the compute resources are ready to run tasks, such as an Azure Batch Pool with a Node ready. Called by
+     * every worker before its first Job; only the first call does any work.
+     * @throws Exception Thrown if the resources cannot be made ready
+     */
+    void prepare() throws Exception;
+
+    /**
+     * @return number of tasks the backend can run at once, at least 1. prepare() must have been called first.
+     */
+    int getTaskSlots();
+
+    /**
+     * @return true if parse tasks pull work items from a shared queue rather than each processing a fixed slice
+     */
+    boolean isQueueDispatch();
+
+    /**
+     * @return true if every Job is started at once and the Jobs in flight are limited by acquireTaskSlots()
+     */
+    boolean isVirtualThreadMode();
+
+    /**
+     * @return true if each Job is deleted once its results have been read
+     */
+    boolean isDeleteJobWhenDone();
+
+    /**
+     * Wait for room to run a Job's tasks. Only blocks in virtual thread mode.
+     * @param tasks number of tasks in the Job
+     * @return number of slots acquired, to pass to releaseTaskSlots() once the Job has completed
+     * @throws InterruptedException Thrown if the calling thread is interrupted while waiting
+     */
+    int acquireTaskSlots(int tasks) throws InterruptedException;
+
+    /**
+     * @param slots value returned by acquireTaskSlots()
+     */
+    void releaseTaskSlots(int slots);
+
+    /**
+     * @param jobId Job Id
+     * @return location of the Job's work queue, for WorkQueues.open() in the parse tasks
+     * @throws Exception Thrown if the queue location cannot be created
+     */
+    String getWorkQueueLocation(String jobId) throws Exception;
+
+    /**
+     * Make a Job's document bundle available to its tasks. The bundle file may be deleted once this method returns.
+     * @param jobId Job Id
+     * @param bundleFile bundle written by EDIDocumentBundle
+     * @throws Exception Thrown if the bundle cannot be staged
+     */
+    void stageBundle(String jobId, File bundleFile) throws Exception;
+
+    /**
+     * Use the bundle staged for a Job of an earlier run as the bundle of a new Job, so a resumed run does not upload it
+     * again
+     * @param jobId Job Id of the new Job
+     * @param stagedJobId Job Id the bundle was staged for
+     * @return true if the bundle is still staged and will be used by submitJob(), false if it must be staged again
+     * @throws Exception Thrown if the staged bundle cannot be checked
+     */
+    boolean reuseBundle(String jobId, String stagedJobId) throws Exception;
+
+    /**
+     * Pick up a Job submitted by an earlier run of the application so awaitJob() and getTaskOutcomes() can be used on it
+     * @param jobId Job Id
+     * @return true if the backend still has the Job, false if it must be submitted again
+     * @throws Exception Thrown if the Job cannot be checked
+     */
+    boolean attachJob(String jobId) throws Exception;
+
+    /**
+     * Create a Job and start its parse tasks, each reading the Job's staged bundle
+     * @param jobId Job Id
+     * @param tasks one ParseTaskSpec per parse task
+     * @throws Exception Thrown if the Job cannot be created
+     */
+    void submitJob(String jobId, List<ParseTaskSpec> tasks) throws Exception;
+
+    /**
+     * Wait for every task of a Job to complete. The Job is left running if the timeout passes first, so it can be
+     * waited on again; use terminateJob() to stop it.
+     * @param jobId Job Id
+     * @param timeout longest time to wait
+     * @return true if the tasks completed, false if the timeout passed first
+     * @throws InterruptedException Thrown if the calling thread is interrupted while waiting
+     */
+    boolean awaitJob(String jobId, Duration timeout) throws InterruptedException;
+
+    /**
+     * Stop every task of a Job still running or waiting to run, such as a Job that timed out or a speculative copy that
+     * lost to the Job it copied
+     * @param jobId Job Id
+     * @throws Exception Thrown if the Job cannot be stopped
+     */
+    void terminateJob(String jobId) throws Exception;
+
+    /**
+     * @param jobId Job Id of a completed Job
+     * @return how each task of the Job ended, with its TaskSummary and document results
+     * @throws Exception Thrown if the task results cannot be read
+     */
+    List<TaskOutcome> getTaskOutcomes(String jobId) throws Exception;
+
+    /**
+     * Read one of the console log files of a completed task
+     * @param jobId Job Id
+     * @param taskId task id
+     * @param fileName OpiodOrderingWorker.STANDARD_CONSOLE_OUTPUT_FILENAME or STANDARD_CONSOLE_ERROR_FILENAME
+     * @return content of the file, empty if the task wrote none
+     * @throws Exception Thrown if the file cannot be read
+     */
+    String getTaskLog(String jobId, String taskId, String fileName) throws Exception;
+
+    /**
+     * Delete a Job and everything staged for it
+     * @param jobId Job Id
+     * @throws Exception Thrown if the Job cannot be deleted
+     */
+    void deleteJob(String jobId) throws Exception;
+
+    /**
+     * Release the resources held for the run
+     */
+    void close();
+}
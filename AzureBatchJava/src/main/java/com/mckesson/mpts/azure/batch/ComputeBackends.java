@@ -0,0 +1,62 @@
+package com.mckesson.mpts.azure.batch;
+
+import java.io.File;
+
+/**
+ * Creates the ComputeBackend for a run from the COMPUTE_BACKEND environment variable:
+ *
+ * azure (the default) - BatchRunContext, configured from the Azure environment variables documented on
+ *   OpiodOrderingWorker
+ * local - LocalComputeBackend, configured from:
+ *   LOCAL_WORK_DIR - directory holding the Jobs, by default opioid-local under the system temporary directory
+ *   LOCAL_TASK_SLOTS - number of tasks to run at once, by default the number of processors
+ *   LOCAL_TASK_CLASSPATH - class path for the task JVMs, by default the class path of this JVM
+ *
+ * Both backends honour DISPATCH_MODE, JOB_THREAD_MODE, DELETE_JOBS and TASK_DAEMON.
+ */
+public class ComputeBackends {
+
+    public static final String BACKEND_ENV = "COMPUTE_BACKEND";
+    public static final String BACKEND_LOCAL = "local";
+    public static final String LOCAL_WORK_DIR_ENV = "LOCAL_WORK_DIR";
+    public static final String LOCAL_TASK_SLOTS_ENV = "LOCAL_TASK_SLOTS";
+    public static final String LOCAL_TASK_CLASSPATH_ENV = "LOCAL_TASK_CLASSPATH";
+    public static final String DEFAULT_LOCAL_WORK_DIR = "opioid-local";
+
+    /**
+     * Open the ComputeBackend selected by COMPUTE_BACKEND
+     * @param jarFilePath Path to a directory containing jar files needed by the Azure Batch Tasks
+     * @return ComputeBackend to share across all workers in the run. The caller must close it.
+     * @throws Exception Thrown if the backend cannot be created
+     */
+    public static ComputeBackend open(String jarFilePath) throws Exception {
+        if (!BACKEND_LOCAL.equalsIgnoreCase(System.getenv(BACKEND_ENV))) {
+            return new BatchRunContext(jarFilePath);
+        }
+
+        String workDir = System.getenv(LOCAL_WORK_DIR_ENV);
+        File localWorkDir = (workDir != null && workDir.length() > 0) ? new File(workDir) :
+                new File(System.getProperty("java.io.tmpdir"), DEFAULT_LOCAL_WORK_DIR);
+
+        int taskSlots = Runtime.getRuntime().availableProcessors();
+        String slots = System.getenv(LOCAL_TASK_SLOTS_ENV);
+        if (slots != null && slots.length() > 0) {
+            try {
+                taskSlots = Integer.parseInt(slots);
+            }
+            catch (NumberFormatException nfe) {
+                System.err.println("Invalid " + LOCAL_TASK_SLOTS_ENV + " value " + slots + ", using " + taskSlots);
+            }
+        }
+
+        String classpath = System.getenv(LOCAL_TASK_CLASSPATH_ENV);
+        System.out.println("Running jobs locally in " + localWorkDir.getAbsolutePath() + " with " + taskSlots + " task slots");
+        LocalComputeBackend backend = new LocalComputeBackend(localWorkDir, taskSlots,
+                (classpath != null && classpath.length() > 0) ? classpath : null,
+                BatchRunContext.DISPATCH_MODE_QUEUE.equalsIgnoreCase(System.getenv("DISPATCH_MODE")),
+                BatchRunContext.JOB_THREAD_MODE_VIRTUAL.equalsIgnoreCase(System.getenv("JOB_THREAD_MODE")),
+                Boolean.parseBoolean(System.getenv("DELETE_JOBS")));
+        backend.setTaskDaemon(Boolean.parseBoolean(System.getenv(BatchRunContext.TASK_DAEMON_ENV)));
+        return backend;
+    }
+}
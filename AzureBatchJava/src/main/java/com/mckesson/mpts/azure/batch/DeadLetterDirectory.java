@@ -0,0 +1,95 @@
+package com.mckesson.mpts.azure.batch;
+
+import com.mckesson.mpts.azure.tasks.DocumentResult;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.List;
+
+/**
+ *      The directory input files are moved to when they hold a document that can never be processed as it is, such as
+ * one that fails to parse. Moving the file out of the input directory stops every later run from sending it again,
+ * while keeping it for someone to look at.
+ *
+ *      Next to each file is a {file name}.errors.txt file naming the Job that found the problem and listing each failed
+ * document in the DocumentResult line format:
+ *
+ * {status}\t{document name}\t{error}
+ *
+ *      The directory is the one named by the DEAD_LETTER_DIR environment variable, or DEFAULT_DIRECTORY_NAME in the
+ * input directory. The input file filter never selects it. A file whose name is already in the directory is given a
+ * {time millis}- prefix rather than replacing the earlier one.
+ */
+public class DeadLetterDirectory {
+
+    public static final String DEAD_LETTER_ENV = "DEAD_LETTER_DIR";
+    public static final String DEFAULT_DIRECTORY_NAME = "dead-letter";
+    public static final String ERRORS_SUFFIX = ".errors.txt";
+
+    /**
+     * Open the dead-letter directory for a run over an input directory
+     * @param inputDirectory directory holding the input files
+     * @return the dead-letter directory, created when the first file is added
+     */
+    public static DeadLetterDirectory open(File inputDirectory) {
+        String directoryPath = System.getenv(DEAD_LETTER_ENV);
+        File directory = (directoryPath != null && directoryPath.length() > 0) ? new File(directoryPath) :
+                new File(inputDirectory, DEFAULT_DIRECTORY_NAME);
+        return new DeadLetterDirectory(directory);
+    }
+
+    /**
+     * @param directory directory to move input files to
+     */
+    public DeadLetterDirectory(File directory) {
+        this.directory = directory.getAbsoluteFile();
+    }
+
+    /**
+     * Move an input file to the directory and write its errors file beside it
+     * @param inputFile input file to move
+     * @param jobId Id of the Job that found the failed documents
+     * @param failures result of each document of the file that failed
+     * @return the file in the dead-letter directory
+     * @throws IOException Thrown if the file cannot be moved or the errors file cannot be written. The input file is
+     * left where it was if it could not be moved.
+     */
+    public synchronized File add(File inputFile, String jobId, List<DocumentResult> failures) throws IOException {
+        Files.createDirectories(directory.toPath());
+        File target = new File(directory, inputFile.getName());
+        if (target.exists()) {
+            target = new File(directory, System.currentTimeMillis() + "-" + inputFile.getName());
+        }
+
+        //The errors file is written first so a file is never in the directory without the reason it is there
+        Writer errors = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(directory, target.getName() + ERRORS_SUFFIX)), StandardCharsets.UTF_8));
+        try {
+            errors.write("file\t" + inputFile.getAbsolutePath() + "\n");
+            errors.write("job\t" + jobId + "\n");
+            errors.write("moved\t" + new Date() + "\n");
+            for (DocumentResult failure : failures) {
+                errors.write(failure.toLine() + "\n");
+            }
+        }
+        finally {
+            errors.close();
+        }
+
+        if (!inputFile.renameTo(target)) {
+            //The directory may be on another file system
+            Files.copy(inputFile.toPath(), target.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+            Files.delete(inputFile.toPath());
+        }
+        return target;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    private File directory = null;
+}
@@ -0,0 +1,384 @@
+package com.mckesson.mpts.azure.batch;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *      Runs the application as a long-running service over the input directory instead of once over the files already
+ * in it. Selected by setting the INGEST_MODE environment variable to "watch". Files dropped into the directory are
+ * picked up through a java.nio WatchService, grouped into micro-batches by an ArrivalBatcher and sent as Jobs as soon as
+ * each batch closes, so a file reaches the ordering history within about the batch window of arriving rather than
+ * waiting for the next run.
+ *
+ * - A batch closes when inputFileLimit files are waiting, or when its first file has waited WATCH_BATCH_SECONDS
+ *   (DEFAULT_BATCH_SECONDS unless set). Batches are sized by files rather than EDI segments, as keeping the time from
+ *   arrival short matters more here than evening out Job sizes.
+ * - At most maxThreadLimit Jobs are in flight; files arriving meanwhile wait and are sent in full batches as Jobs
+ *   complete. In virtual thread mode (JOB_THREAD_MODE=virtual) the task slots of the Pool limit the Jobs instead.
+ * - Files are only batched once they have stopped changing for SETTLE_MILLIS, so files still being written are left
+ *   alone. The directory is also listed every RESCAN_MILLIS, and whenever the WatchService reports it lost events, so
+ *   a file is never missed on a file system that does not report every change.
+ *
+ *      Every file goes through the RunManifest as in a single run, so stopping and starting the service is safe at
+ * any point: on start the files the manifest shows as processed are removed, the Jobs left unfinished are resumed and
+ * every other file in the directory is batched again. A file is journaled as DISCOVERED when its batch closes.
+ * Files that fail for a transient reason are retried through a RetryQueue as in a single run; a file still failing
+ * after its retries is kept in the directory and not sent again until it changes or the service is restarted.
+ *
+ *      The service runs until the JVM is stopped. It then stops batching files and waits up to SHUTDOWN_WAIT_MILLIS for
+ * the Jobs in flight, leaving any still running to be resumed at the next start.
+ */
+public class InputDirectoryWatcher {
+
+    public static final String INGEST_MODE_ENV = "INGEST_MODE";
+    public static final String INGEST_MODE_WATCH = "watch";
+    public static final String BATCH_SECONDS_ENV = "WATCH_BATCH_SECONDS";
+    public static final long DEFAULT_BATCH_SECONDS = 30;
+    public static final long SETTLE_MILLIS = 2000L;
+    public static final long POLL_MILLIS = 500L;
+    public static final long RESCAN_MILLIS = 60 * 1000L;
+    public static final long PROGRESS_INTERVAL_MILLIS = AdaptiveJobScheduler.PROGRESS_INTERVAL_SECONDS * 1000L;
+    public static final long SHUTDOWN_WAIT_MILLIS = 60 * 1000L;
+
+    /**
+     * @return true if INGEST_MODE selects watching the input directory
+     */
+    public static boolean isWatchMode() {
+        return INGEST_MODE_WATCH.equalsIgnoreCase(System.getenv(INGEST_MODE_ENV));
+    }
+
+    /**
+     * @return the batch window set by WATCH_BATCH_SECONDS, or DEFAULT_BATCH_SECONDS, in milliseconds
+     */
+    public static long getBatchWindowMillis() {
+        String seconds = System.getenv(BATCH_SECONDS_ENV);
+        if (seconds != null && seconds.length() > 0) {
+            return Long.parseLong(seconds) * 1000L;
+        }
+        return DEFAULT_BATCH_SECONDS * 1000L;
+    }
+
+    /**
+     * @param inputDirectory directory to watch
+     * @param inputFilter selects the input files in the directory
+     * @param batchFiles most files sent in one Job
+     * @param windowMillis longest a file waits for its batch to fill
+     * @param maxJobs most Jobs in flight at once
+     * @param manifest RunManifest shared by every worker
+     * @param deadLetter DeadLetterDirectory shared by every worker
+     */
+    public InputDirectoryWatcher(File inputDirectory, FilenameFilter inputFilter, int batchFiles, long windowMillis,
+                                 int maxJobs, RunManifest manifest, DeadLetterDirectory deadLetter) {
+        this.inputDirectory = inputDirectory.getAbsoluteFile();
+        this.inputFilter = inputFilter;
+        this.batcher = new ArrivalBatcher(batchFiles, windowMillis, SETTLE_MILLIS);
+        this.maxJobs = Math.max(1, maxJobs);
+        this.manifest = manifest;
+        this.deadLetter = deadLetter;
+    }
+
+    /**
+     * Watch the input directory and send its files to the compute backend until the JVM is stopped
+     * @param backend ComputeBackend shared by all workers
+     * @param jdbcURL JDBC URL passed to each worker
+     * @throws IOException Thrown if the input directory cannot be watched or the manifest cannot be written
+     * @throws InterruptedException Thrown if the watching thread is interrupted
+     */
+    public void run(ComputeBackend backend, String jdbcURL) throws IOException, InterruptedException {
+        this.backend = backend;
+        this.jdbcURL = jdbcURL;
+        boolean capacityLimited = backend.isVirtualThreadMode();
+        int jobLimit = capacityLimited ? Integer.MAX_VALUE : maxJobs;
+        ExecutorService executor = JobExecutors.newJobExecutor(capacityLimited);
+        completionService = new ExecutorCompletionService<JobResult>(executor);
+        WatchService watchService = FileSystems.getDefault().newWatchService();
+
+        //Stopping the JVM stops the watch loop, then waits for it to finish with the Jobs in flight
+        final Thread watchThread = Thread.currentThread();
+        Thread shutdownHook = new Thread() {
+            public void run() {
+                stopping = true;
+                try {
+                    watchThread.join(SHUTDOWN_WAIT_MILLIS + POLL_MILLIS);
+                }
+                catch (InterruptedException ie) {
+                    //Stop waiting
+                }
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        try {
+            //Registered before the directory is first listed, so a file arriving in between is not missed
+            inputDirectory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            watchStart = System.currentTimeMillis();
+            start();
+            System.out.println("Watching " + inputDirectory + " for input files, sending up to " + batcher.getBatchFiles() +
+                    " files per job after at most " + (batcher.getWindowMillis() / 1000) + " s, " +
+                    (capacityLimited ? "as many jobs as the pool has task slots for" : "up to " + maxJobs + " jobs at a time"));
+
+            long lastScan = watchStart;
+            long lastProgress = watchStart;
+            while (!stopping) {
+                WatchKey key = watchService.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                long now = System.currentTimeMillis();
+                boolean rescan = now - lastScan >= RESCAN_MILLIS;
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            rescan = true;
+                        }
+                        else {
+                            String name = event.context().toString();
+                            if (inputFilter.accept(inputDirectory, name)) {
+                                arrive(new File(inputDirectory, name), now);
+                            }
+                        }
+                    }
+                    if (!key.reset()) {
+                        throw new IOException("Input directory " + inputDirectory + " can no longer be watched");
+                    }
+                }
+                if (rescan) {
+                    for (File inputFile : listInputFiles()) {
+                        arrive(inputFile, now);
+                    }
+                    lastScan = now;
+                }
+
+                Future<JobResult> job = completionService.poll();
+                while (job != null) {
+                    finish(job);
+                    job = completionService.poll();
+                }
+                for (File[] retryFiles : retryQueue.takeDue(Math.max(0, jobLimit - jobFiles.size()))) {
+                    submit(retryFiles, null);
+                }
+                while (jobFiles.size() < jobLimit) {
+                    File[] batch = batcher.takeBatch(now);
+                    if (batch == null) {
+                        break;
+                    }
+                    manifest.discover(batch);
+                    submit(batch, null);
+                }
+
+                if (now - lastProgress >= PROGRESS_INTERVAL_MILLIS) {
+                    printProgress();
+                    lastProgress = now;
+                }
+            }
+
+            //Jobs still running after the wait are resumed from the manifest at the next start
+            System.out.println("Stopping, waiting up to " + (SHUTDOWN_WAIT_MILLIS / 1000) + " s for " + jobFiles.size() +
+                    " jobs in flight");
+            long deadline = System.currentTimeMillis() + SHUTDOWN_WAIT_MILLIS;
+            while (!jobFiles.isEmpty() && System.currentTimeMillis() < deadline) {
+                Future<JobResult> job = completionService.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                if (job != null) {
+                    finish(job);
+                }
+            }
+            if (!jobFiles.isEmpty()) {
+                System.out.println(jobFiles.size() + " jobs still running will be resumed at the next start");
+            }
+            printProgress();
+        }
+        finally {
+            watchService.close();
+            executor.shutdown();
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            }
+            catch (IllegalStateException ise) {
+                //The JVM is already stopping
+            }
+        }
+    }
+
+    /**
+     * Handle the files already in the directory: remove those processed by an earlier run, resume its unfinished Jobs
+     * and batch the rest
+     */
+    private void start() throws IOException {
+        List<File> inputFiles = new ArrayList<File>();
+        for (File inputFile : listInputFiles()) {
+            if (manifest.getState(inputFile) == RunManifest.FileState.PROCESSED) {
+                System.out.println("Removing " + inputFile.getName() + ", already processed by an earlier run");
+                inputFile.delete();
+            }
+            else {
+                inputFiles.add(inputFile);
+            }
+        }
+
+        Map<String, List<File>> unfinishedJobs = manifest.getUnfinishedJobs(inputFiles.toArray(new File[0]));
+        for (Map.Entry<String, List<File>> unfinishedJob : unfinishedJobs.entrySet()) {
+            File[] files = unfinishedJob.getValue().toArray(new File[0]);
+            for (File file : files) {
+                arrivals.put(file, Long.valueOf(watchStart));
+            }
+            submit(files, unfinishedJob.getKey());
+        }
+        if (!unfinishedJobs.isEmpty()) {
+            System.out.println("Resuming " + unfinishedJobs.size() + " unfinished jobs");
+        }
+        for (File inputFile : inputFiles) {
+            arrive(inputFile, watchStart);
+        }
+    }
+
+    /**
+     * Take note of a file seen in the directory. Files already waiting, in a Job or waiting for a retry are ignored, as
+     * are files kept after failing every retry unless they have changed since.
+     */
+    private void arrive(File inputFile, long now) {
+        if (!inputFile.isFile() || claimedFiles.contains(inputFile) || batcher.isPending(inputFile)) {
+            return;
+        }
+        Long keptModified = keptFiles.get(inputFile);
+        if (keptModified != null) {
+            if (keptModified.longValue() == inputFile.lastModified()) {
+                return;
+            }
+            keptFiles.remove(inputFile);
+            arrivals.remove(inputFile);
+        }
+        //A file processed before the service was restarted, and written again unchanged since
+        if (manifest.getState(inputFile) == RunManifest.FileState.PROCESSED) {
+            System.out.println("Removing " + inputFile.getName() + ", already processed");
+            inputFile.delete();
+            return;
+        }
+        batcher.offer(inputFile, now);
+        if (!arrivals.containsKey(inputFile)) {
+            arrivals.put(inputFile, Long.valueOf(now));
+        }
+    }
+
+    private void submit(File[] files, String unfinishedJobId) {
+        OpiodOrderingWorker worker = new OpiodOrderingWorker(files, backend, jdbcURL, manifest, deadLetter, unfinishedJobId);
+        worker.setDurationEstimator(estimator);
+        jobFiles.put(completionService.submit(worker), files);
+        claimedFiles.addAll(Arrays.asList(files));
+    }
+
+    /**
+     * Account for a completed Job: time its processed files from their arrival and queue the files it did not finish
+     * to be retried
+     */
+    private void finish(Future<JobResult> job) throws InterruptedException {
+        File[] files = jobFiles.remove(job);
+        JobResult result;
+        try {
+            result = job.get();
+        }
+        catch (ExecutionException ee) {
+            result = new JobResult(null, files.length);
+            result.setFailureReason("Worker failed: " + ee.getCause());
+        }
+        System.out.println(result);
+
+        completedJobs++;
+        if (!result.isSucceeded()) {
+            failedJobs++;
+        }
+        completedDocuments += result.getDocuments();
+        completedOpioidRows += result.getOpioidRows();
+        long now = System.currentTimeMillis();
+        for (File file : result.getSucceededFiles()) {
+            Long arrival = arrivals.remove(file);
+            if (arrival != null) {
+                long latency = now - arrival.longValue();
+                totalLatencyMillis += latency;
+                maxLatencyMillis = Math.max(maxLatencyMillis, latency);
+            }
+            processedFiles++;
+        }
+        deadLetterFiles += result.getDeadLetterFiles().size();
+
+        //A worker that failed before sorting its files leaves them unaccounted for, so they are retried too
+        List<File> retryFiles = new ArrayList<File>(result.getRetryFiles());
+        for (File file : files) {
+            if (file.exists() && !retryFiles.contains(file) && !result.getSucceededFiles().contains(file) &&
+                    !result.getDeadLetterFiles().contains(file)) {
+                retryFiles.add(file);
+            }
+        }
+        List<File> queued = retryQueue.offer(retryFiles);
+        for (File file : files) {
+            if (queued.contains(file)) {
+                continue;
+            }
+            claimedFiles.remove(file);
+            if (retryFiles.contains(file)) {
+                keptFiles.put(file, Long.valueOf(file.lastModified()));
+            }
+            else {
+                arrivals.remove(file);
+            }
+        }
+    }
+
+    private File[] listInputFiles() {
+        File[] inputFiles = inputDirectory.listFiles(inputFilter);
+        return inputFiles != null ? inputFiles : new File[0];
+    }
+
+    /**
+     * Print what is waiting and in flight, the totals since the service started and the average and longest time from
+     * a file arriving to its Job completing
+     */
+    private void printProgress() {
+        System.out.println(String.format("Watching: %d files waiting, %d jobs in flight, %d files to retry, %d kept. " +
+                        "%d files processed in %d jobs (%d failed), %d documents, %d opioid rows, %d files dead-lettered. " +
+                        "Arrival to history average %.1f s, longest %.1f s, up %s",
+                batcher.getPendingFiles(), jobFiles.size(), retryQueue.getPendingFiles(), keptFiles.size(), processedFiles,
+                completedJobs, failedJobs, completedDocuments, completedOpioidRows, deadLetterFiles,
+                processedFiles == 0 ? 0.0 : totalLatencyMillis / 1000.0 / processedFiles, maxLatencyMillis / 1000.0,
+                InputDirectoryWatcher.formatDuration(System.currentTimeMillis() - watchStart)));
+    }
+
+    private static String formatDuration(long millis) {
+        long seconds = millis / 1000;
+        return String.format("%dh%02dm%02ds", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+
+    private File inputDirectory = null;
+    private FilenameFilter inputFilter = null;
+    private ArrivalBatcher batcher = null;
+    private int maxJobs = 0;
+    private RunManifest manifest = null;
+    private DeadLetterDirectory deadLetter = null;
+
+    private ComputeBackend backend = null;
+    private String jdbcURL = null;
+    private CompletionService<JobResult> completionService = null;
+    private RetryQueue retryQueue = new RetryQueue();
+    private JobDurationEstimator estimator = new JobDurationEstimator();
+    private volatile boolean stopping = false;
+
+    //Files of each Job in flight
+    private Map<Future<JobResult>, File[]> jobFiles = new HashMap<Future<JobResult>, File[]>();
+    //Files in a Job in flight or waiting for a retry
+    private Set<File> claimedFiles = new HashSet<File>();
+    //Last modified time of each file kept after failing every retry
+    private Map<File, Long> keptFiles = new HashMap<File, Long>();
+    //When each file not yet processed was first seen
+    private Map<File, Long> arrivals = new HashMap<File, Long>();
+
+    private long watchStart = 0;
+    private int completedJobs = 0;
+    private int failedJobs = 0;
+    private int processedFiles = 0;
+    private int deadLetterFiles = 0;
+    private long completedDocuments = 0;
+    private long completedOpioidRows = 0;
+    private long totalLatencyMillis = 0;
+    private long maxLatencyMillis = 0;
+}
@@ -0,0 +1,209 @@
+package com.mckesson.mpts.azure.batch;
+
+import com.microsoft.azure.batch.BatchClient;
+import com.microsoft.azure.batch.DetailLevel;
+import com.microsoft.azure.batch.protocol.models.CloudJob;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *      Tracks every Job in flight for a run and reports when each one completes. One instance is shared by all workers,
+ * replacing a polling loop per worker that listed the tasks of its own Job every 10 seconds.
+ *
+ *      Jobs are created with OnAllTasksComplete.TERMINATE_JOB, so a Job reaches the completed state as soon as its last
+ * task completes. Each poll makes a single listJobs call, filtered on the Batch service to completed Jobs created since
+ * the oldest Job being watched and returning only the Job ids, which covers every Job in flight at once. The number of
+ * calls no longer grows with the number of Jobs.
+ *
+ *      Each Job is checked on its own adaptive schedule: first after INITIAL_INTERVAL_MILLIS, then with the interval
+ * growing by BACKOFF_FACTOR up to MAX_INTERVAL_MILLIS, so short Jobs are picked up quickly and long Jobs do not cause
+ * needless calls. A poll only runs when at least one Job is due, but it completes every watched Job it finds completed,
+ * due or not.
+ *
+ *      watch() returns a CompletableFuture per Job that completes with true when the Job completes or with false if it
+ * does not complete within its timeout. Errors from the Batch service are reported and the poll retried on the next
+ * interval.
+ */
+public class JobCompletionPoller {
+
+    public static final long TICK_MILLIS = 500L;
+    public static final long INITIAL_INTERVAL_MILLIS = 2000L;
+    public static final long MAX_INTERVAL_MILLIS = 30 * 1000L;
+    public static final double BACKOFF_FACTOR = 1.5;
+    //Allowance for clock differences between this client and the Batch service when filtering on creation time
+    public static final long CREATION_TIME_SLACK_MINUTES = 15;
+
+    /**
+     * @param client BatchClient used to list the Jobs
+     */
+    public JobCompletionPoller(BatchClient client) {
+        this.client = client;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "job-completion-poller");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                JobCompletionPoller.this.poll();
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start watching a Job that has just been submitted
+     * @param jobId Azure Batch Job Id
+     * @param timeout longest time to wait for the Job to complete
+     * @return CompletableFuture completing with true when the Job completes, or false if the timeout passes first
+     */
+    public CompletableFuture<Boolean> watch(String jobId, Duration timeout) {
+        return watch(jobId, timeout, System.currentTimeMillis());
+    }
+
+    /**
+     * Start watching a Job created at a known time, such as a Job submitted by an earlier run of the application
+     * @param jobId Azure Batch Job Id
+     * @param timeout longest time to wait for the Job to complete, from now
+     * @param creationTime time the Job was created, in milliseconds since the epoch
+     * @return CompletableFuture completing with true when the Job completes, or false if the timeout passes first
+     */
+    public CompletableFuture<Boolean> watch(String jobId, Duration timeout, long creationTime) {
+        WatchedJob job = new WatchedJob(System.currentTimeMillis(), timeout.toMillis(), creationTime);
+        watchedJobs.put(jobId, job);
+        return job.completion;
+    }
+
+    /**
+     * Watch a Job and wait for it to complete
+     * @param jobId Azure Batch Job Id
+     * @param timeout longest time to wait for the Job to complete
+     * @return true if the Job completed, false if the timeout passed first
+     * @throws InterruptedException Thrown if the calling thread is interrupted while waiting
+     */
+    public boolean awaitCompletion(String jobId, Duration timeout) throws InterruptedException {
+        return awaitCompletion(jobId, timeout, System.currentTimeMillis());
+    }
+
+    /**
+     * Watch a Job created at a known time and wait for it to complete
+     * @param jobId Azure Batch Job Id
+     * @param timeout longest time to wait for the Job to complete
+     * @param creationTime time the Job was created, in milliseconds since the epoch
+     * @return true if the Job completed, false if the timeout passed first
+     * @throws InterruptedException Thrown if the calling thread is interrupted while waiting
+     */
+    public boolean awaitCompletion(String jobId, Duration timeout, long creationTime) throws InterruptedException {
+        CompletableFuture<Boolean> completion = watch(jobId, timeout, creationTime);
+        try {
+            return completion.get().booleanValue();
+        }
+        catch (ExecutionException ee) {
+            return false;
+        }
+        finally {
+            watchedJobs.remove(jobId);
+        }
+    }
+
+    /**
+     * @return number of listJobs calls made so far
+     */
+    public long getPollCount() {
+        return pollCount.get();
+    }
+
+    /**
+     * Stop polling. Any Job still being watched is completed with false.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        for (WatchedJob job : watchedJobs.values()) {
+            job.completion.complete(Boolean.FALSE);
+        }
+        watchedJobs.clear();
+    }
+
+    private void poll() {
+        long now = System.currentTimeMillis();
+        boolean anyDue = false;
+        long oldestStart = Long.MAX_VALUE;
+        for (Iterator<Map.Entry<String, WatchedJob>> it = watchedJobs.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, WatchedJob> entry = it.next();
+            WatchedJob job = entry.getValue();
+            if (job.completion.isDone()) {
+                it.remove();
+            }
+            else if (now - job.startTime >= job.timeoutMillis) {
+                System.err.println(entry.getKey() + " did not complete within " + (job.timeoutMillis / 1000) + " seconds");
+                job.completion.complete(Boolean.FALSE);
+                it.remove();
+            }
+            else {
+                anyDue |= job.nextCheck <= now;
+                oldestStart = Math.min(oldestStart, job.creationTime);
+            }
+        }
+        if (!anyDue) {
+            return;
+        }
+
+        try {
+            Instant createdAfter = Instant.ofEpochMilli(oldestStart).minus(CREATION_TIME_SLACK_MINUTES, ChronoUnit.MINUTES)
+                    .truncatedTo(ChronoUnit.SECONDS);
+            DetailLevel completedJobs = new DetailLevel.Builder()
+                    .withFilterClause("state eq 'completed' and creationTime ge datetime'" + createdAfter + "'")
+                    .withSelectClause("id")
+                    .build();
+            pollCount.incrementAndGet();
+            for (CloudJob completed : client.jobOperations().listJobs(completedJobs)) {
+                WatchedJob job = watchedJobs.remove(completed.id());
+                if (job != null) {
+                    job.completion.complete(Boolean.TRUE);
+                }
+            }
+        }
+        catch (Exception e) {
+            System.err.println("Error listing completed jobs, will retry: " + e.getMessage());
+        }
+
+        //Back off every due Job that has not completed yet
+        for (WatchedJob job : watchedJobs.values()) {
+            if (job.nextCheck <= now) {
+                job.nextCheck = now + job.interval;
+                job.interval = Math.min(MAX_INTERVAL_MILLIS, (long)(job.interval * BACKOFF_FACTOR));
+            }
+        }
+    }
+
+    /**
+     * Polling state for one Job. Only the poller thread updates nextCheck and interval.
+     */
+    private static class WatchedJob {
+        WatchedJob(long startTime, long timeoutMillis, long creationTime) {
+            this.startTime = startTime;
+            this.timeoutMillis = timeoutMillis;
+            this.creationTime = creationTime;
+            this.nextCheck = startTime + INITIAL_INTERVAL_MILLIS;
+        }
+
+        private long startTime;
+        private long timeoutMillis;
+        private long creationTime;
+        private long nextCheck;
+        private long interval = INITIAL_INTERVAL_MILLIS;
+        private CompletableFuture<Boolean> completion = new CompletableFuture<Boolean>();
+    }
+
+    private BatchClient client = null;
+    private ScheduledExecutorService scheduler = null;
+
+    private Map<String, WatchedJob> watchedJobs = new ConcurrentHashMap<String, WatchedJob>();
+    private AtomicLong pollCount = new AtomicLong();
+}
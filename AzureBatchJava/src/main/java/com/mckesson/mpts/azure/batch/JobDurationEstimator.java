@@ -0,0 +1,98 @@
+package com.mckesson.mpts.azure.batch;
+
+/**
+ *      Estimates how long a Job should take from its size, so each Job is given limits that fit it rather than the same
+ * fixed timeout whatever its size. Shared by every worker in a run.
+ *
+ *      Each successful Job records its EDI segments (lines) and how long its tasks took to complete, and the estimator
+ * keeps an exponentially weighted average of the milliseconds per segment, so it follows changes in the Pool as the run
+ * goes along. From it:
+ *
+ * - expected duration = segments x average milliseconds per segment
+ * - straggler limit = STRAGGLER_FACTOR x the expected duration, at least MIN_STRAGGLER_MILLIS. A Job still running at
+ *   this point is a straggler; OpiodOrderingWorker starts a speculative copy of it.
+ * - timeout = TIMEOUT_FACTOR x the expected duration, at least DEFAULT_TIMEOUT_MILLIS. A Job still running at this
+ *   point is stopped and its files retried.
+ *
+ *      Until MIN_HISTORY_JOBS Jobs have completed there is nothing to estimate from: no Job is treated as a straggler
+ * and the timeout is DEFAULT_TIMEOUT_MILLIS, the fixed timeout Jobs had before.
+ *
+ *      Speculative copies can be turned off by setting the SPECULATIVE_JOBS environment variable to "false".
+ */
+public class JobDurationEstimator {
+
+    public static final String SPECULATION_ENV = "SPECULATIVE_JOBS";
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10 * 60 * 1000L;
+    public static final long MIN_STRAGGLER_MILLIS = 60 * 1000L;
+    public static final double STRAGGLER_FACTOR = 2.0;
+    public static final double TIMEOUT_FACTOR = 4.0;
+    public static final int MIN_HISTORY_JOBS = 3;
+    //Weight given to the newest Job in the average
+    public static final double SMOOTHING = 0.3;
+
+    public JobDurationEstimator() {
+        String speculation = System.getenv(SPECULATION_ENV);
+        this.speculationEnabled = speculation == null || speculation.length() == 0 || Boolean.parseBoolean(speculation);
+    }
+
+    /**
+     * @param speculationEnabled true to start speculative copies of stragglers
+     */
+    public JobDurationEstimator(boolean speculationEnabled) {
+        this.speculationEnabled = speculationEnabled;
+    }
+
+    /**
+     * Record the duration of a Job that succeeded
+     * @param segments EDI segments in the Job
+     * @param millis time from the Job being submitted to its tasks completing
+     */
+    public synchronized void record(long segments, long millis) {
+        if (segments <= 0 || millis <= 0) {
+            return;
+        }
+        double millisPerSegment = (double)millis / segments;
+        averageMillisPerSegment = jobs == 0 ? millisPerSegment :
+                SMOOTHING * millisPerSegment + (1 - SMOOTHING) * averageMillisPerSegment;
+        jobs++;
+    }
+
+    /**
+     * @param segments EDI segments in a Job
+     * @return the expected duration of the Job, or 0 if there is not yet enough history to estimate it
+     */
+    public synchronized long getExpectedMillis(long segments) {
+        if (jobs < MIN_HISTORY_JOBS) {
+            return 0;
+        }
+        return (long)(Math.max(1, segments) * averageMillisPerSegment);
+    }
+
+    /**
+     * @param segments EDI segments in a Job
+     * @return how long the Job may run before a speculative copy is started, or 0 if none should be
+     */
+    public long getStragglerMillis(long segments) {
+        long expected = getExpectedMillis(segments);
+        if (!speculationEnabled || expected <= 0) {
+            return 0;
+        }
+        return Math.max(MIN_STRAGGLER_MILLIS, (long)(expected * STRAGGLER_FACTOR));
+    }
+
+    /**
+     * @param segments EDI segments in a Job
+     * @return how long to wait for the Job before stopping it
+     */
+    public long getTimeoutMillis(long segments) {
+        return Math.max(DEFAULT_TIMEOUT_MILLIS, (long)(getExpectedMillis(segments) * TIMEOUT_FACTOR));
+    }
+
+    public boolean isSpeculationEnabled() {
+        return speculationEnabled;
+    }
+
+    private boolean speculationEnabled = true;
+    private int jobs = 0;
+    private double averageMillisPerSegment = 0;
+}
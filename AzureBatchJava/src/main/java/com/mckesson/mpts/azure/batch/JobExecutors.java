@@ -0,0 +1,66 @@
+package com.mckesson.mpts.azure.batch;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ *      Creates the ExecutorService that OpiodOrderingWorker instances run on.
+ *
+ *      A worker spends nearly all of its life blocked: waiting for uploads, for Azure Batch calls and for its Job to
+ * complete. On a Java runtime with virtual threads (Java 21 or later) each worker can run on its own virtual thread, so
+ * hundreds of Jobs can be in flight without hundreds of platform threads. The application is built for Java 8, so the
+ * virtual thread executor is looked up by reflection.
+ *
+ *      When virtual threads were asked for but are not available, the run still expects to submit far more workers than
+ * it has Jobs in flight, each of them waiting for task slots. Those workers are queued on a fixed pool of
+ * MAX_PLATFORM_THREADS platform threads instead of each being given a thread of its own. Otherwise the workers are run
+ * on a cached pool, as the number submitted is already bounded by the caller.
+ */
+public class JobExecutors {
+
+    public static final String VIRTUAL_THREAD_EXECUTOR_METHOD = "newVirtualThreadPerTaskExecutor";
+    public static final int MAX_PLATFORM_THREADS = 64;
+
+    /**
+     * @return true if this Java runtime supports virtual threads
+     */
+    public static boolean isVirtualThreadSupported() {
+        return JobExecutors.getVirtualThreadExecutorMethod() != null;
+    }
+
+    /**
+     * Create an executor for workers. With virtual threads every worker gets a thread of its own; when they were asked
+     * for but are not supported, at most MAX_PLATFORM_THREADS workers run at once and the rest wait in the queue.
+     * @param virtualThreads true to use virtual threads when the Java runtime supports them
+     * @return ExecutorService to submit workers to. The caller must shut it down.
+     */
+    public static ExecutorService newJobExecutor(boolean virtualThreads) {
+        if (virtualThreads) {
+            Method factory = JobExecutors.getVirtualThreadExecutorMethod();
+            if (factory != null) {
+                try {
+                    return (ExecutorService)factory.invoke(null);
+                }
+                catch (ReflectiveOperationException roe) {
+                    System.err.println("Unable to create a virtual thread executor (" + roe + "), using platform threads");
+                }
+            }
+            else {
+                System.err.println("Virtual threads require Java 21 or later, running jobs on up to " +
+                        MAX_PLATFORM_THREADS + " platform threads");
+            }
+            return Executors.newFixedThreadPool(MAX_PLATFORM_THREADS);
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    private static Method getVirtualThreadExecutorMethod() {
+        try {
+            return Executors.class.getMethod(VIRTUAL_THREAD_EXECUTOR_METHOD);
+        }
+        catch (NoSuchMethodException nsme) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.mckesson.mpts.azure.batch;
+
+import com.mckesson.mpts.azure.tasks.TaskSummary;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *      The outcome of one OpiodOrderingWorker, returned from its call() method once the Job has completed. It holds the
+ * number of input files and documents sent, the totals reported back by the parse tasks (see TaskSummary), how long
+ * each stage of the Job took and whether the Job failed.
+ *
+ *      A Job counts as succeeded only when it was submitted, every task exited with code 0 and no document or drug row
+ * failed. Otherwise failureReason describes the first problem found.
+ *
+ *      Each input file of the Job is also sorted by the results of its documents: succeeded (deleted), to retry in a new
+ * Job (a document failed for a transient reason, or the Job failed before the file's documents were reported) or dead
+ * lettered (a document can never be processed as it is).
+ */
+public class JobResult {
+
+    /**
+     * @param jobId Azure Batch Job Id
+     * @param inputFiles number of input files sent in the Job
+     */
+    public JobResult(String jobId, int inputFiles) {
+        this.jobId = jobId;
+        this.inputFiles = inputFiles;
+    }
+
+    /**
+     * Add the counts reported by one parse task
+     * @param summary TaskSummary read from the task's standard output
+     */
+    public void addTaskSummary(TaskSummary summary) {
+        this.reportedDocuments += summary.getDocuments();
+        this.failedDocuments += summary.getFailedDocuments();
+        this.lines += summary.getLines();
+        this.drugRows += summary.getDrugRows();
+        this.opioidRows += summary.getOpioidRows();
+        this.failedRows += summary.getFailedRows();
+        this.parseMillis += summary.getParseMillis();
+        this.mergeMillis += summary.getMergeMillis();
+        this.recordMillis += summary.getRecordMillis();
+    }
+
+    /**
+     * @return true if the Job ran to completion with no failed tasks, documents or drug rows
+     */
+    public boolean isSucceeded() {
+        return failureReason == null && tasks > 0 && failedTasks == 0 && failedDocuments == 0 && failedRows == 0;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public int getInputFiles() {
+        return inputFiles;
+    }
+
+    public long getDocuments() {
+        return documents;
+    }
+
+    public void setDocuments(long documents) {
+        this.documents = documents;
+    }
+
+    public long getReportedDocuments() {
+        return reportedDocuments;
+    }
+
+    public long getFailedDocuments() {
+        return failedDocuments;
+    }
+
+    public long getLines() {
+        return lines;
+    }
+
+    public long getDrugRows() {
+        return drugRows;
+    }
+
+    public long getOpioidRows() {
+        return opioidRows;
+    }
+
+    public long getFailedRows() {
+        return failedRows;
+    }
+
+    public int getTasks() {
+        return tasks;
+    }
+
+    public void setTasks(int tasks) {
+        this.tasks = tasks;
+    }
+
+    public int getFailedTasks() {
+        return failedTasks;
+    }
+
+    public void setFailedTasks(int failedTasks) {
+        this.failedTasks = failedTasks;
+    }
+
+    public long getParseMillis() {
+        return parseMillis;
+    }
+
+    public long getMergeMillis() {
+        return mergeMillis;
+    }
+
+    public long getRecordMillis() {
+        return recordMillis;
+    }
+
+    public long getUploadMillis() {
+        return uploadMillis;
+    }
+
+    public void setUploadMillis(long uploadMillis) {
+        this.uploadMillis = uploadMillis;
+    }
+
+    public long getSubmitMillis() {
+        return submitMillis;
+    }
+
+    public void setSubmitMillis(long submitMillis) {
+        this.submitMillis = submitMillis;
+    }
+
+    public long getWaitMillis() {
+        return waitMillis;
+    }
+
+    public void setWaitMillis(long waitMillis) {
+        this.waitMillis = waitMillis;
+    }
+
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    public void setTotalMillis(long totalMillis) {
+        this.totalMillis = totalMillis;
+    }
+
+    public List<File> getSucceededFiles() {
+        return succeededFiles;
+    }
+
+    public List<File> getRetryFiles() {
+        return retryFiles;
+    }
+
+    public List<File> getDeadLetterFiles() {
+        return deadLetterFiles;
+    }
+
+    public String getFailureReason() {
+        return failureReason;
+    }
+
+    /**
+     * Record the speculative copy started for the Job when it ran past its straggler limit
+     * @param speculativeJobId Job Id of the copy
+     * @param speculativeWon true if the copy completed before the original Job
+     */
+    public void setSpeculativeJob(String speculativeJobId, boolean speculativeWon) {
+        this.speculativeJobId = speculativeJobId;
+        this.speculativeWon = speculativeWon;
+    }
+
+    public String getSpeculativeJobId() {
+        return speculativeJobId;
+    }
+
+    public boolean isSpeculativeWon() {
+        return speculativeWon;
+    }
+
+    /**
+     * Record why the Job failed. Only the first reason recorded is kept.
+     * @param failureReason description of the failure
+     */
+    public void setFailureReason(String failureReason) {
+        if (this.failureReason == null) {
+            this.failureReason = failureReason;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return jobId + ": " + (isSucceeded() ? "succeeded" : "FAILED") + ", " + inputFiles + " files, " + documents +
+                " documents, " + lines + " lines, " + opioidRows + " opioid rows, " + failedTasks + " of " + tasks +
+                " tasks failed, " + failedDocuments + " documents failed, " + failedRows + " rows failed. Upload " +
+                uploadMillis + " ms, submit " + submitMillis + " ms, wait " + waitMillis + " ms, total " + totalMillis +
+                " ms. Tasks parse " + parseMillis + " ms, merge " + mergeMillis + " ms, record " + recordMillis + " ms" + (retryFiles.isEmpty() && deadLetterFiles.isEmpty() ? "" : ". " + retryFiles.size() +
+                " files to retry, " + deadLetterFiles.size() + " files dead-lettered") +
+                (speculativeJobId == null ? "" : ". Speculative copy " + speculativeJobId +
+                        (speculativeWon ? " completed first" : " lost")) +
+                (failureReason == null ? "" : ". " + failureReason);
+    }
+
+    private String jobId = null;
+    private int inputFiles = 0;
+
+    private long documents = 0;
+    private long reportedDocuments = 0;
+    private long failedDocuments = 0;
+    private long lines = 0;
+    private long drugRows = 0;
+    private long opioidRows = 0;
+    private long failedRows = 0;
+
+    private int tasks = 0;
+    private int failedTasks = 0;
+
+    //Summed over every parse task, so these can exceed the Job's elapsed time
+    private long parseMillis = 0;
+    private long mergeMillis = 0;
+    private long recordMillis = 0;
+
+    private long uploadMillis = 0;
+    private long submitMillis = 0;
+    private long waitMillis = 0;
+    private long totalMillis = 0;
+
+    private String speculativeJobId = null;
+    private boolean speculativeWon = false;
+
+    private List<File> succeededFiles = new ArrayList<File>();
+    private List<File> retryFiles = new ArrayList<File>();
+    private List<File> deadLetterFiles = new ArrayList<File>();
+
+    private String failureReason = null;
+}
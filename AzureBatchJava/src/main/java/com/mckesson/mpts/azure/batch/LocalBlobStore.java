@@ -0,0 +1,119 @@
+package com.mckesson.mpts.azure.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ *      BlobStore held in a local directory, used by LocalComputeBackend so a run never touches the network. Each blob
+ * is a file under the root directory whose relative path is the blob name.
+ *
+ * - put() hard links the source file to a temporary name next to the blob, or copies it where the file system does
+ *   not allow links, then renames it over the blob with an atomic move. A reader therefore sees either the old or the
+ *   new blob, never a partly written one, and storing a file costs no data copy on the same file system. Because a
+ *   linked blob shares its content with the source, the source must not be modified in place after put(); deleting or
+ *   replacing it is safe.
+ * - get() links or copies the blob to the target the same way.
+ * - URLs are file: URIs and write locations are directories, which WorkQueues.open() serves with a LocalWorkQueue.
+ *
+ *      Temporary files start with TEMP_PREFIX and are never listed.
+ */
+public class LocalBlobStore implements BlobStore {
+
+    public static final String TEMP_PREFIX = ".tmp-";
+
+    /**
+     * @param root directory holding the blobs, created if it does not exist
+     */
+    public LocalBlobStore(File root) {
+        this.root = root.getAbsoluteFile().toPath();
+    }
+
+    public void put(String blobName, File source) throws IOException {
+        LocalBlobStore.linkOrCopyAtomic(source.toPath(), resolve(blobName));
+    }
+
+    public void get(String blobName, File target) throws IOException {
+        Path blob = resolve(blobName);
+        if (!Files.isRegularFile(blob)) {
+            throw new NoSuchFileException(blob.toString(), null, "No blob named " + blobName);
+        }
+        LocalBlobStore.linkOrCopyAtomic(blob, target.getAbsoluteFile().toPath());
+    }
+
+    public boolean exists(String blobName) throws IOException {
+        return Files.isRegularFile(resolve(blobName));
+    }
+
+    public List<String> list(final String prefix) throws IOException {
+        final List<String> names = new ArrayList<String>();
+        if (!Files.isDirectory(root)) {
+            return names;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (!file.getFileName().toString().startsWith(TEMP_PREFIX)) {
+                    String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+                    if (name.startsWith(prefix)) {
+                        names.add(name);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(names);
+        return names;
+    }
+
+    public String getReadUrl(String blobName) throws IOException {
+        return resolve(blobName).toUri().toString();
+    }
+
+    public String getWriteLocation(String prefix) throws IOException {
+        return Files.createDirectories(resolve(prefix)).toString();
+    }
+
+    public boolean isRetryable(IOException e) {
+        //A missing file or directory will not appear by trying again
+        return !(e instanceof NoSuchFileException || e instanceof AccessDeniedException);
+    }
+
+    public File getRoot() {
+        return root.toFile();
+    }
+
+    private Path resolve(String blobName) throws IOException {
+        Path blob = root.resolve(blobName).normalize();
+        if (!blob.startsWith(root)) {
+            throw new IOException("Blob name " + blobName + " is outside the store");
+        }
+        return blob;
+    }
+
+    private static void linkOrCopyAtomic(Path source, Path target) throws IOException {
+        Path directory = Files.createDirectories(target.getParent());
+        Path temp = directory.resolve(TEMP_PREFIX + UUID.randomUUID() + "-" + target.getFileName());
+        try {
+            try {
+                Files.createLink(temp, source);
+            }
+            catch (IOException | UnsupportedOperationException e) {
+                Files.copy(source, temp);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private Path root = null;
+}
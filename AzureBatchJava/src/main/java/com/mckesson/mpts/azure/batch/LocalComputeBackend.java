@@ -0,0 +1,447 @@
+package com.mckesson.mpts.azure.batch;
+
+import com.mckesson.mpts.azure.tasks.DocumentResult;
+import com.mckesson.mpts.azure.tasks.TaskSummary;
+import com.mckesson.mpts.azure.tasks.daemon.TaskDaemon;
+import com.mckesson.mpts.azure.tasks.daemon.TaskDaemonClient;
+import com.mckesson.mpts.azure.tasks.io.EDIDocumentBundle;
+import com.mckesson.mpts.azure.tasks.poackparser.EDI855ParseTask;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *      A ComputeBackend running every parse task as a child JVM on this machine, so the whole pipeline (bundling, task
+ * splitting, parsing, merging and recording history) can be run and measured on a single box without Azure.
+ *
+ *      Everything is kept under a local work directory laid out like an Azure Batch Node:
+ *
+ * {workDir}/blobs/ - a LocalBlobStore standing in for the Storage Container:
+ *   {workDir}/blobs/{jobId}-bundle.zip - the staged bundle
+ *   {workDir}/blobs/queue/{jobId}/ - the work queue of a Job in queue dispatch mode, used through LocalWorkQueue
+ * {workDir}/jobs/{jobId}/{taskId}/ - the working directory of each task, holding a link to the bundle and the task's
+ *   stdout.txt and stderr.txt
+ * {workDir}/shared/ - passed to the tasks as AZ_BATCH_NODE_SHARED_DIR
+ * {workDir}/task-daemon/ - the directory of the TaskDaemon, when one is used, with its log in task-daemon.log
+ *
+ * Each task is started with the same AZ_BATCH_* environment variables Azure Batch sets, so EDI855ParseTask runs
+ * unchanged. The bundle is staged through the same BlobUploader as on Azure and fetched into each task directory
+ * with BlobStore.get(), so both are hard links where the file system allows it and no data is copied.
+ *
+ *      At most taskSlots tasks run at once, across all Jobs; further tasks wait in a queue. The tasks are started with
+ * the java executable and class path of this JVM unless a class path is given. A class path of just the shaded task
+ * jar built by "mvn -P appcds package" is run with the class data sharing archive built beside it, as the archive
+ * was written for the jar at that path.
+ *
+ *      With setTaskDaemon(true), prepare() starts a TaskDaemon as a child JVM running taskSlots tasks at a time, as the
+ * Pool's start task does on Azure, and each task is started as a TaskDaemonClient handing its work to it. The daemon
+ * is stopped by close().
+ */
+public class LocalComputeBackend implements ComputeBackend {
+
+    public static final String BLOBS_DIR = "blobs";
+    public static final String JOBS_DIR = "jobs";
+    public static final String SHARED_DIR = "shared";
+
+    /**
+     * @param workDir directory holding the Jobs, created if it does not exist
+     * @param taskSlots number of tasks to run at once
+     * @param taskClasspath class path for the child JVMs, or null to use the class path of this JVM
+     * @param queueDispatch true if parse tasks pull work items from a shared queue
+     * @param virtualThreadMode true if every Job is started at once and limited by the task slots
+     * @param deleteJobWhenDone true to delete each Job's directory once its results have been read
+     */
+    public LocalComputeBackend(File workDir, int taskSlots, String taskClasspath, boolean queueDispatch,
+                               boolean virtualThreadMode, boolean deleteJobWhenDone) {
+        this.workDir = workDir.getAbsoluteFile();
+        this.taskSlots = Math.max(1, taskSlots);
+        this.taskClasspath = taskClasspath != null ? taskClasspath : System.getProperty("java.class.path");
+        this.javaExecutable = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        File taskJar = new File(this.taskClasspath);
+        File archive = new File(taskJar.getAbsoluteFile().getParentFile(), OpiodOrderingWorker.TASK_CDS_ARCHIVE);
+        this.classDataArchive = (taskJar.isFile() && archive.isFile()) ? archive.getPath() : null;
+        this.queueDispatch = queueDispatch;
+        this.virtualThreadMode = virtualThreadMode;
+        this.deleteJobWhenDone = deleteJobWhenDone;
+        this.slotLimiter = new TaskSlotLimiter(this.taskSlots * BatchRunContext.TASK_SLOT_OVERSUBSCRIPTION);
+        this.blobStore = new LocalBlobStore(new File(this.workDir, BLOBS_DIR));
+        this.uploader = new BlobUploader();
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(this.taskSlots, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "local-task-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void prepare() throws IOException {
+        Files.createDirectories(workDir.toPath().resolve(JOBS_DIR));
+        Files.createDirectories(workDir.toPath().resolve(SHARED_DIR));
+        if (taskDaemon) {
+            startTaskDaemon();
+        }
+    }
+
+    /**
+     * @param taskDaemon true to run the tasks through a TaskDaemon started by prepare()
+     */
+    public void setTaskDaemon(boolean taskDaemon) {
+        this.taskDaemon = taskDaemon;
+    }
+
+    public int getTaskSlots() {
+        return taskSlots;
+    }
+
+    public boolean isQueueDispatch() {
+        return queueDispatch;
+    }
+
+    public boolean isVirtualThreadMode() {
+        return virtualThreadMode;
+    }
+
+    public boolean isDeleteJobWhenDone() {
+        return deleteJobWhenDone;
+    }
+
+    public int acquireTaskSlots(int tasks) throws InterruptedException {
+        if (!virtualThreadMode) {
+            return 0;
+        }
+        int acquired = 0;
+        while (acquired == 0) {
+            acquired = slotLimiter.tryAcquire(tasks, BatchRunContext.TASK_SLOT_WAIT_SECONDS, TimeUnit.SECONDS);
+        }
+        return acquired;
+    }
+
+    public void releaseTaskSlots(int slots) {
+        slotLimiter.release(slots);
+    }
+
+    public String getWorkQueueLocation(String jobId) throws IOException {
+        return blobStore.getWriteLocation(BatchRunContext.WORK_QUEUE_PREFIX + jobId);
+    }
+
+    /**
+     * Store the bundle in the local blob store
+     * @param jobId Job Id
+     * @param bundleFile bundle written by EDIDocumentBundle
+     * @throws IOException Thrown if the bundle cannot be stored after all retries
+     * @throws InterruptedException Thrown if the calling thread is interrupted while waiting for the upload
+     */
+    public void stageBundle(String jobId, File bundleFile) throws IOException, InterruptedException {
+        uploader.upload(blobStore, EDIDocumentBundle.getBundleName(jobId), bundleFile);
+    }
+
+    /**
+     * Use the bundle of an earlier Job for a new Job if it is still in the local blob store
+     * @param jobId Job Id of the new Job
+     * @param stagedJobId Job Id the bundle was staged for
+     * @return true if the bundle exists
+     * @throws IOException Thrown if the store cannot be read
+     */
+    public boolean reuseBundle(String jobId, String stagedJobId) throws IOException {
+        String bundleName = EDIDocumentBundle.getBundleName(stagedJobId);
+        if (!blobStore.exists(bundleName)) {
+            return false;
+        }
+        reusedBundles.put(jobId, bundleName);
+        return true;
+    }
+
+    /**
+     * Local Jobs run as child processes of this JVM and do not outlive it, so a Job of an earlier run is never attached
+     * @param jobId Job Id
+     * @return true only if the Job was submitted by this process
+     */
+    public boolean attachJob(String jobId) {
+        return jobs.containsKey(jobId);
+    }
+
+    /**
+     * Create a working directory for each task holding the Job's bundle and queue the tasks to run
+     * @param jobId Job Id
+     * @param tasks one ParseTaskSpec per parse task
+     * @throws IOException Thrown if a task directory cannot be created or the bundle cannot be fetched
+     */
+    public void submitJob(final String jobId, List<ParseTaskSpec> tasks) throws IOException {
+        Path jobDir = getJobDir(jobId);
+        String bundleName = reusedBundles.containsKey(jobId) ? reusedBundles.remove(jobId) : EDIDocumentBundle.getBundleName(jobId);
+        if (!blobStore.exists(bundleName)) {
+            throw new IllegalStateException("No bundle has been staged for job " + jobId);
+        }
+
+        Map<String, Future<Integer>> taskExits = new LinkedHashMap<String, Future<Integer>>();
+        for (final ParseTaskSpec task : tasks) {
+            final Path taskDir = Files.createDirectories(jobDir.resolve(task.getTaskId()));
+            blobStore.get(bundleName, taskDir.resolve(EDIDocumentBundle.getBundleName(jobId)).toFile());
+            taskExits.put(task.getTaskId(), executor.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    return LocalComputeBackend.this.runTask(jobId, task, taskDir);
+                }
+            }));
+        }
+        jobs.put(jobId, taskExits);
+    }
+
+    public boolean awaitJob(String jobId, Duration timeout) throws InterruptedException {
+        Map<String, Future<Integer>> taskExits = jobs.get(jobId);
+        if (taskExits == null) {
+            return false;
+        }
+        long deadline = System.currentTimeMillis() + timeout.toMillis();
+        for (Future<Integer> taskExit : taskExits.values()) {
+            try {
+                taskExit.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException te) {
+                return false;
+            }
+            catch (CancellationException ce) {
+                //The task was stopped by terminateJob()
+            }
+            catch (ExecutionException ee) {
+                //The task could not be started; getTaskOutcomes() reports it with no exit code
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop every task of a Job still running or waiting to run. A running task's child JVM is destroyed.
+     * @param jobId Job Id
+     */
+    public void terminateJob(String jobId) {
+        Map<String, Future<Integer>> taskExits = jobs.get(jobId);
+        if (taskExits != null) {
+            for (Future<Integer> running : taskExits.values()) {
+                running.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Read the exit code, summary and document results of each task of a Job
+     * @param jobId Job Id
+     * @return TaskOutcome for each task, in the order the tasks were submitted
+     * @throws IOException Thrown if a task's output cannot be read
+     */
+    public List<TaskOutcome> getTaskOutcomes(String jobId) throws IOException {
+        Map<String, Future<Integer>> taskExits = jobs.get(jobId);
+        List<TaskOutcome> outcomes = new ArrayList<TaskOutcome>();
+        if (taskExits == null) {
+            return outcomes;
+        }
+        for (Map.Entry<String, Future<Integer>> taskExit : taskExits.entrySet()) {
+            Integer exitCode = null;
+            Future<Integer> exit = taskExit.getValue();
+            if (exit.isDone() && !exit.isCancelled()) {
+                try {
+                    exitCode = exit.get();
+                }
+                catch (Exception e) {
+                    exitCode = null;
+                }
+            }
+            Path taskDir = getJobDir(jobId).resolve(taskExit.getKey());
+            outcomes.add(new TaskOutcome(taskExit.getKey(), exitCode,
+                    TaskSummary.parse(LocalComputeBackend.readOutput(taskDir.resolve(TaskSummary.SUMMARY_FILENAME))),
+                    DocumentResult.parseAll(LocalComputeBackend.readOutput(taskDir.resolve(DocumentResult.RESULTS_FILENAME)))));
+        }
+        return outcomes;
+    }
+
+    /**
+     * Read stdout.txt or stderr.txt from a task's directory
+     * @param jobId Job Id
+     * @param taskId task id
+     * @param fileName name of the log file
+     * @return content of the file, empty if there is none
+     * @throws IOException Thrown if the file cannot be read
+     */
+    public String getTaskLog(String jobId, String taskId, String fileName) throws IOException {
+        return LocalComputeBackend.readOutput(getJobDir(jobId).resolve(taskId).resolve(fileName));
+    }
+
+    /**
+     * Delete the Job's directory, bundle and work queue
+     * @param jobId Job Id
+     * @throws IOException Thrown if a file cannot be deleted
+     */
+    public void deleteJob(String jobId) throws IOException {
+        Map<String, Future<Integer>> taskExits = jobs.remove(jobId);
+        if (taskExits != null) {
+            for (Future<Integer> running : taskExits.values()) {
+                running.cancel(true);
+            }
+        }
+        LocalComputeBackend.deleteDirectory(getJobDir(jobId));
+        Files.deleteIfExists(blobStore.getRoot().toPath().resolve(EDIDocumentBundle.getBundleName(jobId)));
+        LocalComputeBackend.deleteDirectory(Paths.get(getWorkQueueLocation(jobId)));
+    }
+
+    /**
+     * Stop accepting tasks. Tasks still running are stopped.
+     */
+    public void close() {
+        uploader.shutdown();
+        executor.shutdownNow();
+        synchronized (this) {
+            if (daemonProcess != null) {
+                daemonProcess.destroy();
+            }
+        }
+    }
+
+    /**
+     * Start the TaskDaemon, unless an earlier call has, and wait up to HEARTBEAT_STALE_MILLIS for its first heartbeat.
+     * Every worker prepares the backend, so this is synchronized to start only one. Tasks started before it is running
+     * are run by their clients instead.
+     */
+    private synchronized void startTaskDaemon() throws IOException {
+        if (daemonProcess != null) {
+            return;
+        }
+        File daemonDir = getTaskDaemonDir();
+        List<String> command = new ArrayList<String>();
+        command.add(javaExecutable);
+        command.add("-classpath");
+        command.add(taskClasspath);
+        command.add(TaskDaemon.class.getName());
+        command.add(daemonDir.getPath());
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.directory(workDir);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(new File(workDir, TaskDaemon.DEFAULT_DIRECTORY_NAME + ".log"));
+        builder.environment().put(TaskDaemon.THREADS_ENV, String.valueOf(taskSlots));
+        builder.environment().put("AZ_BATCH_NODE_SHARED_DIR", workDir.toPath().resolve(SHARED_DIR).toString());
+        builder.environment().put("AZ_BATCH_NODE_ROOT_DIR", workDir.toString());
+        daemonProcess = builder.start();
+
+        long deadline = System.currentTimeMillis() + TaskDaemon.HEARTBEAT_STALE_MILLIS;
+        try {
+            while (!TaskDaemon.isRunning(daemonDir) && daemonProcess.isAlive() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(TaskDaemon.POLL_MILLIS);
+            }
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        if (TaskDaemon.isRunning(daemonDir)) {
+            System.out.println("Task daemon running in " + daemonDir);
+        }
+        else {
+            System.err.println("Task daemon did not start, see " + TaskDaemon.DEFAULT_DIRECTORY_NAME +
+                    ".log. Tasks will run in their own JVMs");
+        }
+    }
+
+    private File getTaskDaemonDir() {
+        return new File(workDir, TaskDaemon.DEFAULT_DIRECTORY_NAME);
+    }
+
+    /**
+     * Run one parse task as a child JVM in its working directory and wait for it to exit
+     * @return exit code of the task
+     */
+    private Integer runTask(String jobId, ParseTaskSpec task, Path taskDir) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add(javaExecutable);
+        if (classDataArchive != null) {
+            command.add("-Xshare:auto");
+            command.add("-XX:SharedArchiveFile=" + classDataArchive);
+        }
+        command.add("-classpath");
+        command.add(taskClasspath);
+        command.add(taskDaemon ? TaskDaemonClient.class.getName() : EDI855ParseTask.class.getName());
+        command.addAll(task.getArguments());
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.directory(taskDir.toFile());
+        builder.redirectOutput(taskDir.resolve(OpiodOrderingWorker.STANDARD_CONSOLE_OUTPUT_FILENAME).toFile());
+        builder.redirectError(taskDir.resolve(OpiodOrderingWorker.STANDARD_CONSOLE_ERROR_FILENAME).toFile());
+
+        //The same variables Azure Batch sets for a task
+        Map<String, String> environment = builder.environment();
+        environment.put("AZ_BATCH_TASK_ID", task.getTaskId());
+        environment.put("AZ_BATCH_JOB_ID", jobId);
+        environment.put("AZ_BATCH_TASK_DIR", taskDir.toString());
+        environment.put("AZ_BATCH_NODE_SHARED_DIR", workDir.toPath().resolve(SHARED_DIR).toString());
+        environment.put("AZ_BATCH_NODE_ROOT_DIR", workDir.toString());
+        if (taskDaemon) {
+            environment.put(TaskDaemon.DAEMON_DIR_ENV, getTaskDaemonDir().getPath());
+        }
+        environment.putAll(task.getEnvironment());
+
+        Process process = builder.start();
+        try {
+            return Integer.valueOf(process.waitFor());
+        }
+        catch (InterruptedException ie) {
+            //The job timed out or was deleted
+            process.destroyForcibly();
+            throw ie;
+        }
+    }
+
+    private Path getJobDir(String jobId) {
+        return workDir.toPath().resolve(JOBS_DIR).resolve(jobId);
+    }
+
+    private static String readOutput(Path outputFile) throws IOException {
+        if (!Files.exists(outputFile)) {
+            return "";
+        }
+        return new String(Files.readAllBytes(outputFile), StandardCharsets.UTF_8);
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private File workDir = null;
+    private int taskSlots = 1;
+    private String taskClasspath = null;
+    private String javaExecutable = null;
+    private String classDataArchive = null;
+    private boolean queueDispatch = false;
+    private boolean virtualThreadMode = false;
+    private boolean deleteJobWhenDone = false;
+    private boolean taskDaemon = false;
+    private Process daemonProcess = null;
+
+    private TaskSlotLimiter slotLimiter = null;
+    private LocalBlobStore blobStore = null;
+    private BlobUploader uploader = null;
+    private ExecutorService executor = null;
+    private Map<String, Map<String, Future<Integer>>> jobs = new ConcurrentHashMap<String, Map<String, Future<Integer>>>();
+    private Map<String, String> reusedBundles = new ConcurrentHashMap<String, String>();
+}
@@ -1,9 +1,9 @@
 package com.mckesson.mpts.azure.batch;
 
+import com.mckesson.mpts.azure.tasks.io.EDIDocumentReader;
+
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * This class is the driver application for executing the Opioid Ordering Tracking Azure Batch job and tasks. The
@@ -19,9 +19,38 @@ import java.util.concurrent.Executors;
  *   input file limit parameter.
  * jdbcURL - URL to the MySQL database to use for obtaining drug and demographic data and for storage of ordering
  *   history records
- * inputFileLimit - optional override to the maximum number of files to allocate to any one Job instance.
- * maxThreadLimit - optional override to the maximum number of threads (jobs) to run in parallel. In order to set this
- *   override, a value for "inputFileLimit" must be provided as well
+ * inputFileLimit - optional override to the number of files to allocate to each of the first Job instances.
+ * maxThreadLimit - optional override to the number of threads (jobs) to run in parallel at first. In order to
+ *   set this override, a value for "inputFileLimit" must be provided as well
+ *
+ * Jobs are run by an AdaptiveJobScheduler, which keeps a number of Jobs in flight, sizes them by estimated EDI segments
+ * and adjusts the Job size and the number of parallel Jobs as Jobs complete from the measured turnaround and throughput.
+ *
+ * Setting the DISPATCH_MODE environment variable to "queue" sends all files to a single job instead. The files are
+ * bundled once and the job's tasks, one per task slot in the Pool, pull small work items from a shared queue until it is
+ * empty, so a slow set of files never holds up the end of the run. inputFileLimit is ignored in this mode.
+ *
+ * Setting the JOB_THREAD_MODE environment variable to "virtual" starts every Job at once, each on its own virtual thread
+ * when running on Java 21 or later, and limits the Jobs in flight by the task slots in the Pool rather than by
+ * maxThreadLimit. Use this to keep many Jobs in flight when the Pool is scaled out.
+ *
+ * Progress is journaled in a RunManifest, by default opioid-run-manifest.log in the input directory (or the file named
+ * by the RUN_MANIFEST environment variable). Input files are only deleted once their job has succeeded, so running this
+ * application again over the same input directory retries the files of failed jobs, resumes jobs left unfinished when
+ * an earlier run stopped and skips files already processed.
+ *
+ * Files whose documents fail for a transient reason, such as a database error or timeout, are sent again in new small
+ * jobs after a backoff (see RetryQueue), so they do not wait for the whole input set to be run again. Files holding a
+ * document that fails permanently, such as one that cannot be parsed, are moved with their errors to a dead-letter
+ * directory, by default dead-letter in the input directory (or the directory named by the DEAD_LETTER_DIR environment
+ * variable).
+ *
+ * Setting the INGEST_MODE environment variable to "watch" keeps the application running as a service over the input
+ * directory. Files are sent in small jobs as they arrive, up to inputFileLimit files per job and maxThreadLimit jobs at a
+ * time, until the application is stopped (see InputDirectoryWatcher).
+ *
+ * Setting the COMPUTE_BACKEND environment variable to "local" runs the parse tasks as child JVMs on this machine instead
+ * of on Azure Batch, with no Azure settings required (see ComputeBackends).
  *
  * An example of how to implement a thread pool in a Java class was found at:
  *
@@ -33,6 +62,8 @@ public class OpiodOrderingRecorder {
 
     public static final String DEFAULT_INPUT_FILE_LIMIT = "20";
     public static final String DEFAULT_MAX_THREAD_LIMIT = "10";
+    //The adaptive scheduler may grow the number of parallel jobs up to this multiple of maxThreadLimit
+    public static final int MAX_THREAD_GROWTH_FACTOR = 4;
 
     public static void main(String argv[]) throws Exception {
 
@@ -51,11 +82,12 @@ public class OpiodOrderingRecorder {
 
         File inputDirFile = new File(inputDirectory);
 
-        //Only retrieve .txt files from the input directory
+        //Only retrieve .txt files and .zip/.gz archives of EDI files from the input directory. Each archive is sent
+        //  to a job as a single file and unpacked by the parse task as it reads it
         FilenameFilter txtFilter = new FilenameFilter() {
             public boolean accept(File dir, String name) {
                 String lowercaseName = name.toLowerCase();
-                if (lowercaseName.endsWith(".txt")) {
+                if (EDIDocumentReader.isSupportedInput(lowercaseName)) {
                     return true;
                 } else {
                     return false;
@@ -63,55 +95,128 @@ public class OpiodOrderingRecorder {
             }
         };
 
-        //The ExecutorService class provide the controller for thread pooling
-        ExecutorService executor = null;
-        File[] filesToProcess = null;
         Date startTime =  new Date();
 
-        //Filter the files in the "input" directory to limit to ".txt" files only
+        if (InputDirectoryWatcher.isWatchMode()) {
+            //Runs until the application is stopped, picking up the files already in the directory first
+            ComputeBackend backend = ComputeBackends.open(jarFilePath);
+            RunManifest manifest = RunManifest.open(inputDirFile);
+            InputDirectoryWatcher watcher = new InputDirectoryWatcher(inputDirFile, txtFilter, fileLimit,
+                    InputDirectoryWatcher.getBatchWindowMillis(), maxThreadLimit, manifest, DeadLetterDirectory.open(inputDirFile));
+            System.out.println("Watch started at " + startTime.toString());
+            try {
+                watcher.run(backend, jdbcURL);
+            }
+            finally {
+                backend.close();
+                manifest.close();
+            }
+            System.out.println("Watch stopped at " + new Date().toString());
+            return;
+        }
+
+        //Filter the files in the "input" directory to limit to ".txt", ".zip" and ".gz" files only
         File[] txtFileList = inputDirFile.listFiles(txtFilter);
         if (txtFileList == null || txtFileList.length == 0) {
-            System.out.println("No input txt files found in the input directory " + inputDirectory + ". Exiting...");
+            System.out.println("No input txt, zip or gz files found in the input directory " + inputDirectory + ". Exiting...");
             return;
         }
+
+        //Replay the manifest of earlier runs. Files it shows as processed were only left behind because a run stopped
+        //  before deleting them
+        RunManifest manifest = RunManifest.open(inputDirFile);
+        List<File> pendingFiles = new ArrayList<File>(txtFileList.length);
+        for (File inputFile : txtFileList) {
+            if (manifest.getState(inputFile) == RunManifest.FileState.PROCESSED) {
+                System.out.println("Removing " + inputFile.getName() + ", already processed by an earlier run");
+                inputFile.delete();
+            }
+            else {
+                pendingFiles.add(inputFile);
+            }
+        }
+        txtFileList = pendingFiles.toArray(new File[0]);
+        if (txtFileList.length == 0) {
+            System.out.println("All input files in " + inputDirectory + " have already been processed. Exiting...");
+            manifest.close();
+            return;
+        }
+        manifest.discover(txtFileList);
+        DeadLetterDirectory deadLetter = DeadLetterDirectory.open(inputDirFile);
+
+        //Files of jobs an earlier run staged or submitted but did not finish are resumed as the same jobs
+        Map<String, List<File>> unfinishedJobs = manifest.getUnfinishedJobs(txtFileList);
+        List<File> newFiles = new ArrayList<File>(Arrays.asList(txtFileList));
+        for (List<File> unfinishedFiles : unfinishedJobs.values()) {
+            newFiles.removeAll(unfinishedFiles);
+        }
+        File[] newFileList = newFiles.toArray(new File[0]);
+
+        //The Azure clients, task jars, upload engine and pool state are set up once and shared by every worker in
+        //  this run
+        ComputeBackend backend = ComputeBackends.open(jarFilePath);
+
+        if (backend.isQueueDispatch()) {
+            //All files go to one job, whose long-running tasks pull work from a shared queue until it is empty
+            System.out.println("Found " + txtFileList.length + " input files to process. Using queue dispatch, all files"
+            + " will be sent to Azure as 1 job whose tasks pull work from a shared queue.");
+            System.out.println("");
+            System.out.println("Job run started at " + startTime.toString());
+        }
         else {
-            int numJobs = (txtFileList.length <= fileLimit) ? 1 : ((int)(txtFileList.length / fileLimit)) + 1;
-            System.out.println("Found " + txtFileList.length + " input files to process. Will send " + fileLimit
-            + " files at a time to Azure running a maximum of " + maxThreadLimit + " parallel jobs for a total of "
-            + numJobs + " jobs.");
+            System.out.println("Found " + txtFileList.length + " input files to process. Will start by sending about " + fileLimit
+            + " files worth of EDI segments at a time to Azure running " + maxThreadLimit + " parallel jobs, then adjust both"
+            + " as jobs complete.");
             System.out.println("");
             System.out.println("Job run started at " + startTime.toString());
         }
-        int numFilesLeftToProcess = txtFileList.length;
-        int startingFileIndex = 0;
-
-        //Set the thread pool up with the max number of concurrent threads (jobs) to run
-        executor = Executors.newFixedThreadPool(maxThreadLimit);
-
-        //Loop over all of the files found in the input directory. Allocate up to the "max" to each Worker instance
-        while (numFilesLeftToProcess > 0) {
-            //copy over the set of files to process based on the file limit
-            int lowerFileLimit = (fileLimit < numFilesLeftToProcess ? fileLimit : numFilesLeftToProcess);
-            filesToProcess = new File[lowerFileLimit];
-
-            for (int i=0; i<lowerFileLimit; i++ ) {
-                filesToProcess[i] = txtFileList[startingFileIndex];
-                startingFileIndex++;
-                numFilesLeftToProcess--;
+
+        if (backend.isQueueDispatch()) {
+            RetryQueue retryQueue = new RetryQueue();
+            JobDurationEstimator estimator = new JobDurationEstimator();
+            for (Map.Entry<String, List<File>> unfinishedJob : unfinishedJobs.entrySet()) {
+                OpiodOrderingWorker worker = new OpiodOrderingWorker(unfinishedJob.getValue().toArray(new File[0]),
+                        backend, jdbcURL, manifest, deadLetter, unfinishedJob.getKey());
+                worker.setDurationEstimator(estimator);
+                JobResult result = worker.call();
+                System.out.println(result);
+                retryQueue.offer(result.getRetryFiles());
+            }
+            if (newFileList.length > 0) {
+                OpiodOrderingWorker worker = new OpiodOrderingWorker(newFileList, backend, jdbcURL, manifest, deadLetter, null);
+                worker.setDurationEstimator(estimator);
+                JobResult result = worker.call();
+                System.out.println(result);
+                retryQueue.offer(result.getRetryFiles());
             }
 
-            //Create the new worker instance with the set of files to process and other parameters and start the worker
-            //  if the thread pool is at it's limit already, the extra threads will wait and then be released as other
-            //  threads complete.
-            Runnable worker = new OpiodOrderingWorker(filesToProcess,jarFilePath, jdbcURL);
-            executor.execute(worker);
+            //Send the files that failed for a transient reason again, in small jobs, once their backoff has passed
+            while (!retryQueue.isEmpty()) {
+                long backoff = retryQueue.getMillisUntilDue();
+                if (backoff > 0) {
+                    System.out.println("Waiting " + (backoff / 1000) + " s to retry " + retryQueue.getPendingFiles() + " files");
+                    Thread.sleep(backoff);
+                }
+                for (File[] retryFiles : retryQueue.takeDue(Integer.MAX_VALUE)) {
+                    OpiodOrderingWorker worker = new OpiodOrderingWorker(retryFiles, backend, jdbcURL, manifest, deadLetter, null);
+                    worker.setDurationEstimator(estimator);
+                    JobResult result = worker.call();
+                    System.out.println(result);
+                    retryQueue.offer(result.getRetryFiles());
+                }
+            }
         }
-        executor.shutdown();
-
-        //Wait for all of the threads to be scheduled and complete their processing
-        while (!executor.isTerminated()) {
+        else {
+            //A new job is started as each one completes, with the job size and number of parallel jobs adjusted from
+            //  the measured job turnaround and throughput. fileLimit and maxThreadLimit are the starting values
+            AdaptiveJobScheduler scheduler = new AdaptiveJobScheduler(newFileList, fileLimit, maxThreadLimit,
+                    maxThreadLimit * MAX_THREAD_GROWTH_FACTOR, manifest, deadLetter, unfinishedJobs);
+            scheduler.run(backend, jdbcURL);
         }
 
+        backend.close();
+        manifest.close();
+
         //All threads have completed, so wrap things up...
         System.out.println("All Azure Batch Job threads are finished");
         System.out.println("");
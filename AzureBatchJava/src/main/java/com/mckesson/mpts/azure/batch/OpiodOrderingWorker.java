@@ -1,22 +1,22 @@
 package com.mckesson.mpts.azure.batch;
 
-import com.microsoft.azure.batch.BatchClient;
-import com.microsoft.azure.batch.DetailLevel;
-import com.microsoft.azure.batch.auth.BatchSharedKeyCredentials;
-import com.microsoft.azure.batch.protocol.models.*;
-import com.microsoft.azure.storage.CloudStorageAccount;
-import com.microsoft.azure.storage.StorageCredentials;
-import com.microsoft.azure.storage.StorageCredentialsAccountAndKey;
-import com.microsoft.azure.storage.StorageException;
-import com.microsoft.azure.storage.blob.*;
+import com.mckesson.mpts.azure.tasks.DocumentResult;
+import com.mckesson.mpts.azure.tasks.TaskSummary;
+import com.mckesson.mpts.azure.tasks.io.EDIDocumentBundle;
+import com.mckesson.mpts.azure.tasks.io.EDIDocumentReader;
+import com.mckesson.mpts.azure.tasks.poackparser.EDI855ParseTask;
+import com.mckesson.mpts.azure.tasks.queue.WorkQueues;
+import com.microsoft.azure.batch.protocol.models.BatchErrorDetail;
+import com.microsoft.azure.batch.protocol.models.BatchErrorException;
 
 import java.io.*;
-import java.net.URISyntaxException;
-import java.security.InvalidKeyException;
 import java.text.SimpleDateFormat;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeoutException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
  *      The purpose of this class is to create one instance of an Azure Batch Job which will parse a provided set of
@@ -25,29 +25,59 @@ import java.util.concurrent.TimeoutException;
  * drug is an Opioid or not. Finally the merged data is written to a database table so the ordering event can be
  * reported on as needed.
  *
- *      This class accomplishes this task through the use of an Azure Batch Job and 1 Azure Batch Task instance. Each instance
+ *      This class accomplishes this task through the use of an Azure Batch Job and one or more Azure Batch Task instances,
+ * one per task slot in the Pool (Nodes x max tasks per Node), each parsing its own slice of the job's documents. Each instance
  * of this class is provided a set of EDI 855 documents to process. These documents are saved to an Azure Storage Account,
  * along with copies of Java jar files needed by the task and these files are obtained as needed by the Azure task
- * Output from each task execution is obtained and printed for informational purposes.
+ * Each task writes a one-line summary of its counts and stage timings (see TaskSummary), which is all that is read back
+ * from a job that succeeds; the full console output of a task is only downloaded and printed when the job fails.
  *
- *      All input files and jar files are initially loaded to an Azure Storage Container as Blob input. Files are read
- * by the task as-needed.
+ *      All input files for a job are packed into a single compressed bundle (see EDIDocumentBundle) which is loaded,
+ * along with the jar files, to an Azure Storage Container as Blob input. The task reads the documents straight out of
+ * the bundle.
  *
- *      The actual task is implemented in three separate Java classes with the main class being executed as a Java Application.
- * These classes are executed within the Azure Batch framework and each Batch Task includes the command line needed to
- * initiate each application. This includes references to the jar files on which the task depends.
+ *      Each parse task reports how every document fared (see DocumentResult), and each input file is dealt with by the
+ * results of its own documents once the job has finished. A file whose documents all succeeded is deleted. A file with
+ * a document that can never be processed as it is is moved to the run's DeadLetterDirectory with its errors. Any other
+ * file, including every file of a job that failed before its documents were reported, is kept and listed in the
+ * JobResult's retry files to be sent again in a new job (see RetryQueue). When the worker is given the run's
+ * RunManifest it records each file as UPLOADED, SUBMITTED and then PROCESSED, DEAD_LETTER or FAILED as the job goes
+ * along. A worker given the Id of a job left unfinished by an
+ * earlier run resumes it: a job that was submitted and still exists is waited on rather than submitted again, and
+ * otherwise a bundle that is still staged is reused for a new job rather than built and uploaded again.
+ *
+ *      How long the worker waits for its job is set by a JobDurationEstimator from the job's size and the throughput of
+ * the jobs completed before it. A job still running well past its expected time is a straggler, most likely held up
+ * by a slow or stuck node, so a speculative copy of it is submitted as a second job reading the same bundle, and the
+ * outputs are read from whichever completes first while the other is terminated. The parse tasks write the ordering
+ * history idempotently (see RecordOrderingHistoryTask), so drugs recorded by both copies are only written once. A job
+ * with no copy complete by the timeout is terminated and its files are retried.
+ *
+ *      Where the tasks run is decided by the ComputeBackend the worker is given. BatchRunContext runs them as Azure
+ * Batch Tasks as described here; LocalComputeBackend runs the same tasks as child JVMs on the local machine.
+ *
+ *      The task itself is a single Java Application, EDI855ParseTask, which parses each document, merges its drugs
+ * with the demographic and drug information and records them to the ordering history. Each Batch Task includes the
+ * command line that starts it, with the jar files it depends on (or the shaded task jar or native executable) staged
+ * in Azure once per run by the TaskJarStager held by the backend. The separate MergeDrugInfoTask and
+ * RecordOrderingHistoryTask applications, fed by EDI855ParseTask's "-multitask" mode, are not used by this class.
  *
  *      This class implements the Runnable interface so it can be integrated into a thread pool or other such mechanism
- * to allow parallel job execution to take place. All significant processing is started from the "run()" method.
+ * to allow parallel job execution to take place. All significant processing is started from the "run()" method. It
+ * also implements Callable so a thread pool can return the JobResult for the job, holding the counts reported by each
+ * parse task, the time taken by each stage and any failure.
  *
- *      This class requires 3 pieces of data when an instance is created:
+ *      An instance is created with the following, all but the files being shared by every worker in the run:
  *
  * filesToProcess - an Array of File instances holding the path to each file to process when the instance executes
- * jarFilePath - path to where jar files needed by the batch task classes are held. These jars are uploaded to Azure
- *   for each Task instance
+ * backend - the ComputeBackend the job is run on, such as the BatchRunContext holding the Azure clients, the staged
+ *   task jars and the Pool state
  * jdbcURL - the URL to the MySQL database instance housing the demographic and drug information as well as the ordering
  *   history table. This MySQL database must be able to be reached by processes running the Azure Cloud environment so
  *   it is typical that this database be hosted in an Azure VM instance.
+ * manifest - the RunManifest the progress of each file is recorded in
+ * deadLetter - the DeadLetterDirectory files that can never be processed are moved to, or null to keep them in place
+ * unfinishedJobId - the Id of a job left unfinished by an earlier run holding the files, or null for a new job
  *
  *
  * The basic skeleton code for this class was develop using the sample Java class found on GitHub at this location:
@@ -76,121 +106,308 @@ import java.util.concurrent.TimeoutException;
  * DELETE_JOBS - true/false indication whether to delete each Job after it complete (true) or leave the Job and all tasks
  *   out on Azure (false). If a job is deleted, all files uploaded for the Job and all tasks will be removed as well.
  *
+ * DISPATCH_MODE - optional. When set to "queue" the parse tasks pull work items from a shared queue held in the Storage
+ *   Container (queue/{jobId}) rather than each processing a fixed slice of the job's documents.
+ *
+ * JOB_THREAD_MODE - optional. When set to "virtual" each worker waits for free task slots in the Pool before creating
+ *   its Job (see BatchRunContext).
+ *
+ * TASK_RUNTIME - optional. When set to "native" the parse tasks run TASK_NATIVE_EXECUTABLE, built by "mvn -P native
+ *   package" and copied to the jarFilePath, in place of a JVM. Ignored when TASK_DAEMON is "true", as the daemon runs
+ *   the tasks in its own JVM.
+ *
  * The Azure Jobs are all assigned unique Ids using the following convention:
  *
  * OpioidJob-yyyyMMdd_HHmmssSSS-{random generated UUID}
  *
+ * and speculative copies use the prefix OpioidSpec- in place of OpioidJob-.
+ *
  * If this initial Id exceeds 64 characters it is right-truncated to 64. The Id allows jobs that are retained to be able
  * to be better identified in Azure, while retaining unique names.
  *
  */
-public class OpiodOrderingWorker implements Runnable{
+public class OpiodOrderingWorker implements Runnable, Callable<JobResult> {
 
     public static final String TASK_JAR = "OpioidOrderingTracking-1.0-SNAPSHOT.jar";
     public static final String JACKSON_CORE_JAR = "jackson-core-2.9.4.jar";
     public static final String JACKSON_ANNOTATIONS_JAR = "jackson-annotations-2.9.4.jar";
     public static final String JACKSON_DATABIND_JAR = "jackson-databind-2.9.4.jar";
     public static final String MYSQL_JDBC_JAR = "mysql-connector-java-5.1.45-bin.jar";
+    //The task classes, Jackson and the MySQL driver in one jar, with the classes a training run of the task loaded
+    //  and a class data sharing archive of them, all built by the appcds Maven profile
+    public static final String TASK_SHADED_JAR = "OpioidOrderingTracking-1.0-SNAPSHOT-tasks.jar";
+    public static final String TASK_CLASS_LIST = "opioid-tasks.classlist";
+    public static final String TASK_CDS_ARCHIVE = "opioid-tasks.jsa";
+    //EDI855ParseTask compiled to a native executable by the native Maven profile
+    public static final String TASK_NATIVE_EXECUTABLE = "opioid-parse-task";
+    public static final String TASK_RUNTIME_ENV = "TASK_RUNTIME";
+    public static final String TASK_RUNTIME_NATIVE = "native";
 
     public static final String PARSE_855_TASK_NAME = "parse855task";
+    //Each parse task is given at least this many documents so small jobs are not spread over more tasks than is useful
+    public static final int MIN_DOCUMENTS_PER_TASK = 25;
     public static final String MERGE_DRUG_INFO_TASK_NAME = "mergedruginfotask";
     public static final String WRITE_ORDERING_HISTORY_TASK_NAME = "writeorderinghistorytask";
 
     public static final String STANDARD_CONSOLE_OUTPUT_FILENAME = "stdout.txt";
     public static final String STANDARD_CONSOLE_ERROR_FILENAME = "stderr.txt";
 
+    public static final String JOB_ID_PREFIX = "OpioidJob-";
+    public static final String SPECULATIVE_JOB_ID_PREFIX = "OpioidSpec-";
+    //How long to wait on each copy in turn while a job and its speculative copy race
+    public static final long RACE_POLL_MILLIS = 5000;
+
 
     /**
-     * Constructor accepting a set of File instances to send to Azure to be parsed and the path
-     * to where resource jar files are located. The files will be processed within the run() method.
+     * Constructor accepting a set of File instances to be parsed and the ComputeBackend shared by all workers in the
+     * run, such as the BatchRunContext holding the Azure clients, the task jars and the pool state.
      *
      * @param filesToProcess Set of 1 or more File instances, each pointing to an 855 transaction to be parsed to
      *                       identify opioid drugs that have been ordered
-     * @param jarFilePath Path to a directory containing jar files needed by the Azure Batch Tasks
+     * @param backend ComputeBackend shared by all workers in the run
      * @param jdbcURL The URL to use when connecting to the database housing demographic and drug information and when
      *                storing historical ordering information
      */
-    public OpiodOrderingWorker(File[] filesToProcess, String jarFilePath, String jdbcURL){
+    public OpiodOrderingWorker(File[] filesToProcess, ComputeBackend backend, String jdbcURL){
         this.filesToProcess=filesToProcess;
-        this.jarFilePath = jarFilePath;
+        this.backend = backend;
         this.jdbcURL = jdbcURL;
     }
 
-
-    @Override
     /**
-     * Process the set of File instances, uploading each to an Azure Batch Storage Account. Then start an Azure Batch
-     * job with 1 task that will:
-     * 1) Parse each 855 and capture the account and drug information for each line in the 855
-     * 2) Obtain demographic and additional drug data for each line on each 855
-     * 3) Write each drug that is an opioid to an ordering history table for reporting use
+     * Constructor for a worker that records its progress in the run's RunManifest and may resume a job left
+     * unfinished by an earlier run.
      *
+     * @param filesToProcess Set of 1 or more File instances, each pointing to an 855 transaction to be parsed to
+     *                       identify opioid drugs that have been ordered
+     * @param backend ComputeBackend shared by all workers in the run
+     * @param jdbcURL The URL to use when connecting to the database housing demographic and drug information and when
+     *                storing historical ordering information
+     * @param manifest RunManifest shared by all workers in the run
+     * @param deadLetter DeadLetterDirectory for files that can never be processed, or null to keep them in place
+     * @param unfinishedJobId Id of the earlier job holding filesToProcess, or null for a new job
      */
-    public void run() {
-        batchAccount = System.getenv("AZURE_BATCH_ACCOUNT");
-        batchKey = System.getenv("AZURE_BATCH_ACCESS_KEY");
-        batchUri = System.getenv("AZURE_BATCH_ENDPOINT");
-        batchSharedDir = System.getenv("AZ_BATCH_NODE_SHARED_DIR");
+    public OpiodOrderingWorker(File[] filesToProcess, ComputeBackend backend, String jdbcURL, RunManifest manifest,
+                               DeadLetterDirectory deadLetter, String unfinishedJobId){
+        this.filesToProcess=filesToProcess;
+        this.backend = backend;
+        this.jdbcURL = jdbcURL;
+        this.manifest = manifest;
+        this.deadLetter = deadLetter;
+        this.unfinishedJobId = unfinishedJobId;
+    }
 
-        storageAccountName = System.getenv("STORAGE_ACCOUNT_NAME");
-        storageAccountKey = System.getenv("STORAGE_ACCOUNT_KEY");
-        storageContainerName = System.getenv("CONTAINER_NAME");
+    /**
+     * Share one JobDurationEstimator between the workers of a run, so each job's limits are set from the jobs that
+     * completed before it. Each worker otherwise has its own, which has no history and so gives the default timeout.
+     * @param estimator JobDurationEstimator shared by all workers in the run
+     */
+    public void setDurationEstimator(JobDurationEstimator estimator) {
+        this.estimator = estimator;
+    }
 
-        poolId = System.getenv("BATCH_POOL_ID");
+    /**
+     * @return true once run() has completed and every task in the job succeeded
+     */
+    public boolean isSucceeded() {
+        return result != null && result.isSucceeded();
+    }
 
-        String deleteJobOpt = System.getenv("DELETE_JOBS");
-        if (deleteJobOpt != null) {
-            deleteJobWhenDone = Boolean.parseBoolean(deleteJobOpt);
-        }
+    /**
+     * @return the JobResult for the job, or null if run() has not been called
+     */
+    public JobResult getResult() {
+        return result;
+    }
 
-        //Assign a unique Job Id for this execution. Job Ids are limited to 64 characters and can only use dash or underscore
-        //  in conjunction with letters and numbers.
-        //Job Ids starts with a common prefix
-        String pattern = "yyyyMMdd_HHmmssSSS";
-        SimpleDateFormat format = new SimpleDateFormat(pattern);
+    /**
+     * Run the job and return its result
+     * @return JobResult for the job
+     */
+    @Override
+    public JobResult call() {
+        run();
+        return result;
+    }
 
-        String tempJobId = ("OpioidJob-" + format.format(new Date()) + "-" + UUID.randomUUID().toString());
-        jobId = tempJobId.length() <= 64 ? tempJobId : tempJobId.substring(0,64);
-        System.out.println("Job Id = " + jobId);
+    /**
+     * Decide how many parse tasks to split a job into: one per task slot in the pool, but no more than gives each task
+     * MIN_DOCUMENTS_PER_TASK documents
+     * @param documentCount number of documents in the job
+     * @param poolTaskSlots number of tasks the pool can run at once
+     * @return number of parse tasks, at least 1
+     */
+    public static int getParseTaskCount(int documentCount, int poolTaskSlots) {
+        int byDocuments = (documentCount + MIN_DOCUMENTS_PER_TASK - 1) / MIN_DOCUMENTS_PER_TASK;
+        return Math.max(1, Math.min(poolTaskSlots, byDocuments));
+    }
 
-        //Allow each task 10 minutes for all tasks to complete...
-        Duration TASK_COMPLETE_TIMEOUT = Duration.ofMinutes(10);
+    /**
+     * Decide how many long-running parse tasks to start for a job in queue dispatch mode: one per task slot in the
+     * pool, but no more than there are work items
+     * @param documentCount number of documents in the job
+     * @param itemDocuments number of documents in each work item
+     * @param poolTaskSlots number of tasks the pool can run at once
+     * @return number of parse tasks, at least 1
+     */
+    public static int getQueueTaskCount(int documentCount, int itemDocuments, int poolTaskSlots) {
+        int items = (documentCount + itemDocuments - 1) / itemDocuments;
+        return Math.max(1, Math.min(poolTaskSlots, items));
+    }
 
-        System.out.println(Thread.currentThread().getName()+" Start.");
-        // Create batch client
-        try
-        {
-            //Create a BatchClient instance. this will  be used throughout the rest of the code when any resource is
-            //  required
-            this.cred = new BatchSharedKeyCredentials(batchUri, batchAccount, batchKey);
-            this.client = BatchClient.open(cred);
+    /**
+     * @param taskIndex index of the parse task within the job
+     * @param taskCount number of parse tasks in the job
+     * @return the task id, PARSE_855_TASK_NAME when the job has a single task or PARSE_855_TASK_NAME-{index} otherwise
+     */
+    public static String getParseTaskId(int taskIndex, int taskCount) {
+        return taskCount == 1 ? PARSE_855_TASK_NAME : PARSE_855_TASK_NAME + "-" + taskIndex;
+    }
+
+    /**
+     * Create a TaskJarStager for all of the jar files needed by the Azure Batch Tasks
+     * @param jarFilePath Path to a directory containing jar files needed by the Azure Batch Tasks
+     * @param nativeTask true to stage only the TASK_NATIVE_EXECUTABLE (see useNativeTask)
+     * @return TaskJarStager to share across all workers in a run
+     */
+    public static TaskJarStager createTaskJarStager(String jarFilePath, boolean nativeTask) {
+        if (nativeTask) {
+            return new TaskJarStager(jarFilePath, TASK_NATIVE_EXECUTABLE);
+        }
+        if (OpiodOrderingWorker.hasShadedTaskJar(jarFilePath)) {
+            if (new File(jarFilePath + TASK_CLASS_LIST).exists()) {
+                return new TaskJarStager(jarFilePath, TASK_SHADED_JAR, TASK_CLASS_LIST);
+            }
+            return new TaskJarStager(jarFilePath, TASK_SHADED_JAR);
+        }
+        return new TaskJarStager(jarFilePath, TASK_JAR, JACKSON_CORE_JAR, JACKSON_ANNOTATIONS_JAR, JACKSON_DATABIND_JAR,
+                MYSQL_JDBC_JAR);
+    }
 
-            // Create storage container
-            CloudBlobContainer container = createBlobContainer(storageAccountName, storageAccountKey);
+    /**
+     * @param jarFilePath Path to a directory containing jar files needed by the Azure Batch Tasks
+     * @return true if the path holds the TASK_SHADED_JAR, which is then used in place of the separate jars
+     */
+    public static boolean hasShadedTaskJar(String jarFilePath) {
+        return new File(jarFilePath + TASK_SHADED_JAR).exists();
+    }
 
-            //Create the Pool of Nodes if it does not already exist. The tasks for this job typically require the Pool
-            //  be pre-created
-            CloudPool sharedPool = createPoolIfNotExists(client, poolId);
+    /**
+     * Decide whether the parse tasks run the native executable, as chosen by TASK_RUNTIME
+     * @param jarFilePath Path to a directory containing jar files needed by the Azure Batch Tasks
+     * @return true if TASK_RUNTIME is "native", TASK_DAEMON is not "true" and the path holds TASK_NATIVE_EXECUTABLE
+     */
+    public static boolean useNativeTask(String jarFilePath) {
+        if (!TASK_RUNTIME_NATIVE.equalsIgnoreCase(System.getenv(TASK_RUNTIME_ENV)) ||
+                Boolean.parseBoolean(System.getenv(BatchRunContext.TASK_DAEMON_ENV))) {
+            return false;
+        }
+        if (!new File(jarFilePath + TASK_NATIVE_EXECUTABLE).exists()) {
+            System.err.println(TASK_RUNTIME_ENV + " is " + TASK_RUNTIME_NATIVE + " but " + TASK_NATIVE_EXECUTABLE +
+                    " was not found in " + jarFilePath + ". The tasks will run in a JVM");
+            return false;
+        }
+        return true;
+    }
 
-            //Create the Job and the Task and submit them to Azure Batch for processing on a Node within the Pool
-            submitJobAndAddTask(client, container, sharedPool.id(), jobId, jarFilePath, batchSharedDir);
 
-            //Wait for all tasks in the Job to complete. Once complete, download the stdout.txt and stderr.txt files
-            //  The files will be available even if Jobs are deleted when complete as the Job cleanup happens after
-            //  downloading any files.
-            if (waitForTasksToComplete(client, jobId, TASK_COMPLETE_TIMEOUT)) {
-                // Get the parse task output files
-                CloudTask task = client.taskOperations().getTask(jobId, OpiodOrderingWorker.PARSE_855_TASK_NAME);
+    @Override
+    /**
+     * Process the set of File instances, packing them into one bundle and staging it with the compute backend. Then
+     * start a job whose parse tasks will:
+     * 1) Parse each 855 and capture the account and drug information for each line in the 855
+     * 2) Obtain demographic and additional drug data for each line on each 855
+     * 3) Write each drug that is an opioid to an ordering history table for reporting use
+     *
+     */
+    public void run() {
+        //Assign a unique Job Id for this execution
+        jobId = OpiodOrderingWorker.createJobId(JOB_ID_PREFIX);
+        System.out.println("Job Id = " + jobId);
+        result = new JobResult(jobId, filesToProcess.length);
+        long startTime = System.currentTimeMillis();
+        for (File file : filesToProcess) {
+            segments += AdaptiveJobScheduler.estimateSegments(file);
+        }
 
-                ByteArrayOutputStream stream = new ByteArrayOutputStream();
-                client.fileOperations().getFileFromTask(jobId, task.id(), STANDARD_CONSOLE_OUTPUT_FILENAME, stream);
-                String stdoutFileContent = stream.toString("UTF-8");
-                System.out.println("parse stdout=" + stdoutFileContent);
+        System.out.println(Thread.currentThread().getName()+" Start.");
+        try
+        {
+            //Make sure the compute resources are ready. For Azure Batch this creates the Pool of Nodes if it does not
+            //  already exist; the Pool is only checked by the first worker in the run
+            backend.prepare();
+
+            //A job submitted by an earlier run that the backend still has is waited on again. Otherwise create the
+            //  Job and the Tasks and submit them to the backend for processing
+            if (unfinishedJobId != null && manifest != null &&
+                    manifest.getJobState(unfinishedJobId) == RunManifest.FileState.SUBMITTED &&
+                    backend.attachJob(unfinishedJobId)) {
+                System.out.println(jobId + " - resuming job " + unfinishedJobId + " submitted by an earlier run");
+                jobId = unfinishedJobId;
+                result = new JobResult(jobId, filesToProcess.length);
+                result.setDocuments(manifest.getJobDocuments(jobId));
+                recordBundleContents(EDIDocumentBundle.scan(filesToProcess));
+            }
+            else {
+                submitJob(jobId);
+            }
+            long waitStart = System.currentTimeMillis();
+
+            //Wait for all tasks in the Job to complete. For Azure Batch the run's JobCompletionPoller watches every Job
+            //  in flight, so this worker is woken as soon as its Job completes. Once complete, read the output of each
+            //  task. The output is available even if Jobs are deleted when complete as the Job cleanup happens after
+            //  reading it.
+            //  A Job running well past the time expected for its size gets a speculative copy, and the outputs are
+            //  read from whichever copy completes first
+            outcomeJobId = awaitJobOrCopy(waitStart);
+            result.setWaitMillis(System.currentTimeMillis() - waitStart);
+            if (outcomeJobId != null) {
+                // Get the parse task output and aggregate the task results into a job summary
+                //Only each task's summary and document results are read; the console logs are read below if the
+                //  job failed
+                List<TaskOutcome> tasks = backend.getTaskOutcomes(outcomeJobId);
+                int succeeded = 0;
+                for (TaskOutcome task : tasks) {
+                    TaskSummary summary = task.getSummary();
+                    if (summary != null) {
+                        System.out.println(outcomeJobId + " - " + task.getTaskId() + " " + summary.toSummaryLine());
+                        result.addTaskSummary(summary);
+                    }
+                    else {
+                        result.setFailureReason("Task " + task.getTaskId() + " wrote no summary");
+                    }
+                    for (DocumentResult document : task.getDocumentResults()) {
+                        String sourceName = EDIDocumentBundle.getSourceName(document.getDocumentName());
+                        List<DocumentResult> sourceResults = documentResults.get(sourceName);
+                        if (sourceResults == null) {
+                            sourceResults = new ArrayList<DocumentResult>();
+                            documentResults.put(sourceName, sourceResults);
+                        }
+                        sourceResults.add(document);
+                    }
 
-                stream = new ByteArrayOutputStream();
-                client.fileOperations().getFileFromTask(jobId, task.id(), STANDARD_CONSOLE_ERROR_FILENAME, stream);
-                String stdErrfileContent = stream.toString("UTF-8");
-                System.out.println("parse stderr=" + stdErrfileContent);
+                    if (task.isSucceeded()) {
+                        succeeded++;
+                    }
+                    else {
+                        System.err.println(jobId + " - task " + task.getTaskId() + " failed with exit code " + task.getExitCode());
+                        result.setFailureReason("Task " + task.getTaskId() + " failed with exit code " + task.getExitCode());
+                    }
+                }
+                //The tasks of a resumed job are only known from its outcomes
+                if (result.getTasks() == 0) {
+                    result.setTasks(tasks.size());
+                }
+                result.setFailedTasks(tasks.size() - succeeded);
+                System.out.println(jobId + " summary: " + succeeded + " of " + tasks.size() + " parse tasks succeeded");
+                if (!result.isSucceeded()) {
+                    printTaskLogs(tasks);
+                }
+                else if (taskCount > 0 && speculativeJobId == null) {
+                    //Only Jobs this worker submitted are timed, as the wait for a resumed Job started part way through,
+                    //  and stragglers are left out so one stuck node does not raise every later Job's limits
+                    estimator.record(segments, System.currentTimeMillis() - waitStart);
+                }
 
                 /**  Removed when re-worked to use 1 task only
                 // Get the drug merge task output files
@@ -226,20 +443,22 @@ public class OpiodOrderingWorker implements Runnable{
         }
         catch (BatchErrorException err) {
             printBatchException(err);
+            result.setFailureReason(err.toString());
         }
         catch (Exception ex) {
             ex.printStackTrace();
+            result.setFailureReason(ex.toString());
         }
         finally {
+            backend.releaseTaskSlots(taskSlots);
+            taskSlots = 0;
+            result.setTotalMillis(System.currentTimeMillis() - startTime);
+            finishInputFiles();
             // Clean up the resource if necessary
-            if (deleteJobWhenDone) {
-                try {
-                    System.out.println("Deleteing job " + jobId);
-                    client.jobOperations().deleteJob(jobId);
-                } catch (BatchErrorException err) {
-                    printBatchException(err);
-                } catch (IOException ioe) {
-                    ioe.printStackTrace();
+            if (backend.isDeleteJobWhenDone()) {
+                deleteJob(jobId);
+                if (speculativeJobId != null) {
+                    deleteJob(speculativeJobId);
                 }
             }
         }
@@ -248,374 +467,403 @@ public class OpiodOrderingWorker implements Runnable{
 
 
     /**
-     * Create IaaS pool if pool isn't exist. The Pool should be pre-created as the tasks requires Java be installed ahead of time...
-     * The Pool attributes are ones used by the example Azure Batch class and may be changed as needed if not pre-allocating
-     * the pool.
-     * @param client batch client instance
-     * @param poolId the pool id
-     * @return the pool instance
-     * @throws BatchErrorException
-     * @throws IllegalArgumentException
-     * @throws IOException
-     * @throws InterruptedException
-     * @throws TimeoutException
+     * Create a Job Id that is unique to this execution. Job Ids are limited to 64 characters and can only use dash or
+     * underscore in conjunction with letters and numbers.
+     * @param prefix common prefix of the Job Ids
+     * @return Job Id
      */
-    private  CloudPool createPoolIfNotExists(BatchClient client, String poolId) throws BatchErrorException, IllegalArgumentException, IOException, InterruptedException, TimeoutException {
-        // Create a pool with 1 A1 VM
-        String osPublisher = "OpenLogic";
-        String osOffer = "CentOS";
-        String poolVMSize = "STANDARD_A1";
-        //Canonical UbuntuServer 16.04.0-LTS
-        int poolVMCount = 1;
-        Duration POOL_STEADY_TIMEOUT = Duration.ofMinutes(5);
-        Duration VM_READY_TIMEOUT = Duration.ofMinutes(20);
-
-        // Check if pool exists
-        if (!client.poolOperations().existsPool(poolId)) {
-
-            // See detail of creating IaaS pool at https://blogs.technet.microsoft.com/windowshpc/2016/03/29/introducing-linux-support-on-azure-batch/
-            // Get the sku image reference
-            List<NodeAgentSku> skus = client.accountOperations().listNodeAgentSkus();
-            String skuId = null;
-            ImageReference imageRef = null;
-
-            for (NodeAgentSku sku : skus) {
-                if (sku.osType() == OSType.LINUX) {
-                    System.out.println("NodeAgentSku=" + sku.toString());
-                    for (ImageReference imgRef : sku.verifiedImageReferences()) {
-                        System.out.println("ImageReferece Publisher = " + imgRef.publisher());
-                        System.out.println("ImageReferece Offer = " + imgRef.offer());
-                        System.out.println("ImageReferece Version = " + imgRef.version());
-                        System.out.println("ImageReferece Sku = " + imgRef.sku());
-                    }
-                }
-            }
-
-            for (NodeAgentSku sku : skus) {
-                if (sku.osType() == OSType.LINUX) {
-                    for (ImageReference imgRef : sku.verifiedImageReferences()) {
-                        if (imgRef.publisher().equalsIgnoreCase(osPublisher) && imgRef.offer().equalsIgnoreCase(osOffer)) {
-                            imageRef = imgRef;
-                            skuId = sku.id();
-                            break;
-                        }
-                    }
-                }
-            }
+    private static String createJobId(String prefix) {
+        String pattern = "yyyyMMdd_HHmmssSSS";
+        SimpleDateFormat format = new SimpleDateFormat(pattern);
 
-            // Use IaaS VM with Linux
-            VirtualMachineConfiguration configuration = new VirtualMachineConfiguration();
-            configuration.withNodeAgentSKUId(skuId).withImageReference(imageRef);
+        String tempJobId = (prefix + format.format(new Date()) + "-" + UUID.randomUUID().toString());
+        return tempJobId.length() <= 64 ? tempJobId : tempJobId.substring(0,64);
+    }
 
-            client.poolOperations().createPool(poolId, poolVMSize, configuration, poolVMCount);
+    /**
+     * Wait for the job to complete. A job still running at the straggler limit given by the JobDurationEstimator gets
+     * a speculative copy, submitted as a new job reading the same bundle, and the two are raced until one completes
+     * or the timeout passes. The copy that loses is terminated, as are both if neither completes. As the parse tasks
+     * write the ordering history idempotently, both copies recording the same documents is harmless.
+     * @param waitStart time the wait started
+     * @return Id of the job that completed, or null if the timeout passed first
+     * @throws Exception Thrown if waiting fails or the copy cannot be submitted
+     */
+    private String awaitJobOrCopy(long waitStart) throws Exception {
+        long deadline = waitStart + estimator.getTimeoutMillis(segments);
+        //Resumed jobs have no tasks of this worker's to copy
+        long stragglerMillis = taskCount > 0 ? estimator.getStragglerMillis(segments) : 0;
+        long firstWait = stragglerMillis > 0 ? Math.min(waitStart + stragglerMillis, deadline) : deadline;
+        if (backend.awaitJob(jobId, Duration.ofMillis(Math.max(0, firstWait - System.currentTimeMillis())))) {
+            return jobId;
         }
 
-        long startTime = System.currentTimeMillis();
-        long elapsedTime = 0L;
-        boolean steady = false;
-
-        // Wait for the VM to be allocated
-        while (elapsedTime < POOL_STEADY_TIMEOUT.toMillis()) {
-            CloudPool pool = client.poolOperations().getPool(poolId);
-            if (pool.allocationState() == AllocationState.STEADY) {
-                steady = true;
-                break;
+        if (stragglerMillis > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                startSpeculativeCopy(stragglerMillis);
+            }
+            catch (Exception e) {
+                //Carry on waiting for the original
+                System.err.println(jobId + " - unable to start a speculative copy: " + e.getMessage());
+                speculativeJobId = null;
             }
-            System.out.println("wait 30 seconds for pool steady...");
-            Thread.sleep(30 * 1000);
-            elapsedTime = (new Date()).getTime() - startTime;
         }
 
-        if (!steady) {
-            throw new TimeoutException("The pool did not reach a steady state in the allotted time");
+        while (System.currentTimeMillis() < deadline) {
+            long slice = Math.max(0, Math.min(RACE_POLL_MILLIS, deadline - System.currentTimeMillis()));
+            if (backend.awaitJob(jobId, Duration.ofMillis(speculativeJobId != null ? slice / 2 : slice))) {
+                stopJob(speculativeJobId, "the original completed first");
+                return jobId;
+            }
+            if (speculativeJobId != null && backend.awaitJob(speculativeJobId, Duration.ofMillis(slice / 2))) {
+                stopJob(jobId, "speculative copy " + speculativeJobId + " completed first");
+                result.setSpeculativeJob(speculativeJobId, true);
+                return speculativeJobId;
+            }
         }
 
-        // The VMs in the pool don't need to be in and IDLE state in order to submit a job.
-        // The following code is just an example of how to poll for the VM state
-        startTime = System.currentTimeMillis();
-        elapsedTime = 0L;
-        boolean hasIdleVM = false;
-
-        // Wait for at least 1 VM to reach the IDLE state
-        while (elapsedTime < VM_READY_TIMEOUT.toMillis()) {
-            List<ComputeNode> nodeCollection = client.computeNodeOperations().listComputeNodes(poolId, new DetailLevel.Builder().withSelectClause("id, state").withFilterClause("state eq 'idle'").build());
-            if (!nodeCollection.isEmpty()) {
-                hasIdleVM = true;
-                break;
-            }
+        System.err.println(jobId + " - no copy completed within " + (estimator.getTimeoutMillis(segments) / 1000) +
+                " seconds; the files will be retried");
+        stopJob(jobId, "timed out");
+        stopJob(speculativeJobId, "timed out");
+        return null;
+    }
 
-            System.out.println("wait 30 seconds for VM start...");
-            Thread.sleep(30 * 1000);
-            elapsedTime = (new Date()).getTime() - startTime;
+    /**
+     * Submit a copy of the job, reading the bundle already staged for it. Batch places the copy's tasks on whichever
+     * nodes are free, so they are not held up behind the original's.
+     * @param stragglerMillis straggler limit the job ran past
+     * @throws Exception Thrown if the copy cannot be submitted
+     */
+    private void startSpeculativeCopy(long stragglerMillis) throws Exception {
+        speculativeJobId = OpiodOrderingWorker.createJobId(SPECULATIVE_JOB_ID_PREFIX);
+        if (!backend.reuseBundle(speculativeJobId, jobId)) {
+            throw new IllegalStateException("The bundle of job " + jobId + " is no longer staged");
         }
+        System.out.println(jobId + " - still running after " + (stragglerMillis / 1000) + " seconds (expected " +
+                (estimator.getExpectedMillis(segments) / 1000) + "), starting speculative copy " + speculativeJobId);
+        //The copy's tasks do not take task slots; it only runs while the original is stuck
+        backend.submitJob(speculativeJobId, buildTasks(speculativeJobId, (int)result.getDocuments()));
+        result.setSpeculativeJob(speculativeJobId, false);
+    }
 
-        if (!hasIdleVM) {
-            throw new TimeoutException("The node did not reach an IDLE state in the allotted time");
+    /**
+     * Terminate a job that lost the race or timed out, leaving it to be deleted with the rest
+     * @param stopJobId Job Id, or null if there is none
+     * @param reason why the job is stopped
+     */
+    private void stopJob(String stopJobId, String reason) {
+        if (stopJobId == null) {
+            return;
+        }
+        try {
+            System.out.println("Terminating job " + stopJobId + ": " + reason);
+            backend.terminateJob(stopJobId);
+        } catch (BatchErrorException err) {
+            printBatchException(err);
+        } catch (Exception e) {
+            System.err.println("Unable to terminate job " + stopJobId + ": " + e.getMessage());
         }
-
-        return client.poolOperations().getPool(poolId);
     }
 
     /**
-     * Create blob container in order to upload files
-     * @param storageAccountName storage account name
-     * @param storageAccountKey storage account key
-     * @return CloudBlobContainer instance
-     * @throws URISyntaxException
-     * @throws StorageException
+     * Delete a job once the worker is done with it
+     * @param deleteJobId Job Id
      */
-    private  CloudBlobContainer createBlobContainer(String storageAccountName, String storageAccountKey) throws URISyntaxException, StorageException {
-
-        // Create storage credential from name and key
-        StorageCredentials credentials = new StorageCredentialsAccountAndKey(storageAccountName, storageAccountKey);
-
-        // Create storage account
-        CloudStorageAccount storageAccount = new CloudStorageAccount(credentials);
-
-        // Create the blob client
-        CloudBlobClient blobClient =  storageAccount.createCloudBlobClient();
-
-        // Get a reference to a container.
-        // The container name must be lower case
-        return blobClient.getContainerReference(storageContainerName);
+    private void deleteJob(String deleteJobId) {
+        try {
+            System.out.println("Deleteing job " + deleteJobId);
+            backend.deleteJob(deleteJobId);
+        } catch (BatchErrorException err) {
+            printBatchException(err);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
     }
 
     /**
-     * Upload a file to the blob container and return sas key
-     * @param container blob container
-     * @param fileName the file name of blob
-     * @param filePath the local file path
-     * @return SAS key for the uploaded file
-     * @throws URISyntaxException
-     * @throws IOException
-     * @throws InvalidKeyException
-     * @throws StorageException
+     * Create a job and the parse tasks necessary to perform the process. The input files are packed into one bundle,
+     * which is staged with the compute backend and read by every task, and the tasks are submitted together.
+     * @param jobId job id
+     * @throws Exception Thrown if the bundle cannot be written or staged or the job cannot be submitted
      */
-    private  String uploadFileToCloud(CloudBlobContainer container, String fileName, String filePath) throws URISyntaxException, IOException, InvalidKeyException, StorageException {
-        // Create the container if it does not exist.
-        container.createIfNotExists();
-
-        // Upload file
-        CloudBlockBlob blob = container.getBlockBlobReference(fileName);
-        File source = new File(filePath);
-        FileInputStream fis = new FileInputStream(source);
-        try {
-            blob.upload(fis, source.length());
+    private void submitJob(String jobId) throws Exception {
+        boolean reuseBundle = unfinishedJobId != null && manifest != null && manifest.getJobDocuments(unfinishedJobId) > 0;
+
+        //In virtual thread mode wait until there is room for this job's tasks before bundling, so a job waiting for
+        //  the pool holds no bundle and no upload. The documents are counted from the archive directories rather
+        //  than read. The slots are released in run() once the job has completed
+        int expectedDocuments = reuseBundle ? manifest.getJobDocuments(unfinishedJobId) :
+                OpiodOrderingWorker.countDocuments(filesToProcess);
+        taskSlots = backend.acquireTaskSlots(getTaskCount(expectedDocuments));
+
+        //Pack every input file for the job into one compressed bundle and stage it with the backend. The bundle is
+        //  staged before the job is created so a failure leaves no job behind and the input files in place
+        //  A bundle staged for an unfinished job of an earlier run is reused as it is
+        int documentCount = 0;
+        long uploadStart = System.currentTimeMillis();
+        if (reuseBundle && backend.reuseBundle(jobId, unfinishedJobId)) {
+            documentCount = manifest.getJobDocuments(unfinishedJobId);
+            System.out.println(jobId + " - reusing the bundle of " + documentCount + " documents staged for job " +
+                    unfinishedJobId);
+            recordBundleContents(EDIDocumentBundle.scan(filesToProcess));
         }
-        catch (IOException ioe) {
-            //Storage error trying to load a file, retry one time and then skip the file if it continues...
-            System.err.println("Storage error writing file " + fileName + " to the Storage Account, retrying this file");
+        else {
+            File bundleFile = File.createTempFile(jobId, EDIDocumentBundle.BUNDLE_SUFFIX);
             try {
-                blob.upload(fis, source.length());
+                EDIDocumentBundle.Contents contents = EDIDocumentBundle.write(filesToProcess, bundleFile.toPath());
+                recordBundleContents(contents);
+                documentCount = contents.getDocumentCount();
+                System.out.println(jobId + " - bundled " + documentCount + " documents from " + filesToProcess.length +
+                        " files into " + EDIDocumentBundle.getBundleName(jobId) + " (" + bundleFile.length() + " bytes)");
+                backend.stageBundle(jobId, bundleFile);
             }
-            catch (Exception e2) {
-                System.err.println("2nd Storage error writing file " + fileName + " to the Storage Account, aborting...");
-                System.err.println(e2.getMessage());
-                throw e2;
+            finally {
+                bundleFile.delete();
             }
         }
-        fis.close();
-
-        // Create policy with 1 day read permission
-        SharedAccessBlobPolicy policy = new SharedAccessBlobPolicy();
-        EnumSet<SharedAccessBlobPermissions> perEnumSet = EnumSet.of(SharedAccessBlobPermissions.READ);
-        policy.setPermissions(perEnumSet);
-
-        Calendar c = Calendar.getInstance();
-        c.setTime(new Date());
-        c.add(Calendar.DATE, 1);
-        policy.setSharedAccessExpiryTime(c.getTime());
+        result.setDocuments(documentCount);
+        result.setUploadMillis(System.currentTimeMillis() - uploadStart);
+        recordInputFiles(RunManifest.FileState.UPLOADED, documentCount);
+        long submitStart = System.currentTimeMillis();
+
+        //The input files are kept until the job has succeeded; see finishInputFiles()
+
+        //Split the job's documents across as many parse tasks as the backend has task slots, but no more than the
+        //  slots acquired above
+        taskCount = getTaskCount(documentCount);
+        if (taskSlots > 0) {
+            taskCount = Math.min(taskCount, taskSlots);
+        }
 
-        // Create SAS key
-        String sas = blob.generateSharedAccessSignature(policy, null);
-        return blob.getUri() + "?" + sas;
+        backend.submitJob(jobId, buildTasks(jobId, documentCount));
+        recordInputFiles(RunManifest.FileState.SUBMITTED, documentCount);
+        result.setTasks(taskCount);
+        result.setSubmitMillis(System.currentTimeMillis() - submitStart);
+        System.out.println(jobId + " - submitted " + taskCount + " parse tasks for " + documentCount + " documents");
     }
 
     /**
-     * Create an Azure Batch job and the 1 task necessary to perform the process. All files and jar resources are uploaded
-     * to the task.
-     * @param client batch client instance
-     * @param container blob container to upload the resource file
-     * @param poolId pool id
-     * @param jobId job id
-     * @throws BatchErrorException
-     * @throws IOException
-     * @throws StorageException
-     * @throws InvalidKeyException
-     * @throws URISyntaxException
+     * Keep the number of documents bundled from each input file, which finishInputFiles() checks the reported results
+     * against. An input archive left out of the bundle because it could not be read is given a PERMANENT result so
+     * finishInputFiles() moves it to the dead-letter directory rather than failing the job.
+     * @param contents Contents of the bundle
      */
-    private  void submitJobAndAddTask(BatchClient client, CloudBlobContainer container, String poolId, String jobId,
-                                            String jarFilePath, String batchSharedDir) throws BatchErrorException, IOException, StorageException, InvalidKeyException, URISyntaxException {
+    private void recordBundleContents(EDIDocumentBundle.Contents contents) {
+        bundleContents = contents;
+        for (Map.Entry<File, IOException> unreadable : contents.getUnreadableFiles().entrySet()) {
+            String sourceName = EDIDocumentBundle.getSourceName(unreadable.getKey());
+            List<DocumentResult> sourceResults = new ArrayList<DocumentResult>();
+            sourceResults.add(new DocumentResult(sourceName, DocumentResult.Status.PERMANENT,
+                    "Unreadable archive: " + unreadable.getValue()));
+            documentResults.put(sourceName, sourceResults);
+        }
+    }
 
-        File nextFile = null;
-        String realFileName = null;
+    /**
+     * Decide how many parse tasks a job is split into. Every task is given the same bundle and parses its own slice of
+     * the documents in it. In queue dispatch mode each task instead pulls work items from the job's queue until none
+     * are left.
+     * @param documentCount documents in the job
+     * @return number of parse tasks, at least 1
+     */
+    private int getTaskCount(int documentCount) {
+        if (backend.isQueueDispatch()) {
+            return OpiodOrderingWorker.getQueueTaskCount(documentCount, WorkQueues.DEFAULT_ITEM_DOCUMENTS,
+                    backend.getTaskSlots());
+        }
+        return OpiodOrderingWorker.getParseTaskCount(documentCount, backend.getTaskSlots());
+    }
 
-        // Create job run at the specified pool
-        PoolInformation poolInfo = new PoolInformation();
-        poolInfo.withPoolId(poolId);
-        JobAddParameter jap =
-                new JobAddParameter().withDisplayName("OpiodDrugOrderingJob").withId(jobId).withUsesTaskDependencies(Boolean.TRUE)
-                        .withOnAllTasksComplete(OnAllTasksComplete.TERMINATE_JOB).withPoolInfo(poolInfo);
+    /**
+     * Count the documents in a set of input files without reading them: one for each plain or .gz file and one for
+     * each entry listed in the directory of a .zip archive. An archive whose directory cannot be read counts as one.
+     * @param inputFiles plain (.txt) and archive (.zip, .gz) input files
+     * @return number of documents
+     */
+    static int countDocuments(File[] inputFiles) {
+        int documents = 0;
+        for (File inputFile : inputFiles) {
+            if (!inputFile.getName().toLowerCase().endsWith(EDIDocumentReader.ZIP_EXTENSION)) {
+                documents++;
+                continue;
+            }
+            try {
+                ZipFile zip = new ZipFile(inputFile);
+                try {
+                    int entries = 0;
+                    Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+                    while (zipEntries.hasMoreElements()) {
+                        if (!zipEntries.nextElement().isDirectory()) {
+                            entries++;
+                        }
+                    }
+                    documents += Math.max(1, entries);
+                }
+                finally {
+                    zip.close();
+                }
+            }
+            catch (IOException ioe) {
+                documents++;
+            }
+        }
+        return documents;
+    }
 
-//        client.jobOperations().createJob(jobId, poolInfo);
-        client.jobOperations().createJob(jap);
+    /**
+     * Describe the parse tasks of a job. Each task parses a slice of the bundle's documents or, in queue dispatch mode,
+     * pulls work items from the job's own queue.
+     * @param taskJobId Job Id the tasks are submitted under
+     * @param documentCount documents in the bundle
+     * @return one ParseTaskSpec per parse task
+     * @throws Exception Thrown if the work queue cannot be located
+     */
+    private List<ParseTaskSpec> buildTasks(String taskJobId, int documentCount) throws Exception {
+        boolean queueDispatch = backend.isQueueDispatch();
+        int itemDocuments = WorkQueues.DEFAULT_ITEM_DOCUMENTS;
+        String queueLocation = queueDispatch ? backend.getWorkQueueLocation(taskJobId) : null;
+        List<ParseTaskSpec> tasks = new ArrayList<ParseTaskSpec>(taskCount);
+        for (int i=0; i<taskCount; i++) {
+            String dispatchOption = queueDispatch ? EDI855ParseTask.QUEUE_OPTION : EDI855ParseTask.SLICE_OPTION + i + "/" + taskCount;
+            ParseTaskSpec task = new ParseTaskSpec(OpiodOrderingWorker.getParseTaskId(i, taskCount), jdbcURL, dispatchOption);
+            if (queueDispatch) {
+                task.withEnvironment(WorkQueues.LOCATION_ENV, queueLocation)
+                        .withEnvironment(WorkQueues.ITEM_DOCUMENTS_ENV, Integer.toString(itemDocuments));
+            }
+            tasks.add(task);
+        }
+        return tasks;
+    }
 
+    /**
+     * Once the job has finished, sort each input file by the results of its documents. Files that succeeded are
+     * recorded as PROCESSED and deleted, files with a permanent failure are recorded as DEAD_LETTER and moved to the
+     * dead-letter directory and the rest are recorded as FAILED and kept to be retried.
+     */
+    private void finishInputFiles() {
+        Map<File, List<DocumentResult>> deadLetterFailures = new HashMap<File, List<DocumentResult>>();
+        //Files that failed permanently are kept where they are when there is no dead-letter directory, but not retried
+        List<File> keptFiles = new ArrayList<File>();
+        for (File inputFile : filesToProcess) {
+            String sourceName = EDIDocumentBundle.getSourceName(inputFile);
+            List<DocumentResult> results = documentResults.get(sourceName);
+            List<DocumentResult> failures = new ArrayList<DocumentResult>();
+            //Names rather than results are counted, as a work item reclaimed from the queue may be reported twice
+            Set<String> succeededDocuments = new HashSet<String>();
+            boolean permanent = false;
+            if (results != null) {
+                for (DocumentResult document : results) {
+                    if (document.getStatus() != DocumentResult.Status.OK) {
+                        failures.add(document);
+                        permanent |= document.getStatus() == DocumentResult.Status.PERMANENT;
+                    }
+                    else {
+                        succeededDocuments.add(document.getDocumentName());
+                    }
+                }
+            }
+            //-1 if the documents bundled from the file are not known
+            int bundledDocuments = bundleContents != null ? bundleContents.getDocuments(sourceName) : -1;
 
-        // Create task
-        TaskAddParameter taskToAdd = new TaskAddParameter();
-        taskToAdd.withId(PARSE_855_TASK_NAME).
-                withCommandLine(
-                        String.format("/usr/bin/java -classpath ./%s:./%s:./%s:./%s:./%s com.mckesson.mpts.azure.tasks.poackparser.EDI855ParseTask %s",
-                                TASK_JAR,JACKSON_CORE_JAR,JACKSON_DATABIND_JAR,JACKSON_ANNOTATIONS_JAR,MYSQL_JDBC_JAR,jdbcURL));
+            if (permanent && deadLetter != null) {
+                result.getDeadLetterFiles().add(inputFile);
+                deadLetterFailures.put(inputFile, failures);
+            }
+            else if (permanent) {
+                keptFiles.add(inputFile);
+            }
+            else if (!failures.isEmpty()) {
+                result.getRetryFiles().add(inputFile);
+            }
+            else if (bundledDocuments >= 0 && succeededDocuments.size() >= bundledDocuments) {
+                //Every document bundled from the file was reported as succeeded. A file holding no documents, such as
+                //  an empty archive, has nothing to report
+                result.getSucceededFiles().add(inputFile);
+            }
+            else {
+                //A document with no result may never have been processed, as when a task failed part way through
+                result.getRetryFiles().add(inputFile);
+            }
+        }
 
-        List<ResourceFile> files = new ArrayList<ResourceFile>();
-        String x12sas = null;
-        ResourceFile file = null;
-        for (int i=0; i<filesToProcess.length; i++) {
-            nextFile = filesToProcess[i];
-            realFileName = nextFile.getName();
+        //The PROCESSED record is on disk before any file is deleted, so a file is never lost
+        File[] succeededFiles = result.getSucceededFiles().toArray(new File[0]);
+        if (recordInputFiles(succeededFiles, RunManifest.FileState.PROCESSED, (int)result.getDocuments())) {
+            for (File succeededFile : succeededFiles) {
+                succeededFile.delete();
+            }
+        }
 
+        for (File deadLetterFile : new ArrayList<File>(result.getDeadLetterFiles())) {
             try {
-                x12sas = uploadFileToCloud(container, realFileName, nextFile.getPath());
+                File moved = deadLetter.add(deadLetterFile, jobId, deadLetterFailures.get(deadLetterFile));
+                recordInputFiles(new File[] {deadLetterFile}, RunManifest.FileState.DEAD_LETTER, (int)result.getDocuments());
+                System.err.println(jobId + " - moved " + deadLetterFile.getName() + " to " + moved + " after " +
+                        deadLetterFailures.get(deadLetterFile).size() + " documents failed permanently");
             }
-            catch (Exception se) {
-                System.err.println("Storage error writing file " + realFileName + " to the Storage Account, skipping this file");
-                System.err.println(se.getMessage());
-                continue;
-
+            catch (IOException ioe) {
+                System.err.println(jobId + " - unable to move " + deadLetterFile.getName() + " to the dead-letter directory: " +
+                        ioe.getMessage());
+                result.getDeadLetterFiles().remove(deadLetterFile);
+                keptFiles.add(deadLetterFile);
             }
+        }
+        if (!keptFiles.isEmpty()) {
+            recordInputFiles(keptFiles.toArray(new File[0]), RunManifest.FileState.FAILED, (int)result.getDocuments());
+            System.err.println(jobId + " - keeping " + keptFiles.size() + " input files that failed permanently for a later run");
+        }
 
-            file = new ResourceFile();
-            file.withFilePath(realFileName).withBlobSource(x12sas);
-            files.add(file);
-
-            //Delete the file so another job execution does not pick it up
-            nextFile.delete();
-
-
-        }
-        String jarsas = uploadFileToCloud(container, TASK_JAR, jarFilePath+TASK_JAR);
-        String jkcsas = uploadFileToCloud(container, JACKSON_CORE_JAR, jarFilePath+JACKSON_CORE_JAR);
-        String jkasas = uploadFileToCloud(container, JACKSON_ANNOTATIONS_JAR, jarFilePath+JACKSON_ANNOTATIONS_JAR);
-        String jkdsas = uploadFileToCloud(container, JACKSON_DATABIND_JAR, jarFilePath+JACKSON_DATABIND_JAR);
-        String mysqlsas = uploadFileToCloud(container, MYSQL_JDBC_JAR, jarFilePath+MYSQL_JDBC_JAR);
-
-
-        // Associate resource file with task
-        ResourceFile jarFile = new ResourceFile();
-        jarFile.withFilePath(TASK_JAR).withBlobSource(jarsas);
-
-        ResourceFile jkcFile = new ResourceFile();
-        jkcFile.withFilePath(JACKSON_CORE_JAR).withBlobSource(jkcsas);
-
-        ResourceFile jkaFile = new ResourceFile();
-        jkaFile.withFilePath(JACKSON_ANNOTATIONS_JAR).withBlobSource(jkasas);
-
-        ResourceFile jkdFile = new ResourceFile();
-        jkdFile.withFilePath(JACKSON_DATABIND_JAR).withBlobSource(jkdsas);
-
-        ResourceFile mysqlFile = new ResourceFile();
-        mysqlFile.withFilePath(MYSQL_JDBC_JAR).withBlobSource(mysqlsas);
-
-        files.add(jarFile);
-        files.add(jkcFile);
-        files.add(jkaFile);
-        files.add(jkdFile);
-        files.add(mysqlFile);
-        taskToAdd.withResourceFiles(files);
-
-        /**  Removed when the process was reworked to use 1 task only
-        // Create Merge Drug task with dependency on the Parse Task
-        List<String> mergeTaskDependentTasks = new ArrayList<String>(1);
-        mergeTaskDependentTasks.add(PARSE_855_TASK_NAME);
-        TaskDependencies mergeDependencies = new TaskDependencies().withTaskIds(mergeTaskDependentTasks);
-        TaskAddParameter mergeDrugTask = new TaskAddParameter();
-        mergeDrugTask.withDependsOn(mergeDependencies);
-
-        mergeDrugTask.withId(OpiodOrderingWorker.MERGE_DRUG_INFO_TASK_NAME)
-                .withCommandLine(String.format("/usr/bin/java -classpath ./%s:./%s:./%s:./%s:./%s " +
-                        " com.mckesson.mpts.azure.tasks.MergeDrugInfoTask.MergeDrugInfoTask %s",
-                        TASK_JAR,JACKSON_CORE_JAR,JACKSON_DATABIND_JAR,JACKSON_ANNOTATIONS_JAR,MYSQL_JDBC_JAR,jdbcURL));
-
-        List<ResourceFile> mergeFiles = new ArrayList<ResourceFile>();
-        mergeFiles.add(jarFile);
-        mergeFiles.add(jkcFile);
-        mergeFiles.add(jkaFile);
-        mergeFiles.add(jkdFile);
-        mergeFiles.add(mysqlFile);
-        mergeDrugTask.withResourceFiles(mergeFiles);
-
-        // Create History Save task with dependency on Merge task
-        List<String> historyTaskDependentTasks = new ArrayList<String>(1);
-        historyTaskDependentTasks.add(MERGE_DRUG_INFO_TASK_NAME);
-        TaskDependencies historyDependencies = new TaskDependencies().withTaskIds(historyTaskDependentTasks);
-        TaskAddParameter historySaveTask = new TaskAddParameter();
-        historySaveTask.withDependsOn(historyDependencies);
-
-        historySaveTask.withId(OpiodOrderingWorker.WRITE_ORDERING_HISTORY_TASK_NAME)
-                .withCommandLine(String.format("/usr/bin/java -classpath ./%s:./%s:./%s:./%s:./%s " +
-                        " com.mckesson.mpts.azure.tasks.RecordOrderingHistoryTask.RecordOrderingHistoryTask %s",
-                        TASK_JAR,JACKSON_CORE_JAR,JACKSON_DATABIND_JAR,JACKSON_ANNOTATIONS_JAR,MYSQL_JDBC_JAR,jdbcURL));
-
-        List<ResourceFile> historySaveFiles = new ArrayList<ResourceFile>();
-        historySaveFiles.add(jarFile);
-        historySaveFiles.add(jkcFile);
-        historySaveFiles.add(jkaFile);
-        historySaveFiles.add(jkdFile);
-        historySaveFiles.add(mysqlFile);
-        historySaveTask.withResourceFiles(historySaveFiles);
-        */
-        // Add 855 parse task to job
-        client.taskOperations().createTask(jobId, taskToAdd);
-
-        // Add Merge Drug task to job
-        //client.taskOperations().createTask(jobId, mergeDrugTask);
-
-        // Add History Save task to job
-        //client.taskOperations().createTask(jobId, historySaveTask);
-
+        if (!result.getRetryFiles().isEmpty()) {
+            recordInputFiles(result.getRetryFiles().toArray(new File[0]), RunManifest.FileState.FAILED, (int)result.getDocuments());
+            System.err.println(jobId + " - keeping " + result.getRetryFiles().size() + " input files to retry");
+        }
     }
 
     /**
-     * Wait for all tasks under the specified job to be completed. Return true if all tasks complete within the
-     * timeout period or false if a timeout occurs
-     * @param client batch client instance
-     * @param jobId job id
-     * @param expiryTime the waiting period
-     * @return if task completed in time, return true, otherwise, return false
-     * @throws BatchErrorException
-     * @throws IOException
-     * @throws InterruptedException
+     * Record a new state for all of the job's input files in the run manifest, if there is one
+     * @return true if the state was recorded or there is no manifest
      */
-    private  boolean waitForTasksToComplete(BatchClient client, String jobId, Duration expiryTime) throws BatchErrorException, IOException, InterruptedException {
-        long startTime = System.currentTimeMillis();
-        long elapsedTime = 0L;
+    private boolean recordInputFiles(RunManifest.FileState state, int documentCount) {
+        return recordInputFiles(filesToProcess, state, documentCount);
+    }
 
-        while (elapsedTime < expiryTime.toMillis()) {
-            List<CloudTask> taskCollection = client.taskOperations().listTasks(jobId, new DetailLevel.Builder().withSelectClause("id, state").build());
+    /**
+     * Record a new state for some of the job's input files in the run manifest, if there is one
+     * @return true if the state was recorded or there is no manifest
+     */
+    private boolean recordInputFiles(File[] files, RunManifest.FileState state, int documentCount) {
+        if (manifest == null || files.length == 0) {
+            return true;
+        }
+        try {
+            manifest.record(files, state, jobId, documentCount);
+            return true;
+        }
+        catch (IOException ioe) {
+            System.err.println(jobId + " - unable to record " + state + " in the run manifest: " + ioe.getMessage());
+            return false;
+        }
+    }
 
-            boolean allComplete = true;
-            for (CloudTask task : taskCollection) {
-                if (task.state() != TaskState.COMPLETED) {
-                    allComplete = false;
-                    break;
-                }
+    /**
+     * Print the console logs of each task that failed, wrote no summary or reported failed documents or rows
+     * @param tasks outcome of every task in the job
+     */
+    private void printTaskLogs(List<TaskOutcome> tasks) {
+        for (TaskOutcome task : tasks) {
+            TaskSummary summary = task.getSummary();
+            if (task.isSucceeded() && summary != null && summary.getFailedDocuments() == 0 && summary.getFailedRows() == 0) {
+                continue;
             }
-
-            if (allComplete) {
-                // All tasks completed
-                return true;
+            try {
+                System.out.println(task.getTaskId() + " stdout=" + backend.getTaskLog(outcomeJobId, task.getTaskId(), STANDARD_CONSOLE_OUTPUT_FILENAME));
+                System.out.println(task.getTaskId() + " stderr=" + backend.getTaskLog(outcomeJobId, task.getTaskId(), STANDARD_CONSOLE_ERROR_FILENAME));
+            }
+            catch (Exception e) {
+                System.err.println(jobId + " - unable to read the logs of task " + task.getTaskId() + ": " + e.getMessage());
             }
-
-            System.out.println("waiting 10 seconds for tasks to complete...");
-
-            // Check again after 10 seconds
-            Thread.sleep(10 * 1000);
-            elapsedTime = (new Date()).getTime() - startTime;
         }
-
-        // Timeout, return false
-        return false;
     }
 
     /**
@@ -637,21 +885,24 @@ public class OpiodOrderingWorker implements Runnable{
     private File[] filesToProcess = null;
     private String jdbcURL = null;
 
-    private String batchAccount = null;
-    private String batchKey = null;
-    private String batchUri = null;
-    private String batchSharedDir = null;
-
-    private String storageAccountName = null;
-    private String storageAccountKey = null;
-    private String storageContainerName = "parsedx12855files";
-
-    private String jarFilePath = null;
+    private ComputeBackend backend = null;
+    private RunManifest manifest = null;
+    private DeadLetterDirectory deadLetter = null;
+    private String unfinishedJobId = null;
 
-    private BatchSharedKeyCredentials cred = null;
-    private BatchClient client = null;
     private String jobId = null;
-    private String poolId = null;
 
-    private boolean deleteJobWhenDone = false;
+    private JobResult result = null;
+    private int taskSlots = 0;
+    private JobDurationEstimator estimator = new JobDurationEstimator();
+    //Size of the job this worker submitted, for the JobDurationEstimator
+    private int taskCount = 0;
+    private long segments = 0;
+    //Speculative copy of a straggling job, and the job the task outputs were read from
+    private String speculativeJobId = null;
+    private String outcomeJobId = null;
+    //Results reported by the parse tasks, by the name of the input file the documents came from
+    private Map<String, List<DocumentResult>> documentResults = new HashMap<String, List<DocumentResult>>();
+    //Documents bundled from each input file
+    private EDIDocumentBundle.Contents bundleContents = null;
 }
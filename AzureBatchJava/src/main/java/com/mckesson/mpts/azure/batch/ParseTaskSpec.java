@@ -0,0 +1,46 @@
+package com.mckesson.mpts.azure.batch;
+
+import java.util.*;
+
+/**
+ * This class is a simple data storage class describing one EDI855ParseTask to run in a Job: its task id, the arguments
+ * passed to EDI855ParseTask.main() and any environment variables to set for it. Each ComputeBackend turns it into a
+ * task of its own kind, such as an Azure Batch task command line or a child JVM.
+ */
+public class ParseTaskSpec {
+
+    /**
+     * @param taskId task id, unique within the Job
+     * @param arguments arguments for EDI855ParseTask.main()
+     */
+    public ParseTaskSpec(String taskId, String... arguments) {
+        this.taskId = taskId;
+        this.arguments = Collections.unmodifiableList(Arrays.asList(arguments));
+    }
+
+    public String getTaskId() {
+        return taskId;
+    }
+
+    public List<String> getArguments() {
+        return arguments;
+    }
+
+    public Map<String, String> getEnvironment() {
+        return environment;
+    }
+
+    /**
+     * @param name environment variable name
+     * @param value environment variable value
+     * @return this ParseTaskSpec
+     */
+    public ParseTaskSpec withEnvironment(String name, String value) {
+        environment.put(name, value);
+        return this;
+    }
+
+    private String taskId = null;
+    private List<String> arguments = null;
+    private Map<String, String> environment = new LinkedHashMap<String, String>();
+}
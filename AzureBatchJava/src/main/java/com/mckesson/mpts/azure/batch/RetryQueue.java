@@ -0,0 +1,135 @@
+package com.mckesson.mpts.azure.batch;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ *      Holds the input files whose documents failed for a transient reason (see DocumentResult) until they are due to
+ * be sent again. Rather than going back to the start of the run, the files are sent in new small Jobs of up to
+ * RETRY_JOB_FILES files, after a backoff that starts at INITIAL_BACKOFF_MILLIS and doubles with every retry of the
+ * file, up to MAX_BACKOFF_MILLIS, so a database that is briefly unavailable is given time to recover.
+ *
+ *      A file is retried at most MAX_RETRIES times in a run. A file that still fails is left in the input directory,
+ * recorded as FAILED in the RunManifest, for a later run to pick up.
+ *
+ *      The queue is shared by every worker in the run; all methods are synchronized.
+ */
+public class RetryQueue {
+
+    public static final int MAX_RETRIES = 3;
+    public static final long INITIAL_BACKOFF_MILLIS = 30 * 1000L;
+    public static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000L;
+    public static final int RETRY_JOB_FILES = 5;
+
+    /**
+     * @param retry the number of the retry, starting at 1
+     * @return how long to wait before the retry
+     */
+    public static long getBackoffMillis(int retry) {
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        for (int i=1; i<retry && backoff < MAX_BACKOFF_MILLIS; i++) {
+            backoff *= 2;
+        }
+        return Math.min(MAX_BACKOFF_MILLIS, backoff);
+    }
+
+    /**
+     * Queue files to be sent again once their backoff has passed. Files that have already been retried MAX_RETRIES
+     * times are not queued.
+     * @param files input files that failed for a transient reason
+     * @return the files queued
+     */
+    public synchronized List<File> offer(List<File> files) {
+        long now = System.currentTimeMillis();
+        //Files on the same retry are due at the same time and share Jobs
+        Map<Integer, List<File>> byRetry = new TreeMap<Integer, List<File>>();
+        List<File> queued = new ArrayList<File>();
+        for (File file : files) {
+            Integer previous = retries.get(file);
+            int retry = previous == null ? 1 : previous.intValue() + 1;
+            if (retry > MAX_RETRIES) {
+                System.err.println("Giving up on " + file.getName() + " after " + MAX_RETRIES + " retries, keeping it for a later run");
+                continue;
+            }
+            retries.put(file, Integer.valueOf(retry));
+            List<File> retryFiles = byRetry.get(Integer.valueOf(retry));
+            if (retryFiles == null) {
+                retryFiles = new ArrayList<File>();
+                byRetry.put(Integer.valueOf(retry), retryFiles);
+            }
+            retryFiles.add(file);
+            queued.add(file);
+        }
+        for (Map.Entry<Integer, List<File>> retryFiles : byRetry.entrySet()) {
+            long due = now + RetryQueue.getBackoffMillis(retryFiles.getKey().intValue());
+            List<File> group = retryFiles.getValue();
+            for (int first=0; first<group.size(); first+=RETRY_JOB_FILES) {
+                List<File> jobFiles = group.subList(first, Math.min(group.size(), first + RETRY_JOB_FILES));
+                pending.add(new RetryJob(jobFiles.toArray(new File[0]), due));
+            }
+            System.out.println("Retrying " + group.size() + " files in " + (RetryQueue.getBackoffMillis(retryFiles.getKey().intValue()) / 1000) +
+                    " s (retry " + retryFiles.getKey() + " of " + MAX_RETRIES + ")");
+        }
+        return queued;
+    }
+
+    /**
+     * Remove the Jobs whose backoff has passed
+     * @param maxJobs most Jobs to remove
+     * @return the files of each Job that is due, in the order they were queued
+     */
+    public synchronized List<File[]> takeDue(int maxJobs) {
+        long now = System.currentTimeMillis();
+        List<File[]> due = new ArrayList<File[]>();
+        for (Iterator<RetryJob> it = pending.iterator(); it.hasNext() && due.size() < maxJobs; ) {
+            RetryJob job = it.next();
+            if (job.due <= now) {
+                due.add(job.files);
+                it.remove();
+            }
+        }
+        return due;
+    }
+
+    /**
+     * @return milliseconds until the next Job is due, 0 if one is due now or Long.MAX_VALUE if the queue is empty
+     */
+    public synchronized long getMillisUntilDue() {
+        long next = Long.MAX_VALUE;
+        for (RetryJob job : pending) {
+            next = Math.min(next, job.due);
+        }
+        return next == Long.MAX_VALUE ? next : Math.max(0, next - System.currentTimeMillis());
+    }
+
+    /**
+     * @return the number of files waiting to be retried
+     */
+    public synchronized int getPendingFiles() {
+        int files = 0;
+        for (RetryJob job : pending) {
+            files += job.files.length;
+        }
+        return files;
+    }
+
+    public synchronized boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Files to send in one Job once it is due
+     */
+    private static class RetryJob {
+        RetryJob(File[] files, long due) {
+            this.files = files;
+            this.due = due;
+        }
+
+        private File[] files;
+        private long due;
+    }
+
+    private List<RetryJob> pending = new ArrayList<RetryJob>();
+    private Map<File, Integer> retries = new HashMap<File, Integer>();
+}
@@ -0,0 +1,310 @@
+package com.mckesson.mpts.azure.batch;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ *      A persistent record of where every input file of a run has got to, so a run that fails or is stopped part way
+ * can be started again without losing input files or re-uploading work that was already staged.
+ *
+ *      The manifest is an append-only journal with one tab-separated line per state change:
+ *
+ * {time millis} {state} {file name} {file length} {file last modified} {job id or -} {documents in the job}
+ *
+ * Each file moves through DISCOVERED, UPLOADED (its Job's bundle is staged), SUBMITTED (its Job has been created) and
+ * finally PROCESSED, FAILED or DEAD_LETTER (moved to the DeadLetterDirectory). The state of a file is the last line written for it, so replaying the journal on open
+ * recovers the state of the run. A file is known by its name, length and last modified time; a file whose content has
+ * changed since it was journaled is treated as a new file. A line cut short by a crash is ignored.
+ *
+ *      Every append is flushed and synced to disk before the method returns, so a file is never deleted before its
+ * PROCESSED state is durable. On open the journal is compacted to one line per file still in the input directory,
+ * written to a temporary file and renamed over the journal, so it does not grow from run to run. It is compacted again
+ * after every COMPACT_LINES appended lines, so it does not grow without end while watching the input directory either
+ * (see InputDirectoryWatcher).
+ *
+ *      The manifest is written by every worker in the run; all methods are synchronized.
+ */
+public class RunManifest {
+
+    public static final String MANIFEST_ENV = "RUN_MANIFEST";
+    public static final String DEFAULT_MANIFEST_NAME = "opioid-run-manifest.log";
+    public static final String NO_JOB = "-";
+    public static final int COMPACT_LINES = 10000;
+
+    /**
+     * State of one input file
+     */
+    public enum FileState {
+        DISCOVERED, UPLOADED, SUBMITTED, PROCESSED, FAILED, DEAD_LETTER
+    }
+
+    /**
+     * Open the manifest for a run over an input directory: the file named by RUN_MANIFEST, or DEFAULT_MANIFEST_NAME in
+     * the input directory. The input file filter never selects the manifest itself.
+     * @param inputDirectory directory holding the input files
+     * @return the opened manifest
+     * @throws IOException Thrown if the journal cannot be read or written
+     */
+    public static RunManifest open(File inputDirectory) throws IOException {
+        String manifestPath = System.getenv(MANIFEST_ENV);
+        File journal = (manifestPath != null && manifestPath.length() > 0) ? new File(manifestPath) :
+                new File(inputDirectory, DEFAULT_MANIFEST_NAME);
+        return new RunManifest(journal, inputDirectory);
+    }
+
+    /**
+     * Replay and compact a journal, creating it if it does not exist
+     * @param journal journal file
+     * @param inputDirectory directory holding the input files
+     * @throws IOException Thrown if the journal cannot be read or written
+     */
+    public RunManifest(File journal, File inputDirectory) throws IOException {
+        this.journal = journal.getAbsoluteFile();
+        this.inputDirectory = inputDirectory;
+        if (this.journal.exists()) {
+            replay();
+        }
+        compact();
+        this.out = new FileOutputStream(this.journal, true);
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Record every input file not yet in the manifest, or changed since it was recorded, as DISCOVERED
+     * @param inputFiles input files found for the run
+     * @throws IOException Thrown if the journal cannot be written
+     */
+    public synchronized void discover(File[] inputFiles) throws IOException {
+        List<Entry> discovered = new ArrayList<Entry>();
+        for (File inputFile : inputFiles) {
+            Entry entry = entries.get(inputFile.getName());
+            if (entry == null || !entry.matches(inputFile)) {
+                discovered.add(new Entry(inputFile.getName(), inputFile.length(), inputFile.lastModified(),
+                        FileState.DISCOVERED, NO_JOB, 0));
+            }
+        }
+        append(discovered);
+    }
+
+    /**
+     * Record a new state for a set of files, all belonging to the same Job
+     * @param files input files
+     * @param state new state
+     * @param jobId Job Id, or null if the files are not in a Job
+     * @param documents number of documents in the Job, or 0 if not known
+     * @throws IOException Thrown if the journal cannot be written
+     */
+    public synchronized void record(File[] files, FileState state, String jobId, int documents) throws IOException {
+        List<Entry> changed = new ArrayList<Entry>(files.length);
+        for (File file : files) {
+            Entry entry = entries.get(file.getName());
+            long length = entry != null ? entry.length : file.length();
+            long lastModified = entry != null ? entry.lastModified : file.lastModified();
+            changed.add(new Entry(file.getName(), length, lastModified, state, jobId != null ? jobId : NO_JOB, documents));
+        }
+        append(changed);
+    }
+
+    /**
+     * @param file input file
+     * @return the recorded state of the file, or null if it is not in the manifest or has changed since it was recorded
+     */
+    public synchronized FileState getState(File file) {
+        Entry entry = entries.get(file.getName());
+        return (entry != null && entry.matches(file)) ? entry.state : null;
+    }
+
+    /**
+     * Group the files whose Job was staged or submitted by an earlier run, and did not finish, by that Job
+     * @param inputFiles input files found for the run
+     * @return map of earlier Job Id to its files, in Job order
+     */
+    public synchronized Map<String, List<File>> getUnfinishedJobs(File[] inputFiles) {
+        Map<String, List<File>> jobs = new TreeMap<String, List<File>>();
+        for (File inputFile : inputFiles) {
+            Entry entry = entries.get(inputFile.getName());
+            if (entry != null && entry.matches(inputFile) && !NO_JOB.equals(entry.jobId) &&
+                    (entry.state == FileState.UPLOADED || entry.state == FileState.SUBMITTED)) {
+                List<File> files = jobs.get(entry.jobId);
+                if (files == null) {
+                    files = new ArrayList<File>();
+                    jobs.put(entry.jobId, files);
+                }
+                files.add(inputFile);
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * @param jobId Job Id
+     * @return the furthest state recorded for any file of the Job, UPLOADED or SUBMITTED, or null if none
+     */
+    public synchronized FileState getJobState(String jobId) {
+        FileState jobState = null;
+        for (Entry entry : entries.values()) {
+            if (entry.jobId.equals(jobId) && (entry.state == FileState.UPLOADED || entry.state == FileState.SUBMITTED) &&
+                    (jobState == null || entry.state.compareTo(jobState) > 0)) {
+                jobState = entry.state;
+            }
+        }
+        return jobState;
+    }
+
+    /**
+     * @param jobId Job Id
+     * @return the number of documents recorded for the Job, or 0 if not known
+     */
+    public synchronized int getJobDocuments(String jobId) {
+        for (Entry entry : entries.values()) {
+            if (entry.jobId.equals(jobId) && entry.documents > 0) {
+                return entry.documents;
+            }
+        }
+        return 0;
+    }
+
+    public File getJournal() {
+        return journal;
+    }
+
+    /**
+     * Close the journal
+     */
+    public synchronized void close() {
+        try {
+            writer.close();
+        }
+        catch (IOException ioe) {
+            System.err.println("Unable to close run manifest " + journal + ": " + ioe.getMessage());
+        }
+    }
+
+    private void append(List<Entry> changed) throws IOException {
+        if (changed.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Entry entry : changed) {
+            writer.write(entry.toLine(now));
+            writer.newLine();
+            entries.put(entry.fileName, entry);
+        }
+        writer.flush();
+        out.getFD().sync();
+
+        appendedLines += changed.size();
+        if (appendedLines >= COMPACT_LINES) {
+            writer.close();
+            compact();
+            out = new FileOutputStream(journal, true);
+            writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            appendedLines = 0;
+        }
+    }
+
+    private void replay() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), StandardCharsets.UTF_8));
+        try {
+            String line = reader.readLine();
+            while (line != null) {
+                Entry entry = Entry.parse(line);
+                if (entry != null) {
+                    entries.put(entry.fileName, entry);
+                }
+                line = reader.readLine();
+            }
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Rewrite the journal with the current state of each file still in the input directory
+     */
+    private void compact() throws IOException {
+        File directory = journal.getParentFile();
+        Files.createDirectories(directory.toPath());
+        File temp = new File(directory, journal.getName() + ".tmp");
+        long now = System.currentTimeMillis();
+        BufferedWriter compacted = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8));
+        try {
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+                Entry entry = it.next();
+                if (!new File(inputDirectory, entry.fileName).exists()) {
+                    it.remove();
+                }
+                else {
+                    compacted.write(entry.toLine(now));
+                    compacted.newLine();
+                }
+            }
+        }
+        finally {
+            compacted.close();
+        }
+        try {
+            Files.move(temp.toPath(), journal.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException amnse) {
+            Files.move(temp.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * The last recorded state of one file
+     */
+    private static class Entry {
+        Entry(String fileName, long length, long lastModified, FileState state, String jobId, int documents) {
+            this.fileName = fileName;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.state = state;
+            this.jobId = jobId;
+            this.documents = documents;
+        }
+
+        boolean matches(File file) {
+            return file.length() == length && file.lastModified() == lastModified;
+        }
+
+        String toLine(long time) {
+            return time + "\t" + state + "\t" + fileName + "\t" + length + "\t" + lastModified + "\t" + jobId + "\t" + documents;
+        }
+
+        static Entry parse(String line) {
+            String[] fields = line.split("\t");
+            if (fields.length != 7) {
+                return null;
+            }
+            try {
+                return new Entry(fields[2], Long.parseLong(fields[3]), Long.parseLong(fields[4]),
+                        FileState.valueOf(fields[1]), fields[5], Integer.parseInt(fields[6]));
+            }
+            catch (IllegalArgumentException iae) {
+                //A line cut short when the previous run stopped
+                return null;
+            }
+        }
+
+        private String fileName;
+        private long length;
+        private long lastModified;
+        private FileState state;
+        private String jobId;
+        private int documents;
+    }
+
+    private File journal = null;
+    private File inputDirectory = null;
+    private FileOutputStream out = null;
+    private BufferedWriter writer = null;
+    private int appendedLines = 0;
+
+    private Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+}
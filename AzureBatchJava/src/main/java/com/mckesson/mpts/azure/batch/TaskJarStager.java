@@ -0,0 +1,149 @@
+package com.mckesson.mpts.azure.batch;
+
+import com.microsoft.azure.batch.protocol.models.ResourceFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.Future;
+
+/**
+ *      Stages the jar files needed by the Azure Batch Tasks (the task jar, the Jackson jars and the MySQL JDBC driver, or
+ * the shaded task jar and its class list) in the run's BlobStore once per run, rather than once per Job.
+ *
+ *      Each jar is stored under a blob name derived from the SHA-256 hash of its content:
+ *
+ * jars/{sha256 of jar}/{jar file name}
+ *
+ * A jar is only uploaded if no blob with that name exists yet, so an unchanged jar is never uploaded again, even by a
+ * later run, and a rebuilt jar is picked up automatically under a new name. Missing jars are uploaded in parallel
+ * through the run's BlobUploader. Only the blob names are kept; the ResourceFile list is built again from the store's
+ * current read URLs whenever they change, so a run that outlives the store's SAS still hands out valid URLs.
+ *
+ *      One instance is created per run and handed to every OpiodOrderingWorker. The jars are staged by whichever worker
+ * asks first; other workers wait for that to finish and then reuse the result.
+ */
+public class TaskJarStager {
+
+    public static final String JAR_BLOB_PREFIX = "jars/";
+    public static final String HASH_ALGORITHM = "SHA-256";
+
+    /**
+     * @param jarFilePath Path to a directory containing jar files needed by the Azure Batch Tasks
+     * @param jarNames names of the jar files within jarFilePath to stage
+     */
+    public TaskJarStager(String jarFilePath, String... jarNames) {
+        this.jarFilePath = jarFilePath;
+        this.jarNames = jarNames;
+    }
+
+    /**
+     * Return the ResourceFile entries for the task jars, uploading any jar whose content is not yet in the store the
+     * first time this method is called. The entries are rebuilt if the store's read URLs have changed since the last call.
+     * @param store blob store to hold the jars
+     * @param uploader BlobUploader used to upload the jars
+     * @return ResourceFile entries, one per jar, to add to a Task
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public synchronized List<ResourceFile> getResourceFiles(BlobStore store, BlobUploader uploader) throws IOException, InterruptedException {
+        if (blobNames == null) {
+            //Start an upload for every jar not yet in the store, then wait for them all
+            Map<String, Future<String>> uploads = new LinkedHashMap<String, Future<String>>();
+            Map<String, String> stagedNames = new LinkedHashMap<String, String>();
+            for (int i=0; i<jarNames.length; i++) {
+                String jarName = jarNames[i];
+                File jarFile = new File(jarFilePath + jarName);
+                String blobName = getBlobName(jarFile);
+                stagedNames.put(jarName, blobName);
+
+                if (store.exists(blobName)) {
+                    System.out.println("Task jar " + jarName + " already staged as " + blobName);
+                }
+                else {
+                    System.out.println("Staging task jar " + jarName + " as " + blobName);
+                    uploads.put(jarName, uploader.uploadAsync(store, blobName, jarFile));
+                }
+            }
+
+            for (Future<String> upload : uploads.values()) {
+                BlobUploader.getResult(upload);
+            }
+            blobNames = stagedNames;
+        }
+
+        //The URLs carry the store's SAS, so the entries are rebuilt whenever it has been generated again
+        List<String> blobUrls = new ArrayList<String>(blobNames.size());
+        for (String blobName : blobNames.values()) {
+            blobUrls.add(store.getReadUrl(blobName));
+        }
+        if (!blobUrls.equals(resourceUrls)) {
+            List<ResourceFile> stagedFiles = new ArrayList<ResourceFile>(blobUrls.size());
+            Iterator<String> urls = blobUrls.iterator();
+            for (String jarName : blobNames.keySet()) {
+                ResourceFile file = new ResourceFile();
+                file.withFilePath(jarName).withBlobSource(urls.next());
+                stagedFiles.add(file);
+            }
+            resourceFiles = Collections.unmodifiableList(stagedFiles);
+            resourceUrls = blobUrls;
+        }
+        return resourceFiles;
+    }
+
+    /**
+     * Build the content-addressed blob name for a jar
+     * @param jarFile jar file
+     * @return jars/{sha256}/{jar file name}
+     * @throws IOException Thrown if the jar cannot be read
+     */
+    public static String getBlobName(File jarFile) throws IOException {
+        return JAR_BLOB_PREFIX + hashFile(jarFile) + "/" + jarFile.getName();
+    }
+
+    /**
+     * @param file file to hash
+     * @return hex SHA-256 hash of the file's content
+     * @throws IOException Thrown if the file cannot be read
+     */
+    public static String hashFile(File file) throws IOException {
+        MessageDigest digest = null;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException nsae) {
+            //Every Java platform is required to support SHA-256
+            throw new IllegalStateException(nsae);
+        }
+
+        byte[] buffer = new byte[64 * 1024];
+        InputStream in = new FileInputStream(file);
+        try {
+            int count = in.read(buffer);
+            while (count != -1) {
+                digest.update(buffer, 0, count);
+                count = in.read(buffer);
+            }
+        }
+        finally {
+            in.close();
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private String jarFilePath = null;
+    private String[] jarNames = null;
+
+    private Map<String, String> blobNames = null;
+    private List<String> resourceUrls = null;
+    private List<ResourceFile> resourceFiles = null;
+}
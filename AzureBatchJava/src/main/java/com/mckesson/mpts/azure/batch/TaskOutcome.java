@@ -0,0 +1,55 @@
+package com.mckesson.mpts.azure.batch;
+
+import com.mckesson.mpts.azure.tasks.DocumentResult;
+import com.mckesson.mpts.azure.tasks.TaskSummary;
+
+import java.util.List;
+
+/**
+ * This class is a simple data storage class holding how one task of a Job ended: its exit code, or null if it never
+ * finished, the TaskSummary and the DocumentResult for each document it processed. The task's console logs are not
+ * held here; they are only read from the ComputeBackend when the Job failed.
+ */
+public class TaskOutcome {
+
+    /**
+     * @param taskId task id
+     * @param exitCode exit code of the task, or null if it did not finish
+     * @param summary TaskSummary read from the task's TaskSummary.SUMMARY_FILENAME, or null if it wrote none
+     * @param documentResults results read from the task's DocumentResult.RESULTS_FILENAME, empty if it wrote none
+     */
+    public TaskOutcome(String taskId, Integer exitCode, TaskSummary summary, List<DocumentResult> documentResults) {
+        this.taskId = taskId;
+        this.exitCode = exitCode;
+        this.summary = summary;
+        this.documentResults = documentResults;
+    }
+
+    /**
+     * @return true if the task finished with exit code 0
+     */
+    public boolean isSucceeded() {
+        return exitCode != null && exitCode.intValue() == 0;
+    }
+
+    public String getTaskId() {
+        return taskId;
+    }
+
+    public Integer getExitCode() {
+        return exitCode;
+    }
+
+    public TaskSummary getSummary() {
+        return summary;
+    }
+
+    public List<DocumentResult> getDocumentResults() {
+        return documentResults;
+    }
+
+    private String taskId = null;
+    private Integer exitCode = null;
+    private TaskSummary summary = null;
+    private List<DocumentResult> documentResults = null;
+}
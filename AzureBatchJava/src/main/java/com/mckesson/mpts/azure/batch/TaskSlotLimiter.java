@@ -0,0 +1,93 @@
+package com.mckesson.mpts.azure.batch;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *      Limits the number of parse tasks in flight across all Jobs in a run to the capacity of the Pool. Each worker
+ * acquires one permit per task in its Job before the Job is created and releases them once the Job has completed, so
+ * the number of Jobs in flight is bounded by what the Pool can run rather than by the number of client threads.
+ *
+ *      The capacity can be changed while Jobs are in flight, for example when the Pool is resized. Growing it releases
+ * the new permits to waiting workers at once; shrinking it takes effect as permits are returned.
+ *
+ *      A Job with more tasks than the whole capacity acquires every permit rather than waiting forever.
+ */
+public class TaskSlotLimiter {
+
+    /**
+     * @param capacity number of tasks allowed in flight at once
+     */
+    public TaskSlotLimiter(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.permits = new ResizableSemaphore(this.capacity);
+    }
+
+    /**
+     * Wait up to the timeout for task slots to become free
+     * @param slots number of tasks in the Job
+     * @param timeout longest time to wait
+     * @param unit unit of the timeout
+     * @return the number of slots acquired, which must be passed to release(), or 0 if the timeout passed first
+     * @throws InterruptedException Thrown if the calling thread is interrupted while waiting
+     */
+    public int tryAcquire(int slots, long timeout, TimeUnit unit) throws InterruptedException {
+        int needed = Math.max(1, Math.min(slots, getCapacity()));
+        return permits.tryAcquire(needed, timeout, unit) ? needed : 0;
+    }
+
+    /**
+     * Return task slots acquired by tryAcquire()
+     * @param slots value returned by tryAcquire()
+     */
+    public void release(int slots) {
+        if (slots > 0) {
+            permits.release(slots);
+        }
+    }
+
+    /**
+     * Change the number of tasks allowed in flight at once
+     * @param newCapacity new capacity, at least 1
+     */
+    public synchronized void resize(int newCapacity) {
+        newCapacity = Math.max(1, newCapacity);
+        if (newCapacity > capacity) {
+            permits.release(newCapacity - capacity);
+        }
+        else if (newCapacity < capacity) {
+            permits.reducePermits(capacity - newCapacity);
+        }
+        capacity = newCapacity;
+    }
+
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of task slots not currently acquired. May be negative just after the capacity was reduced.
+     */
+    public int getAvailable() {
+        return permits.availablePermits();
+    }
+
+    /**
+     * Semaphore exposing reducePermits() so the capacity can be lowered without waiting for permits to be free
+     */
+    private static class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        ResizableSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+    private int capacity = 1;
+    private ResizableSemaphore permits = null;
+}
@@ -0,0 +1,134 @@
+package com.mckesson.mpts.azure.tasks;
+
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.sql.SQLDataException;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLSyntaxErrorException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class is a simple data storage class holding how one document fared in a parse task. The task writes one line
+ * per document to RESULTS_FILENAME in its working directory, in the form:
+ *
+ * {status}\t{document name}\t{error}
+ *
+ * so the client that submitted the job can tell which documents, and so which input files, succeeded without reading
+ * the task's console output. The status is one of:
+ *
+ * OK - the document was parsed and its drugs recorded
+ * TRANSIENT - the document failed for a reason that may pass, such as a database connection error or a timeout. The
+ *   client sends the input file again in a later job.
+ * PERMANENT - the document cannot be processed as it is, such as a parse error. The client moves the input file to its
+ *   dead-letter directory along with the errors.
+ */
+public class DocumentResult {
+
+    public static final String RESULTS_FILENAME = "document-results.txt";
+
+    public enum Status {
+        OK, TRANSIENT, PERMANENT
+    }
+
+    /**
+     * @param documentName name of the document as reported by EDIDocumentReader
+     * @param status how the document fared
+     * @param error description of the error, or null if the document succeeded
+     */
+    public DocumentResult(String documentName, Status status, String error) {
+        this.documentName = documentName;
+        this.status = status;
+        this.error = error;
+    }
+
+    /**
+     * Create the result for a document that failed, classified by isTransient()
+     * @param documentName name of the document
+     * @param failure exception that stopped the document being processed
+     * @return TRANSIENT or PERMANENT DocumentResult
+     */
+    public static DocumentResult failed(String documentName, Throwable failure) {
+        return new DocumentResult(documentName, DocumentResult.isTransient(failure) ? Status.TRANSIENT : Status.PERMANENT,
+                failure.getClass().getSimpleName() + ": " + failure.getMessage());
+    }
+
+    /**
+     * Decide whether a failure may pass if the document is tried again. Database errors are transient unless they are
+     * caused by the data itself (bad syntax, bad values, constraint violations), as are network errors and timeouts.
+     * Anything else, such as a parse error or a corrupt archive, is permanent.
+     * @param failure exception that stopped the document being processed
+     * @return true if the failure is transient
+     */
+    public static boolean isTransient(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLSyntaxErrorException || cause instanceof SQLDataException ||
+                    cause instanceof SQLIntegrityConstraintViolationException) {
+                return false;
+            }
+            if (cause instanceof SQLException || cause instanceof SocketException ||
+                    cause instanceof InterruptedIOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the line to write to RESULTS_FILENAME, without a line terminator
+     */
+    public String toLine() {
+        return status + "\t" + DocumentResult.clean(documentName) + "\t" + (error != null ? DocumentResult.clean(error) : "");
+    }
+
+    /**
+     * Read the results written by a task
+     * @param content content of a RESULTS_FILENAME file
+     * @return one DocumentResult per valid line
+     */
+    public static List<DocumentResult> parseAll(String content) {
+        List<DocumentResult> results = new ArrayList<DocumentResult>();
+        if (content == null) {
+            return results;
+        }
+        for (String line : content.split("\n")) {
+            String[] fields = line.split("\t", 3);
+            if (fields.length < 2) {
+                continue;
+            }
+            try {
+                Status status = Status.valueOf(fields[0].trim());
+                String error = (fields.length > 2 && fields[2].trim().length() > 0) ? fields[2].trim() : null;
+                results.add(new DocumentResult(fields[1], status, error));
+            }
+            catch (IllegalArgumentException iae) {
+                //Not a result line, such as a line cut short when the task was stopped
+            }
+        }
+        return results;
+    }
+
+    public String getDocumentName() {
+        return documentName;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Keep a field on one line and free of the tab separator
+     */
+    private static String clean(String field) {
+        return field == null ? "" : field.replace('\t', ' ').replace('\r', ' ').replace('\n', ' ');
+    }
+
+    private String documentName = null;
+    private Status status = Status.OK;
+    private String error = null;
+}
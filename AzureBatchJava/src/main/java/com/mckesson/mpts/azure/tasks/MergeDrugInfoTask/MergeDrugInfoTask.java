@@ -1,16 +1,15 @@
 package com.mckesson.mpts.azure.tasks.MergeDrugInfoTask;
 
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mckesson.mpts.azure.tasks.TaskConnections;
 import com.mckesson.mpts.azure.tasks.TaskInfo;
-import com.mckesson.mpts.azure.tasks.model.OrderedDrug;
-import com.mckesson.mpts.azure.tasks.model.OrderedDrugs;
+import com.mckesson.mpts.azure.tasks.io.OrderedDrugFiles;
+import com.mckesson.mpts.azure.tasks.model.OrderedDrugBatch;
+import com.mckesson.mpts.azure.tasks.model.StringDictionary;
 
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.FilenameFilter;
 import java.sql.*;
+import java.util.Arrays;
 
 /**
  * This class represents an Azure Batch Task whose responsibility is to accept a set of OrderedDrug instances produced by the "Parse"
@@ -37,7 +36,7 @@ import java.sql.*;
  *
  * In addition, this class requires two parameters be passed in, those being:
  * - A TaskInfo instance containing the environment variable needs for the task
- * - A set of OrderedDrug instances to augment
+ * - An OrderedDrugBatch of OrderedDrug rows to augment
  *
  *
  * NOTE: The main() method of this class is no longer directly used and instead, the "mergeDrugData()" method is used.
@@ -54,12 +53,17 @@ public class MergeDrugInfoTask {
 
 	public static final String OPIOD_SEARCH_STR = "opioid";
 
+	//Account demographics ({state code, zip code}, both null if the account was not found) and drug data, by JDBC URL
+	//  and account number or NDC. Kept for the life of the JVM, so a TaskDaemon reads each only once across tasks
+	private static final ReferenceDataCache<String[]> accountCache = new ReferenceDataCache<String[]>();
+	private static final ReferenceDataCache<DrugProduct> drugProductCache = new ReferenceDataCache<DrugProduct>();
+
 	/**
 	 *
 	 * NOTE: No longer used, as the class does not operate as a standalone application at this time...
 	 *
-	 * Read a set of json files containing OrderedDrug instances. For each file, obtain and
-	 * populate Account demographic data and NDC-level data for each OrderedDrug
+	 * Read the set of intermediate files containing OrderedDrug instances written by the parse task. For each file,
+	 * obtain and populate Account demographic data and NDC-level data for each OrderedDrug
 	 * instance. Update each file to include all augmented data.
 	 * @param args This process requires the following arguments:
 	 *     JDBC connection parameters to a database containing the account and drug tables.
@@ -82,8 +86,7 @@ public class MergeDrugInfoTask {
 			System.exit(1);
 		}
 
-		OrderedDrugs drugSet = null;
-        String filePath = null;
+		OrderedDrugBatch drugBatch = null;
         File batchSharedDirFile = new File(batchSharedDir);
 //		File batchJobDirFile = new File(batchNodeRootDir + "/" + batchJobId );
 //		File batchTaskDirFile = new File(batchTaskDir + "/.." );
@@ -92,62 +95,40 @@ public class MergeDrugInfoTask {
 			//Get the MySQL driver class
 			Class.forName("com.mysql.jdbc.Driver").newInstance();
 
-			//Read only .json files from the shared directory who's name starts with the Job Id
+			//Read only intermediate files from the shared directory who's name starts with the Job Id
 			// This keeps this task from reading files produced by another task running on the same node
-            FilenameFilter jsonFilter = new FilenameFilter() {
-                public boolean accept(File dir, String name) {
-                    String lowercaseName = name.toLowerCase();
-                    if (lowercaseName.startsWith(batchJobId.toLowerCase()) &&
-                        lowercaseName.endsWith(".json")) {
-                        return true;
-                    } else {
-                        return false;
-                    }
-                }
-            };
-            File[] filesToProcess = batchSharedDirFile.listFiles(jsonFilter);
+            File[] filesToProcess = batchSharedDirFile.listFiles(OrderedDrugFiles.getJobFileFilter(batchJobId));
 
             if (filesToProcess == null || filesToProcess.length == 0) {
-                System.out.println("Found no JSON files to merge, exiting...");
+                System.out.println("Found no intermediate files to merge, exiting...");
                 System.exit(0);
             }
             else {
-                System.out.println("Found " + filesToProcess.length + " JSON files to merge...");
+                System.out.println("Found " + filesToProcess.length + " intermediate files to merge...");
             }
             File nextFile = null;
 
-            //Process each file found. Deserialize the file data from JSON back to OrderedDrug instances, read additional
-			//  data for the account and drugs and set into the object, and then serialize back to JSON for saving to the
-			//  file system.
+            //Process each file found. Read the OrderedDrug instances from the file into one batch, read additional
+			//  data for the accounts and drugs and set into the batch, and then write the batch back over the file
+			//  for pickup by the history task.
             for(int i=0; i< filesToProcess.length; i++) {
                 nextFile = filesToProcess[i];
-                filePath = nextFile.getPath();
-
-                String fileData = getFileData(filePath);
 
-                //ObjectMapper is the Jackson class used to reconstitute Java objects from JSON and serialize them back
-				//  to JSON as well...
-                ObjectMapper om = new ObjectMapper();
-                drugSet = om.readValue(fileData, OrderedDrugs.class);
-                //System.out.println("JSON version of OrderedDrugs is:" + drugSet);
+                drugBatch = OrderedDrugFiles.readBatch(nextFile.toPath());
 
-                if (drugSet.getOrderedDrugs() == null || drugSet.getOrderedDrugs().length == 0) {
+                if (drugBatch.size() == 0) {
                     System.err.println("No Ordered Drug instances found to process. Skipping this file...");
                     continue;
                 }
 
-                //Obtain data from the database for each drug
-                mergeDrugInfo(drugSet);
+                //Obtain data from the database once per distinct account and drug
+                mergeAccountInfo(jdbcURL, batchJobId, drugBatch);
+                mergeDrugProductInfo(jdbcURL, batchJobId, drugBatch);
 
                 //System.out.println("Successfully merged drug data into Ordered Drugs.");
 
-				//Serialize the OrderedDrug instances back to JSON
-                String jsonDrugs = om.writeValueAsString(drugSet);
-                //System.out.println("JSON version of OrderedDrugs is:");
-                //System.out.println(jsonDrugs);
-
-				//Write the JSON data back to the file system
-                MergeDrugInfoTask.writeOutputFile(filePath, jsonDrugs);
+				//Replace the file with the merged OrderedDrug instances
+                OrderedDrugFiles.writeBatch(nextFile.toPath(), drugBatch);
             }
 		}
 
@@ -159,164 +140,77 @@ public class MergeDrugInfoTask {
 	}
 
 	/**
-	 * Given a set of OrderedDrug instances with minimal information, merge in Account Demographic and Drug data and
-	 * return the updated set of OrderedDrug instances
+	 * Given a columnar batch of OrderedDrug rows from many documents, merge in Account Demographic and Drug data.
+	 * Account data is read once per distinct account and drug data once per distinct NDC in the batch, and the results
+	 * are then applied to all rows of the batch.
 	 * @param myTaskInfo TaskInfo instance holding runtime settings required by the task
-	 * @param drugsToMerge OrderedDrug instances to merge
-	 * @return Updated set of OrderedDrug instances
+	 * @param batchToMerge OrderedDrugBatch to merge
+	 * @return The same OrderedDrugBatch, updated with the merged data
 	 * @throws Exception Thrown if any database access errors occur
 	 */
-	public static OrderedDrugs mergeDrugData(TaskInfo myTaskInfo, OrderedDrugs drugsToMerge) throws Exception {
-		OrderedDrugs myDrugsToMerge = drugsToMerge;
-
-		batchTaskId = myTaskInfo.getBatchTaskId();
-		batchJobId = myTaskInfo.getBatchJobId();
-		batchTaskDir = myTaskInfo.getBatchTaskDir();
-		batchSharedDir = myTaskInfo.getBatchSharedDir();
-		batchNodeRootDir = myTaskInfo.getBatchNodeRootDir();
-		jdbcURL = myTaskInfo.getJdbcURL();
+	public static OrderedDrugBatch mergeDrugData(TaskInfo myTaskInfo, OrderedDrugBatch batchToMerge) throws Exception {
 
-		mergeDrugInfo(myDrugsToMerge);
-		//Obtain data from the database for each drug
-
-
-		return myDrugsToMerge;
-	}
-
-	/**
-	 * Read the data for the indicated file from the file system and return in String form. this should be JSON data...
-	 * @param filePath
-	 * @return
-	 */
-	private static String getFileData(String filePath) {
-		String fileData = null;
-
-		File x12File = null;
-		FileReader fileReader = null;
-		StringBuffer fileBuff = new StringBuffer(1000);
-
-		if (filePath != null) {
-			try {
-				x12File = new File(filePath);
-				if (x12File.exists()) {
-					fileReader = new FileReader(x12File);
-					int nextCharacter = fileReader.read();
-					while (nextCharacter != -1) {
-						fileBuff.append((char)nextCharacter);
-						nextCharacter = fileReader.read();
-					}
-				}
-			}
-			catch (Exception e) {
-				e.printStackTrace();
-			}
-			finally {
-				if (fileReader != null) {
-					try {
-						fileReader.close();
-					}
-					catch (Exception ee) {
-
-					}
-				}
-			}
+		//The settings are passed on rather than kept in the static fields, as a TaskDaemon merges the batches of
+		//  several tasks at once
+		if (batchToMerge.size() > 0) {
+			mergeAccountInfo(myTaskInfo.getJdbcURL(), myTaskInfo.getBatchJobId(), batchToMerge);
+			mergeDrugProductInfo(myTaskInfo.getJdbcURL(), myTaskInfo.getBatchJobId(), batchToMerge);
 		}
-		fileData = fileBuff.toString();
-
-		return fileData;
-	}
-
-	/**
-	 * Write the "dateToWrite" string back to the file indicated in the filePath parameter.
-	 * @param filePath
-	 * @param dataToWrite
-	 * @throws Exception Thrown if any file exceptions are encountered.
-	 */
-	private static void writeOutputFile(String filePath, String dataToWrite) throws Exception {
-
-		//System.out.println("Writing json file to: " + filePath);
-
-		File sharedFile = new File(filePath);
-		FileWriter fw = new FileWriter(sharedFile);
-		fw.write(dataToWrite);
-		fw.flush();
-		fw.close();
-	}
 
-	/**
-	 * Augment the OrderedDrug instances with demographic data for the ordering account (pharmacy) and additional
-	 * drug data for both the ordered drug and the shipped drug.
-	 * @param drugsToProcess set of OrderedDrug instances to process
-	 * @throws Exception Thrown if any errors occur.
-	 */
-	private static void mergeDrugInfo(OrderedDrugs drugsToProcess) throws Exception {
-
-		mergeAccountInfo(drugsToProcess);
-		mergeDrugProductInfo(drugsToProcess);
+		return batchToMerge;
 	}
 
-	private static String ACCOUNT_DEMOGRAPHIC_QUERY_1 =
-			"select state_code, zip_code from opiod_ordering_tracking.account " +
-                    "where account_number='";
-                    /** removed use of isa sender id due to de-identificaton issues...
-					"where isa_sender_id = '";
-	private static String ACCOUNT_DEMOGRAPHIC_QUERY_2 =
-			"' and account_number='";
-                     */
-	private static String ACCOUNT_DEMOGRAPHIC_QUERY_3 =
-			"';";
+	//The account number is bound as a parameter rather than written into the query. The ISA sender id is not used,
+	//  due to de-identification issues
+	private static String ACCOUNT_DEMOGRAPHIC_QUERY =
+			"select state_code, zip_code from opiod_ordering_tracking.account where account_number = ?";
 
 	/**
-	 * Read account demographic information and populate into every OrderedDrug instance. All OrderedDrug
-	 * instances in this set are from one Purchase Order for one Account so only 1 read is necessary and any found
-	 * data is populated to each instance.
-	 * @param drugsToProcess Set of OrderedDrug instances to process
+	 * Read account demographic information once for each distinct account in the batch and apply it to every row
+	 * for that account. Accounts already in the account cache are not read again.
+	 * @param jdbcURL JDBC URL to the database containing the account and drug tables
+	 * @param batchJobId Job Id for the job running this task, for logging
+	 * @param batchToProcess OrderedDrugBatch to process
 	 * @throws Exception Thrown if any JDBC-related errors occur
 	 */
-	private static void mergeAccountInfo(OrderedDrugs drugsToProcess) throws Exception {
-		OrderedDrug firstDrug = null;
-		OrderedDrug[] drugs = drugsToProcess.getOrderedDrugs();
-		firstDrug = drugs[0];
-
-		/**
-		String query = ACCOUNT_DEMOGRAPHIC_QUERY_1 + firstDrug.getIsaSenderId().trim() +
-				ACCOUNT_DEMOGRAPHIC_QUERY_2 + firstDrug.getAccountNumber() +
-				ACCOUNT_DEMOGRAPHIC_QUERY_3;
-         */
-        String query = ACCOUNT_DEMOGRAPHIC_QUERY_1 + firstDrug.getAccountNumber() +
-                ACCOUNT_DEMOGRAPHIC_QUERY_3;
-
-//		System.out.println("Account Demographic query= " + query);
+	private static void mergeAccountInfo(String jdbcURL, String batchJobId, OrderedDrugBatch batchToProcess) throws Exception {
+		StringDictionary accounts = batchToProcess.getAccounts();
+		String[] stateCodes = new String[accounts.size()];
+		String[] zipCodes = new String[accounts.size()];
 
 		Connection conn = null;
-		Statement stmt = null;
+		PreparedStatement stmt = null;
 		ResultSet rs = null;
-		String stateCode = null;
-		String zipCode = null;
 
 		try {
-			conn = DriverManager.getConnection(jdbcURL);
-			stmt = conn.createStatement();
-			rs = stmt.executeQuery(query);
-
-			//If the account is found, get the state code and zip code and add them to each OrderedDrug
-			if (rs.next()) {
-				stateCode = rs.getString(1);
-				zipCode = rs.getString(2);
-
-//				System.out.println("Found State Code " + stateCode + " and zip code " + zipCode +
-//				" for ISA Sender Id=" + firstDrug.getIsaSenderId() + " and account number=" + firstDrug.getAccountNumber());
-
-				for (int i=0; i < drugs.length; i++) {
-					firstDrug = drugs[i];
-					firstDrug.setAccountStateCode(stateCode);
-					firstDrug.setAccountZipCode(zipCode);
+			for (int a=0; a < accounts.size(); a++) {
+				String cacheKey = jdbcURL + "\t" + accounts.decode(a);
+				String[] demographics = accountCache.get(cacheKey);
+				if (demographics == null) {
+					if (conn == null) {
+						conn = TaskConnections.getConnection(jdbcURL);
+						stmt = conn.prepareStatement(ACCOUNT_DEMOGRAPHIC_QUERY);
+					}
+					stmt.setString(1, accounts.decode(a));
+
+					rs = stmt.executeQuery();
+					demographics = new String[2];
+					if (rs.next()) {
+						demographics[0] = rs.getString(1);
+						demographics[1] = rs.getString(2);
+					}
+					else {
+						System.out.println(batchJobId + " - " + "No account demographic data found for account number=" + accounts.decode(a));
+					}
+					rs.close();
+					rs = null;
+					accountCache.put(cacheKey, demographics);
 				}
+				stateCodes[a] = demographics[0];
+				zipCodes[a] = demographics[1];
 			}
-			else {
-				System.out.println(batchJobId + " - " + "No account demographic data found for ISA Sender Id=" + firstDrug.getIsaSenderId() +
-				" and account number=" + firstDrug.getAccountNumber());
-			}
+
+			batchToProcess.applyAccountDemographics(stateCodes, zipCodes);
 
 		} catch (SQLException ex) {
 			// handle any errors
@@ -325,10 +219,6 @@ public class MergeDrugInfoTask {
 			System.err.println(batchJobId + " - " + "VendorError: " + ex.getErrorCode());
 			throw ex;
 		} finally {
-			// it is a good idea to release
-			// resources in a finally{} block
-			// in reverse-order of their creation
-			// if they are no-longer needed
 			if (rs != null) {
 				try {
 					rs.close();
@@ -359,105 +249,67 @@ public class MergeDrugInfoTask {
 		}
 	}
 
-	private static String NDC_QUERY_1 ="select npk.ndc_11digit, npd.pharmaceutical_classes, npd.dea_schedule " +
+	//The NDC is bound as a parameter rather than written into the query
+	private static String NDC_QUERY ="select npk.ndc_11digit, npd.pharmaceutical_classes, npd.dea_schedule " +
 	"from opiod_ordering_tracking.ndc_package npk " +
 	"inner join opiod_ordering_tracking.ndc_product npd on npd.product_id = npk.product_id " +
-	"where npk.ndc_11digit = '";
-	private static String NDC_QUERY_2 = "';";
+	"where npk.ndc_11digit = ?";
 	/**
-	 * Read drug information for both the ordered drug and the shipped drug (if different from the ordered drug) and
-	 * populate the data into the OrderedDrug instance. Do this for each OrderedDrug instance in the set.
-	 * @param drugsToProcess The set of OrderedDrug instances to augment
+	 * Read drug information once for each distinct ordered or shipped NDC in the batch and apply it to every row
+	 * referring to that NDC. NDCs already in the drug product cache are not read again.
+	 * @param jdbcURL JDBC URL to the database containing the account and drug tables
+	 * @param batchJobId Job Id for the job running this task, for logging
+	 * @param batchToProcess The OrderedDrugBatch to augment
 	 * @throws Exception Thrown if any JDBC-related errors occur
 	 */
-	private static void mergeDrugProductInfo(OrderedDrugs drugsToProcess) throws Exception {
-		OrderedDrug nextDrug = null;
-		OrderedDrug[] drugs = drugsToProcess.getOrderedDrugs();
-		String query = null;
+	private static void mergeDrugProductInfo(String jdbcURL, String batchJobId, OrderedDrugBatch batchToProcess) throws Exception {
+		String[] ndcs = batchToProcess.getDistinctNdcs();
+		String[] foundNdcs = new String[ndcs.length];
+		String[] deaSchedules = new String[ndcs.length];
+		boolean[] opioidFlags = new boolean[ndcs.length];
+		int foundCount = 0;
 
 		Connection conn = null;
-		Statement stmt = null;
+		PreparedStatement stmt = null;
 		ResultSet rs = null;
-		String pharmaceuticalClasses = null;
-		String deaSchedule = null;
 
 		try {
-			conn = DriverManager.getConnection(jdbcURL);
-
-			for (int i=0; i<drugs.length; i++) {
-				nextDrug = drugs[i];
-
-				//No need to check the drugs if we couldn't find the Account demographic data!
-				if (nextDrug.getAccountStateCode() == null) {
-					break;
-				}
-
-				if (nextDrug.getOrderedNDC() != null) {
-					//Get the data for the Ordered Drug first
-					query = NDC_QUERY_1 + nextDrug.getOrderedNDC().trim() +
-							NDC_QUERY_2;
-
-					//System.out.println("Ordered Drug query= " + query);
-
-					stmt = conn.createStatement();
-					rs = stmt.executeQuery(query);
-
-					//If the ordered ndc is found, get the phamaceutical classes and dea schedule and set into the
-					if (rs.next()) {
-						pharmaceuticalClasses = rs.getString(2);
-						deaSchedule = rs.getString(3);
-
-						//System.out.println("Found pharmaceutical classes " + pharmaceuticalClasses + " and dea schedule " + deaSchedule +
-						//		" for Ordered NDC=" + nextDrug.getOrderedNDC());
-
-						nextDrug.setOrderedNDCOpiodFlag((pharmaceuticalClasses != null && pharmaceuticalClasses.toLowerCase().contains(OPIOD_SEARCH_STR)) ? Boolean.TRUE : Boolean.FALSE);
-						nextDrug.setOrderedNDCSchedule(deaSchedule);
-
-					} else {
-						//System.out.println("No drug data found for Ordered NDC=" + nextDrug.getOrderedNDC());
+			//The NDCs are sorted, so the found NDCs remain sorted as required by applyDrugInfo()
+			for (int i=0; i<ndcs.length; i++) {
+				String ndc = ndcs[i];
+				String cacheKey = jdbcURL + "\t" + ndc;
+				DrugProduct product = drugProductCache.get(cacheKey);
+				if (product == null) {
+					if (conn == null) {
+						conn = TaskConnections.getConnection(jdbcURL);
+						stmt = conn.prepareStatement(NDC_QUERY);
 					}
-					rs.close();
-					stmt.close();
-				}
+					stmt.setString(1, ndc);
 
-				if (nextDrug.getShippedNDC() != null) {
-
-					//Only read data again if the Shipped NDC is different from the Ordered NDC
-					if (nextDrug.getShippedNDC().equalsIgnoreCase(nextDrug.getOrderedNDC())) {
-						nextDrug.setShippedNDCOpiodFlag(nextDrug.getOrderedNDCOpiodFlag());
-						nextDrug.setShippedNDCSchedule(nextDrug.getOrderedNDCSchedule());
+					rs = stmt.executeQuery();
+					if (rs.next()) {
+						String pharmaceuticalClasses = rs.getString(2);
+						product = new DrugProduct(true, rs.getString(3),
+								pharmaceuticalClasses != null && pharmaceuticalClasses.toLowerCase().contains(OPIOD_SEARCH_STR));
 					}
 					else {
-						//Get the data for the Shipped Drug next
-						query = NDC_QUERY_1 + nextDrug.getShippedNDC().trim() +
-								NDC_QUERY_2;
-
-						//System.out.println("Shipped Drug query= " + query);
-
-						stmt = conn.createStatement();
-						rs = stmt.executeQuery(query);
-
-						//If the  shipped ndc is found, get the phamaceutical classes and dea schedule and set into the OrderedDrug
-						if (rs.next()) {
-							pharmaceuticalClasses = rs.getString(2);
-							deaSchedule = rs.getString(3);
-
-							//System.out.println("Found pharmaceutical classes " + pharmaceuticalClasses + " and dea schedule " + deaSchedule +
-							//		" for Shipped NDC=" + nextDrug.getShippedNDC());
-
-							nextDrug.setShippedNDCOpiodFlag((pharmaceuticalClasses != null && pharmaceuticalClasses.toLowerCase().contains(OPIOD_SEARCH_STR)) ? Boolean.TRUE : Boolean.FALSE);
-							nextDrug.setShippedNDCSchedule(deaSchedule);
-
-						} else {
-							//System.out.println("No drug data found for Shipped NDC=" + nextDrug.getShippedNDC());
-						}
-						rs.close();
-						stmt.close();
+						product = new DrugProduct(false, null, false);
 					}
-
+					rs.close();
+					rs = null;
+					drugProductCache.put(cacheKey, product);
+				}
+				if (product.found) {
+					foundNdcs[foundCount] = ndcs[i];
+					deaSchedules[foundCount] = product.deaSchedule;
+					opioidFlags[foundCount] = product.opioid;
+					foundCount++;
 				}
 			}
 
+			batchToProcess.applyDrugInfo(Arrays.copyOf(foundNdcs, foundCount), Arrays.copyOf(deaSchedules, foundCount),
+					Arrays.copyOf(opioidFlags, foundCount));
+
 		} catch (SQLException ex) {
 			// handle any errors
 			System.err.println(batchJobId + " - " + "SQLException: " + ex.getMessage());
@@ -465,11 +317,6 @@ public class MergeDrugInfoTask {
 			System.err.println(batchJobId + " - " + "VendorError: " + ex.getErrorCode());
 			throw ex;
 		} finally {
-			// it is a good idea to release
-			// resources in a finally{} block
-			// in reverse-order of their creation
-			// if they are no-longer needed
-
 			if (rs != null) {
 				try {
 					rs.close();
@@ -500,5 +347,19 @@ public class MergeDrugInfoTask {
 		}
 	}
 
+	/**
+	 * Drug data read for one NDC, or a record that the NDC was not found
+	 */
+	private static class DrugProduct {
+
+		DrugProduct(boolean found, String deaSchedule, boolean opioid) {
+			this.found = found;
+			this.deaSchedule = deaSchedule;
+			this.opioid = opioid;
+		}
 
+		private boolean found = false;
+		private String deaSchedule = null;
+		private boolean opioid = false;
+	}
 }
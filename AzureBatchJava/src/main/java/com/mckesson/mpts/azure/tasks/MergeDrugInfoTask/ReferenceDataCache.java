@@ -0,0 +1,80 @@
+package com.mckesson.mpts.azure.tasks.MergeDrugInfoTask;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds reference data read from the database by the merge step, such as the demographics of an account or the DEA
+ * schedule of an NDC, so each is read once rather than once per batch. A task run by main() keeps what it has read
+ * from one batch to the next; a TaskDaemon keeps it from one task to the next.
+ *
+ * Entries expire after expiryMillis so changes to the reference tables, such as newly loaded accounts, are picked up
+ * by a long-running daemon. Once maxEntries are held the cache is emptied and starts again, which keeps its size
+ * bounded without tracking how recently each entry was used.
+ *
+ * Safe for use by multiple threads.
+ * @param <V> type of the values held
+ */
+public class ReferenceDataCache<V> {
+
+    public static final long DEFAULT_EXPIRY_MILLIS = 10 * 60 * 1000L;
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    public ReferenceDataCache() {
+        this(DEFAULT_EXPIRY_MILLIS, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param expiryMillis how long an entry is used for after it is read
+     * @param maxEntries number of entries held before the cache is emptied
+     */
+    public ReferenceDataCache(long expiryMillis, int maxEntries) {
+        this.expiryMillis = expiryMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @param key key of the entry
+     * @return the value held for the key, or null if there is none or it has expired
+     */
+    public V get(String key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.loadedAt > expiryMillis) {
+            entries.remove(key, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * @param key key of the entry
+     * @param value value read from the database. Data that was looked for and not found should be held as a value
+     *              saying so rather than left out, so it is not looked for again.
+     */
+    public void put(String key, V value) {
+        if (entries.size() >= maxEntries) {
+            entries.clear();
+        }
+        entries.put(key, new Entry<V>(value));
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static class Entry<V> {
+
+        Entry(V value) {
+            this.value = value;
+        }
+
+        private V value = null;
+        private long loadedAt = System.currentTimeMillis();
+    }
+
+    private long expiryMillis = DEFAULT_EXPIRY_MILLIS;
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private ConcurrentHashMap<String, Entry<V>> entries = new ConcurrentHashMap<String, Entry<V>>();
+}
@@ -1,16 +1,23 @@
 package com.mckesson.mpts.azure.tasks.RecordOrderingHistoryTask;
 
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mckesson.mpts.azure.tasks.TaskConnections;
 import com.mckesson.mpts.azure.tasks.TaskInfo;
+import com.mckesson.mpts.azure.tasks.io.OrderedDrugFiles;
 import com.mckesson.mpts.azure.tasks.model.OrderedDrug;
+import com.mckesson.mpts.azure.tasks.model.OrderedDrugBatch;
 import com.mckesson.mpts.azure.tasks.model.OrderedDrugs;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
-import java.io.FilenameFilter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.sql.*;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This class operates as an Azuer Batch Task and processes files containing OrderedDrug instances.
@@ -29,7 +36,7 @@ import java.sql.*;
  *
  * In addition, this class requires two parameters be passed in, those being:
  * - A TaskInfo instance containing the environment variable needs for the task
- * - A set of OrderedDrug instances to augment
+ * - An OrderedDrugBatch of merged OrderedDrug rows to record
  *
  *
  * NOTE: The main() method of this class is no longer directly used and instead, the "recordDrugData()" method is used.
@@ -47,7 +54,7 @@ public class RecordOrderingHistoryTask {
 
 
 	/**
-	 * Accept a path to json file of OrderedDrug instances and a JDBC URL. Read the file and
+	 * Read the intermediate files of merged OrderedDrug instances written for this job and a JDBC URL. Read each file and
 	 * write information to history for row where drug information was found.
 	 * @param args This process requires the following arguments:
 	 *     File name to retrieve from the batch node shared directory
@@ -75,10 +82,7 @@ public class RecordOrderingHistoryTask {
 			System.exit(1);
 		}
 
-		String fileToProcess = null;
-		OrderedDrug[] drugs = null;
-		OrderedDrugs drugSet = null;
-        String filePath = null;
+		OrderedDrugBatch drugBatch = null;
         File batchSharedDirFile = new File(batchSharedDir);
 //        File batchJobRootDirFile = new File(batchNodeRootDir + "/" +batchJobId);
 //        File batchTaskDirFile = new File(batchTaskDir + "/..");
@@ -86,57 +90,33 @@ public class RecordOrderingHistoryTask {
 		try {
 			Class.forName("com.mysql.jdbc.Driver").newInstance();
 
-			//Return only .json files whose name starts with the Job Id value
-            FilenameFilter jsonFilter = new FilenameFilter() {
-                public boolean accept(File dir, String name) {
-                    String lowercaseName = name.toLowerCase();
-					if (lowercaseName.startsWith(batchJobId.toLowerCase()) &&
-							lowercaseName.endsWith(".json")) {
-                        return true;
-                    } else {
-                        return false;
-                    }
-                }
-            };
-            File[] filesToProcess = batchSharedDirFile.listFiles(jsonFilter);
-//            File[] filesToProcess = batchTaskDirFile.listFiles(jsonFilter);
+			//Return only intermediate files whose name starts with the Job Id value
+            File[] filesToProcess = batchSharedDirFile.listFiles(OrderedDrugFiles.getJobFileFilter(batchJobId));
 
             if (filesToProcess == null || filesToProcess.length == 0) {
-                System.out.println("Found no JSON files to record for history, exiting...");
+                System.out.println("Found no intermediate files to record for history, exiting...");
                 System.exit(0);
             }
             else {
-                System.out.println("Found " + filesToProcess.length + " JSON files to record for history...");
+                System.out.println("Found " + filesToProcess.length + " intermediate files to record for history...");
             }
             File nextFile = null;
 
             //Process all files found, writing relevant drug ordering information to a history table
             for(int i=0; i< filesToProcess.length; i++) {
                 nextFile = filesToProcess[i];
-                filePath = nextFile.getPath();
-
-                String fileData = getFileData(filePath );
 
-                //The Jackson ObjectMapper class is used to reconstitute OrderedDrug instances from JSON format
-                ObjectMapper om = new ObjectMapper();
-                drugSet = om.readValue(fileData, OrderedDrugs.class);
-                //System.out.println("JSON version of OrderedDrugs is:" + drugSet);
+                drugBatch = OrderedDrugFiles.readBatch(nextFile.toPath());
 
-                if (drugSet.getOrderedDrugs() == null || drugSet.getOrderedDrugs().length == 0) {
+                if (drugBatch.size() == 0) {
                     System.out.println("No Ordered Drug instances found to process. Halting the job...");
                     System.exit(0);
                 }
 
-                //Write the OrderedDrug intances to history
-                writeDrugInfoToHisory(drugSet);
-
-                //String jsonDrugs = om.writeValueAsString(drugSet);
-                //System.out.println("JSON version of OrderedDrugs is:");
-                //System.out.println(jsonDrugs);
-
-                //RecordOrderingHistoryTask.writeOutputFile(filePath,jsonDrugs);
+                //Write the qualifying OrderedDrug rows to history
+                writeBatchToHistory(jdbcURL, batchJobId, drugBatch);
             }
-            System.out.println("Successfully processed all JSON files.");
+            System.out.println("Successfully processed all intermediate files.");
 
         }
 
@@ -150,72 +130,42 @@ public class RecordOrderingHistoryTask {
 	}
 
 	/**
-	 * Given a set of OrderedDrug instances with minimal information, merge in Account Demographic and Drug data and
-	 * return the updated set of OrderedDrug instances
+	 * Write the qualifying rows of a columnar OrderedDrugBatch to history. Only the rows selected by the batch (Opioid
+	 * drugs with known account demographics) are converted to OrderedDrug instances for writing.
 	 * @param myTaskInfo TaskInfo instance holding runtime settings required by the task
-	 * @param drugsToMerge OrderedDrug instances to merge
-	 * @return Updated set of OrderedDrug instances
+	 * @param batchToRecord OrderedDrugBatch holding merged rows from one or more documents
+	 * @return The number of rows selected for writing to history
 	 * @throws Exception Thrown if any database access errors occur
 	 */
-	public static OrderedDrugs recordDrugData(TaskInfo myTaskInfo, OrderedDrugs drugsToMerge) throws Exception {
-		OrderedDrugs myDrugsToMerge = drugsToMerge;
-
-		batchTaskId = myTaskInfo.getBatchTaskId();
-		batchJobId = myTaskInfo.getBatchJobId();
-		batchTaskDir = myTaskInfo.getBatchTaskDir();
-		batchSharedDir = myTaskInfo.getBatchSharedDir();
-		batchNodeRootDir = myTaskInfo.getBatchNodeRootDir();
-		jdbcURL = myTaskInfo.getJdbcURL();
-
-		//Write each drug to history as needed
-		writeDrugInfoToHisory(myDrugsToMerge);
+	public static int recordDrugData(TaskInfo myTaskInfo, OrderedDrugBatch batchToRecord) throws Exception {
 
-
-
-		return myDrugsToMerge;
+		//The settings are passed on rather than kept in the static fields, as a TaskDaemon records the batches of
+		//  several tasks at once
+		return writeBatchToHistory(myTaskInfo.getJdbcURL(), myTaskInfo.getBatchJobId(), batchToRecord);
 	}
 
 	/**
-	 * retrieve the file data stored at the indicated file path and return the data in String form
-	 * @param filePath
-	 * @return
+	 * Convert the rows of the batch that qualify for history to OrderedDrug instances and write them to history
+	 * @param jdbcURL JDBC URL to the database containing the history table
+	 * @param batchJobId Job Id for the job running this task, for logging
+	 * @param batchToRecord OrderedDrugBatch holding merged rows
+	 * @return The number of rows selected for writing to history
+	 * @throws Exception Thrown if any JDBC-related errors occur
 	 */
-	private static String getFileData(String filePath) {
-		String fileData = null;
-
-		File x12File = null;
-		FileReader fileReader = null;
-		StringBuffer fileBuff = new StringBuffer(1000);
-
-		if (filePath != null) {
-			try {
-				x12File = new File(filePath);
-				if (x12File.exists()) {
-					fileReader = new FileReader(x12File);
-					int nextCharacter = fileReader.read();
-					while (nextCharacter != -1) {
-						fileBuff.append((char)nextCharacter);
-						nextCharacter = fileReader.read();
-					}
-				}
+	private static int writeBatchToHistory(String jdbcURL, String batchJobId, OrderedDrugBatch batchToRecord) throws Exception {
+		int[] historyRows = batchToRecord.selectHistoryRows();
+		if (historyRows.length > 0) {
+			OrderedDrug[] drugs = new OrderedDrug[historyRows.length];
+			for (int i=0; i<historyRows.length; i++) {
+				drugs[i] = batchToRecord.toOrderedDrug(historyRows[i]);
 			}
-			catch (Exception e) {
-				e.printStackTrace();
-			}
-			finally {
-				if (fileReader != null) {
-					try {
-						fileReader.close();
-					}
-					catch (Exception ee) {
+			OrderedDrugs drugSet = new OrderedDrugs();
+			drugSet.setOrderedDrugs(drugs);
 
-					}
-				}
-			}
+			writeDrugInfoToHisory(jdbcURL, batchJobId, drugSet);
 		}
-		fileData = fileBuff.toString();
 
-		return fileData;
+		return historyRows.length;
 	}
 
 	/**
@@ -235,32 +185,86 @@ public class RecordOrderingHistoryTask {
 		fw.close();
 	}
 
-	private static String DRUG_ORDERING_HISTORY_INSERT_1 =
-			"insert into opiod_ordering_tracking.ordering_history (order_date, isa_sender_id, account_number," +
+	//The values are bound as parameters rather than written into the statement. A row whose source_key is already in
+	//  the table is not inserted, so the statement reports 0 rows for it whether the driver counts rows found or rows
+	//  changed. The duplicate key clause covers a row inserted by another copy of the job between the check and the insert
+	private static String DRUG_ORDERING_HISTORY_INSERT =
+			"insert into opiod_ordering_tracking.ordering_history (source_key, order_date, isa_sender_id, account_number," +
 					" state_code, zip_code, purchase_order_number, ordered_ndc,ordered_ndc_dea_schedule," +
 					" ordered_ndc_is_opiod, ordered_item_number, ordered_quantity, shipped_ndc, shipped_ndc_dea_schedule," +
-					" shipped_ndc_is_opiod,shipped_item_number, shipped_quantity, date_added) VALUES (";
-	private static String DRUG_ORDERING_HISTORY_INSERT_2 =
-			");";
+					" shipped_ndc_is_opiod,shipped_item_number, shipped_quantity, date_added) select " +
+					"?, str_to_date(?,'%Y%m%d'), ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, CURDATE() from dual" +
+					" where not exists (select 1 from opiod_ordering_tracking.ordering_history where source_key = ?)" +
+					" on duplicate key update ordering_history_num = ordering_history_num";
+
+	//Selects no rows, but fails if the history table has no source_key column
+	private static String SOURCE_KEY_CHECK_QUERY =
+			"select source_key from opiod_ordering_tracking.ordering_history limit 0";
+
+	//JDBC URLs whose history table has been found to have the source_key column
+	private static Set<String> checkedURLs = Collections.synchronizedSet(new HashSet<String>());
+
+	/**
+	 * Check that the history table has the source_key column every row is written with. A database created before the
+	 * column was added must first be upgraded with OrderingHistorySourceKey-Migration.sql, or every insert fails. Once
+	 * the check has passed for a JDBC URL it is not made again.
+	 * @param jdbcURL JDBC URL to the database containing the history table
+	 * @return false if the history table has no source_key column
+	 * @throws SQLException Thrown if the table cannot be checked for another reason, such as a lost connection
+	 */
+	public static boolean hasSourceKey(String jdbcURL) throws SQLException {
+		if (checkedURLs.contains(jdbcURL)) {
+			return true;
+		}
+		Connection conn = TaskConnections.getConnection(jdbcURL);
+		try {
+			PreparedStatement stmt = conn.prepareStatement(SOURCE_KEY_CHECK_QUERY);
+			try {
+				stmt.executeQuery().close();
+			}
+			finally {
+				stmt.close();
+			}
+		}
+		catch (SQLSyntaxErrorException sqle) {
+			//MySQL reports an unknown column, or a missing table, as a syntax error
+			System.err.println("The ordering history table cannot be written: " + sqle.getMessage());
+			return false;
+		}
+		finally {
+			conn.close();
+		}
+		checkedURLs.add(jdbcURL);
+		return true;
+	}
 
 	/**
 	 * Write drug data to the history table if an OrderedDrug has Account demographic data and either the ordered or shipped
 	 * drug information exists.
+	 *
+	 * Each row is written with a source_key identifying the line it came from, so writing the same drugs again, as when
+	 * a speculative copy of a job or a retried file records them, leaves the rows already written as they are.
+	 * @param jdbcURL JDBC URL to the database containing the history table
+	 * @param batchJobId Job Id for the job running this task, for logging
 	 * @param drugsToProcess
+	 * @return The number of rows inserted, leaving out those already in the table
 	 * @throws Exception Thrown if any JDBC-related errors occur
 	 */
-	private static void writeDrugInfoToHisory(OrderedDrugs drugsToProcess) throws Exception {
+	private static int writeDrugInfoToHisory(String jdbcURL, String batchJobId, OrderedDrugs drugsToProcess) throws Exception {
 		OrderedDrug nextDrug = null;
 		OrderedDrug[] drugs = drugsToProcess.getOrderedDrugs();
-		String insertString = null;
 		int insertCount = 0;
+		int recordCount = 0;
+		//Number of times each line has been seen, for drugs without the control numbers of their document
+		Map<String, Integer> lineOccurrences = new HashMap<String, Integer>();
 
 		Connection conn = null;
-		Statement stmt = null;
+		PreparedStatement stmt = null;
 
 		try {
-			conn = DriverManager.getConnection(jdbcURL);
+			conn = TaskConnections.getConnection(jdbcURL);
 			conn.setAutoCommit(false);
+			stmt = conn.prepareStatement(DRUG_ORDERING_HISTORY_INSERT);
 
 			for (int i=0; i<drugs.length; i++) {
 				nextDrug = drugs[i];
@@ -281,46 +285,46 @@ public class RecordOrderingHistoryTask {
 					}
 				}
 
-				//Get the data for the Ordered Drug first
-				insertString = DRUG_ORDERING_HISTORY_INSERT_1 +
-						"str_to_date('" + nextDrug.getOrderDate() + "','%Y%m%d')" + ", " +
-						"'" + nextDrug.getIsaSenderId() + "'" + ", " +
-						"'" + nextDrug.getAccountNumber() + "'" + ", " +
-						"'" + nextDrug.getAccountStateCode() + "'" + ", " +
-						"'" + nextDrug.getAccountZipCode() + "'" + ", " +
-						"'" + nextDrug.getPurchaseOrderNumber() + "'" + ", " +
-						"'" + nextDrug.getOrderedNDC() + "'" + ", " +
-						"'" + nextDrug.getOrderedNDCSchedule() + "'" + ", " +
-						"'" + ((nextDrug.getOrderedNDCOpiodFlag() != null && nextDrug.getOrderedNDCOpiodFlag() == Boolean.TRUE) ? "Y" : "N") + "'" + ", " +
-						"'" + nextDrug.getOrderedItem() + "'" + ", " +
-						"'" + nextDrug.getOrderedQuantity() + "'" + ", " +
-						"'" + nextDrug.getShippedNDC() + "'" + ", " +
-						"'" + nextDrug.getShippedNDCSchedule() + "'" + ", " +
-						"'" + ((nextDrug.getShippedNDCOpiodFlag() != null && nextDrug.getShippedNDCOpiodFlag() == Boolean.TRUE) ? "Y" : "N") + "'" + ", " +
-						"'" + nextDrug.getShippedItem() + "'" + ", " +
-						"'" + nextDrug.getShippedQuantity() + "'" + ", " +
-						"CURDATE()" +
-						DRUG_ORDERING_HISTORY_INSERT_2;
-
-				//System.out.println("Drug History Insert= " + insertString);
-
-				stmt = conn.createStatement();
-				int rowsInserted = stmt.executeUpdate(insertString);
-
-				//If the ordered ndc is found, get the phamaceutical classes and dea schedule and set into the
+				String sourceKey = getSourceKey(nextDrug, lineOccurrences);
+				stmt.setString(1, sourceKey);
+				stmt.setString(2, nextDrug.getOrderDate());
+				stmt.setString(3, nextDrug.getIsaSenderId());
+				stmt.setString(4, nextDrug.getAccountNumber());
+				stmt.setString(5, nextDrug.getAccountStateCode());
+				stmt.setString(6, nextDrug.getAccountZipCode());
+				stmt.setString(7, nextDrug.getPurchaseOrderNumber());
+				stmt.setString(8, nextDrug.getOrderedNDC());
+				stmt.setString(9, nextDrug.getOrderedNDCSchedule());
+				stmt.setString(10, (nextDrug.getOrderedNDCOpiodFlag() != null && nextDrug.getOrderedNDCOpiodFlag() == Boolean.TRUE) ? "Y" : "N");
+				stmt.setString(11, nextDrug.getOrderedItem());
+				stmt.setString(12, nextDrug.getOrderedQuantity());
+				stmt.setString(13, nextDrug.getShippedNDC());
+				stmt.setString(14, nextDrug.getShippedNDCSchedule());
+				stmt.setString(15, (nextDrug.getShippedNDCOpiodFlag() != null && nextDrug.getShippedNDCOpiodFlag() == Boolean.TRUE) ? "Y" : "N");
+				stmt.setString(16, nextDrug.getShippedItem());
+				stmt.setString(17, nextDrug.getShippedQuantity());
+				stmt.setString(18, sourceKey);
+
+				int rowsInserted = stmt.executeUpdate();
+
+				recordCount++;
 				if (rowsInserted == 1) {
                     insertCount++;
 					System.out.println(batchJobId + " - " + "Inserted history data for Ordered NDC=" + nextDrug.getOrderedNDC());
 
+				} else if (rowsInserted == 0) {
+					System.out.println(batchJobId + " - " + "History data already recorded for Ordered NDC=" + nextDrug.getOrderedNDC());
+
 				} else {
 					System.err.println(batchJobId + " - " + "No row inserted as expected for Ordered NDC=" + nextDrug.getOrderedNDC());
 				}
-				stmt.close();
 			}
-			if (insertCount > 0) {
-			    //System.out.println("Inserted " + insertCount + " row(s) into the ordering history table.");
-            }
 			conn.commit();
+			if (recordCount > insertCount) {
+				System.out.println(batchJobId + " - " + "Inserted " + insertCount + " of " + recordCount +
+						" row(s) into the ordering history table, the rest were already recorded");
+			}
+			return insertCount;
 
 
 		} catch (Exception ex) {
@@ -360,5 +364,39 @@ public class RecordOrderingHistoryTask {
 		}
 	}
 
+	/**
+	 * Identify the EDI line an OrderedDrug came from. A line is identified by its document, through the sender and the
+	 * interchange and transaction control numbers, and its position within the document, so the key is the same however
+	 * the documents are divided between batches and tasks. A drug read from an older intermediate file, without the
+	 * control numbers, is identified by the fields of its line and the number of identical lines seen before it.
+	 * @param drug OrderedDrug to identify
+	 * @param lineOccurrences number of times each line has been seen in the drugs written so far
+	 * @return SHA-1 of the line's identity, as 40 hex characters
+	 * @throws Exception Thrown if SHA-1 is not available
+	 */
+	static String getSourceKey(OrderedDrug drug, Map<String, Integer> lineOccurrences) throws Exception {
+		String identity;
+		if (drug.getInterchangeControlNumber() != null && drug.getTransactionControlNumber() != null &&
+				drug.getLineNumber() > 0) {
+			identity = drug.getIsaSenderId() + "|" + drug.getInterchangeControlNumber() + "|" +
+					drug.getTransactionControlNumber() + "|" + drug.getLineNumber();
+		}
+		else {
+			String line = drug.getIsaSenderId() + "|" + drug.getAccountNumber() + "|" + drug.getPurchaseOrderNumber() + "|" +
+					drug.getOrderDate() + "|" + drug.getOrderedItem() + "|" + drug.getOrderedNDC() + "|" +
+					drug.getOrderedQuantity() + "|" + drug.getShippedItem() + "|" + drug.getShippedNDC() + "|" +
+					drug.getShippedQuantity();
+			Integer occurrence = lineOccurrences.get(line);
+			occurrence = Integer.valueOf(occurrence == null ? 0 : occurrence.intValue() + 1);
+			lineOccurrences.put(line, occurrence);
+			identity = line + "|" + occurrence;
+		}
+		byte[] digest = MessageDigest.getInstance("SHA-1").digest(identity.getBytes(StandardCharsets.UTF_8));
+		StringBuilder key = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return key.toString();
+	}
 
 }
@@ -0,0 +1,180 @@
+package com.mckesson.mpts.azure.tasks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands out JDBC connections to the merge and history steps, keeping closed connections open for the next batch rather
+ * than connecting to the database again each time. A task run by main() reuses its connections from one batch to the
+ * next; a TaskDaemon keeps them from one task to the next for as long as it runs.
+ *
+ * The connections handed out are used exactly as ones from DriverManager: closing one returns it to the pool. It is
+ * rolled back and set back to auto-commit first, so a connection left part way through a transaction by a failed batch
+ * is not reused in that state. At most MAX_IDLE_CONNECTIONS are kept per JDBC URL, and a connection that has been idle
+ * for VALIDATE_AFTER_MILLIS is checked before it is handed out again, as the database may have dropped it.
+ *
+ * Safe for use by multiple threads.
+ */
+public class TaskConnections {
+
+    public static final int MAX_IDLE_CONNECTIONS = 8;
+    public static final long VALIDATE_AFTER_MILLIS = 30 * 1000L;
+    public static final int VALIDATE_TIMEOUT_SECONDS = 5;
+
+    /**
+     * Get a connection to the database, reusing an idle one if there is one
+     * @param jdbcURL JDBC URL of the database
+     * @return Connection that returns to the pool when closed
+     * @throws SQLException Thrown if a new connection cannot be made
+     */
+    public static Connection getConnection(String jdbcURL) throws SQLException {
+        PooledConnection pooled;
+        while ((pooled = TaskConnections.takeIdle(jdbcURL)) != null) {
+            if (System.currentTimeMillis() - pooled.idleSince < VALIDATE_AFTER_MILLIS) {
+                break;
+            }
+            try {
+                if (pooled.connection.isValid(VALIDATE_TIMEOUT_SECONDS)) {
+                    break;
+                }
+            }
+            catch (SQLException sqle) {
+                //Treated as not valid
+            }
+            TaskConnections.closeQuietly(pooled.connection);
+        }
+        if (pooled == null) {
+            pooled = new PooledConnection(jdbcURL, DriverManager.getConnection(jdbcURL));
+        }
+        return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+                new ConnectionHandle(pooled));
+    }
+
+    /**
+     * Close every idle connection. Connections in use are closed when they are returned.
+     */
+    public static void closeAll() {
+        synchronized (idleConnections) {
+            for (Deque<PooledConnection> idle : idleConnections.values()) {
+                for (PooledConnection pooled : idle) {
+                    TaskConnections.closeQuietly(pooled.connection);
+                }
+                idle.clear();
+            }
+            closed = true;
+        }
+    }
+
+    private static PooledConnection takeIdle(String jdbcURL) {
+        synchronized (idleConnections) {
+            Deque<PooledConnection> idle = idleConnections.get(jdbcURL);
+            return idle == null ? null : idle.pollFirst();
+        }
+    }
+
+    /**
+     * Put a connection back in the pool once it has been closed by its user
+     */
+    private static void release(PooledConnection pooled) {
+        try {
+            if (pooled.connection.isClosed()) {
+                return;
+            }
+            if (!pooled.connection.getAutoCommit()) {
+                pooled.connection.rollback();
+                pooled.connection.setAutoCommit(true);
+            }
+        }
+        catch (SQLException sqle) {
+            //A connection that cannot be reset is not reused
+            TaskConnections.closeQuietly(pooled.connection);
+            return;
+        }
+        synchronized (idleConnections) {
+            Deque<PooledConnection> idle = idleConnections.get(pooled.jdbcURL);
+            if (idle == null) {
+                idle = new ArrayDeque<PooledConnection>();
+                idleConnections.put(pooled.jdbcURL, idle);
+            }
+            if (!closed && idle.size() < MAX_IDLE_CONNECTIONS) {
+                pooled.idleSince = System.currentTimeMillis();
+                idle.addFirst(pooled);
+                return;
+            }
+        }
+        TaskConnections.closeQuietly(pooled.connection);
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        }
+        catch (SQLException sqle) {
+            //Ignored; the connection is not used again
+        }
+    }
+
+    /**
+     * A database connection and the JDBC URL it was made with
+     */
+    private static class PooledConnection {
+
+        PooledConnection(String jdbcURL, Connection connection) {
+            this.jdbcURL = jdbcURL;
+            this.connection = connection;
+        }
+
+        private String jdbcURL = null;
+        private Connection connection = null;
+        private long idleSince = 0;
+    }
+
+    /**
+     * Stands behind one Connection handed out. close() returns the pooled connection to the pool, after which the
+     * Connection cannot be used; every other call is passed on.
+     */
+    private static class ConnectionHandle implements InvocationHandler {
+
+        ConnectionHandle(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name) && method.getParameterTypes().length == 0) {
+                if (!returned) {
+                    returned = true;
+                    TaskConnections.release(pooled);
+                }
+                return null;
+            }
+            if ("isClosed".equals(name) && method.getParameterTypes().length == 0) {
+                return Boolean.valueOf(returned || pooled.connection.isClosed());
+            }
+            if (returned) {
+                throw new SQLException("Connection has been closed");
+            }
+            try {
+                return method.invoke(pooled.connection, args);
+            }
+            catch (InvocationTargetException ite) {
+                throw ite.getCause();
+            }
+        }
+
+        private PooledConnection pooled = null;
+        private volatile boolean returned = false;
+    }
+
+    private static final Map<String, Deque<PooledConnection>> idleConnections = new HashMap<String, Deque<PooledConnection>>();
+    private static boolean closed = false;
+}
@@ -0,0 +1,185 @@
+package com.mckesson.mpts.azure.tasks;
+
+/**
+ * This class is a simple data storage class for the counts and stage timings produced by one parse task. The task
+ * writes it to SUMMARY_FILENAME in its working directory, and prints it as the last line of its standard output, in the
+ * form:
+ *
+ * TASK_SUMMARY documents=120 failedDocuments=0 lines=2400 drugRows=2400 opioidRows=37 failedRows=0 parseMillis=310
+ *   mergeMillis=1200 recordMillis=900 taskMillis=2600
+ *
+ * so the client that submitted the job can total the results of every task by reading the one small file, rather than
+ * downloading the task's whole standard output. Failed documents are listed in the task's DocumentResult file.
+ */
+public class TaskSummary {
+
+    public static final String SUMMARY_PREFIX = "TASK_SUMMARY";
+    public static final String SUMMARY_FILENAME = "task-summary.txt";
+
+    /**
+     * Find the summary line in the summary file or standard output of a task and read the counts from it
+     * @param taskOutput content of the task's SUMMARY_FILENAME or standard output
+     * @return TaskSummary holding the counts, or null if the output holds no summary line
+     */
+    public static TaskSummary parse(String taskOutput) {
+        if (taskOutput == null) {
+            return null;
+        }
+        int start = taskOutput.lastIndexOf(SUMMARY_PREFIX + " ");
+        if (start < 0) {
+            return null;
+        }
+        int end = taskOutput.indexOf('\n', start);
+        String line = (end < 0 ? taskOutput.substring(start) : taskOutput.substring(start, end)).trim();
+
+        TaskSummary summary = new TaskSummary();
+        String[] fields = line.split(" ");
+        for (int i=1; i<fields.length; i++) {
+            int equals = fields[i].indexOf('=');
+            if (equals < 0) {
+                continue;
+            }
+            String name = fields[i].substring(0, equals);
+            long value = 0;
+            try {
+                value = Long.parseLong(fields[i].substring(equals + 1));
+            }
+            catch (NumberFormatException nfe) {
+                continue;
+            }
+            if ("documents".equals(name)) {
+                summary.documents = value;
+            }
+            else if ("failedDocuments".equals(name)) {
+                summary.failedDocuments = value;
+            }
+            else if ("lines".equals(name)) {
+                summary.lines = value;
+            }
+            else if ("drugRows".equals(name)) {
+                summary.drugRows = value;
+            }
+            else if ("opioidRows".equals(name)) {
+                summary.opioidRows = value;
+            }
+            else if ("failedRows".equals(name)) {
+                summary.failedRows = value;
+            }
+            else if ("parseMillis".equals(name)) {
+                summary.parseMillis = value;
+            }
+            else if ("mergeMillis".equals(name)) {
+                summary.mergeMillis = value;
+            }
+            else if ("recordMillis".equals(name)) {
+                summary.recordMillis = value;
+            }
+            else if ("taskMillis".equals(name)) {
+                summary.taskMillis = value;
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * @return the summary line to write to the summary file and print at the end of the task's standard output
+     */
+    public String toSummaryLine() {
+        return SUMMARY_PREFIX + " documents=" + documents + " failedDocuments=" + failedDocuments + " lines=" + lines +
+                " drugRows=" + drugRows + " opioidRows=" + opioidRows + " failedRows=" + failedRows +
+                " parseMillis=" + parseMillis + " mergeMillis=" + mergeMillis + " recordMillis=" + recordMillis +
+                " taskMillis=" + taskMillis;
+    }
+
+    public long getDocuments() {
+        return documents;
+    }
+
+    public void addDocuments(long documents) {
+        this.documents += documents;
+    }
+
+    public long getFailedDocuments() {
+        return failedDocuments;
+    }
+
+    public void addFailedDocuments(long failedDocuments) {
+        this.failedDocuments += failedDocuments;
+    }
+
+    public long getLines() {
+        return lines;
+    }
+
+    public void addLines(long lines) {
+        this.lines += lines;
+    }
+
+    public long getDrugRows() {
+        return drugRows;
+    }
+
+    public void addDrugRows(long drugRows) {
+        this.drugRows += drugRows;
+    }
+
+    public long getOpioidRows() {
+        return opioidRows;
+    }
+
+    public void addOpioidRows(long opioidRows) {
+        this.opioidRows += opioidRows;
+    }
+
+    public long getFailedRows() {
+        return failedRows;
+    }
+
+    public void addFailedRows(long failedRows) {
+        this.failedRows += failedRows;
+    }
+
+    public long getParseMillis() {
+        return parseMillis;
+    }
+
+    public void addParseMillis(long parseMillis) {
+        this.parseMillis += parseMillis;
+    }
+
+    public long getMergeMillis() {
+        return mergeMillis;
+    }
+
+    public void addMergeMillis(long mergeMillis) {
+        this.mergeMillis += mergeMillis;
+    }
+
+    public long getRecordMillis() {
+        return recordMillis;
+    }
+
+    public void addRecordMillis(long recordMillis) {
+        this.recordMillis += recordMillis;
+    }
+
+    public long getTaskMillis() {
+        return taskMillis;
+    }
+
+    public void setTaskMillis(long taskMillis) {
+        this.taskMillis = taskMillis;
+    }
+
+    private long documents = 0;
+    private long failedDocuments = 0;
+    private long lines = 0;
+    private long drugRows = 0;
+    private long opioidRows = 0;
+    private long failedRows = 0;
+
+    private long parseMillis = 0;
+    private long mergeMillis = 0;
+    private long recordMillis = 0;
+    private long taskMillis = 0;
+}
@@ -0,0 +1,76 @@
+package com.mckesson.mpts.azure.tasks.daemon;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Stands in for System.out and System.err in a TaskDaemon so each task's console output goes to its own files, as it
+ * would if the task had its own JVM. The tasks write to System.out and System.err as usual; what a thread writes goes
+ * to the streams set for it with redirect(), or to the daemon's own console if none are set. Threads started by a task
+ * write to the same streams as the task.
+ */
+public class TaskConsole extends OutputStream {
+
+    /**
+     * Replace System.out and System.err with TaskConsole streams. Only the first call has any effect.
+     */
+    public static synchronized void install() {
+        if (installed) {
+            return;
+        }
+        System.setOut(new PrintStream(new TaskConsole(System.out, false), true));
+        System.setErr(new PrintStream(new TaskConsole(System.err, true), true));
+        installed = true;
+    }
+
+    /**
+     * Send the console output of the current thread, and of threads it starts, to the given streams
+     * @param out stream for System.out
+     * @param err stream for System.err
+     */
+    public static void redirect(PrintStream out, PrintStream err) {
+        targets.set(new PrintStream[] {out, err});
+    }
+
+    /**
+     * Send the console output of the current thread back to the daemon's console
+     */
+    public static void clear() {
+        targets.remove();
+    }
+
+    private TaskConsole(PrintStream defaultStream, boolean error) {
+        this.defaultStream = defaultStream;
+        this.error = error;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        getStream().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        getStream().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        getStream().flush();
+    }
+
+    private PrintStream getStream() {
+        PrintStream[] streams = targets.get();
+        if (streams == null) {
+            return defaultStream;
+        }
+        return error ? streams[1] : streams[0];
+    }
+
+    private static final InheritableThreadLocal<PrintStream[]> targets = new InheritableThreadLocal<PrintStream[]>();
+    private static boolean installed = false;
+
+    private PrintStream defaultStream = null;
+    private boolean error = false;
+}
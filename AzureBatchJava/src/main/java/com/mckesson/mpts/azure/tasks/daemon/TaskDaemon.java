@@ -0,0 +1,297 @@
+package com.mckesson.mpts.azure.tasks.daemon;
+
+import com.mckesson.mpts.azure.tasks.TaskConnections;
+import com.mckesson.mpts.azure.tasks.poackparser.EDI855ParseTask;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long-running JVM on each Node that runs EDI855ParseTasks handed to it by TaskDaemonClient tasks, so the tasks do
+ * not each pay for starting a JVM, loading and compiling the parser, connecting to the database and reading the
+ * account and drug reference data again. The JIT-compiled code, the pooled connections of TaskConnections and the
+ * ReferenceDataCaches of the merge step all carry over from one task to the next.
+ *
+ * On Azure Batch it is started by the pool's start task; locally by LocalComputeBackend. Work is handed over through
+ * files in the daemon directory, named by the first argument or the TASK_DAEMON_DIR environment variable and otherwise
+ * DEFAULT_DIRECTORY_NAME in AZ_BATCH_NODE_SHARED_DIR:
+ *
+ * daemon.heartbeat - touched every HEARTBEAT_MILLIS while the daemon is running
+ * {id}.request - a TaskRequest dropped by a client
+ * {id}.claimed - the request once the daemon has taken it. Only the daemon renames a request to this, so a request is
+ *   either run by the daemon or cancelled by its client, never both.
+ * {id}.stdout, {id}.stderr - the task's console output
+ * {id}.exit - the task's exit code, written last
+ *
+ * The client deletes the output and exit files once it has read them. Those of a client that was stopped first, such
+ * as one whose Job was terminated, are deleted after ORPHAN_MILLIS.
+ *
+ * At most TASK_DAEMON_THREADS tasks (by default one per processor) run at once. A request is only claimed when a
+ * thread is free for it, so a client whose request is not claimed in time runs the task itself instead of waiting.
+ *
+ * The daemon keeps the classes it started with, so it must be restarted (or the Nodes rebooted) after new task jars
+ * are deployed.
+ */
+public class TaskDaemon {
+
+    public static final String DAEMON_DIR_ENV = "TASK_DAEMON_DIR";
+    public static final String THREADS_ENV = "TASK_DAEMON_THREADS";
+    public static final String DEFAULT_DIRECTORY_NAME = "task-daemon";
+
+    public static final String HEARTBEAT_FILENAME = "daemon.heartbeat";
+    public static final String REQUEST_SUFFIX = ".request";
+    public static final String CLAIMED_SUFFIX = ".claimed";
+    public static final String CANCELLED_SUFFIX = ".cancelled";
+    public static final String STDOUT_SUFFIX = ".stdout";
+    public static final String STDERR_SUFFIX = ".stderr";
+    public static final String EXIT_SUFFIX = ".exit";
+
+    public static final long HEARTBEAT_MILLIS = 5 * 1000L;
+    //A heartbeat older than this means the daemon is no longer running
+    public static final long HEARTBEAT_STALE_MILLIS = 30 * 1000L;
+    public static final long POLL_MILLIS = 100L;
+    public static final long ORPHAN_MILLIS = 60 * 60 * 1000L;
+
+    /**
+     * Start the daemon and run requests until the JVM is stopped
+     * @param args optional daemon directory, in place of the TASK_DAEMON_DIR environment variable
+     */
+    public static void main(String[] args) {
+        File directory = args.length > 0 ? new File(args[0]) : TaskDaemon.getDirectory(System.getenv());
+        if (directory == null) {
+            System.err.println("No daemon directory given. Pass one as arg[0] or set " + DAEMON_DIR_ENV +
+                    " or AZ_BATCH_NODE_SHARED_DIR");
+            System.exit(1);
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        String threadsOpt = System.getenv(THREADS_ENV);
+        if (threadsOpt != null && threadsOpt.length() > 0) {
+            threads = Integer.parseInt(threadsOpt);
+        }
+
+        try {
+            new TaskDaemon(directory, threads).run();
+        }
+        catch (Exception e) {
+            System.err.println("Task daemon stopped: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @param environment environment variables
+     * @return the daemon directory named by TASK_DAEMON_DIR, DEFAULT_DIRECTORY_NAME in AZ_BATCH_NODE_SHARED_DIR, or
+     *         null if neither is set
+     */
+    public static File getDirectory(Map<String, String> environment) {
+        String directory = environment.get(DAEMON_DIR_ENV);
+        if (directory != null && directory.length() > 0) {
+            return new File(directory);
+        }
+        String sharedDir = environment.get("AZ_BATCH_NODE_SHARED_DIR");
+        if (sharedDir != null && sharedDir.length() > 0) {
+            return new File(sharedDir, DEFAULT_DIRECTORY_NAME);
+        }
+        return null;
+    }
+
+    /**
+     * @param directory daemon directory
+     * @return true if a daemon has touched its heartbeat file in the directory within HEARTBEAT_STALE_MILLIS
+     */
+    public static boolean isRunning(File directory) {
+        File heartbeat = new File(directory, HEARTBEAT_FILENAME);
+        return heartbeat.exists() && System.currentTimeMillis() - heartbeat.lastModified() < HEARTBEAT_STALE_MILLIS;
+    }
+
+    /**
+     * @param directory daemon directory
+     * @param threads number of tasks to run at once
+     */
+    public TaskDaemon(File directory, int threads) {
+        this.directory = directory.getAbsoluteFile();
+        this.freeThreads = new Semaphore(Math.max(1, threads));
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "task-daemon-" + threadCount.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * Run requests until the JVM is stopped
+     * @throws Exception Thrown if the daemon directory cannot be used
+     */
+    public void run() throws Exception {
+        Files.createDirectories(directory.toPath());
+        TaskConsole.install();
+        //Load the JDBC driver up front rather than in the first task
+        Class.forName("com.mysql.jdbc.Driver");
+
+        //Tasks claimed by an earlier daemon were lost with it; their clients are told so rather than left waiting
+        File[] abandoned = directory.listFiles(new SuffixFilter(CLAIMED_SUFFIX));
+        if (abandoned != null) {
+            for (File claimed : abandoned) {
+                String id = TaskDaemon.getRequestId(claimed, CLAIMED_SUFFIX);
+                System.err.println("Task " + id + " was claimed by a daemon that is no longer running");
+                writeExitCode(id, 1);
+                claimed.delete();
+            }
+        }
+
+        final File heartbeat = new File(directory, HEARTBEAT_FILENAME);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                heartbeat.delete();
+                TaskConnections.closeAll();
+            }
+        });
+        System.out.println("Task daemon running " + freeThreads.availablePermits() + " tasks at a time from " + directory);
+
+        long lastHeartbeat = 0;
+        while (true) {
+            long now = System.currentTimeMillis();
+            if (now - lastHeartbeat >= HEARTBEAT_MILLIS) {
+                if (!heartbeat.exists()) {
+                    Files.write(heartbeat.toPath(), String.valueOf(now).getBytes(StandardCharsets.UTF_8));
+                }
+                heartbeat.setLastModified(now);
+                lastHeartbeat = now;
+                deleteOrphans(now);
+            }
+
+            File[] requests = directory.listFiles(new SuffixFilter(REQUEST_SUFFIX));
+            if (requests != null) {
+                for (File request : requests) {
+                    if (!freeThreads.tryAcquire()) {
+                        break;
+                    }
+                    if (!claim(request)) {
+                        freeThreads.release();
+                    }
+                }
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+
+    /**
+     * Claim a request and start running it. Returns false if the client cancelled it first.
+     */
+    private boolean claim(File requestFile) {
+        final String id = TaskDaemon.getRequestId(requestFile, REQUEST_SUFFIX);
+        final File claimedFile = new File(directory, id + CLAIMED_SUFFIX);
+        try {
+            Files.move(requestFile.toPath(), claimedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException ioe) {
+            return false;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    runRequest(id, claimedFile);
+                }
+                finally {
+                    freeThreads.release();
+                }
+            }
+        });
+        return true;
+    }
+
+    private void runRequest(String id, File claimedFile) {
+        int exitCode = 1;
+        PrintStream out = null;
+        PrintStream err = null;
+        try {
+            out = new PrintStream(new FileOutputStream(new File(directory, id + STDOUT_SUFFIX)), true, "UTF-8");
+            err = new PrintStream(new FileOutputStream(new File(directory, id + STDERR_SUFFIX)), true, "UTF-8");
+            TaskConsole.redirect(out, err);
+            TaskRequest request = TaskRequest.read(claimedFile);
+            exitCode = EDI855ParseTask.runTask(request.getArgs(), request.getEnvironment(), request.getWorkingDir());
+        }
+        catch (Throwable t) {
+            //Reported to the task's own stderr, as a failure in its own JVM would be
+            System.err.println("Task " + id + " failed in the task daemon: " + t.getMessage());
+            t.printStackTrace();
+        }
+        finally {
+            TaskConsole.clear();
+            if (out != null) {
+                out.close();
+            }
+            if (err != null) {
+                err.close();
+            }
+        }
+        try {
+            writeExitCode(id, exitCode);
+        }
+        catch (IOException ioe) {
+            System.err.println("Unable to write the exit code of task " + id + ": " + ioe.getMessage());
+        }
+        claimedFile.delete();
+    }
+
+    /**
+     * Write a task's exit file, under a temporary name first so a client never reads one part written
+     */
+    private void writeExitCode(String id, int exitCode) throws IOException {
+        File tempFile = new File(directory, id + EXIT_SUFFIX + ".tmp");
+        Files.write(tempFile.toPath(), String.valueOf(exitCode).getBytes(StandardCharsets.UTF_8));
+        Files.move(tempFile.toPath(), new File(directory, id + EXIT_SUFFIX).toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Delete the output and exit files left by clients that stopped before reading them
+     */
+    private void deleteOrphans(long now) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if ((name.endsWith(EXIT_SUFFIX) || name.endsWith(STDOUT_SUFFIX) || name.endsWith(STDERR_SUFFIX)) &&
+                    now - file.lastModified() > ORPHAN_MILLIS) {
+                file.delete();
+            }
+        }
+    }
+
+    private static String getRequestId(File file, String suffix) {
+        String name = file.getName();
+        return name.substring(0, name.length() - suffix.length());
+    }
+
+    /**
+     * Accepts the files in the daemon directory with one suffix
+     */
+    private static class SuffixFilter implements FilenameFilter {
+
+        SuffixFilter(String suffix) {
+            this.suffix = suffix;
+        }
+
+        public boolean accept(File dir, String name) {
+            return name.endsWith(suffix);
+        }
+
+        private String suffix = null;
+    }
+
+    private File directory = null;
+    private Semaphore freeThreads = null;
+    private ExecutorService executor = null;
+}
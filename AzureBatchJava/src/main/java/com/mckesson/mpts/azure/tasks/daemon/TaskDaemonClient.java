@@ -0,0 +1,118 @@
+package com.mckesson.mpts.azure.tasks.daemon;
+
+import com.mckesson.mpts.azure.tasks.poackparser.EDI855ParseTask;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The task started in place of EDI855ParseTask when the pool runs a TaskDaemon. It takes the same arguments, hands
+ * them to the daemon on its Node with its working directory and environment, waits for the daemon to run it, then
+ * copies the task's console output to its own and exits with the task's exit code. To the client the task looks as if
+ * it had run in this JVM, which does little more than start and wait.
+ *
+ * The task is run in this JVM instead when no daemon is running, or when the daemon does not claim it within
+ * CLAIM_TIMEOUT_MILLIS because all its threads are busy, so tasks are never held up by a missing or overloaded daemon.
+ * If the daemon stops while running the task, the task fails with exit code 1 and is retried as any failed task is.
+ */
+public class TaskDaemonClient {
+
+    public static final long CLAIM_TIMEOUT_MILLIS = 10 * 1000L;
+
+    /**
+     * Run an EDI855ParseTask through the Node's TaskDaemon
+     * @param args arguments for EDI855ParseTask
+     */
+    public static void main(String[] args) {
+        Map<String, String> environment = System.getenv();
+        File workingDir = new File("./");
+        File directory = TaskDaemon.getDirectory(environment);
+        int exitCode;
+        try {
+            Integer daemonExitCode = null;
+            if (directory != null && TaskDaemon.isRunning(directory)) {
+                daemonExitCode = TaskDaemonClient.runInDaemon(directory, new TaskRequest(workingDir, args, environment),
+                        environment.get("AZ_BATCH_JOB_ID") + "-" + environment.get("AZ_BATCH_TASK_ID"));
+            }
+            else {
+                System.out.println("No task daemon running in " + directory + ", running the task in this JVM");
+            }
+            exitCode = daemonExitCode != null ? daemonExitCode.intValue() :
+                    EDI855ParseTask.runTask(args, environment, workingDir);
+        }
+        catch (Exception e) {
+            System.err.println("Task daemon request failed: " + e.getMessage());
+            e.printStackTrace();
+            exitCode = 1;
+        }
+        if (exitCode != 0) {
+            System.exit(exitCode);
+        }
+    }
+
+    /**
+     * Hand a task to the daemon and wait for it to finish
+     * @param directory daemon directory
+     * @param request the task to run
+     * @param taskName name of the task, used in the request's file names
+     * @return the task's exit code, or null if the daemon did not claim the request in time and it was cancelled
+     * @throws Exception Thrown if the request cannot be written or its results read
+     */
+    public static Integer runInDaemon(File directory, TaskRequest request, String taskName) throws Exception {
+        String id = taskName + "-" + UUID.randomUUID().toString();
+        File requestFile = new File(directory, id + TaskDaemon.REQUEST_SUFFIX);
+        File exitFile = new File(directory, id + TaskDaemon.EXIT_SUFFIX);
+        request.write(requestFile);
+
+        long claimDeadline = System.currentTimeMillis() + CLAIM_TIMEOUT_MILLIS;
+        while (requestFile.exists() && System.currentTimeMillis() < claimDeadline) {
+            Thread.sleep(TaskDaemon.POLL_MILLIS);
+        }
+        if (requestFile.exists()) {
+            //Renaming the request away cancels it unless the daemon has just claimed it, in which case this fails
+            try {
+                File cancelledFile = new File(directory, id + TaskDaemon.CANCELLED_SUFFIX);
+                Files.move(requestFile.toPath(), cancelledFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                cancelledFile.delete();
+                System.out.println("Task daemon did not take the task within " + CLAIM_TIMEOUT_MILLIS +
+                        "ms, running the task in this JVM");
+                return null;
+            }
+            catch (IOException ioe) {
+                //Claimed by the daemon after all
+            }
+        }
+
+        while (!exitFile.exists()) {
+            if (!TaskDaemon.isRunning(directory) && !exitFile.exists()) {
+                System.err.println("Task daemon in " + directory + " stopped while running the task");
+                return Integer.valueOf(1);
+            }
+            Thread.sleep(TaskDaemon.POLL_MILLIS);
+        }
+
+        TaskDaemonClient.copyOutput(new File(directory, id + TaskDaemon.STDOUT_SUFFIX), System.out);
+        TaskDaemonClient.copyOutput(new File(directory, id + TaskDaemon.STDERR_SUFFIX), System.err);
+        int exitCode = Integer.parseInt(new String(Files.readAllBytes(exitFile.toPath()), StandardCharsets.UTF_8).trim());
+        exitFile.delete();
+        return Integer.valueOf(exitCode);
+    }
+
+    /**
+     * Copy one of the task's console files to this JVM's console and delete it
+     */
+    private static void copyOutput(File outputFile, PrintStream console) throws IOException {
+        if (!outputFile.exists()) {
+            return;
+        }
+        Files.copy(outputFile.toPath(), console);
+        console.flush();
+        outputFile.delete();
+    }
+}
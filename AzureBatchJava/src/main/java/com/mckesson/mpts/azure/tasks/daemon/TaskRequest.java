@@ -0,0 +1,123 @@
+package com.mckesson.mpts.azure.tasks.daemon;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * One EDI855ParseTask for a TaskDaemon to run, as dropped in its directory by a TaskDaemonClient: the task's working
+ * directory, its arguments and the environment variables EDI855ParseTask reads. It is held as a properties file:
+ *
+ * workingDir={task working directory}
+ * arg.{n}={argument n}
+ * env.{name}={value}
+ *
+ * Only the variables named in TASK_ENVIRONMENT are carried; the rest of the client's environment, which may hold
+ * credentials, is not written to the Node's shared directory.
+ */
+public class TaskRequest {
+
+    public static final String[] TASK_ENVIRONMENT = {"AZ_BATCH_TASK_ID", "AZ_BATCH_JOB_ID", "AZ_BATCH_TASK_DIR",
+            "AZ_BATCH_NODE_SHARED_DIR", "AZ_BATCH_NODE_ROOT_DIR", "WORK_QUEUE_LOCATION", "WORK_QUEUE_ITEM_DOCUMENTS"};
+
+    /**
+     * @param workingDir working directory of the task, holding its input files
+     * @param args arguments for EDI855ParseTask
+     * @param environment environment of the client; only the variables named in TASK_ENVIRONMENT are kept
+     */
+    public TaskRequest(File workingDir, String[] args, Map<String, String> environment) {
+        this.workingDir = workingDir.getAbsoluteFile();
+        this.args = args;
+        for (String name : TASK_ENVIRONMENT) {
+            String value = environment.get(name);
+            if (value != null) {
+                this.environment.put(name, value);
+            }
+        }
+    }
+
+    /**
+     * Read a request dropped by a client
+     * @param requestFile the request file
+     * @return TaskRequest read from the file
+     * @throws IOException Thrown if the file cannot be read or has no working directory
+     */
+    public static TaskRequest read(File requestFile) throws IOException {
+        Properties properties = new Properties();
+        Reader reader = new InputStreamReader(new FileInputStream(requestFile), StandardCharsets.UTF_8);
+        try {
+            properties.load(reader);
+        }
+        finally {
+            reader.close();
+        }
+        String workingDir = properties.getProperty(WORKING_DIR_PROPERTY);
+        if (workingDir == null) {
+            throw new IOException("Task request " + requestFile + " has no " + WORKING_DIR_PROPERTY);
+        }
+        List<String> args = new ArrayList<String>();
+        String arg;
+        while ((arg = properties.getProperty(ARG_PREFIX + args.size())) != null) {
+            args.add(arg);
+        }
+        Map<String, String> environment = new HashMap<String, String>();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(ENV_PREFIX)) {
+                environment.put(name.substring(ENV_PREFIX.length()), properties.getProperty(name));
+            }
+        }
+        return new TaskRequest(new File(workingDir), args.toArray(new String[args.size()]), environment);
+    }
+
+    /**
+     * Write the request to a file. It is written under a temporary name and renamed, so a daemon never reads one
+     * part written.
+     * @param requestFile file to write
+     * @throws IOException Thrown if the file cannot be written
+     */
+    public void write(File requestFile) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(WORKING_DIR_PROPERTY, workingDir.getPath());
+        for (int i = 0; i < args.length; i++) {
+            properties.setProperty(ARG_PREFIX + i, args[i]);
+        }
+        for (Map.Entry<String, String> variable : environment.entrySet()) {
+            properties.setProperty(ENV_PREFIX + variable.getKey(), variable.getValue());
+        }
+        File tempFile = new File(requestFile.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8);
+        try {
+            properties.store(writer, null);
+        }
+        finally {
+            writer.close();
+        }
+        Files.move(tempFile.toPath(), requestFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public File getWorkingDir() {
+        return workingDir;
+    }
+
+    public String[] getArgs() {
+        return args;
+    }
+
+    public Map<String, String> getEnvironment() {
+        return environment;
+    }
+
+    private static final String WORKING_DIR_PROPERTY = "workingDir";
+    private static final String ARG_PREFIX = "arg.";
+    private static final String ENV_PREFIX = "env.";
+
+    private File workingDir = null;
+    private String[] args = null;
+    private Map<String, String> environment = new HashMap<String, String>();
+}
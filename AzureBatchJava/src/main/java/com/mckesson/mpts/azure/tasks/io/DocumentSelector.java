@@ -0,0 +1,21 @@
+package com.mckesson.mpts.azure.tasks.io;
+
+import java.io.IOException;
+
+/**
+ * Decides which documents an EDIDocumentReader returns. The reader numbers documents from 0 across all of its input
+ * files, in order, and asks the selector about each one before reading it; documents that are not selected are skipped
+ * without being read or decompressed.
+ *
+ * The reader asks about every document exactly once, in increasing order.
+ */
+public interface DocumentSelector {
+
+    /**
+     * @param ordinal number of the document, counting from 0 across all input files
+     * @return true if the document should be read and returned by the reader
+     * @throws IOException Thrown if the selector cannot decide, for example when a work queue cannot be reached
+     */
+    boolean select(long ordinal) throws IOException;
+
+}
@@ -0,0 +1,302 @@
+package com.mckesson.mpts.azure.tasks.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Packs the EDI documents for one job into a single compressed bundle so they can be uploaded to the Storage Account
+ * as one blob rather than one blob per document. A bundle is a standard zip archive holding one deflated entry per
+ * document, followed by an index entry (INDEX_ENTRY_NAME) listing every document in the bundle:
+ *
+ * {document name}\t{uncompressed size}\t{crc32}
+ *
+ * Plain .txt inputs are added under their file name and the documents of archives under {archive}!{entry}: the entries
+ * of a .zip input under their entry names and a .gz input under its name without the .gz suffix. Each document name
+ * therefore starts with the name of the input file it came from, which is unique within the input directory, so
+ * "a.txt" and "a.txt.gz" never collide. An entry name repeated within one .zip input is given a " (n)" suffix. Document
+ * bytes are copied as-is and never decoded.
+ *
+ * An archive input that cannot be read, such as a truncated .gz or a .zip with a bad CRC, is left out of the bundle
+ * rather than failing the whole job; write() reports it in the returned Contents. Archives are read through once to
+ * check them before any of their documents are added, so an unreadable archive never contributes part of its documents.
+ *
+ * Bundles are read with EDIDocumentReader like any other zip archive. The reader skips the index entry and checks that
+ * it read as many documents as the index lists.
+ */
+public class EDIDocumentBundle {
+
+    public static final String BUNDLE_SUFFIX = "-bundle.zip";
+    //A file name cannot hold a '/' and an archive's documents start with its non-empty file name, so no document can
+    //  be bundled under this name
+    public static final String INDEX_ENTRY_NAME = "!index/bundle-index.txt";
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Return the bundle file name to use for a job
+     * @param jobId Azure Batch Job Id
+     * @return {jobId}-bundle.zip
+     */
+    public static String getBundleName(String jobId) {
+        return jobId + BUNDLE_SUFFIX;
+    }
+
+    /**
+     * Return the name of the input file a document was read from, as given by getSourceName(File)
+     * @param documentName document name reported by EDIDocumentReader, such as {jobId}-bundle.zip!{archive}!{entry}
+     * @return the name the document was bundled under, up to any archive entry name
+     */
+    public static String getSourceName(String documentName) {
+        String name = documentName;
+        int bundleEnd = name.indexOf(BUNDLE_SUFFIX + "!");
+        if (bundleEnd >= 0) {
+            name = name.substring(bundleEnd + BUNDLE_SUFFIX.length() + 1);
+        }
+        int entryStart = name.indexOf('!');
+        return entryStart >= 0 ? name.substring(0, entryStart) : name;
+    }
+
+    /**
+     * Return the name the documents of an input file are bundled under, up to any archive entry name
+     * @param inputFile plain (.txt) or archive (.zip, .gz) input file
+     * @return the file name
+     */
+    public static String getSourceName(File inputFile) {
+        return inputFile.getName();
+    }
+
+    /**
+     * Write the documents in a set of input files to a new bundle, replacing any existing file at the bundle path.
+     * Archive inputs that cannot be read are left out and reported in the returned Contents.
+     * @param inputFiles plain (.txt) and archive (.zip, .gz) input files
+     * @param bundlePath Path of the bundle to create
+     * @return the Contents of the bundle
+     * @throws IOException Thrown if a plain input file cannot be read or the bundle cannot be written. The bundle is
+     * incomplete in this case and should not be used.
+     */
+    public static Contents write(File[] inputFiles, Path bundlePath) throws IOException {
+        Contents contents = new Contents();
+        List<ZipEntry> index = new ArrayList<ZipEntry>(inputFiles.length);
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        ZipOutputStream zipOut = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(bundlePath), BUFFER_SIZE));
+        try {
+            for (int i=0; i<inputFiles.length; i++) {
+                File inputFile = inputFiles[i];
+                String name = inputFile.getName();
+                String lowercaseName = name.toLowerCase();
+
+                //Check an archive reads cleanly before adding any of it
+                if (EDIDocumentReader.isArchive(lowercaseName)) {
+                    try {
+                        EDIDocumentBundle.copyDocuments(inputFile, null, null, buffer);
+                    }
+                    catch (IOException ioe) {
+                        System.err.println("Leaving unreadable archive " + name + " out of the bundle: " + ioe);
+                        contents.unreadableFiles.put(inputFile, ioe);
+                        continue;
+                    }
+                }
+                int documents = EDIDocumentBundle.copyDocuments(inputFile, zipOut, index, buffer);
+                contents.sourceDocuments.put(EDIDocumentBundle.getSourceName(inputFile), documents);
+            }
+
+            //The index is written last, once the size and CRC of every entry are known
+            zipOut.putNextEntry(new ZipEntry(INDEX_ENTRY_NAME));
+            Writer indexWriter = new OutputStreamWriter(zipOut, StandardCharsets.UTF_8);
+            for (ZipEntry entry : index) {
+                indexWriter.write(entry.getName() + "\t" + entry.getSize() + "\t" + entry.getCrc() + "\n");
+            }
+            //Flush rather than close the Writer so the zip stream stays open
+            indexWriter.flush();
+            zipOut.closeEntry();
+        }
+        finally {
+            zipOut.close();
+        }
+        contents.documentCount = index.size();
+        return contents;
+    }
+
+    /**
+     * Read a set of input files as write() would, without writing a bundle, to learn what a bundle of them holds. Used
+     * for a job resumed from an earlier run, whose bundle has already been staged.
+     * @param inputFiles plain (.txt) and archive (.zip, .gz) input files
+     * @return the Contents a bundle of the files holds
+     * @throws IOException Thrown if a plain input file cannot be read
+     */
+    public static Contents scan(File[] inputFiles) throws IOException {
+        Contents contents = new Contents();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (int i=0; i<inputFiles.length; i++) {
+            try {
+                int documents = EDIDocumentBundle.copyDocuments(inputFiles[i], null, null, buffer);
+                contents.sourceDocuments.put(EDIDocumentBundle.getSourceName(inputFiles[i]), documents);
+                contents.documentCount += documents;
+            }
+            catch (IOException ioe) {
+                if (!EDIDocumentReader.isArchive(inputFiles[i].getName())) {
+                    throw ioe;
+                }
+                contents.unreadableFiles.put(inputFiles[i], ioe);
+            }
+        }
+        return contents;
+    }
+
+    /**
+     * Count the documents listed in a bundle index
+     * @param in stream positioned at the start of the index entry. The stream is read to its end but not closed.
+     * @return the number of documents listed
+     * @throws IOException Thrown if the index cannot be read
+     */
+    public static int readIndexCount(InputStream in) throws IOException {
+        int count = 0;
+        boolean lineStarted = false;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length = in.read(buffer);
+        while (length != -1) {
+            for (int i=0; i<length; i++) {
+                if (buffer[i] == '\n') {
+                    lineStarted = false;
+                }
+                else if (!lineStarted) {
+                    lineStarted = true;
+                    count++;
+                }
+            }
+            length = in.read(buffer);
+        }
+        return count;
+    }
+
+    /**
+     * Read the documents of one input file, adding them to the bundle if there is one
+     * @param inputFile plain (.txt) or archive (.zip, .gz) input file
+     * @param zipOut bundle to add the documents to, or null to only read them
+     * @param index list to add the bundle entries to, or null to only read them
+     * @param buffer copy buffer
+     * @return the number of documents in the input file
+     * @throws IOException Thrown if the input file cannot be read
+     */
+    private static int copyDocuments(File inputFile, ZipOutputStream zipOut, List<ZipEntry> index, byte[] buffer) throws IOException {
+        String name = inputFile.getName();
+        String lowercaseName = name.toLowerCase();
+        int documents = 0;
+
+        if (lowercaseName.endsWith(EDIDocumentReader.ZIP_EXTENSION)) {
+            //A zip archive may repeat an entry name, but a bundle cannot
+            Set<String> entryNames = new HashSet<String>();
+            ZipInputStream zipIn = new ZipInputStream(new BufferedInputStream(new FileInputStream(inputFile), BUFFER_SIZE));
+            try {
+                ZipEntry entry = zipIn.getNextEntry();
+                while (entry != null) {
+                    if (!entry.isDirectory()) {
+                        String entryName = entry.getName();
+                        for (int n=2; !entryNames.add(entryName); n++) {
+                            entryName = entry.getName() + " (" + n + ")";
+                        }
+                        EDIDocumentBundle.addEntry(zipOut, index, name + "!" + entryName, zipIn, buffer);
+                        documents++;
+                    }
+                    entry = zipIn.getNextEntry();
+                }
+            }
+            finally {
+                zipIn.close();
+            }
+        }
+        else {
+            InputStream in = new FileInputStream(inputFile);
+            String entryName = name;
+            try {
+                //Wrapped inside the try so the file is still closed if it does not start with a valid GZIP header
+                if (lowercaseName.endsWith(EDIDocumentReader.GZIP_EXTENSION)) {
+                    entryName = name + "!" + name.substring(0, name.length() - EDIDocumentReader.GZIP_EXTENSION.length());
+                    in = new GZIPInputStream(in, BUFFER_SIZE);
+                }
+                EDIDocumentBundle.addEntry(zipOut, index, entryName, in, buffer);
+                documents++;
+            }
+            finally {
+                in.close();
+            }
+        }
+        return documents;
+    }
+
+    private static void addEntry(ZipOutputStream zipOut, List<ZipEntry> index, String name, InputStream in,
+                                 byte[] buffer) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        if (zipOut != null) {
+            zipOut.putNextEntry(entry);
+        }
+        //Reading to the end checks the CRC of a zip entry or gzip stream
+        int count = in.read(buffer);
+        while (count != -1) {
+            if (zipOut != null) {
+                zipOut.write(buffer, 0, count);
+            }
+            count = in.read(buffer);
+        }
+        if (zipOut != null) {
+            //closeEntry() fills in the size and CRC of the entry
+            zipOut.closeEntry();
+            index.add(entry);
+        }
+    }
+
+    /**
+     * What write() put into a bundle: the number of documents from each input file and the archives left out because
+     * they could not be read
+     */
+    public static class Contents {
+
+        /**
+         * @return the number of documents in the bundle
+         */
+        public int getDocumentCount() {
+            return documentCount;
+        }
+
+        /**
+         * @param sourceName name of an input file, as given by getSourceName(File)
+         * @return the number of documents bundled from the input file, or -1 if it was not bundled
+         */
+        public int getDocuments(String sourceName) {
+            Integer documents = sourceDocuments.get(sourceName);
+            return documents != null ? documents : -1;
+        }
+
+        /**
+         * @return the archive inputs that could not be read, with the error reading each one
+         */
+        public Map<File, IOException> getUnreadableFiles() {
+            return unreadableFiles;
+        }
+
+        private int documentCount = 0;
+        private Map<String, Integer> sourceDocuments = new HashMap<String, Integer>();
+        private Map<File, IOException> unreadableFiles = new LinkedHashMap<File, IOException>();
+    }
+}
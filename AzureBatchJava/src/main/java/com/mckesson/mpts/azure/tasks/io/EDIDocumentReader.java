@@ -0,0 +1,232 @@
+package com.mckesson.mpts.azure.tasks.io;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Iterates over the EDI documents held in a set of input files. An input file may be:
+ *
+ * - a plain ".txt" file holding one EDI document
+ * - a ".gz" file holding one gzip-compressed EDI document
+ * - a ".zip" archive holding any number of EDI documents, one per entry (such as InboundEDI_855_sourcefiles.zip)
+ *
+ * Archive entries are decompressed as they stream through ZipInputStream/GZIPInputStream, so archives never have to be
+ * unpacked to disk. Directory entries in a zip archive are skipped.
+ *
+ * Job bundles written by EDIDocumentBundle are zip archives and are read the same way. Their index entry is not returned
+ * as a document; instead the number of documents it lists is compared with the number read from the archive and an
+ * IOException is thrown from next() if they differ.
+ *
+ * Typical use:
+ *
+ *   while (reader.next()) {
+ *       process(reader.getDocumentName(), reader.getDocumentData());
+ *   }
+ *
+ * setSlice() restricts the reader to every n-th document so several tasks can divide the same input files between
+ * them. setSelector() restricts it to documents chosen by a DocumentSelector, such as those claimed from a work queue.
+ *
+ * If next() throws an exception, getDocumentName() identifies the document (or archive) that failed and the reader has
+ * already moved past it, so next() can be called again to continue with the remaining documents. A corrupt archive
+ * skips the rest of that archive.
+ */
+public class EDIDocumentReader implements Closeable {
+
+    public static final String TEXT_EXTENSION = ".txt";
+    public static final String ZIP_EXTENSION = ".zip";
+    public static final String GZIP_EXTENSION = ".gz";
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * @param inputFiles the plain and archive input files to read
+     * @param ingestor FileIngestor used to read and decode each document
+     */
+    public EDIDocumentReader(File[] inputFiles, FileIngestor ingestor) {
+        this.inputFiles = inputFiles != null ? inputFiles : new File[0];
+        this.ingestor = ingestor;
+    }
+
+    /**
+     * @param name a file name
+     * @return true if the name has one of the supported input extensions (.txt, .zip or .gz)
+     */
+    public static boolean isSupportedInput(String name) {
+        String lowercaseName = name.toLowerCase();
+        return lowercaseName.endsWith(TEXT_EXTENSION) || isArchive(lowercaseName);
+    }
+
+    /**
+     * @param name a file name
+     * @return true if the name is a .zip or .gz archive
+     */
+    public static boolean isArchive(String name) {
+        String lowercaseName = name.toLowerCase();
+        return lowercaseName.endsWith(ZIP_EXTENSION) || lowercaseName.endsWith(GZIP_EXTENSION);
+    }
+
+    /**
+     * Restrict the reader to one slice of the documents, so several tasks can share the same input files and each
+     * process a different part of them. Documents are dealt out in turn: document n (counting from 0 across all input
+     * files, in the order given) belongs to slice n % sliceCount. Documents outside the slice are skipped without being
+     * read or decompressed. Every task must be given the input files in the same order.
+     * @param sliceIndex slice to read, from 0 to sliceCount - 1
+     * @param sliceCount number of slices the documents are divided into
+     */
+    public void setSlice(final int sliceIndex, final int sliceCount) {
+        if (sliceCount < 1 || sliceIndex < 0 || sliceIndex >= sliceCount) {
+            throw new IllegalArgumentException("Invalid slice " + sliceIndex + " of " + sliceCount);
+        }
+        setSelector(new DocumentSelector() {
+            public boolean select(long ordinal) {
+                return (ordinal % sliceCount) == sliceIndex;
+            }
+        });
+    }
+
+    /**
+     * Restrict the reader to the documents chosen by a DocumentSelector, such as the documents claimed from a work
+     * queue. Replaces any slice set with setSlice().
+     * @param selector DocumentSelector to consult for each document, or null to read every document
+     */
+    public void setSelector(DocumentSelector selector) {
+        this.selector = selector;
+    }
+
+    /**
+     * Advance to the next document
+     * @return true if a document is available, false when all input files have been read
+     * @throws IOException Thrown if the next document cannot be read. The reader moves past the failing document.
+     */
+    public boolean next() throws IOException {
+        documentData = null;
+        try {
+            while (true) {
+                //Continue with the current zip archive if there is one
+                if (zipIn != null) {
+                    ZipEntry entry = zipIn.getNextEntry();
+                    while (entry != null && (entry.isDirectory() || EDIDocumentBundle.INDEX_ENTRY_NAME.equals(entry.getName()))) {
+                        if (!entry.isDirectory()) {
+                            indexCount = EDIDocumentBundle.readIndexCount(zipIn);
+                        }
+                        entry = zipIn.getNextEntry();
+                    }
+                    if (entry != null) {
+                        archiveCount++;
+                        //The content of an entry that is not read is skipped by the next getNextEntry()
+                        if (isInSlice()) {
+                            documentName = currentInput.getName() + "!" + entry.getName();
+                            documentData = ingestor.read(zipIn);
+                            return true;
+                        }
+                        continue;
+                    }
+                    closeArchive();
+
+                    if (indexCount >= 0 && indexCount != archiveCount) {
+                        documentName = currentInput.getName();
+                        throw new IOException("Bundle " + documentName + " lists " + indexCount + " documents in its index but " +
+                                archiveCount + " were read");
+                    }
+                }
+
+                if (nextInput >= inputFiles.length) {
+                    return false;
+                }
+
+                currentInput = inputFiles[nextInput++];
+                documentName = currentInput.getName();
+                String lowercaseName = documentName.toLowerCase();
+
+                if (lowercaseName.endsWith(ZIP_EXTENSION)) {
+                    zipIn = new ZipInputStream(new BufferedInputStream(new FileInputStream(currentInput), BUFFER_SIZE));
+                    archiveCount = 0;
+                    indexCount = -1;
+                }
+                else if (!isInSlice()) {
+                    continue;
+                }
+                else if (lowercaseName.endsWith(GZIP_EXTENSION)) {
+                    documentName = documentName.substring(0, documentName.length() - GZIP_EXTENSION.length());
+                    //The file is opened first, so it is still closed if it does not start with a valid GZIP header
+                    InputStream gzipIn = new FileInputStream(currentInput);
+                    try {
+                        gzipIn = new GZIPInputStream(gzipIn, BUFFER_SIZE);
+                        documentData = ingestor.read(gzipIn);
+                    }
+                    finally {
+                        gzipIn.close();
+                    }
+                    return true;
+                }
+                else {
+                    documentData = ingestor.read(currentInput.toPath());
+                    return true;
+                }
+            }
+        }
+        catch (IOException ioe) {
+            //A read error within an archive leaves the stream in an unknown state, so skip the rest of the archive
+            closeArchive();
+            throw ioe;
+        }
+    }
+
+    /**
+     * @return the name of the current document. Documents within a zip archive are named {archive}!{entry}
+     */
+    public String getDocumentName() {
+        return documentName;
+    }
+
+    /**
+     * @return the content of the current document
+     */
+    public String getDocumentData() {
+        return documentData;
+    }
+
+    public void close() throws IOException {
+        closeArchive();
+        nextInput = inputFiles.length;
+    }
+
+    private boolean isInSlice() throws IOException {
+        long ordinal = documentOrdinal++;
+        return selector == null || selector.select(ordinal);
+    }
+
+    private void closeArchive() {
+        if (zipIn != null) {
+            try {
+                zipIn.close();
+            }
+            catch (IOException ioe) {
+                //ignore, nothing more is read from this archive
+            }
+            zipIn = null;
+        }
+    }
+
+    private File[] inputFiles = null;
+    private FileIngestor ingestor = null;
+
+    private int nextInput = 0;
+    private File currentInput = null;
+    private ZipInputStream zipIn = null;
+    private int archiveCount = 0;
+    private int indexCount = -1;
+
+    private DocumentSelector selector = null;
+    private long documentOrdinal = 0;
+
+    private String documentName = null;
+    private String documentData = null;
+}
@@ -0,0 +1,164 @@
+package com.mckesson.mpts.azure.tasks.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads whole input files (EDI documents) into Strings. Files are read through a FileChannel into a byte buffer that is
+ * reused from one file to the next and decoded with an explicit Charset, rather than one character at a time through a
+ * FileReader using the platform default encoding. Files at or above the memory-map threshold are memory-mapped instead
+ * of copied into the buffer.
+ *
+ * Any error reading or decoding a file is thrown to the caller; a missing file is reported as an exception rather than
+ * returned as an empty String.
+ *
+ * X12 documents only use the basic and extended character sets, so ISO-8859-1 is used by default. This maps every byte
+ * to a character and can never fail to decode.
+ *
+ * Instances hold reusable buffers and are not thread-safe. Use one instance per thread.
+ */
+public class FileIngestor {
+
+    public static final Charset DEFAULT_CHARSET = StandardCharsets.ISO_8859_1;
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+    public static final long DEFAULT_MAP_THRESHOLD = 1024 * 1024;
+
+    public FileIngestor() {
+        this(DEFAULT_CHARSET, DEFAULT_MAP_THRESHOLD);
+    }
+
+    /**
+     * @param charset Charset the input files are encoded in
+     * @param mapThreshold files of at least this many bytes are memory-mapped rather than read into the reusable buffer
+     */
+    public FileIngestor(Charset charset, long mapThreshold) {
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        this.mapThreshold = mapThreshold;
+    }
+
+    /**
+     * Read the full content of a file
+     * @param filePath Path of the file to read
+     * @return the decoded file content
+     * @throws IOException Thrown if the file does not exist, cannot be read or cannot be decoded
+     */
+    public String read(Path filePath) throws IOException {
+        FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File " + filePath + " is too large to read (" + size + " bytes)");
+            }
+
+            ByteBuffer bytes;
+            if (size >= mapThreshold) {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            else {
+                bytes = getByteBuffer((int)size);
+                //Read until the buffer is full or the end of the file is reached
+                while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+                }
+                bytes.flip();
+            }
+            return decode(bytes);
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Read the full content of a stream, such as one entry of a zip archive. The stream is read to its end but not
+     * closed.
+     * @param in stream to read
+     * @return the decoded content
+     * @throws IOException Thrown if the stream cannot be read or the content cannot be decoded
+     */
+    public String read(InputStream in) throws IOException {
+        ByteBuffer bytes = getByteBuffer(DEFAULT_BUFFER_SIZE);
+        bytes.limit(bytes.capacity());
+        int count = in.read(bytes.array(), bytes.position(), bytes.remaining());
+        while (count != -1) {
+            bytes.position(bytes.position() + count);
+            if (!bytes.hasRemaining()) {
+                bytes = growByteBuffer();
+            }
+            count = in.read(bytes.array(), bytes.position(), bytes.remaining());
+        }
+        bytes.flip();
+        return decode(bytes);
+    }
+
+    /**
+     * Decode a buffer of bytes into a String using this instance's Charset and reusable char buffer
+     * @param bytes the bytes to decode, from position to limit
+     * @return the decoded String
+     * @throws CharacterCodingException Thrown if the bytes are not valid for the Charset
+     */
+    protected String decode(ByteBuffer bytes) throws CharacterCodingException {
+        int maxChars = (int)Math.ceil(bytes.remaining() * (double)decoder.maxCharsPerByte());
+        CharBuffer chars = getCharBuffer(maxChars);
+
+        decoder.reset();
+        CoderResult result = decoder.decode(bytes, chars, true);
+        if (!result.isUnderflow()) {
+            result.throwException();
+        }
+        result = decoder.flush(chars);
+        if (!result.isUnderflow()) {
+            result.throwException();
+        }
+        chars.flip();
+        return chars.toString();
+    }
+
+    /**
+     * Return the reusable byte buffer, cleared and limited to the requested size, growing it when needed
+     * @param size number of bytes required
+     * @return ByteBuffer ready to be filled with size bytes
+     */
+    protected ByteBuffer getByteBuffer(int size) {
+        if (byteBuffer == null || byteBuffer.capacity() < size) {
+            byteBuffer = ByteBuffer.allocate(Math.max(size, DEFAULT_BUFFER_SIZE));
+        }
+        byteBuffer.clear();
+        byteBuffer.limit(size);
+        return byteBuffer;
+    }
+
+    private ByteBuffer growByteBuffer() {
+        ByteBuffer larger = ByteBuffer.allocate(byteBuffer.capacity() * 2);
+        byteBuffer.flip();
+        larger.put(byteBuffer);
+        byteBuffer = larger;
+        return byteBuffer;
+    }
+
+    private CharBuffer getCharBuffer(int size) {
+        if (charBuffer == null || charBuffer.capacity() < size) {
+            charBuffer = CharBuffer.allocate(Math.max(size, DEFAULT_BUFFER_SIZE));
+        }
+        charBuffer.clear();
+        return charBuffer;
+    }
+
+    private CharsetDecoder decoder = null;
+    private long mapThreshold = DEFAULT_MAP_THRESHOLD;
+
+    private ByteBuffer byteBuffer = null;
+    private CharBuffer charBuffer = null;
+}
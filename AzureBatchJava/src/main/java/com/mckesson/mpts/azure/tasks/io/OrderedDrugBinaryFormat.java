@@ -0,0 +1,70 @@
+package com.mckesson.mpts.azure.tasks.io;
+
+/**
+ * Constants describing the compact binary file format used to pass OrderedDrug data between the "parse", "merge" and
+ * "history" tasks when they run as separate Azure Batch Tasks. The format replaces the one-JSON-file-per-document
+ * layout previously written to the node shared directory.
+ *
+ * A file starts with an 8 byte header:
+ *
+ *   4 bytes  - magic number "ODRG"
+ *   2 bytes  - schema version (SCHEMA_VERSION)
+ *   1 byte   - compression used for every record (see Compression)
+ *   1 byte   - reserved, always 0
+ *
+ * The header is followed by zero or more records, each holding one OrderedDrugs set:
+ *
+ *   4 bytes  - length of the (possibly compressed) record payload
+ *   4 bytes  - length of the uncompressed record payload
+ *   n bytes  - record payload
+ *
+ * The uncompressed payload holds the number of drugs followed by the fields of each drug, in the order they are
+ * declared in OrderedDrug. String fields are written as a presence byte (0 = null, 1 = present) followed by the value in
+ * DataOutput UTF form. Boolean fields are written as a single byte (0 = null, 1 = false, 2 = true) and int fields as 4
+ * bytes.
+ *
+ * Version 2 added the interchange and transaction control numbers and the line number at the end of each drug, and
+ * version 1 records are read without them. Readers reject files whose schema version is newer than the one they
+ * understand.
+ */
+public final class OrderedDrugBinaryFormat {
+
+    public static final int MAGIC = 0x4F445247; // "ODRG"
+    public static final short SCHEMA_VERSION = 2;
+    public static final int HEADER_LENGTH = 8;
+
+    public static final String FILE_EXTENSION = ".odb";
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Compression applied to each record payload. DEFLATE uses java.util.zip so no additional jar has to be shipped to
+     * the Batch nodes.
+     */
+    public enum Compression {
+        NONE((byte)0),
+        DEFLATE((byte)1);
+
+        Compression(byte id) {
+            this.id = id;
+        }
+
+        public byte getId() {
+            return id;
+        }
+
+        public static Compression fromId(byte id) {
+            for (Compression compression : values()) {
+                if (compression.id == id) {
+                    return compression;
+                }
+            }
+            throw new IllegalArgumentException("Unknown compression id " + id);
+        }
+
+        private final byte id;
+    }
+
+    private OrderedDrugBinaryFormat() {
+    }
+}
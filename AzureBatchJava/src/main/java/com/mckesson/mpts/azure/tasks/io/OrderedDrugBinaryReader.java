@@ -0,0 +1,199 @@
+package com.mckesson.mpts.azure.tasks.io;
+
+import com.mckesson.mpts.azure.tasks.model.OrderedDrug;
+import com.mckesson.mpts.azure.tasks.model.OrderedDrugBatch;
+import com.mckesson.mpts.azure.tasks.model.OrderedDrugs;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads OrderedDrugs sets from a file in the binary format described by OrderedDrugBinaryFormat. Records are returned
+ * one at a time by read(), or all at once as a columnar OrderedDrugBatch by readBatch().
+ */
+public class OrderedDrugBinaryReader implements Closeable {
+
+    /**
+     * Open a binary OrderedDrug file and validate its header
+     * @param filePath Path of the file to read
+     * @throws IOException Thrown if the file cannot be read or is not a supported binary OrderedDrug file
+     */
+    public OrderedDrugBinaryReader(Path filePath) throws IOException {
+        this(new BufferedInputStream(Channels.newInputStream(FileChannel.open(filePath, StandardOpenOption.READ)),
+                OrderedDrugBinaryFormat.BUFFER_SIZE));
+    }
+
+    /**
+     * Create a reader over an existing stream and validate the header. The stream is closed when the reader is closed.
+     * @param in Stream to read from
+     * @throws IOException Thrown if the stream is not a supported binary OrderedDrug stream
+     */
+    public OrderedDrugBinaryReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(in);
+
+        int magic = this.in.readInt();
+        if (magic != OrderedDrugBinaryFormat.MAGIC) {
+            this.in.close();
+            throw new IOException("Not a binary OrderedDrug file, found magic number " + Integer.toHexString(magic));
+        }
+        schemaVersion = this.in.readShort();
+        if (schemaVersion > OrderedDrugBinaryFormat.SCHEMA_VERSION) {
+            this.in.close();
+            throw new IOException("Unsupported binary OrderedDrug schema version " + schemaVersion + ", expected " +
+                    OrderedDrugBinaryFormat.SCHEMA_VERSION + " or lower");
+        }
+        compression = OrderedDrugBinaryFormat.Compression.fromId(this.in.readByte());
+        this.in.readByte();
+
+        if (compression == OrderedDrugBinaryFormat.Compression.DEFLATE) {
+            inflater = new Inflater();
+        }
+    }
+
+    /**
+     * Read the next record
+     * @return the next OrderedDrugs set or null when there are no more records
+     * @throws IOException Thrown if the record cannot be read or is corrupt
+     */
+    public OrderedDrugs read() throws IOException {
+        int payloadLength;
+        try {
+            payloadLength = in.readInt();
+        }
+        catch (EOFException eof) {
+            return null;
+        }
+        int uncompressedLength = in.readInt();
+
+        if (payloadBuffer.length < payloadLength) {
+            payloadBuffer = new byte[payloadLength];
+        }
+        in.readFully(payloadBuffer, 0, payloadLength);
+
+        byte[] record = payloadBuffer;
+        if (inflater != null) {
+            if (recordBuffer.length < uncompressedLength) {
+                recordBuffer = new byte[uncompressedLength];
+            }
+            inflater.reset();
+            inflater.setInput(payloadBuffer, 0, payloadLength);
+            try {
+                int inflated = 0;
+                while (inflated < uncompressedLength && !inflater.finished()) {
+                    int count = inflater.inflate(recordBuffer, inflated, uncompressedLength - inflated);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    inflated += count;
+                }
+                if (inflated != uncompressedLength) {
+                    throw new IOException("Corrupt record, expected " + uncompressedLength + " bytes but inflated " + inflated);
+                }
+            }
+            catch (DataFormatException dfe) {
+                throw new IOException("Corrupt compressed record: " + dfe.getMessage(), dfe);
+            }
+            record = recordBuffer;
+        }
+
+        DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record, 0, uncompressedLength));
+        int drugCount = recordIn.readInt();
+        OrderedDrug[] drugs = new OrderedDrug[drugCount];
+        for (int i=0; i<drugCount; i++) {
+            drugs[i] = readDrug(recordIn, schemaVersion);
+        }
+
+        OrderedDrugs drugSet = new OrderedDrugs();
+        drugSet.setOrderedDrugs(drugs);
+        return drugSet;
+    }
+
+    /**
+     * Read all remaining records into one columnar batch
+     * @return OrderedDrugBatch holding the drugs from every remaining record
+     * @throws IOException Thrown if a record cannot be read or is corrupt
+     */
+    public OrderedDrugBatch readBatch() throws IOException {
+        OrderedDrugBatch batch = new OrderedDrugBatch();
+        OrderedDrugs drugSet = read();
+        while (drugSet != null) {
+            batch.addAll(drugSet);
+            drugSet = read();
+        }
+        return batch;
+    }
+
+    /**
+     * @return the schema version found in the file header
+     */
+    public short getSchemaVersion() {
+        return schemaVersion;
+    }
+
+    public void close() throws IOException {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        in.close();
+    }
+
+    private static OrderedDrug readDrug(DataInputStream recordIn, short schemaVersion) throws IOException {
+        OrderedDrug drug = new OrderedDrug();
+        drug.setIsaSenderId(readString(recordIn));
+        drug.setAccountNumber(readString(recordIn));
+        drug.setAccountStateCode(readString(recordIn));
+        drug.setAccountZipCode(readString(recordIn));
+        drug.setOrderDate(readString(recordIn));
+        drug.setPurchaseOrderNumber(readString(recordIn));
+        drug.setOrderedNDC(readString(recordIn));
+        drug.setOrderedItem(readString(recordIn));
+        drug.setOrderedQuantity(readString(recordIn));
+        drug.setOrderedNDCSchedule(readString(recordIn));
+        drug.setOrderedNDCOpiodFlag(readBoolean(recordIn));
+        drug.setShippedNDC(readString(recordIn));
+        drug.setShippedItem(readString(recordIn));
+        drug.setShippedQuantity(readString(recordIn));
+        drug.setShippedNDCSchedule(readString(recordIn));
+        drug.setShippedNDCOpiodFlag(readBoolean(recordIn));
+        drug.setAckStatusCode(readString(recordIn));
+        //Version 1 records end here, without the document's control numbers and the line position
+        if (schemaVersion >= 2) {
+            drug.setInterchangeControlNumber(readString(recordIn));
+            drug.setTransactionControlNumber(readString(recordIn));
+            drug.setLineNumber(recordIn.readInt());
+        }
+        return drug;
+    }
+
+    private static String readString(DataInputStream recordIn) throws IOException {
+        return recordIn.readByte() == 0 ? null : recordIn.readUTF();
+    }
+
+    private static Boolean readBoolean(DataInputStream recordIn) throws IOException {
+        byte flag = recordIn.readByte();
+        if (flag == 0) {
+            return null;
+        }
+        return flag == 2 ? Boolean.TRUE : Boolean.FALSE;
+    }
+
+    private DataInputStream in = null;
+    private short schemaVersion = 0;
+    private OrderedDrugBinaryFormat.Compression compression = null;
+    private Inflater inflater = null;
+
+    private byte[] payloadBuffer = new byte[4096];
+    private byte[] recordBuffer = new byte[4096];
+}
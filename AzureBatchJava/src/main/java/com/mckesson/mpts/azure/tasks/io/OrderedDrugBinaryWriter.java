@@ -0,0 +1,161 @@
+package com.mckesson.mpts.azure.tasks.io;
+
+import com.mckesson.mpts.azure.tasks.model.OrderedDrug;
+import com.mckesson.mpts.azure.tasks.model.OrderedDrugs;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Writes OrderedDrugs sets to a file in the binary format described by OrderedDrugBinaryFormat. Each call to write()
+ * appends one length-prefixed record. The writer must be closed to flush the final record to disk.
+ */
+public class OrderedDrugBinaryWriter implements Closeable {
+
+    /**
+     * Create a writer for a new file, replacing any existing file at the same path
+     * @param filePath Path of the file to write
+     * @param compression Compression to apply to each record
+     * @throws IOException Thrown if the file cannot be created
+     */
+    public OrderedDrugBinaryWriter(Path filePath, OrderedDrugBinaryFormat.Compression compression) throws IOException {
+        this(new BufferedOutputStream(Channels.newOutputStream(FileChannel.open(filePath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)), OrderedDrugBinaryFormat.BUFFER_SIZE),
+                compression);
+    }
+
+    /**
+     * Create a writer over an existing stream. The stream is closed when the writer is closed.
+     * @param out Stream to write to
+     * @param compression Compression to apply to each record
+     * @throws IOException Thrown if the header cannot be written
+     */
+    public OrderedDrugBinaryWriter(OutputStream out, OrderedDrugBinaryFormat.Compression compression) throws IOException {
+        this.out = new DataOutputStream(out);
+        if (compression == OrderedDrugBinaryFormat.Compression.DEFLATE) {
+            this.deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+
+        this.out.writeInt(OrderedDrugBinaryFormat.MAGIC);
+        this.out.writeShort(OrderedDrugBinaryFormat.SCHEMA_VERSION);
+        this.out.writeByte(compression.getId());
+        this.out.writeByte(0);
+    }
+
+    /**
+     * Append one OrderedDrugs set as a record
+     * @param drugSet the set of OrderedDrug instances to write
+     * @throws IOException Thrown if the record cannot be written
+     */
+    public void write(OrderedDrugs drugSet) throws IOException {
+        OrderedDrug[] drugs = drugSet.getOrderedDrugs() != null ? drugSet.getOrderedDrugs() : new OrderedDrug[0];
+
+        recordBuffer.reset();
+        recordOut.writeInt(drugs.length);
+        for (int i=0; i<drugs.length; i++) {
+            writeDrug(drugs[i]);
+        }
+        recordOut.flush();
+
+        int uncompressedLength = recordBuffer.size();
+        byte[] payload = recordBuffer.toByteArray();
+        int payloadLength = uncompressedLength;
+
+        if (deflater != null) {
+            deflater.reset();
+            deflater.setInput(payload, 0, uncompressedLength);
+            deflater.finish();
+            if (compressBuffer.length < uncompressedLength + 64) {
+                compressBuffer = new byte[uncompressedLength + 64];
+            }
+            payloadLength = 0;
+            while (!deflater.finished()) {
+                if (payloadLength == compressBuffer.length) {
+                    compressBuffer = Arrays.copyOf(compressBuffer, compressBuffer.length * 2);
+                }
+                payloadLength += deflater.deflate(compressBuffer, payloadLength, compressBuffer.length - payloadLength);
+            }
+            payload = compressBuffer;
+        }
+
+        out.writeInt(payloadLength);
+        out.writeInt(uncompressedLength);
+        out.write(payload, 0, payloadLength);
+        recordCount++;
+    }
+
+    /**
+     * @return the number of records written so far
+     */
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    public void close() throws IOException {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        out.close();
+    }
+
+    private void writeDrug(OrderedDrug drug) throws IOException {
+        writeString(drug.getIsaSenderId());
+        writeString(drug.getAccountNumber());
+        writeString(drug.getAccountStateCode());
+        writeString(drug.getAccountZipCode());
+        writeString(drug.getOrderDate());
+        writeString(drug.getPurchaseOrderNumber());
+        writeString(drug.getOrderedNDC());
+        writeString(drug.getOrderedItem());
+        writeString(drug.getOrderedQuantity());
+        writeString(drug.getOrderedNDCSchedule());
+        writeBoolean(drug.getOrderedNDCOpiodFlag());
+        writeString(drug.getShippedNDC());
+        writeString(drug.getShippedItem());
+        writeString(drug.getShippedQuantity());
+        writeString(drug.getShippedNDCSchedule());
+        writeBoolean(drug.getShippedNDCOpiodFlag());
+        writeString(drug.getAckStatusCode());
+        writeString(drug.getInterchangeControlNumber());
+        writeString(drug.getTransactionControlNumber());
+        recordOut.writeInt(drug.getLineNumber());
+    }
+
+    private void writeString(String value) throws IOException {
+        if (value == null) {
+            recordOut.writeByte(0);
+        }
+        else {
+            recordOut.writeByte(1);
+            recordOut.writeUTF(value);
+        }
+    }
+
+    private void writeBoolean(Boolean value) throws IOException {
+        if (value == null) {
+            recordOut.writeByte(0);
+        }
+        else {
+            recordOut.writeByte(value.booleanValue() ? 2 : 1);
+        }
+    }
+
+    private DataOutputStream out = null;
+    private Deflater deflater = null;
+
+    private ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(4096);
+    private DataOutputStream recordOut = new DataOutputStream(recordBuffer);
+    private byte[] compressBuffer = new byte[0];
+    private int recordCount = 0;
+}
@@ -0,0 +1,105 @@
+package com.mckesson.mpts.azure.tasks.io;
+
+import com.mckesson.mpts.azure.tasks.model.OrderedDrugBatch;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Helper methods for the intermediate files passed between the "parse", "merge" and "history" tasks in the node shared
+ * directory. Files are written in the binary format (OrderedDrugBinaryFormat) but JSON files (".json", see
+ * OrderedDrugsJsonCodec) are still accepted so files left by earlier versions of the tasks can be processed.
+ *
+ * Intermediate files are named with the Job Id as a prefix so a task only picks up the files produced by its own job:
+ *
+ * {jobId}_{taskId}.odb
+ */
+public class OrderedDrugFiles {
+
+    public static final String JSON_FILE_EXTENSION = ".json";
+    private static final String TEMP_FILE_EXTENSION = ".tmp";
+
+    /**
+     * Return the path of the intermediate file written by one task of a job
+     * @param sharedDir the Azure Batch node shared directory
+     * @param jobId the Azure Batch Job Id
+     * @param taskId the Azure Batch Task Id
+     * @return path of the binary intermediate file
+     */
+    public static Path getIntermediateFilePath(String sharedDir, String jobId, String taskId) {
+        return new File(sharedDir, jobId + "_" + taskId + OrderedDrugBinaryFormat.FILE_EXTENSION).toPath();
+    }
+
+    /**
+     * Return a filter accepting the intermediate files (binary or JSON) produced for the indicated job
+     * @param jobId the Azure Batch Job Id
+     * @return FilenameFilter for the job's intermediate files
+     */
+    public static FilenameFilter getJobFileFilter(final String jobId) {
+        return new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                String lowercaseName = name.toLowerCase();
+                //The separator keeps job "job1" from picking up the files of job "job10"
+                return lowercaseName.startsWith(jobId.toLowerCase() + "_") &&
+                        (lowercaseName.endsWith(OrderedDrugBinaryFormat.FILE_EXTENSION) ||
+                         lowercaseName.endsWith(JSON_FILE_EXTENSION));
+            }
+        };
+    }
+
+    /**
+     * Read every OrderedDrug held in an intermediate file into a columnar batch
+     * @param filePath Path to a binary or JSON intermediate file
+     * @return OrderedDrugBatch holding the drugs from the file
+     * @throws IOException Thrown if the file cannot be read
+     */
+    public static OrderedDrugBatch readBatch(Path filePath) throws IOException {
+        if (isJson(filePath)) {
+            OrderedDrugBatch batch = new OrderedDrugBatch();
+            batch.addAll(OrderedDrugsJsonCodec.read(filePath));
+            return batch;
+        }
+
+        OrderedDrugBinaryReader reader = new OrderedDrugBinaryReader(filePath);
+        try {
+            return reader.readBatch();
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Replace the content of an intermediate file with the drugs held in a batch. The data is written to a temporary
+     * file first and then renamed over the original, so a failure never leaves a partially written file behind. JSON
+     * files are rewritten as JSON and all other files in the binary format.
+     * @param filePath Path to the intermediate file
+     * @param batch OrderedDrugBatch to write
+     * @throws IOException Thrown if the file cannot be written
+     */
+    public static void writeBatch(Path filePath, OrderedDrugBatch batch) throws IOException {
+        Path tempPath = filePath.resolveSibling(filePath.getFileName().toString() + TEMP_FILE_EXTENSION);
+
+        if (isJson(filePath)) {
+            OrderedDrugsJsonCodec.write(tempPath, batch.toOrderedDrugs());
+        }
+        else {
+            OrderedDrugBinaryWriter writer = new OrderedDrugBinaryWriter(tempPath, OrderedDrugBinaryFormat.Compression.DEFLATE);
+            try {
+                writer.write(batch.toOrderedDrugs());
+            }
+            finally {
+                writer.close();
+            }
+        }
+        Files.move(tempPath, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static boolean isJson(Path filePath) {
+        return filePath.getFileName().toString().toLowerCase().endsWith(JSON_FILE_EXTENSION);
+    }
+}
@@ -0,0 +1,248 @@
+package com.mckesson.mpts.azure.tasks.io;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.mckesson.mpts.azure.tasks.model.OrderedDrug;
+import com.mckesson.mpts.azure.tasks.model.OrderedDrugs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class reads and writes OrderedDrugs instances in the JSON form passed between the "parse", "merge" and "history"
+ * tasks. Jackson's ObjectMapper is expensive to create, so a single pre-configured ObjectReader and ObjectWriter are
+ * shared by every caller (both are immutable and thread-safe).
+ *
+ * Files are read and written with Jackson's streaming JsonParser/JsonGenerator through buffered FileChannel streams,
+ * field by field, so no intermediate String holding the whole document is built and no reflection-based data binding
+ * takes place. The JSON produced is the same as that produced by the ObjectWriter, so either form can read the other:
+ *
+ * {"orderedDrugs":[{"isaSenderId":"987654321      ","accountNumber":"0008111575", ... },{ ... }]}
+ *
+ * Unknown fields are skipped when reading.
+ */
+public class OrderedDrugsJsonCodec {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final ObjectReader READER = MAPPER.readerFor(OrderedDrugs.class);
+    private static final ObjectWriter WRITER = MAPPER.writerFor(OrderedDrugs.class);
+    private static final JsonFactory FACTORY = MAPPER.getFactory();
+
+    private static final String ORDERED_DRUGS = "orderedDrugs";
+
+    /**
+     * @return the shared ObjectReader for data-binding OrderedDrugs from JSON
+     */
+    public static ObjectReader getReader() {
+        return READER;
+    }
+
+    /**
+     * @return the shared ObjectWriter for data-binding OrderedDrugs to JSON
+     */
+    public static ObjectWriter getWriter() {
+        return WRITER;
+    }
+
+    /**
+     * Read an OrderedDrugs instance from a JSON file
+     * @param filePath Path to the JSON file
+     * @return OrderedDrugs instance read from the file
+     * @throws IOException Thrown if the file cannot be read or does not hold valid JSON
+     */
+    public static OrderedDrugs read(Path filePath) throws IOException {
+        FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ);
+        InputStream in = new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE);
+        try {
+            return read(in);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read an OrderedDrugs instance from a stream of JSON data. The stream is not closed.
+     * @param in stream holding the JSON data
+     * @return OrderedDrugs instance read from the stream
+     * @throws IOException Thrown if the stream cannot be read or does not hold valid JSON
+     */
+    public static OrderedDrugs read(InputStream in) throws IOException {
+        JsonParser parser = FACTORY.createParser(in);
+        parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+        try {
+            OrderedDrugs drugSet = new OrderedDrugs();
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected start of OrderedDrugs object but found " + parser.getCurrentToken());
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (ORDERED_DRUGS.equals(fieldName) && token == JsonToken.START_ARRAY) {
+                    List<OrderedDrug> drugs = new ArrayList<OrderedDrug>(20);
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        drugs.add(readDrug(parser));
+                    }
+                    drugSet.setOrderedDrugs(drugs.toArray(new OrderedDrug[drugs.size()]));
+                }
+                else {
+                    parser.skipChildren();
+                }
+            }
+            return drugSet;
+        }
+        finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Write an OrderedDrugs instance to a JSON file, replacing any existing content
+     * @param filePath Path to the JSON file
+     * @param drugSet OrderedDrugs instance to write
+     * @throws IOException Thrown if the file cannot be written
+     */
+    public static void write(Path filePath, OrderedDrugs drugSet) throws IOException {
+        FileChannel channel = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+        try {
+            write(out, drugSet);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write an OrderedDrugs instance as JSON to a stream. The stream is flushed but not closed.
+     * @param out stream to write to
+     * @param drugSet OrderedDrugs instance to write
+     * @throws IOException Thrown if the stream cannot be written
+     */
+    public static void write(OutputStream out, OrderedDrugs drugSet) throws IOException {
+        JsonGenerator gen = FACTORY.createGenerator(out, JsonEncoding.UTF8);
+        gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        try {
+            gen.writeStartObject();
+            gen.writeFieldName(ORDERED_DRUGS);
+            OrderedDrug[] drugs = drugSet.getOrderedDrugs();
+            if (drugs == null) {
+                gen.writeNull();
+            }
+            else {
+                gen.writeStartArray();
+                for (int i=0; i<drugs.length; i++) {
+                    writeDrug(gen, drugs[i]);
+                }
+                gen.writeEndArray();
+            }
+            gen.writeEndObject();
+        }
+        finally {
+            gen.close();
+        }
+    }
+
+    private static OrderedDrug readDrug(JsonParser parser) throws IOException {
+        OrderedDrug drug = new OrderedDrug();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                parser.skipChildren();
+                continue;
+            }
+            String text = token == JsonToken.VALUE_NULL ? null : parser.getText();
+            Boolean flag = (token == JsonToken.VALUE_TRUE ? Boolean.TRUE : (token == JsonToken.VALUE_FALSE ? Boolean.FALSE : null));
+
+            switch (fieldName) {
+                case "isaSenderId": drug.setIsaSenderId(text); break;
+                case "accountNumber": drug.setAccountNumber(text); break;
+                case "accountStateCode": drug.setAccountStateCode(text); break;
+                case "accountZipCode": drug.setAccountZipCode(text); break;
+                case "orderDate": drug.setOrderDate(text); break;
+                case "purchaseOrderNumber": drug.setPurchaseOrderNumber(text); break;
+                case "orderedNDC": drug.setOrderedNDC(text); break;
+                case "orderedItem": drug.setOrderedItem(text); break;
+                case "orderedQuantity": drug.setOrderedQuantity(text); break;
+                case "orderedNDCSchedule": drug.setOrderedNDCSchedule(text); break;
+                case "orderedNDCOpiodFlag": drug.setOrderedNDCOpiodFlag(flag); break;
+                case "shippedNDC": drug.setShippedNDC(text); break;
+                case "shippedItem": drug.setShippedItem(text); break;
+                case "shippedQuantity": drug.setShippedQuantity(text); break;
+                case "shippedNDCSchedule": drug.setShippedNDCSchedule(text); break;
+                case "shippedNDCOpiodFlag": drug.setShippedNDCOpiodFlag(flag); break;
+                case "ackStatusCode": drug.setAckStatusCode(text); break;
+                case "interchangeControlNumber": drug.setInterchangeControlNumber(text); break;
+                case "transactionControlNumber": drug.setTransactionControlNumber(text); break;
+                case "lineNumber": drug.setLineNumber(token == JsonToken.VALUE_NUMBER_INT ? parser.getIntValue() : 0); break;
+                default: break;
+            }
+        }
+        return drug;
+    }
+
+    private static void writeDrug(JsonGenerator gen, OrderedDrug drug) throws IOException {
+        gen.writeStartObject();
+        writeString(gen, "isaSenderId", drug.getIsaSenderId());
+        writeString(gen, "accountNumber", drug.getAccountNumber());
+        writeString(gen, "accountStateCode", drug.getAccountStateCode());
+        writeString(gen, "accountZipCode", drug.getAccountZipCode());
+        writeString(gen, "orderDate", drug.getOrderDate());
+        writeString(gen, "purchaseOrderNumber", drug.getPurchaseOrderNumber());
+        writeString(gen, "orderedNDC", drug.getOrderedNDC());
+        writeString(gen, "orderedItem", drug.getOrderedItem());
+        writeString(gen, "orderedQuantity", drug.getOrderedQuantity());
+        writeString(gen, "orderedNDCSchedule", drug.getOrderedNDCSchedule());
+        writeBoolean(gen, "orderedNDCOpiodFlag", drug.getOrderedNDCOpiodFlag());
+        writeString(gen, "shippedNDC", drug.getShippedNDC());
+        writeString(gen, "shippedItem", drug.getShippedItem());
+        writeString(gen, "shippedQuantity", drug.getShippedQuantity());
+        writeString(gen, "shippedNDCSchedule", drug.getShippedNDCSchedule());
+        writeBoolean(gen, "shippedNDCOpiodFlag", drug.getShippedNDCOpiodFlag());
+        writeString(gen, "ackStatusCode", drug.getAckStatusCode());
+        writeString(gen, "interchangeControlNumber", drug.getInterchangeControlNumber());
+        writeString(gen, "transactionControlNumber", drug.getTransactionControlNumber());
+        gen.writeNumberField("lineNumber", drug.getLineNumber());
+        gen.writeEndObject();
+    }
+
+    private static void writeString(JsonGenerator gen, String fieldName, String value) throws IOException {
+        gen.writeFieldName(fieldName);
+        if (value == null) {
+            gen.writeNull();
+        }
+        else {
+            gen.writeString(value);
+        }
+    }
+
+    private static void writeBoolean(JsonGenerator gen, String fieldName, Boolean value) throws IOException {
+        gen.writeFieldName(fieldName);
+        if (value == null) {
+            gen.writeNull();
+        }
+        else {
+            gen.writeBoolean(value.booleanValue());
+        }
+    }
+
+}
@@ -146,6 +146,39 @@ public class OrderedDrug {
         this.ackStatusCode = ackStatusCode;
     }
 
+    /**
+     * @return the Interchange Control Number (ISA13) of the document the drug was parsed from
+     */
+    public String getInterchangeControlNumber() {
+        return interchangeControlNumber;
+    }
+
+    public void setInterchangeControlNumber(String interchangeControlNumber) {
+        this.interchangeControlNumber = interchangeControlNumber;
+    }
+
+    /**
+     * @return the Transaction Set Control Number (ST02) of the document the drug was parsed from
+     */
+    public String getTransactionControlNumber() {
+        return transactionControlNumber;
+    }
+
+    public void setTransactionControlNumber(String transactionControlNumber) {
+        this.transactionControlNumber = transactionControlNumber;
+    }
+
+    /**
+     * @return position of the drug's PO1/ACK line within its document, from 1, or 0 if not known
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    public void setLineNumber(int lineNumber) {
+        this.lineNumber = lineNumber;
+    }
+
     private String isaSenderId;
     private String accountNumber;
     private String accountStateCode;
@@ -163,5 +196,8 @@ public class OrderedDrug {
     private String shippedNDCSchedule;
     private Boolean shippedNDCOpiodFlag;
     private String ackStatusCode;
+    private String interchangeControlNumber;
+    private String transactionControlNumber;
+    private int lineNumber;
 
 }
@@ -0,0 +1,386 @@
+package com.mckesson.mpts.azure.tasks.model;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * This class holds the OrderedDrug rows from many 855 documents at once in columnar (struct-of-arrays) form. Each
+ * attribute of an OrderedDrug is kept in its own primitive array and row "i" of the batch is made up of element "i" of
+ * every array. Repeating String values such as the ISA Sender Id and Account Number are dictionary-encoded into int
+ * codes (see StringDictionary) and the opioid flags are held as bytes. NDCs and order dates are dictionary-encoded too
+ * rather than parsed into numbers, so each keeps exactly the text of the 855: an NDC is looked up as recorded, whatever
+ * its width, and no leading zeros are lost.
+ *
+ * Laying the data out this way allows the "merge" and "history" steps to run as simple loops over primitive arrays
+ * rather than walking a graph of OrderedDrug objects:
+ *
+ * - Account demographics are looked up once per distinct account and applied to every row with applyAccountDemographics()
+ * - Drug data is looked up once per distinct NDC (see getDistinctNdcs()) and applied with applyDrugInfo()
+ * - The rows that qualify for the ordering history table are selected with selectHistoryRows()
+ *
+ * Rows can be converted back to OrderedDrug instances with toOrderedDrug() when the object form is needed.
+ */
+public class OrderedDrugBatch {
+
+    public static final byte FLAG_UNKNOWN = 0;
+    public static final byte FLAG_FALSE = 1;
+    public static final byte FLAG_TRUE = 2;
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    public OrderedDrugBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public OrderedDrugBatch(int initialCapacity) {
+        int capacity = Math.max(initialCapacity, 16);
+        isaSenderId = new int[capacity];
+        accountNumber = new int[capacity];
+        accountStateCode = new int[capacity];
+        accountZipCode = new int[capacity];
+        orderDate = new int[capacity];
+        purchaseOrderNumber = new int[capacity];
+        orderedNDC = new int[capacity];
+        orderedItem = new int[capacity];
+        orderedQuantity = new int[capacity];
+        orderedNDCSchedule = new int[capacity];
+        orderedNDCOpiodFlag = new byte[capacity];
+        shippedNDC = new int[capacity];
+        shippedItem = new int[capacity];
+        shippedQuantity = new int[capacity];
+        shippedNDCSchedule = new int[capacity];
+        shippedNDCOpiodFlag = new byte[capacity];
+        ackStatusCode = new int[capacity];
+        interchangeControlNumber = new int[capacity];
+        transactionControlNumber = new int[capacity];
+        lineNumber = new int[capacity];
+    }
+
+    /**
+     * @return the number of rows held in this batch
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Append all OrderedDrug instances from one document to the batch
+     * @param drugSet the set of OrderedDrug instances to add
+     */
+    public void addAll(OrderedDrugs drugSet) {
+        if (drugSet != null && drugSet.getOrderedDrugs() != null) {
+            OrderedDrug[] drugs = drugSet.getOrderedDrugs();
+            ensureCapacity(size + drugs.length);
+            for (int i=0; i<drugs.length; i++) {
+                add(drugs[i]);
+            }
+        }
+    }
+
+    /**
+     * Append one OrderedDrug to the batch
+     * @param drug the OrderedDrug to add
+     * @return the row index of the added drug
+     */
+    public int add(OrderedDrug drug) {
+        ensureCapacity(size + 1);
+        int row = size;
+
+        isaSenderId[row] = senders.encode(drug.getIsaSenderId());
+        accountNumber[row] = accounts.encode(drug.getAccountNumber());
+        accountStateCode[row] = stateCodes.encode(drug.getAccountStateCode());
+        accountZipCode[row] = zipCodes.encode(drug.getAccountZipCode());
+        orderDate[row] = text.encode(drug.getOrderDate());
+        purchaseOrderNumber[row] = text.encode(drug.getPurchaseOrderNumber());
+
+        orderedNDC[row] = ndcs.encode(drug.getOrderedNDC());
+        orderedItem[row] = text.encode(drug.getOrderedItem());
+        orderedQuantity[row] = text.encode(drug.getOrderedQuantity());
+        orderedNDCSchedule[row] = schedules.encode(drug.getOrderedNDCSchedule());
+        orderedNDCOpiodFlag[row] = toFlag(drug.getOrderedNDCOpiodFlag());
+
+        shippedNDC[row] = ndcs.encode(drug.getShippedNDC());
+        shippedItem[row] = text.encode(drug.getShippedItem());
+        shippedQuantity[row] = text.encode(drug.getShippedQuantity());
+        shippedNDCSchedule[row] = schedules.encode(drug.getShippedNDCSchedule());
+        shippedNDCOpiodFlag[row] = toFlag(drug.getShippedNDCOpiodFlag());
+
+        ackStatusCode[row] = text.encode(drug.getAckStatusCode());
+        interchangeControlNumber[row] = text.encode(drug.getInterchangeControlNumber());
+        transactionControlNumber[row] = text.encode(drug.getTransactionControlNumber());
+        lineNumber[row] = drug.getLineNumber();
+
+        size++;
+        return row;
+    }
+
+    /**
+     * Rebuild an OrderedDrug instance from one row of the batch
+     * @param row the row index
+     * @return a new OrderedDrug populated from the row
+     */
+    public OrderedDrug toOrderedDrug(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " is outside of batch size " + size);
+        }
+        OrderedDrug drug = new OrderedDrug();
+        drug.setIsaSenderId(senders.decode(isaSenderId[row]));
+        drug.setAccountNumber(accounts.decode(accountNumber[row]));
+        drug.setAccountStateCode(stateCodes.decode(accountStateCode[row]));
+        drug.setAccountZipCode(zipCodes.decode(accountZipCode[row]));
+        drug.setOrderDate(text.decode(orderDate[row]));
+        drug.setPurchaseOrderNumber(text.decode(purchaseOrderNumber[row]));
+
+        drug.setOrderedNDC(ndcs.decode(orderedNDC[row]));
+        drug.setOrderedItem(text.decode(orderedItem[row]));
+        drug.setOrderedQuantity(text.decode(orderedQuantity[row]));
+        drug.setOrderedNDCSchedule(schedules.decode(orderedNDCSchedule[row]));
+        drug.setOrderedNDCOpiodFlag(fromFlag(orderedNDCOpiodFlag[row]));
+
+        drug.setShippedNDC(ndcs.decode(shippedNDC[row]));
+        drug.setShippedItem(text.decode(shippedItem[row]));
+        drug.setShippedQuantity(text.decode(shippedQuantity[row]));
+        drug.setShippedNDCSchedule(schedules.decode(shippedNDCSchedule[row]));
+        drug.setShippedNDCOpiodFlag(fromFlag(shippedNDCOpiodFlag[row]));
+
+        drug.setAckStatusCode(text.decode(ackStatusCode[row]));
+        drug.setInterchangeControlNumber(text.decode(interchangeControlNumber[row]));
+        drug.setTransactionControlNumber(text.decode(transactionControlNumber[row]));
+        drug.setLineNumber(lineNumber[row]);
+        return drug;
+    }
+
+    /**
+     * @return all rows of the batch as an OrderedDrugs instance
+     */
+    public OrderedDrugs toOrderedDrugs() {
+        OrderedDrug[] drugs = new OrderedDrug[size];
+        for (int i=0; i<size; i++) {
+            drugs[i] = toOrderedDrug(i);
+        }
+        OrderedDrugs drugSet = new OrderedDrugs();
+        drugSet.setOrderedDrugs(drugs);
+        return drugSet;
+    }
+
+    /**
+     * Set the State Code and Zip Code on every row from values looked up once per distinct account. Both arrays are
+     * indexed by account code (see getAccounts()) and a null entry means the account was not found.
+     * @param stateCodeByAccount state code for each account code
+     * @param zipCodeByAccount zip code for each account code
+     */
+    public void applyAccountDemographics(String[] stateCodeByAccount, String[] zipCodeByAccount) {
+        int accountCount = accounts.size();
+        int[] stateByAccount = new int[accountCount];
+        int[] zipByAccount = new int[accountCount];
+        for (int a=0; a<accountCount; a++) {
+            stateByAccount[a] = stateCodes.encode(stateCodeByAccount[a]);
+            zipByAccount[a] = zipCodes.encode(zipCodeByAccount[a]);
+        }
+
+        for (int row=0; row<size; row++) {
+            int account = accountNumber[row];
+            if (account != StringDictionary.NULL_CODE && stateByAccount[account] != StringDictionary.NULL_CODE) {
+                accountStateCode[row] = stateByAccount[account];
+                accountZipCode[row] = zipByAccount[account];
+            }
+        }
+    }
+
+    /**
+     * Return the sorted set of distinct ordered and shipped NDCs for rows where account demographics are known. There is
+     * no need to look up drug data for rows whose account could not be found. Each NDC is trimmed of surrounding spaces,
+     * as it is looked up in the drug tables, but otherwise kept as recorded.
+     * @return sorted array of distinct NDC values
+     */
+    public String[] getDistinctNdcs() {
+        boolean[] used = new boolean[ndcs.size()];
+        for (int row=0; row<size; row++) {
+            if (accountStateCode[row] == StringDictionary.NULL_CODE) {
+                continue;
+            }
+            if (orderedNDC[row] != StringDictionary.NULL_CODE) {
+                used[orderedNDC[row]] = true;
+            }
+            if (shippedNDC[row] != StringDictionary.NULL_CODE) {
+                used[shippedNDC[row]] = true;
+            }
+        }
+
+        TreeSet<String> distinct = new TreeSet<String>();
+        for (int code=0; code<used.length; code++) {
+            String ndc = used[code] ? OrderedDrugBatch.lookupNdc(ndcs.decode(code)) : null;
+            if (ndc != null) {
+                distinct.add(ndc);
+            }
+        }
+        return distinct.toArray(new String[0]);
+    }
+
+    /**
+     * Set the DEA Schedule and Opioid flag on the ordered and shipped drug of every row with known account demographics.
+     * The three arrays are parallel and only contain the NDCs that were found, sorted in ascending order.
+     * @param foundNdcs sorted array of the NDCs that were found, as returned by getDistinctNdcs()
+     * @param deaSchedules DEA Schedule for each found NDC
+     * @param opioidFlags whether each found NDC is an Opioid
+     */
+    public void applyDrugInfo(String[] foundNdcs, String[] deaSchedules, boolean[] opioidFlags) {
+        //Resolved once per distinct NDC text rather than once per row
+        int[] scheduleCodes = new int[ndcs.size()];
+        byte[] flags = new byte[ndcs.size()];
+        for (int code=0; code<ndcs.size(); code++) {
+            String ndc = OrderedDrugBatch.lookupNdc(ndcs.decode(code));
+            int idx = ndc == null ? -1 : Arrays.binarySearch(foundNdcs, ndc);
+            scheduleCodes[code] = idx >= 0 ? schedules.encode(deaSchedules[idx]) : StringDictionary.NULL_CODE;
+            flags[code] = idx >= 0 ? (opioidFlags[idx] ? FLAG_TRUE : FLAG_FALSE) : FLAG_UNKNOWN;
+        }
+
+        for (int row=0; row<size; row++) {
+            if (accountStateCode[row] == StringDictionary.NULL_CODE) {
+                continue;
+            }
+            int code = orderedNDC[row];
+            if (code != StringDictionary.NULL_CODE && scheduleCodes[code] != StringDictionary.NULL_CODE) {
+                orderedNDCSchedule[row] = scheduleCodes[code];
+                orderedNDCOpiodFlag[row] = flags[code];
+            }
+            code = shippedNDC[row];
+            if (code != StringDictionary.NULL_CODE && scheduleCodes[code] != StringDictionary.NULL_CODE) {
+                shippedNDCSchedule[row] = scheduleCodes[code];
+                shippedNDCOpiodFlag[row] = flags[code];
+            }
+        }
+    }
+
+    /**
+     * Select the rows that should be written to the ordering history table. A row qualifies when the account
+     * demographics are known, drug data was found for the ordered or shipped NDC, and either drug is an Opioid.
+     * @return array of qualifying row indexes, in row order
+     */
+    public int[] selectHistoryRows() {
+        int[] rows = new int[size];
+        int count = 0;
+        for (int row=0; row<size; row++) {
+            boolean known = accountStateCode[row] != StringDictionary.NULL_CODE &&
+                    (orderedNDCSchedule[row] != StringDictionary.NULL_CODE ||
+                     shippedNDCSchedule[row] != StringDictionary.NULL_CODE);
+            boolean opioid = orderedNDCOpiodFlag[row] == FLAG_TRUE || shippedNDCOpiodFlag[row] == FLAG_TRUE;
+            if (known && opioid) {
+                rows[count++] = row;
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    /**
+     * @return dictionary of the Account Numbers in this batch, indexed by account code
+     */
+    public StringDictionary getAccounts() {
+        return accounts;
+    }
+
+    /**
+     * @param row the row index
+     * @return the Account Number for the row
+     */
+    public String getAccountNumber(int row) {
+        return accounts.decode(accountNumber[row]);
+    }
+
+    /**
+     * @param row the row index
+     * @return the ISA Sender Id for the row
+     */
+    public String getIsaSenderId(int row) {
+        return senders.decode(isaSenderId[row]);
+    }
+
+    /**
+     * @param ndc NDC as recorded in the 855
+     * @return the NDC as it is looked up in the drug tables: trimmed, or null if it is blank
+     */
+    public static String lookupNdc(String ndc) {
+        if (ndc == null) {
+            return null;
+        }
+        String trimmed = ndc.trim();
+        return trimmed.length() == 0 ? null : trimmed;
+    }
+
+    public String toString() {
+        return "OrderedDrugBatch contains " + size + " row(s) for " + accounts.size() + " account(s)";
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= isaSenderId.length) {
+            return;
+        }
+        int capacity = Math.max(required, isaSenderId.length * 2);
+        isaSenderId = Arrays.copyOf(isaSenderId, capacity);
+        accountNumber = Arrays.copyOf(accountNumber, capacity);
+        accountStateCode = Arrays.copyOf(accountStateCode, capacity);
+        accountZipCode = Arrays.copyOf(accountZipCode, capacity);
+        orderDate = Arrays.copyOf(orderDate, capacity);
+        purchaseOrderNumber = Arrays.copyOf(purchaseOrderNumber, capacity);
+        orderedNDC = Arrays.copyOf(orderedNDC, capacity);
+        orderedItem = Arrays.copyOf(orderedItem, capacity);
+        orderedQuantity = Arrays.copyOf(orderedQuantity, capacity);
+        orderedNDCSchedule = Arrays.copyOf(orderedNDCSchedule, capacity);
+        orderedNDCOpiodFlag = Arrays.copyOf(orderedNDCOpiodFlag, capacity);
+        shippedNDC = Arrays.copyOf(shippedNDC, capacity);
+        shippedItem = Arrays.copyOf(shippedItem, capacity);
+        shippedQuantity = Arrays.copyOf(shippedQuantity, capacity);
+        shippedNDCSchedule = Arrays.copyOf(shippedNDCSchedule, capacity);
+        shippedNDCOpiodFlag = Arrays.copyOf(shippedNDCOpiodFlag, capacity);
+        ackStatusCode = Arrays.copyOf(ackStatusCode, capacity);
+        interchangeControlNumber = Arrays.copyOf(interchangeControlNumber, capacity);
+        transactionControlNumber = Arrays.copyOf(transactionControlNumber, capacity);
+        lineNumber = Arrays.copyOf(lineNumber, capacity);
+    }
+
+    private static byte toFlag(Boolean value) {
+        if (value == null) {
+            return FLAG_UNKNOWN;
+        }
+        return value.booleanValue() ? FLAG_TRUE : FLAG_FALSE;
+    }
+
+    private static Boolean fromFlag(byte flag) {
+        if (flag == FLAG_UNKNOWN) {
+            return null;
+        }
+        return flag == FLAG_TRUE ? Boolean.TRUE : Boolean.FALSE;
+    }
+
+    private int size = 0;
+
+    private StringDictionary senders = new StringDictionary();
+    private StringDictionary accounts = new StringDictionary();
+    private StringDictionary stateCodes = new StringDictionary();
+    private StringDictionary zipCodes = new StringDictionary();
+    private StringDictionary schedules = new StringDictionary();
+    private StringDictionary ndcs = new StringDictionary(DEFAULT_CAPACITY);
+    private StringDictionary text = new StringDictionary(DEFAULT_CAPACITY);
+
+    private int[] isaSenderId;
+    private int[] accountNumber;
+    private int[] accountStateCode;
+    private int[] accountZipCode;
+    private int[] orderDate;
+    private int[] purchaseOrderNumber;
+    private int[] orderedNDC;
+    private int[] orderedItem;
+    private int[] orderedQuantity;
+    private int[] orderedNDCSchedule;
+    private byte[] orderedNDCOpiodFlag;
+    private int[] shippedNDC;
+    private int[] shippedItem;
+    private int[] shippedQuantity;
+    private int[] shippedNDCSchedule;
+    private byte[] shippedNDCOpiodFlag;
+    private int[] ackStatusCode;
+    private int[] interchangeControlNumber;
+    private int[] transactionControlNumber;
+    private int[] lineNumber;
+
+}
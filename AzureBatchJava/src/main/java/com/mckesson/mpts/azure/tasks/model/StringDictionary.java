@@ -0,0 +1,76 @@
+package com.mckesson.mpts.azure.tasks.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Simple dictionary used to encode repeating String values (ISA Sender Ids, Account Numbers, DEA Schedules, etc) as
+ * int codes within an OrderedDrugBatch. Each distinct value is stored only once and every row in the batch refers to
+ * it by code. A null value is always represented by the NULL_CODE value and is never stored in the dictionary.
+ */
+public class StringDictionary {
+
+    public static final int NULL_CODE = -1;
+
+    public StringDictionary() {
+        this(16);
+    }
+
+    public StringDictionary(int initialCapacity) {
+        this.codes = new HashMap<String, Integer>(initialCapacity * 2);
+        this.values = new ArrayList<String>(initialCapacity);
+    }
+
+    /**
+     * Return the code for the value, adding the value to the dictionary if it has not been seen before
+     * @param value String to encode, may be null
+     * @return code for the value or NULL_CODE if the value is null
+     */
+    public int encode(String value) {
+        if (value == null) {
+            return NULL_CODE;
+        }
+        Integer code = codes.get(value);
+        if (code == null) {
+            code = values.size();
+            values.add(value);
+            codes.put(value, code);
+        }
+        return code;
+    }
+
+    /**
+     * Return the code for the value without adding it to the dictionary
+     * @param value String to look up
+     * @return code for the value or NULL_CODE if the value is null or not present
+     */
+    public int lookup(String value) {
+        if (value == null) {
+            return NULL_CODE;
+        }
+        Integer code = codes.get(value);
+        return code == null ? NULL_CODE : code;
+    }
+
+    /**
+     * Return the String value for a code
+     * @param code code previously returned by encode()
+     * @return the String value or null for NULL_CODE
+     */
+    public String decode(int code) {
+        return code == NULL_CODE ? null : values.get(code);
+    }
+
+    /**
+     * @return the number of distinct values held in the dictionary
+     */
+    public int size() {
+        return values.size();
+    }
+
+    private Map<String, Integer> codes = null;
+    private List<String> values = null;
+
+}
@@ -1,16 +1,34 @@
 package com.mckesson.mpts.azure.tasks.poackparser;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mckesson.mpts.azure.tasks.MergeDrugInfoTask.MergeDrugInfoTask;
 import com.mckesson.mpts.azure.tasks.RecordOrderingHistoryTask.RecordOrderingHistoryTask;
+import com.mckesson.mpts.azure.tasks.DocumentResult;
 import com.mckesson.mpts.azure.tasks.TaskInfo;
+import com.mckesson.mpts.azure.tasks.TaskSummary;
+import com.mckesson.mpts.azure.tasks.io.EDIDocumentReader;
+import com.mckesson.mpts.azure.tasks.io.FileIngestor;
+import com.mckesson.mpts.azure.tasks.io.OrderedDrugFiles;
 import com.mckesson.mpts.azure.tasks.model.OrderedDrug;
+import com.mckesson.mpts.azure.tasks.model.OrderedDrugBatch;
 import com.mckesson.mpts.azure.tasks.model.OrderedDrugs;
+import com.mckesson.mpts.azure.tasks.queue.WorkQueueSelector;
+import com.mckesson.mpts.azure.tasks.queue.WorkQueues;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 /**
  * This class operates as an Azure Batch task with the responsibility for parsing one or more EDI X12 855 Purchase
@@ -69,7 +87,11 @@ import java.io.FilenameFilter;
  * AZ_BATCH_NODE_ROOT_DIR - The root directory for the Node
  *
  * The set of files to process must be pre-loaded to the Storage Container for the Batch Account, and this class
- * assumes these files are at the root of the working directory for the class.
+ * assumes these files are at the root of the working directory for the class. Files may be plain .txt EDI documents or
+ * .zip/.gz archives of EDI documents, which are read entry by entry without being unpacked to disk.
+ *
+ * The task normally runs in its own JVM through main(). A TaskDaemon already running on the Node runs it through
+ * runTask() instead, with the task's environment and working directory passed in, so many tasks share one warm JVM.
  *
  */
 public class EDI855ParseTask {
@@ -77,31 +99,94 @@ public class EDI855ParseTask {
     public static final String STANDARD_CONSOLE_OUTPUT_FILENAME = "stdout.txt";
     public static final String STANDARD_CONSOLE_ERROR_FILENAME = "stderr.txt";
 
+    //Number of parsed drug rows to collect before merging and recording them as one batch
+    public static final int MAX_BATCH_ROWS = 5000;
+
+    //Optional argument indicating the merge and history steps run as separate downstream tasks, MergeDrugInfoTask and
+    //  RecordOrderingHistoryTask, which read the parsed drugs from this task's intermediate file
+    public static final String MULTI_TASK_OPTION = "-multitask";
+
+    //Optional argument, as -slice={index}/{count}, restricting this task to one slice of the input documents when a job
+    //  runs several parse tasks over the same input files
+    public static final String SLICE_OPTION = "-slice=";
+
+    //Optional argument pulling documents from the shared work queue named by the WORK_QUEUE_LOCATION environment
+    //  variable rather than processing a fixed slice
+    public static final String QUEUE_OPTION = "-queue";
+
+    //Exit code of a task that stopped before processing any documents because the database has not been upgraded
+    public static final int CONFIGURATION_ERROR_EXIT_CODE = 2;
+
     /**
      * Initiate the process of parsing a set of 855 Purchase Order Acknowledgment documents and recording ordering
      * history for any "opioid" drugs found within the Purchase Order. This class primarily operates within the Azure Batch
      * framework but can operate as a stand-alone application provided all Environment variables are properly set
      * @param args Accepts 1 parameter for the JDBC URL for the database used to obtain drug and account and to write
-     *             ordering history as well.
+     *             ordering history as well. Optional parameters may follow it: "-multitask" writes the parsed drugs to
+     *             a binary intermediate file for separate merge and history tasks instead, "-slice=i/n" processes
+     *             only slice i of n of the input documents and "-queue" processes the documents this task claims
+     *             from the job's shared work queue.
      */
     public static void main(String[] args) {
+        int exitCode = EDI855ParseTask.runTask(args, System.getenv(), new File("./"));
+        if (exitCode != 0) {
+            System.exit(exitCode);
+        }
+    }
+
+    /**
+     * Run the task as main() does, without exiting the JVM
+     * @param args arguments as passed to main()
+     * @param environment the task's environment variables
+     * @param workingDir the task's working directory, holding its input files
+     * @return exit code for the task: 0 once the documents have been processed, whatever their results, 1 if the
+     *         arguments are not valid, or CONFIGURATION_ERROR_EXIT_CODE if the history table has no source_key column
+     */
+    public static int runTask(String[] args, Map<String, String> environment, File workingDir) {
 
-        String batchTaskId = System.getenv("AZ_BATCH_TASK_ID");
-        String batchJobId = System.getenv("AZ_BATCH_JOB_ID");
-        String batchTaskDir = System.getenv("AZ_BATCH_TASK_DIR");
-        String batchSharedDir = System.getenv("AZ_BATCH_NODE_SHARED_DIR");
-        String batchNodeRootDir = System.getenv("AZ_BATCH_NODE_ROOT_DIR");
+        String batchTaskId = environment.get("AZ_BATCH_TASK_ID");
+        String batchJobId = environment.get("AZ_BATCH_JOB_ID");
+        String batchTaskDir = environment.get("AZ_BATCH_TASK_DIR");
+        String batchSharedDir = environment.get("AZ_BATCH_NODE_SHARED_DIR");
+        String batchNodeRootDir = environment.get("AZ_BATCH_NODE_ROOT_DIR");
 
         String jdbcURL = null;
 
         if (args.length < 1) {
             System.err.println("Expected JDBC URL in arg[0]. Please check arguments...");
-            System.exit(1);
+            return 1;
         }
         jdbcURL = args[0];
         if (jdbcURL.length() == 0) {
             System.err.println("Empty JDBC URL found in arg[0]. Please provide a valid JDBC URL");
-            System.exit(1);
+            return 1;
+        }
+        boolean multiTask = false;
+        boolean queueDispatch = false;
+        int sliceIndex = 0;
+        int sliceCount = 1;
+        for (int i=1; i<args.length; i++) {
+            if (MULTI_TASK_OPTION.equalsIgnoreCase(args[i])) {
+                multiTask = true;
+            }
+            else if (QUEUE_OPTION.equalsIgnoreCase(args[i])) {
+                queueDispatch = true;
+            }
+            else if (args[i].toLowerCase().startsWith(SLICE_OPTION)) {
+                String[] slice = args[i].substring(SLICE_OPTION.length()).split("/");
+                try {
+                    sliceIndex = Integer.parseInt(slice[0]);
+                    sliceCount = Integer.parseInt(slice[1]);
+                }
+                catch (RuntimeException re) {
+                    System.err.println("Invalid slice option " + args[i] + ". Expected " + SLICE_OPTION + "{index}/{count}");
+                    return 1;
+                }
+            }
+        }
+        if (multiTask && (batchSharedDir == null || batchSharedDir.length() == 0)) {
+            System.err.println(MULTI_TASK_OPTION + " requires the AZ_BATCH_NODE_SHARED_DIR environment variable");
+            return 1;
         }
 
         //Create the task info object for passing to downstream tasks
@@ -119,19 +204,26 @@ public class EDI855ParseTask {
         String fileData = null;
 
         String fileToProcess = null;
-        String outputFileName = null;
+        //Counts and stage timings reported back to the client in the task's summary file
+        TaskSummary summary = new TaskSummary();
+        long taskStart = System.currentTimeMillis();
+        //How each document fared, read back by the client to retry or dead-letter its input files
+        PrintWriter results = null;
 
         try {
-            File batchTaskDirFile = new File("./");
+            File batchTaskDirFile = workingDir;
 
-            //Retrieve only .txt files but skip the stderr.txt and stdout.txt files created by executing tasks
+            //Retrieve only .txt files and .zip/.gz archives of EDI documents but skip the stderr.txt, stdout.txt,
+            //  document results and summary files created by executing tasks
             FilenameFilter textFilter = new FilenameFilter() {
                 public boolean accept(File dir, String name) {
                     String lowercaseName = name.toLowerCase();
-                    if (lowercaseName.endsWith(".txt")) {
-                        //ignore the stderr and stdout files...
+                    if (EDIDocumentReader.isSupportedInput(lowercaseName)) {
+                        //ignore the stderr, stdout, results and summary files...
                         if (lowercaseName.equalsIgnoreCase(STANDARD_CONSOLE_OUTPUT_FILENAME) ||
-                                lowercaseName.equalsIgnoreCase(STANDARD_CONSOLE_ERROR_FILENAME)) {
+                                lowercaseName.equalsIgnoreCase(STANDARD_CONSOLE_ERROR_FILENAME) ||
+                                lowercaseName.equalsIgnoreCase(DocumentResult.RESULTS_FILENAME) ||
+                                lowercaseName.equalsIgnoreCase(TaskSummary.SUMMARY_FILENAME)) {
                             return false;
                         }
                         else {
@@ -143,23 +235,71 @@ public class EDI855ParseTask {
                 }
             };
 
-            //Retrieve a list of all .txt file in the batch task directory
+            results = EDI855ParseTask.openResultsFile(workingDir);
+
+            //Retrieve a list of all input files in the batch task directory
             File[] filesToProcess = batchTaskDirFile.listFiles(textFilter);
-            File nextFile = null;
+            //Every task sharing these files must see them in the same order for slicing to divide them correctly
+            if (filesToProcess != null) {
+                Arrays.sort(filesToProcess);
+            }
             EDIX12TransactionData docParser = null;
+            OrderedDrugBatch drugBatch = new OrderedDrugBatch(MAX_BATCH_ROWS);
+            FileIngestor ingestor = new FileIngestor();
+            List<String> batchFiles = new ArrayList<String>();
+            //The drugs of each document in the batch, kept so a failed batch can be processed again one document at a time
+            List<OrderedDrugs> batchDocuments = new ArrayList<OrderedDrugs>();
 
             //
             if (filesToProcess != null && filesToProcess.length > 0) {
                 System.out.println(batchJobId + "-" + batchTaskId + " found " + filesToProcess.length + " files to process...");
-                for (int i=0; i< filesToProcess.length; i++) {
-                    nextFile = filesToProcess[i];
-                    fileToProcess = nextFile.getName();
-                    outputFileName = fileToProcess + ".json";
 
-                    //System.out.println(batchJobId + " - Now parsing file " + fileToProcess);
+                //Every history row is written with a source_key, so a database that has not been upgraded would reject
+                //  every insert with a permanent error and the client would dead-letter the files. Stopping without a
+                //  result for any document keeps the files in place to be retried once the database is upgraded
+                try {
+                    if (!multiTask && !RecordOrderingHistoryTask.hasSourceKey(jdbcURL)) {
+                        System.err.println("Run OrderingHistorySourceKey-Migration.sql against the database, then run " +
+                                "again. No documents were processed");
+                        return CONFIGURATION_ERROR_EXIT_CODE;
+                    }
+                }
+                catch (SQLException sqle) {
+                    //Left to the batches, which fail and are reported as they would be without the check
+                    System.err.println("Unable to check the ordering history table: " + sqle.getMessage());
+                }
+
+                //EDIDocumentReader returns each plain file as one document and streams the entries of any archives
+                EDIDocumentReader documents = new EDIDocumentReader(filesToProcess, ingestor);
+                WorkQueueSelector queueSelector = null;
+                if (queueDispatch) {
+                    String queueLocation = environment.get(WorkQueues.LOCATION_ENV);
+                    if (queueLocation == null || queueLocation.length() == 0) {
+                        System.err.println(QUEUE_OPTION + " requires the " + WorkQueues.LOCATION_ENV + " environment variable");
+                        documents.close();
+                        return 1;
+                    }
+                    queueSelector = new WorkQueueSelector(WorkQueues.open(queueLocation, batchJobId + "-" + batchTaskId),
+                            WorkQueues.getItemDocuments(environment));
+                    documents.setSelector(queueSelector);
+                }
+                else if (sliceCount > 1) {
+                    System.out.println(batchJobId + "-" + batchTaskId + " processing slice " + sliceIndex + " of " + sliceCount);
+                    documents.setSlice(sliceIndex, sliceCount);
+                }
+                boolean moreDocuments = true;
+                while (moreDocuments) {
 
                     try {
-                        fileData = EDI855ParseTask.getFileData(nextFile.getPath());
+                        moreDocuments = documents.next();
+                        if (!moreDocuments) {
+                            break;
+                        }
+                        fileToProcess = documents.getDocumentName();
+                        fileData = documents.getDocumentData();
+                        long parseStart = System.currentTimeMillis();
+
+                        //System.out.println(batchJobId + " - Now parsing file " + fileToProcess);
 
                         //EDIX12TransactionData encapsulates the X12 parsing logic
                         docParser = new EDIX12TransactionData();
@@ -170,35 +310,57 @@ public class EDI855ParseTask {
 
                         //EDIX12ParseHelper facilitates geting a file parsed and then stored as OrderedDrug instances
                         OrderedDrug[] drugs = EDIX12ParseHelper.getOrderedDrugs(docParser);
+                        summary.addParseMillis(System.currentTimeMillis() - parseStart);
+                        summary.addDocuments(1);
+                        summary.addLines(docParser.getLines().size());
+                        summary.addDrugRows(drugs.length);
 
                         OrderedDrugs drugSet = new OrderedDrugs();
                         drugSet.setOrderedDrugs(drugs);
 
-                        //Removed code to write the files out when this was reworked to directly call downstream tasks
-                        //rather than use multiple Azure Batch Tasks
-
-                        //Jackson's ObjectMapper class is used to serialized the OrderedDrug set into JSON
-                        //ObjectMapper om = new ObjectMapper();
-                        //String jsonDrugs = om.writeValueAsString(drugSet);
-                        //System.out.println("JSON version of OrderedDrugs is:");
-                        //System.out.println(jsonDrugs);
+                        //Collect the drugs from many documents into one columnar batch so the merge and history
+                        //  steps run once per batch rather than once per document
+                        drugBatch.addAll(drugSet);
+                        batchFiles.add(fileToProcess);
 
-                        //Write the JSON file out to a shared directory for pickup by the next task in the job
-                        //EDI855ParseTask.writeOutputFile(outputFileName,jsonDrugs,batchSharedDir,batchTaskDir,batchJobId);
-
-                        //Directly utilize the downstream Task classes so only 1 Azure Task is needed.
-                        drugSet = MergeDrugInfoTask.mergeDrugData(myInfo, drugSet);
-                        drugSet = RecordOrderingHistoryTask.recordDrugData(myInfo, drugSet);
+                        //When running as the first of several tasks, every drug the task parses is written to its
+                        //  intermediate file at the end for the merge task to pick up
+                        if (multiTask) {
+                            continue;
+                        }
+                        batchDocuments.add(drugSet);
 
-                        //System.out.println(batchJobId + " - " + fileToProcess + " successfully parsed, merged, and recorded to history");
+                        if (drugBatch.size() >= MAX_BATCH_ROWS) {
+                            EDI855ParseTask.processBatch(myInfo, drugBatch, batchFiles, batchDocuments, summary, results);
+                            drugBatch = new OrderedDrugBatch(MAX_BATCH_ROWS);
+                            batchFiles.clear();
+                            batchDocuments.clear();
+                        }
                     }
                     catch (Exception e1) {
-                        System.err.println("Error encountered processing file " + fileToProcess + " skipping this file...");
+                        System.err.println("Error encountered processing file " + documents.getDocumentName() + " skipping this file...");
+                        summary.addFailedDocuments(1);
                         System.err.println(e1.getMessage());
+                        if (documents.getDocumentName() != null) {
+                            results.println(DocumentResult.failed(documents.getDocumentName(), e1).toLine());
+                        }
                         continue;
                     }
 
                 }
+                documents.close();
+                if (queueSelector != null) {
+                    System.out.println(batchJobId + "-" + batchTaskId + " claimed " + queueSelector.getClaimedItems() +
+                            " work items from the queue");
+                }
+
+                if (multiTask) {
+                    EDI855ParseTask.writeIntermediateFile(myInfo, drugBatch, batchFiles, summary, results);
+                }
+                else {
+                    //Merge and record whatever remains in the last batch
+                    EDI855ParseTask.processBatch(myInfo, drugBatch, batchFiles, batchDocuments, summary, results);
+                }
             }
             else {
                 System.out.println(batchJobId + " - " + "Found no files to parse...");
@@ -208,76 +370,149 @@ public class EDI855ParseTask {
         catch (Exception e) {
             e.printStackTrace();
         }
+        finally {
+            if (results != null) {
+                results.close();
+            }
+            summary.setTaskMillis(System.currentTimeMillis() - taskStart);
+            System.out.println(summary.toSummaryLine());
+            EDI855ParseTask.writeSummaryFile(workingDir, summary);
+        }
 
-
+        return 0;
     }
 
     /**
-     * Read an X12 file from the Blob storage
-     * @param filePath
-     * @return
+     * Merge account and drug data into a batch of parsed drugs and record any Opioid drugs to history. If the batch
+     * cannot be processed because of a problem with its data, each of its documents is processed again on its own so
+     * only the documents at fault are reported as failed. A transient failure, such as a lost database connection,
+     * fails every document in the batch, as processing them one at a time would fail the same way.
+     * @param myInfo TaskInfo instance holding runtime settings required by the downstream tasks
+     * @param drugBatch OrderedDrugBatch holding the drugs parsed from the batchFiles
+     * @param batchFiles Names of the files whose drugs are contained in the batch
+     * @param batchDocuments Drugs parsed from each of the batchFiles, in the same order
+     * @param summary TaskSummary to add the number of Opioid rows recorded, or of rows that failed, to
+     * @param results writer for the DocumentResult of each file in the batch
      */
-    private static String getFileData(String filePath) {
-        String fileData = null;
-        File x12File = null;
-        FileReader fileReader = null;
-        StringBuffer fileBuff = new StringBuffer(1000);
-
-        if (filePath != null) {
-            try {
-                x12File = new File(filePath);
-                if (x12File.exists()) {
-                    fileReader = new FileReader(x12File);
-                    int nextCharacter = fileReader.read();
-                    while (nextCharacter != -1) {
-                        fileBuff.append((char)nextCharacter);
-                        nextCharacter = fileReader.read();
-                    }
+    private static void processBatch(TaskInfo myInfo, OrderedDrugBatch drugBatch, List<String> batchFiles,
+                                     List<OrderedDrugs> batchDocuments, TaskSummary summary, PrintWriter results) {
+        try {
+            EDI855ParseTask.mergeAndRecord(myInfo, drugBatch, summary);
+            for (String batchFile : batchFiles) {
+                results.println(new DocumentResult(batchFile, DocumentResult.Status.OK, null).toLine());
+            }
+        }
+        catch (Exception e1) {
+            if (batchFiles.size() > 1 && !DocumentResult.isTransient(e1)) {
+                System.err.println("Error encountered merging and recording " + drugBatch.size() + " drugs from " +
+                        batchFiles.size() + " files, processing each file on its own: " + e1.getMessage());
+                for (int i=0; i<batchFiles.size(); i++) {
+                    OrderedDrugBatch documentBatch = new OrderedDrugBatch();
+                    documentBatch.addAll(batchDocuments.get(i));
+                    EDI855ParseTask.processBatch(myInfo, documentBatch, batchFiles.subList(i, i + 1),
+                            batchDocuments.subList(i, i + 1), summary, results);
                 }
+                return;
             }
-            catch (Exception e) {
-                e.printStackTrace();
+            System.err.println("Error encountered merging and recording " + drugBatch.size() + " drugs from files " +
+                    batchFiles + " skipping these files...");
+            System.err.println(e1.getMessage());
+            summary.addFailedRows(drugBatch.size());
+            summary.addFailedDocuments(batchFiles.size());
+            for (String batchFile : batchFiles) {
+                results.println(DocumentResult.failed(batchFile, e1).toLine());
             }
-            finally {
-                if (fileReader != null) {
-                    try {
-                        fileReader.close();
-                    }
-                    catch (Exception ee) {
+        }
+    }
 
-                    }
-                }
+    /**
+     * Merge account and drug data into a batch and record its Opioid drugs to history, adding the time taken to the
+     * summary
+     * @param myInfo TaskInfo instance holding runtime settings required by the downstream tasks
+     * @param drugBatch OrderedDrugBatch to merge and record
+     * @param summary TaskSummary to add the number of Opioid rows recorded to
+     * @throws Exception Thrown if the batch cannot be merged or recorded
+     */
+    private static void mergeAndRecord(TaskInfo myInfo, OrderedDrugBatch drugBatch, TaskSummary summary) throws Exception {
+        if (drugBatch.size() == 0) {
+            //Documents holding no drugs have nothing to record
+            return;
+        }
+        long mergeStart = System.currentTimeMillis();
+        MergeDrugInfoTask.mergeDrugData(myInfo, drugBatch);
+        long recordStart = System.currentTimeMillis();
+        summary.addMergeMillis(recordStart - mergeStart);
+        summary.addOpioidRows(RecordOrderingHistoryTask.recordDrugData(myInfo, drugBatch));
+        summary.addRecordMillis(System.currentTimeMillis() - recordStart);
+    }
+
+    /**
+     * Write the drugs parsed by this task to its intermediate file, {jobId}_{taskId}.odb in the Batch Shared Directory,
+     * for the merge and history tasks of the job to pick up. The file is written to a temporary file and renamed into
+     * place, so the downstream tasks never read a partial file. Each document is reported OK once the file holding its
+     * drugs is in place. If the file cannot be written every document is reported TRANSIENT, so its input file is
+     * retried.
+     * @param myInfo TaskInfo instance holding the Batch Shared Directory, Job Id and Task Id
+     * @param drugBatch OrderedDrugBatch holding every drug the task parsed
+     * @param batchFiles Names of the documents whose drugs are contained in the batch
+     * @param summary TaskSummary to add the number of documents that failed to
+     * @param results writer for the DocumentResult of each document
+     */
+    private static void writeIntermediateFile(TaskInfo myInfo, OrderedDrugBatch drugBatch, List<String> batchFiles,
+                                              TaskSummary summary, PrintWriter results) {
+        Path filePath = OrderedDrugFiles.getIntermediateFilePath(myInfo.getBatchSharedDir(), myInfo.getBatchJobId(),
+                myInfo.getBatchTaskId());
+        try {
+            if (drugBatch.size() > 0) {
+                OrderedDrugFiles.writeBatch(filePath, drugBatch);
+                System.out.println(myInfo.getBatchJobId() + " - wrote " + drugBatch.size() + " drugs from " +
+                        batchFiles.size() + " documents to " + filePath);
+            }
+            else {
+                //Documents holding no drugs leave nothing for the merge task, not even a file left by an earlier attempt
+                Files.deleteIfExists(filePath);
+            }
+            for (String batchFile : batchFiles) {
+                results.println(new DocumentResult(batchFile, DocumentResult.Status.OK, null).toLine());
             }
         }
-        fileData = fileBuff.toString();
+        catch (IOException ioe) {
+            System.err.println("Error encountered writing the intermediate file " + filePath + ": " + ioe.getMessage());
+            summary.addFailedDocuments(batchFiles.size());
+            for (String batchFile : batchFiles) {
+                results.println(new DocumentResult(batchFile, DocumentResult.Status.TRANSIENT,
+                        "Unable to write the intermediate file: " + ioe.getMessage()).toLine());
+            }
+        }
+    }
 
-        return fileData;
+    /**
+     * Create the DocumentResult file in the task's working directory, replacing any left by an earlier attempt
+     * @param workingDir the task's working directory
+     * @return PrintWriter for the results
+     * @throws IOException If the file cannot be created
+     */
+    private static PrintWriter openResultsFile(File workingDir) throws IOException {
+        return new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(workingDir, DocumentResult.RESULTS_FILENAME)), StandardCharsets.UTF_8)));
     }
 
     /**
-     * Write a file out containing the dataToWrite String. This data is written to the Batch Shared Directory with
-     * the Job Id prepended to the File Name. This allows other tasks in this same job to retrieve only these files
-     * from the directory.
-     * @param filePath Full path to the file that was read
-     * @param dataToWrite String containing the file data to write
-     * @param batchSharedDir The Azure Batch shared directory, accessible to all jobs and tasks running in a Node
-     * @param batchTaskDir Obsolete, no longer used...
-     * @param batchJobId The identifier for the current Azure Batch job
-     * @throws Exception If any file-related errors occur
+     * Write the TaskSummary to its file in the task's working directory, where the client reads it once the job has
+     * completed
+     * @param workingDir the task's working directory
+     * @param summary TaskSummary for the task
      */
-    private static void writeOutputFile(String filePath, String dataToWrite, String batchSharedDir, String batchTaskDir, String batchJobId) throws Exception {
-        File fileToWrite = new File(filePath);
-        String fileName = fileToWrite.getName();
-        String sharedFilePath = batchSharedDir + "/" + batchJobId + "_" + fileName;
-//        String sharedFilePath = batchTaskDir + "/../" + batchJobId + "_" + fileName;
-
-        //System.out.println("Writing json file to: " + sharedFilePath);
-
-        File sharedFile = new File(sharedFilePath);
-        FileWriter fw = new FileWriter(sharedFile);
-        fw.write(dataToWrite);
-        fw.flush();
-        fw.close();
+    private static void writeSummaryFile(File workingDir, TaskSummary summary) {
+        try {
+            PrintWriter summaryWriter = new PrintWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(workingDir, TaskSummary.SUMMARY_FILENAME)), StandardCharsets.UTF_8));
+            summaryWriter.println(summary.toSummaryLine());
+            summaryWriter.close();
+        }
+        catch (IOException ioe) {
+            System.err.println("Unable to write " + TaskSummary.SUMMARY_FILENAME + ": " + ioe.getMessage());
+        }
     }
 
 }
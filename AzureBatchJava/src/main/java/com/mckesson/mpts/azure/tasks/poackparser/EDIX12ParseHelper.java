@@ -125,6 +125,9 @@ public class EDIX12ParseHelper {
                     nextDrug.setShippedNDC(nextLine.getShippedNDC());
                     nextDrug.setShippedQuantity(nextLine.getShippedQty());
                     nextDrug.setAckStatusCode(nextLine.getAckStatus());
+                    nextDrug.setInterchangeControlNumber(x12Transaction.getIsa13());
+                    nextDrug.setTransactionControlNumber(x12Transaction.getSt02());
+                    nextDrug.setLineNumber(i + 1);
                     drugs.add(nextDrug);
                 }
 
@@ -0,0 +1,150 @@
+package com.mckesson.mpts.azure.tasks.queue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * WorkQueue held in an Azure Storage Container so it can be shared by tasks on every Node in a Pool. An item is claimed
+ * by creating the blob {location}/{item}.claim with an "If-None-Match: *" condition, which the Storage service applies
+ * atomically: the first request creates the blob and every later one is rejected with 409 (Conflict). A rejected claim
+ * is read back and still counts as claimed if it holds this queue's owner, as when Azure Batch runs a task again.
+ *
+ * Tasks only have the task jar, Jackson and the MySQL driver on their classpath, so the blob is created with a plain
+ * HTTP PUT rather than the Azure Storage SDK. The queue location is a URL of the form
+ *
+ * https://{account}.blob.core.windows.net/{container}/{prefix}?{SAS}
+ *
+ * where the SAS grants create and read permission on the container. Requests that fail with a server error or timeout are
+ * retried with backoff before the error is thrown.
+ */
+public class BlobWorkQueue implements WorkQueue {
+
+    public static final String CLAIM_EXTENSION = ".claim";
+    public static final String STORAGE_VERSION = "2015-04-05";
+    public static final int MAX_ATTEMPTS = 4;
+    public static final long INITIAL_BACKOFF_MILLIS = 500L;
+    public static final int TIMEOUT_MILLIS = 30 * 1000;
+
+    /**
+     * @param location URL of the queue, including a SAS with create and read permission
+     * @param owner name recorded in each claim blob, such as the job and task id
+     */
+    public BlobWorkQueue(String location, String owner) {
+        int queryStart = location.indexOf('?');
+        this.baseUrl = queryStart < 0 ? location : location.substring(0, queryStart);
+        this.sas = queryStart < 0 ? "" : location.substring(queryStart + 1);
+        if (this.baseUrl.endsWith("/")) {
+            this.baseUrl = this.baseUrl.substring(0, this.baseUrl.length() - 1);
+        }
+        this.owner = (owner != null ? owner : "").getBytes(StandardCharsets.UTF_8);
+    }
+
+    public boolean claim(long item) throws IOException {
+        URL claimUrl = new URL(baseUrl + "/" + item + CLAIM_EXTENSION + (sas.length() > 0 ? "?" + sas : ""));
+
+        long backoffMillis = INITIAL_BACKOFF_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            int status = -1;
+            IOException failure = null;
+            try {
+                status = putClaim(claimUrl);
+                if (status == HttpURLConnection.HTTP_CREATED) {
+                    return true;
+                }
+                if (status == HttpURLConnection.HTTP_CONFLICT || status == HttpURLConnection.HTTP_PRECON_FAILED) {
+                    //Claimed already, but perhaps by an earlier attempt of this same task
+                    return isOwnClaim(claimUrl);
+                }
+            }
+            catch (IOException ioe) {
+                failure = ioe;
+            }
+
+            boolean retryable = failure != null || status == 408 || status == 429 || status >= 500;
+            if (!retryable || attempt >= MAX_ATTEMPTS) {
+                throw failure != null ? failure :
+                        new IOException("Unable to claim work item " + item + ", Storage returned HTTP " + status);
+            }
+            try {
+                Thread.sleep(backoffMillis);
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted claiming work item " + item);
+            }
+            backoffMillis *= 2;
+        }
+    }
+
+    private boolean isOwnClaim(URL claimUrl) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)claimUrl.openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setRequestProperty("x-ms-version", STORAGE_VERSION);
+
+        int status = connection.getResponseCode();
+        if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+            return false;
+        }
+        if (status != HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            throw new IOException("Unable to read the claim " + claimUrl.getPath() + ", Storage returned HTTP " + status);
+        }
+        InputStream in = connection.getInputStream();
+        try {
+            ByteArrayOutputStream claimOwner = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int count = in.read(buffer);
+            while (count != -1) {
+                claimOwner.write(buffer, 0, count);
+                count = in.read(buffer);
+            }
+            return Arrays.equals(owner, claimOwner.toByteArray());
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private int putClaim(URL claimUrl) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)claimUrl.openConnection();
+        connection.setRequestMethod("PUT");
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(owner.length);
+        connection.setRequestProperty("x-ms-version", STORAGE_VERSION);
+        connection.setRequestProperty("x-ms-blob-type", "BlockBlob");
+        connection.setRequestProperty("If-None-Match", "*");
+        connection.setRequestProperty("Content-Type", "text/plain");
+
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(owner);
+        }
+        finally {
+            out.close();
+        }
+
+        int status = connection.getResponseCode();
+        //Drain the response so the underlying connection can be kept alive for the next claim
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) != -1) {
+            }
+            in.close();
+        }
+        return status;
+    }
+
+    private String baseUrl = null;
+    private String sas = null;
+    private byte[] owner = null;
+}
@@ -0,0 +1,48 @@
+package com.mckesson.mpts.azure.tasks.queue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * WorkQueue held in a local directory. An item is claimed by creating the file {item}.claim in the directory, which the
+ * file system does atomically: only the first task to create the file succeeds. A file that already exists still counts
+ * as claimed if it holds this queue's owner.
+ *
+ * This queue is only shared by tasks that can see the same directory, such as tasks on one Node using
+ * AZ_BATCH_NODE_SHARED_DIR, or several threads or processes on a development machine. It stands in for BlobWorkQueue
+ * when testing without a Storage Account.
+ */
+public class LocalWorkQueue implements WorkQueue {
+
+    public static final String CLAIM_EXTENSION = ".claim";
+
+    /**
+     * @param directory directory holding the claim files. It is created if it does not exist.
+     * @param owner name recorded in each claim file, such as the job and task id
+     * @throws IOException Thrown if the directory cannot be created
+     */
+    public LocalWorkQueue(Path directory, String owner) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.owner = owner != null ? owner : "";
+    }
+
+    public boolean claim(long item) throws IOException {
+        try {
+            Files.write(directory.resolve(item + CLAIM_EXTENSION), owner.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            return true;
+        }
+        catch (FileAlreadyExistsException fae) {
+            //Claimed already, but perhaps by an earlier attempt of this same task
+            return owner.equals(new String(Files.readAllBytes(directory.resolve(item + CLAIM_EXTENSION)),
+                    StandardCharsets.UTF_8));
+        }
+    }
+
+    private Path directory = null;
+    private String owner = null;
+}
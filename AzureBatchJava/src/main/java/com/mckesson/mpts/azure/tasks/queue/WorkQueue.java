@@ -0,0 +1,28 @@
+package com.mckesson.mpts.azure.tasks.queue;
+
+import java.io.IOException;
+
+/**
+ * A queue of numbered work items shared by every task in a job. Tasks pull work by claiming items; each item can be
+ * claimed by exactly one task, whichever asks first, so faster tasks simply end up claiming more items and the work
+ * balances itself across Nodes.
+ *
+ * A claim belongs to the owner named when the queue was opened, the job and task id. When Azure Batch runs a task again,
+ * after a Node failure or task retry, the new attempt has the same owner and so claims again the items the earlier
+ * attempt held, rather than skipping them as held by another task and leaving their documents unprocessed.
+ *
+ * Items are numbered from 0 and the meaning of an item (which documents it covers) is agreed between the tasks, see
+ * WorkQueueSelector. Implementations must make claim() atomic across every task that shares the queue.
+ */
+public interface WorkQueue {
+
+    /**
+     * Try to claim a work item
+     * @param item number of the work item
+     * @return true if the item was claimed by this caller, or is held by an earlier attempt of the same owner, false if
+     *         another task already holds it
+     * @throws IOException Thrown if the queue cannot be reached
+     */
+    boolean claim(long item) throws IOException;
+
+}
@@ -0,0 +1,54 @@
+package com.mckesson.mpts.azure.tasks.queue;
+
+import com.mckesson.mpts.azure.tasks.io.DocumentSelector;
+
+import java.io.IOException;
+
+/**
+ * DocumentSelector that pulls documents from a WorkQueue. Work item n covers documents n * itemDocuments up to (but not
+ * including) (n + 1) * itemDocuments, counting across the job's input files in the order every task reads them.
+ *
+ * As the reader reaches the first document of each item the selector tries to claim the item; the documents of claimed
+ * items are selected and the rest are skipped. Each task therefore makes a single pass over the input, processing the
+ * items it wins and skipping those already taken, and the last item finishes at about the same time on every task.
+ */
+public class WorkQueueSelector implements DocumentSelector {
+
+    /**
+     * @param queue WorkQueue shared by every task in the job
+     * @param itemDocuments number of documents covered by each work item, the same for every task
+     */
+    public WorkQueueSelector(WorkQueue queue, int itemDocuments) {
+        if (itemDocuments < 1) {
+            throw new IllegalArgumentException("Work items must cover at least 1 document");
+        }
+        this.queue = queue;
+        this.itemDocuments = itemDocuments;
+    }
+
+    public boolean select(long ordinal) throws IOException {
+        long item = ordinal / itemDocuments;
+        if (item != currentItem) {
+            currentItem = item;
+            currentClaimed = queue.claim(item);
+            if (currentClaimed) {
+                claimedItems++;
+            }
+        }
+        return currentClaimed;
+    }
+
+    /**
+     * @return the number of work items claimed by this task
+     */
+    public int getClaimedItems() {
+        return claimedItems;
+    }
+
+    private WorkQueue queue = null;
+    private int itemDocuments = WorkQueues.DEFAULT_ITEM_DOCUMENTS;
+
+    private long currentItem = -1;
+    private boolean currentClaimed = false;
+    private int claimedItems = 0;
+}
@@ -0,0 +1,50 @@
+package com.mckesson.mpts.azure.tasks.queue;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Map;
+
+/**
+ * Opens the WorkQueue named by a queue location. Locations starting with http:// or https:// are Azure Storage URLs
+ * (see BlobWorkQueue); anything else is treated as a local directory (see LocalWorkQueue).
+ *
+ * Tasks started in queue dispatch mode find the location and item size in these environment variables, set on the task
+ * by OpiodOrderingWorker:
+ *
+ * WORK_QUEUE_LOCATION - queue location
+ * WORK_QUEUE_ITEM_DOCUMENTS - number of documents covered by each work item
+ */
+public class WorkQueues {
+
+    public static final String LOCATION_ENV = "WORK_QUEUE_LOCATION";
+    public static final String ITEM_DOCUMENTS_ENV = "WORK_QUEUE_ITEM_DOCUMENTS";
+
+    public static final int DEFAULT_ITEM_DOCUMENTS = 25;
+
+    /**
+     * Open a work queue
+     * @param location Storage URL (with SAS) or local directory of the queue
+     * @param owner name recorded with each claim, such as the job and task id
+     * @return WorkQueue for the location
+     * @throws IOException Thrown if a local queue directory cannot be created
+     */
+    public static WorkQueue open(String location, String owner) throws IOException {
+        String lowercaseLocation = location.toLowerCase();
+        if (lowercaseLocation.startsWith("https://") || lowercaseLocation.startsWith("http://")) {
+            return new BlobWorkQueue(location, owner);
+        }
+        return new LocalWorkQueue(Paths.get(location), owner);
+    }
+
+    /**
+     * @param environment environment variables of the task
+     * @return the number of documents per work item from WORK_QUEUE_ITEM_DOCUMENTS, or DEFAULT_ITEM_DOCUMENTS
+     */
+    public static int getItemDocuments(Map<String, String> environment) {
+        String itemDocuments = environment.get(ITEM_DOCUMENTS_ENV);
+        if (itemDocuments != null && itemDocuments.length() > 0) {
+            return Integer.parseInt(itemDocuments);
+        }
+        return DEFAULT_ITEM_DOCUMENTS;
+    }
+}
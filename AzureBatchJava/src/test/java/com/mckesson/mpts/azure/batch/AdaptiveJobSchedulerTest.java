@@ -0,0 +1,70 @@
+package com.mckesson.mpts.azure.batch;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+/**
+ * Feeds completed Jobs to an AdaptiveJobScheduler's AIMD controller and checks the Job size and concurrency grow while
+ * Jobs are quick and throughput improves, and shrink when throughput drops, when Jobs run well over the target turnaround
+ * and at once when a Job fails.
+ */
+public class AdaptiveJobSchedulerTest {
+
+    public static void main(String[] args) throws Exception {
+        File inputDir = Files.createTempDirectory("scheduler").toFile();
+        File[] inputFiles = new File[10];
+        for (int i = 0; i < inputFiles.length; i++) {
+            inputFiles[i] = new File(inputDir, "input" + i + ".txt");
+            RandomAccessFile file = new RandomAccessFile(inputFiles[i], "rw");
+            file.setLength(100 * AdaptiveJobScheduler.AVERAGE_SEGMENT_BYTES);
+            file.close();
+        }
+        //Starts at 2 files (200 segments) per Job and 2 Jobs in flight
+        AdaptiveJobScheduler scheduler = new AdaptiveJobScheduler(inputFiles, 2, 2, 8);
+        long now = 0;
+
+        //Quick Jobs: no change until as many Jobs as are in flight have completed, then both settings grow
+        now += 10000;
+        boolean adjusted = scheduler.recordMeasurement(200, 10000, true, now);
+        System.out.println("after 1 job adjusted=" + adjusted + " (expected false)");
+        now += 10000;
+        adjusted = scheduler.recordMeasurement(200, 10000, true, now);
+        System.out.println("after 2 jobs adjusted=" + adjusted + " size=" + scheduler.getTargetSegments() +
+                " concurrency=" + scheduler.getConcurrency() + " (expected true size=250 concurrency=3)");
+
+        //Throughput doubles: both grow again
+        for (int i = 0; i < 3; i++) {
+            now += 2500;
+            adjusted = scheduler.recordMeasurement(250, 10000, true, now);
+        }
+        System.out.println("faster adjusted=" + adjusted + " size=" + scheduler.getTargetSegments() + " concurrency=" +
+                scheduler.getConcurrency() + " (expected true size=300 concurrency=4)");
+
+        //Throughput drops: concurrency is halved, the Job size still grows as the Jobs are quick
+        for (int i = 0; i < 4; i++) {
+            now += 60000;
+            scheduler.recordMeasurement(300, 20000, true, now);
+        }
+        System.out.println("slower size=" + scheduler.getTargetSegments() + " concurrency=" + scheduler.getConcurrency() +
+                " (expected size=350 concurrency=2)");
+
+        //Jobs well over the target turnaround: the Job size is halved
+        for (int i = 0; i < 2; i++) {
+            now += 60000;
+            scheduler.recordMeasurement(350, AdaptiveJobScheduler.TARGET_JOB_MILLIS * 2, true, now);
+        }
+        System.out.println("long jobs size=" + scheduler.getTargetSegments() + " (expected 175)");
+
+        //A failed Job shrinks both at once
+        AdaptiveJobScheduler failing = new AdaptiveJobScheduler(inputFiles, 4, 4, 8);
+        adjusted = failing.recordMeasurement(400, 10000, false, 10000);
+        System.out.println("failed job adjusted=" + adjusted + " size=" + failing.getTargetSegments() + " concurrency=" +
+                failing.getConcurrency() + " (expected true size=200 concurrency=2)");
+
+        for (File inputFile : inputFiles) {
+            inputFile.delete();
+        }
+        inputDir.delete();
+    }
+}
@@ -0,0 +1,60 @@
+package com.mckesson.mpts.azure.batch;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Feeds files to an ArrivalBatcher at chosen times and checks that no batch is taken before the files settle, that a
+ * full batch is taken at once, that a part batch waits for the window, that a file still being written is held back
+ * and that a file removed while waiting is dropped.
+ */
+public class ArrivalBatcherTest {
+
+    public static void main(String[] args) throws Exception {
+        File inputDir = Files.createTempDirectory("arrivals").toFile();
+        ArrivalBatcher batcher = new ArrivalBatcher(3, 30000, 2000);
+        for (int i = 0; i < 4; i++) {
+            batcher.offer(ArrivalBatcherTest.createInput(inputDir, "file" + i + ".txt", "ISA*0" + i + "~"), 0);
+        }
+        System.out.println("before settling=" + ArrivalBatcherTest.names(batcher.takeBatch(1000)) + " (expected none)");
+        System.out.println("full batch=" + ArrivalBatcherTest.names(batcher.takeBatch(2000)) +
+                " (expected file0.txt file1.txt file2.txt)");
+        System.out.println("part batch in window=" + ArrivalBatcherTest.names(batcher.takeBatch(10000)) + " (expected none)");
+        System.out.println("part batch after window=" + ArrivalBatcherTest.names(batcher.takeBatch(30000)) +
+                " (expected file3.txt)");
+
+        File growing = ArrivalBatcherTest.createInput(inputDir, "growing.txt", "ISA*00~");
+        File removed = ArrivalBatcherTest.createInput(inputDir, "removed.txt", "ISA*00~");
+        batcher.offer(growing, 40000);
+        batcher.offer(removed, 40000);
+        ArrivalBatcherTest.createInput(inputDir, "growing.txt", "ISA*00~GS*00~");
+        removed.delete();
+        System.out.println("still writing=" + ArrivalBatcherTest.names(batcher.takeBatch(80000)) + " waiting=" +
+                batcher.getPendingFiles() + " (expected none waiting=1)");
+        System.out.println("written=" + ArrivalBatcherTest.names(batcher.takeBatch(82000)) + " (expected growing.txt)");
+
+        growing.delete();
+        inputDir.delete();
+    }
+
+    private static String names(File[] batch) {
+        if (batch == null) {
+            return "none";
+        }
+        StringBuilder names = new StringBuilder();
+        for (File file : batch) {
+            names.append(names.length() == 0 ? "" : " ").append(file.getName());
+        }
+        return names.toString();
+    }
+
+    private static File createInput(File dir, String name, String content) throws IOException {
+        File file = new File(dir, name);
+        FileWriter writer = new FileWriter(file);
+        writer.write(content);
+        writer.close();
+        return file;
+    }
+}
@@ -0,0 +1,106 @@
+package com.mckesson.mpts.azure.batch;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Uploads a file through a BlobStore whose first puts read part of the file and then fail, and checks the upload is
+ * retried from the start of the file each time, so the blob holds the whole file. Then checks an error the store
+ * reports as not retryable fails on the first attempt.
+ */
+public class BlobUploaderTest {
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("uploader").toFile();
+        File source = new File(dir, "source.txt");
+        Files.write(source.toPath(), "ISA*00*0123456789~GS*PR~ST*855*0001~".getBytes(StandardCharsets.UTF_8));
+        BlobUploader uploader = new BlobUploader(2, 4, 10);
+
+        FailingStore flaky = new FailingStore(new LocalBlobStore(new File(dir, "blobs")), 2, true);
+        uploader.upload(flaky, "bundles/source.txt", source);
+        File copy = new File(dir, "copy.txt");
+        flaky.get("bundles/source.txt", copy);
+        System.out.println("attempts=" + flaky.attempts + " (expected 3), whole file uploaded=" +
+                new String(Files.readAllBytes(copy.toPath()), StandardCharsets.UTF_8).equals(
+                        new String(Files.readAllBytes(source.toPath()), StandardCharsets.UTF_8)) + " (expected true)");
+
+        FailingStore denied = new FailingStore(new LocalBlobStore(new File(dir, "blobs")), 2, false);
+        try {
+            uploader.upload(denied, "bundles/denied.txt", source);
+            System.out.println("denied upload succeeded (expected an IOException)");
+        }
+        catch (IOException ioe) {
+            System.out.println("denied attempts=" + denied.attempts + " (expected 1)");
+        }
+        uploader.shutdown();
+
+        copy.delete();
+        source.delete();
+        for (String blobName : flaky.list("")) {
+            new File(new File(dir, "blobs"), blobName).delete();
+        }
+        new File(dir, "blobs/bundles").delete();
+        new File(dir, "blobs").delete();
+        dir.delete();
+    }
+
+    /**
+     * Reads part of the source, as a failed network upload would, and fails for the first few puts
+     */
+    private static class FailingStore implements BlobStore {
+        FailingStore(BlobStore store, int failures, boolean retryable) {
+            this.store = store;
+            this.failures = failures;
+            this.retryable = retryable;
+        }
+
+        public void put(String blobName, File source) throws IOException {
+            attempts++;
+            if (attempts <= failures) {
+                InputStream in = new FileInputStream(source);
+                try {
+                    in.read(new byte[8]);
+                }
+                finally {
+                    in.close();
+                }
+                throw new IOException("Connection reset after 8 bytes");
+            }
+            store.put(blobName, source);
+        }
+
+        public void get(String blobName, File target) throws IOException {
+            store.get(blobName, target);
+        }
+
+        public boolean exists(String blobName) throws IOException {
+            return store.exists(blobName);
+        }
+
+        public List<String> list(String prefix) throws IOException {
+            return store.list(prefix);
+        }
+
+        public String getReadUrl(String blobName) throws IOException {
+            return store.getReadUrl(blobName);
+        }
+
+        public String getWriteLocation(String prefix) throws IOException {
+            return store.getWriteLocation(prefix);
+        }
+
+        public boolean isRetryable(IOException e) {
+            return retryable;
+        }
+
+        private BlobStore store = null;
+        private int failures = 0;
+        private boolean retryable = true;
+        private volatile int attempts = 0;
+    }
+}
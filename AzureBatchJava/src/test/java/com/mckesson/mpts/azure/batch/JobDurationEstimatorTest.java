@@ -0,0 +1,37 @@
+package com.mckesson.mpts.azure.batch;
+
+/**
+ * Records Job durations in a JobDurationEstimator and checks the limits it gives: none until enough Jobs have completed,
+ * then limits scaled to the Job's size that follow a change in speed, with the minimum straggler limit and timeout
+ * still applying to small Jobs and no speculative copies when they are turned off.
+ */
+public class JobDurationEstimatorTest {
+
+    public static void main(String[] args) {
+        JobDurationEstimator estimator = new JobDurationEstimator(true);
+        estimator.record(100, 60000);
+        estimator.record(100, 60000);
+        System.out.println("after 2 jobs expected=" + estimator.getExpectedMillis(1000) + " straggler=" +
+                estimator.getStragglerMillis(1000) + " timeout=" + estimator.getTimeoutMillis(1000) +
+                " (expected 0 straggler=0 timeout=600000)");
+
+        estimator.record(100, 60000);
+        estimator.record(0, 60000);
+        estimator.record(100, 0);
+        System.out.println("after 3 jobs expected=" + estimator.getExpectedMillis(1000) + " straggler=" +
+                estimator.getStragglerMillis(1000) + " timeout=" + estimator.getTimeoutMillis(1000) +
+                " (expected 600000 straggler=1200000 timeout=2400000)");
+        System.out.println("small job straggler=" + estimator.getStragglerMillis(10) + " timeout=" +
+                estimator.getTimeoutMillis(10) + " (expected straggler=60000 timeout=600000)");
+
+        estimator.record(100, 120000);
+        System.out.println("after a slower job expected=" + estimator.getExpectedMillis(1000) + " (expected 780000)");
+
+        JobDurationEstimator noSpeculation = new JobDurationEstimator(false);
+        for (int i = 0; i < 3; i++) {
+            noSpeculation.record(100, 60000);
+        }
+        System.out.println("speculation off straggler=" + noSpeculation.getStragglerMillis(1000) + " timeout=" +
+                noSpeculation.getTimeoutMillis(1000) + " (expected straggler=0 timeout=2400000)");
+    }
+}
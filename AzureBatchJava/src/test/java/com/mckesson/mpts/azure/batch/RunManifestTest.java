@@ -0,0 +1,56 @@
+package com.mckesson.mpts.azure.batch;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Journals the progress of a few input files in a RunManifest, as a run stopped part way would leave it, then reopens
+ * the manifest and checks that each file's state, the unfinished job and its document count are recovered, that a line
+ * cut short is ignored and that a file changed since it was journaled is treated as new.
+ */
+public class RunManifestTest {
+
+    public static void main(String[] args) throws Exception {
+        File inputDir = Files.createTempDirectory("runmanifest").toFile();
+        File done = RunManifestTest.createInput(inputDir, "done.txt", "ISA*00~");
+        File staged = RunManifestTest.createInput(inputDir, "staged.txt", "ISA*01~");
+        File changed = RunManifestTest.createInput(inputDir, "changed.txt", "ISA*02~");
+        File journal = new File(inputDir, RunManifest.DEFAULT_MANIFEST_NAME);
+
+        RunManifest manifest = new RunManifest(journal, inputDir);
+        manifest.discover(new File[] {done, staged, changed});
+        manifest.record(new File[] {done}, RunManifest.FileState.PROCESSED, "job-1", 1);
+        manifest.record(new File[] {staged, changed}, RunManifest.FileState.SUBMITTED, "job-2", 2);
+        manifest.close();
+
+        //A crash part way through writing a line, then a change to one of the input files
+        FileWriter truncated = new FileWriter(journal, true);
+        truncated.write("1\tPROCESSED\tstaged.txt\t7");
+        truncated.close();
+        RunManifestTest.createInput(inputDir, "changed.txt", "ISA*02*CHANGED~");
+
+        manifest = new RunManifest(journal, inputDir);
+        File[] inputs = new File[] {done, staged, changed};
+        Map<String, List<File>> unfinished = manifest.getUnfinishedJobs(inputs);
+        System.out.println("done.txt state=" + manifest.getState(done) + " (expected PROCESSED)");
+        System.out.println("staged.txt state=" + manifest.getState(staged) + " (expected SUBMITTED)");
+        System.out.println("changed.txt state=" + manifest.getState(changed) + " (expected null)");
+        System.out.println("unfinished jobs=" + unfinished.keySet() + " files=" + unfinished.get("job-2").size() +
+                " (expected [job-2] files=1)");
+        System.out.println("job-2 state=" + manifest.getJobState("job-2") + " documents=" +
+                manifest.getJobDocuments("job-2") + " (expected SUBMITTED documents=2)");
+        manifest.close();
+    }
+
+    private static File createInput(File dir, String name, String content) throws IOException {
+        File file = new File(dir, name);
+        FileWriter writer = new FileWriter(file);
+        writer.write(content);
+        writer.close();
+        return file;
+    }
+}
@@ -0,0 +1,90 @@
+package com.mckesson.mpts.azure.batch;
+
+import com.microsoft.azure.batch.protocol.models.ResourceFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Stages two jars through a BlobStore whose SAS can be changed, and checks the jars are uploaded only once, the same
+ * ResourceFiles are handed out while the SAS is unchanged, and new ResourceFiles carrying the new SAS are built once it
+ * has been generated again.
+ */
+public class TaskJarStagerTest {
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("stager").toFile();
+        Files.write(new File(dir, "task.jar").toPath(), "task classes".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(dir, "driver.jar").toPath(), "driver classes".getBytes(StandardCharsets.UTF_8));
+        BlobUploader uploader = new BlobUploader(2, 4, 10);
+        SasStore store = new SasStore(new LocalBlobStore(new File(dir, "blobs")));
+        TaskJarStager stager = new TaskJarStager(dir.getAbsolutePath() + File.separator, "task.jar", "driver.jar");
+
+        List<ResourceFile> first = stager.getResourceFiles(store, uploader);
+        List<ResourceFile> second = stager.getResourceFiles(store, uploader);
+        System.out.println("puts=" + store.puts + " same files=" + (first == second) + " (expected 2 same files=true)");
+
+        store.sas = "sig=2";
+        List<ResourceFile> refreshed = stager.getResourceFiles(store, uploader);
+        System.out.println("puts=" + store.puts + " jars=" + refreshed.size() + " " + refreshed.get(0).filePath() +
+                " url ends with new SAS=" + refreshed.get(0).blobSource().endsWith("?sig=2") + " (expected 2 jars=2 task.jar " +
+                "url ends with new SAS=true)");
+        uploader.shutdown();
+
+        for (String blobName : store.list("")) {
+            File blob = new File(new File(dir, "blobs"), blobName);
+            blob.delete();
+            blob.getParentFile().delete();
+        }
+        new File(dir, "blobs/jars").delete();
+        new File(dir, "blobs").delete();
+        new File(dir, "task.jar").delete();
+        new File(dir, "driver.jar").delete();
+        dir.delete();
+    }
+
+    /**
+     * Appends a SAS, which the test can change, to every read URL and counts the puts
+     */
+    private static class SasStore implements BlobStore {
+        SasStore(BlobStore store) {
+            this.store = store;
+        }
+
+        public void put(String blobName, File source) throws IOException {
+            puts++;
+            store.put(blobName, source);
+        }
+
+        public void get(String blobName, File target) throws IOException {
+            store.get(blobName, target);
+        }
+
+        public boolean exists(String blobName) throws IOException {
+            return store.exists(blobName);
+        }
+
+        public List<String> list(String prefix) throws IOException {
+            return store.list(prefix);
+        }
+
+        public String getReadUrl(String blobName) throws IOException {
+            return store.getReadUrl(blobName) + "?" + sas;
+        }
+
+        public String getWriteLocation(String prefix) throws IOException {
+            return store.getWriteLocation(prefix);
+        }
+
+        public boolean isRetryable(IOException e) {
+            return true;
+        }
+
+        private BlobStore store = null;
+        private volatile int puts = 0;
+        private volatile String sas = "sig=1";
+    }
+}
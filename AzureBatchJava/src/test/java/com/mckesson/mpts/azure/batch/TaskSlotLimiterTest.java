@@ -0,0 +1,48 @@
+package com.mckesson.mpts.azure.batch;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Acquires task slots from a TaskSlotLimiter and checks that a Job waits while the slots are taken, that a waiting Job
+ * is given slots released by another, that growing and shrinking the capacity take effect and that a Job larger than
+ * the whole capacity gets every slot rather than waiting forever.
+ */
+public class TaskSlotLimiterTest {
+
+    public static void main(String[] args) throws Exception {
+        final TaskSlotLimiter limiter = new TaskSlotLimiter(4);
+        int first = limiter.tryAcquire(3, 0, TimeUnit.MILLISECONDS);
+        System.out.println("first job slots=" + first + " available=" + limiter.getAvailable() + " (expected 3 available=1)");
+        System.out.println("second job while full=" + limiter.tryAcquire(2, 50, TimeUnit.MILLISECONDS) + " (expected 0)");
+
+        final int[] waited = new int[1];
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    waited[0] = limiter.tryAcquire(2, 5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException ie) {
+                    waited[0] = -1;
+                }
+                acquired.countDown();
+            }
+        });
+        waiter.start();
+        Thread.sleep(50);
+        limiter.release(first);
+        acquired.await(5, TimeUnit.SECONDS);
+        System.out.println("waiting job slots=" + waited[0] + " after release (expected 2)");
+
+        limiter.resize(6);
+        System.out.println("grown capacity=" + limiter.getCapacity() + " available=" + limiter.getAvailable() +
+                " (expected 6 available=4)");
+        limiter.resize(1);
+        System.out.println("shrunk capacity=" + limiter.getCapacity() + " available=" + limiter.getAvailable() +
+                " (expected 1 available=-1)");
+        limiter.release(waited[0]);
+        System.out.println("oversize job slots=" + limiter.tryAcquire(10, 0, TimeUnit.MILLISECONDS) + " available=" +
+                limiter.getAvailable() + " (expected 1 available=0)");
+    }
+}
@@ -0,0 +1,223 @@
+package com.mckesson.mpts.azure.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures how quickly a parse task gets to work, and how much memory it uses, when started as a JVM with the five
+ * separate task jars, with the shaded task jar, and with the shaded jar and a class data sharing archive written from
+ * its class list as a Node would, and optionally as the native executable built by "mvn -P native package". Each task
+ * is started in a working directory holding one input file, with a JDBC URL nothing listens on so its batch fails to
+ * merge at once; the JVMs use this JVM's java executable. The median of the runs is reported for each:
+ *
+ * first file - from starting the task to it printing that it found its files to process
+ * exit - from starting the task to it exiting
+ * peak RSS - the most memory the task process had resident, sampled from /proc while it runs (Linux only)
+ *
+ * Arguments: {jar directory} {input file} [{runs} [{native executable}]], where the jar directory holds the jars named
+ * in OpiodOrderingWorker along with the shaded jar and class list built by "mvn -P appcds package". A JVM configuration
+ * whose jars are not in the jar directory is skipped. The benchmark fails if a task never reports finding its files,
+ * so "mvn -P native verify" runs it to check the native executable works as well as to time it.
+ */
+public class TaskStartupBenchmark {
+
+    private static final String TASK_CLASS = "com.mckesson.mpts.azure.tasks.poackparser.EDI855ParseTask";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Expected {jar directory} {input file} [{runs} [{native executable}]]");
+            System.exit(1);
+        }
+        File jarDir = new File(args[0]);
+        File input = new File(args[1]);
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+        File workDir = Files.createTempDirectory("task-startup").toFile();
+        File taskDir = new File(workDir, "task");
+        taskDir.mkdirs();
+        Files.copy(input.toPath(), new File(taskDir, input.getName()).toPath());
+
+        List<String> names = new ArrayList<String>();
+        List<List<String>> commands = new ArrayList<List<String>>();
+        List<String> separateJars = Arrays.asList(path(jarDir, OpiodOrderingWorker.TASK_JAR),
+                path(jarDir, OpiodOrderingWorker.JACKSON_CORE_JAR), path(jarDir, OpiodOrderingWorker.JACKSON_DATABIND_JAR),
+                path(jarDir, OpiodOrderingWorker.JACKSON_ANNOTATIONS_JAR), path(jarDir, OpiodOrderingWorker.MYSQL_JDBC_JAR));
+        if (TaskStartupBenchmark.allFiles(separateJars)) {
+            names.add("separate jars");
+            commands.add(Arrays.asList(java, "-classpath", String.join(File.pathSeparator, separateJars), TASK_CLASS));
+        }
+        else {
+            System.out.println("Skipping separate jars, not all of " + separateJars + " were found");
+        }
+
+        File shadedJar = new File(jarDir, OpiodOrderingWorker.TASK_SHADED_JAR);
+        File classList = new File(jarDir, OpiodOrderingWorker.TASK_CLASS_LIST);
+        if (TaskStartupBenchmark.allFiles(Arrays.asList(shadedJar.getPath(), classList.getPath()))) {
+            //The archive is written for a copy of the jar, as a Node writes it for the copy in its shared directory
+            File archiveDir = new File(workDir, "cds");
+            archiveDir.mkdirs();
+            File archivedJar = new File(archiveDir, shadedJar.getName());
+            Files.copy(shadedJar.toPath(), archivedJar.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+            File archive = new File(archiveDir, OpiodOrderingWorker.TASK_CDS_ARCHIVE);
+            Process dump = new ProcessBuilder(java, "-Xshare:dump", "-XX:SharedClassListFile=" + classList.getPath(),
+                    "-XX:SharedArchiveFile=" + archive.getPath(), "-classpath", archivedJar.getPath())
+                    .redirectErrorStream(true).redirectOutput(new File(workDir, "dump.log")).start();
+            if (dump.waitFor() != 0 || !archive.isFile()) {
+                System.err.println("Unable to write the archive, see " + new File(workDir, "dump.log"));
+                System.exit(1);
+            }
+
+            names.add("shaded jar");
+            commands.add(Arrays.asList(java, "-classpath", shadedJar.getPath(), TASK_CLASS));
+            names.add("shaded jar + AppCDS");
+            commands.add(Arrays.asList(java, "-Xshare:auto", "-XX:SharedArchiveFile=" + archive.getPath(), "-classpath",
+                    archivedJar.getPath(), TASK_CLASS));
+        }
+        else {
+            System.out.println("Skipping shaded jar, " + shadedJar + " and " + classList + " were not both found");
+        }
+
+        if (args.length > 3) {
+            File executable = new File(args[3]);
+            if (!executable.canExecute()) {
+                System.err.println("Native executable " + executable + " not found");
+                System.exit(1);
+            }
+            names.add("native executable");
+            commands.add(Arrays.asList(executable.getAbsolutePath()));
+        }
+        if (commands.isEmpty()) {
+            System.err.println("Nothing to run, " + jarDir + " holds none of the task jars");
+            System.exit(1);
+        }
+
+        List<List<Long>> firstFileMillis = new ArrayList<List<Long>>();
+        List<List<Long>> exitMillis = new ArrayList<List<Long>>();
+        List<List<Long>> peakKilobytes = new ArrayList<List<Long>>();
+        for (int c = 0; c < commands.size(); c++) {
+            firstFileMillis.add(new ArrayList<Long>());
+            exitMillis.add(new ArrayList<Long>());
+            peakKilobytes.add(new ArrayList<Long>());
+        }
+        //One warm-up round, then the configurations take turns so each sees the same machine conditions
+        for (int run = -1; run < runs; run++) {
+            for (int c = 0; c < commands.size(); c++) {
+                long[] times = TaskStartupBenchmark.timeTask(commands.get(c), taskDir);
+                if (times[0] < 0) {
+                    System.err.println(names.get(c) + " exited without finding its files to process, see its output above");
+                    System.exit(1);
+                }
+                if (run >= 0) {
+                    firstFileMillis.get(c).add(Long.valueOf(times[0]));
+                    exitMillis.get(c).add(Long.valueOf(times[1]));
+                    peakKilobytes.get(c).add(Long.valueOf(times[2]));
+                }
+            }
+        }
+
+        System.out.println("Median of " + runs + " runs with " + System.getProperty("java.version"));
+        for (int c = 0; c < commands.size(); c++) {
+            System.out.println(String.format("%-20s first file %5d ms, exit %5d ms, peak RSS %7d KB", names.get(c),
+                    median(firstFileMillis.get(c)), median(exitMillis.get(c)), median(peakKilobytes.get(c))));
+        }
+    }
+
+    /**
+     * Start one task and time it
+     * @return milliseconds to the task finding its files and to its exit, and its peak resident memory in KB
+     */
+    private static long[] timeTask(List<String> taskCommand, File taskDir) throws Exception {
+        List<String> command = new ArrayList<String>(taskCommand);
+        command.add("jdbc:mysql://127.0.0.1:1/benchmark?connectTimeout=1000");
+        ProcessBuilder builder = new ProcessBuilder(command).directory(taskDir).redirectErrorStream(true);
+        builder.environment().put("AZ_BATCH_JOB_ID", "benchmark");
+        builder.environment().put("AZ_BATCH_TASK_ID", "task");
+
+        long start = System.nanoTime();
+        final Process process = builder.start();
+        final File status = new File("/proc/" + getPid(process) + "/status");
+        final long[] peak = new long[1];
+        Thread sampler = new Thread() {
+            public void run() {
+                //VmHWM is the peak so far, so the last value read is the closest to the true peak
+                while (process.isAlive()) {
+                    try {
+                        for (String statusLine : Files.readAllLines(status.toPath(), StandardCharsets.UTF_8)) {
+                            if (statusLine.startsWith("VmHWM:")) {
+                                peak[0] = Long.parseLong(statusLine.replaceAll("[^0-9]", ""));
+                            }
+                        }
+                        Thread.sleep(1);
+                    }
+                    catch (Exception e) {
+                        //The process has exited
+                    }
+                }
+            }
+        };
+        sampler.start();
+        long firstFile = -1;
+        BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        List<String> lines = new ArrayList<String>();
+        String line;
+        while ((line = output.readLine()) != null) {
+            if (firstFile < 0 && line.contains("files to process")) {
+                firstFile = (System.nanoTime() - start) / 1000000L;
+            }
+            lines.add(line);
+        }
+        process.waitFor();
+        long exit = (System.nanoTime() - start) / 1000000L;
+        sampler.join();
+        if (firstFile < 0) {
+            for (String outputLine : lines) {
+                System.err.println(outputLine);
+            }
+        }
+        return new long[] {firstFile, exit, peak[0]};
+    }
+
+    /**
+     * @return the process id, from Process.pid() where it exists and otherwise from the pid field of the Java 8
+     *         UNIXProcess
+     */
+    private static long getPid(Process process) throws Exception {
+        try {
+            return ((Long)Process.class.getMethod("pid").invoke(process)).longValue();
+        }
+        catch (NoSuchMethodException nsme) {
+            Field pid = process.getClass().getDeclaredField("pid");
+            pid.setAccessible(true);
+            return pid.getInt(process);
+        }
+    }
+
+    private static boolean allFiles(List<String> paths) {
+        for (String path : paths) {
+            if (!new File(path).isFile()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String path(File dir, String name) {
+        return new File(dir, name).getPath();
+    }
+
+    private static long median(List<Long> values) {
+        List<Long> sorted = new ArrayList<Long>(values);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2).longValue();
+    }
+}
@@ -0,0 +1,40 @@
+package com.mckesson.mpts.azure.tasks;
+
+import com.mckesson.mpts.azure.tasks.io.EDIDocumentBundle;
+
+import java.io.File;
+import java.net.SocketTimeoutException;
+import java.sql.SQLException;
+import java.sql.SQLSyntaxErrorException;
+import java.util.List;
+
+/**
+ * Classifies a few failures as a parse task would, writes their DocumentResult lines and reads them back, then maps
+ * the document names a task reports for a bundle back to the input files they came from.
+ */
+public class DocumentResultTest {
+
+    public static void main(String[] args) {
+        String bundle = EDIDocumentBundle.getBundleName("OpioidJob-1");
+        DocumentResult ok = new DocumentResult(bundle + "!plain.txt", DocumentResult.Status.OK, null);
+        DocumentResult lostConnection = DocumentResult.failed(bundle + "!orders.zip!a.txt",
+                new Exception("merge failed", new SQLException("Communications link failure")));
+        DocumentResult timeout = DocumentResult.failed(bundle + "!zipped.gz!zipped", new SocketTimeoutException("Read timed out"));
+        DocumentResult badSql = DocumentResult.failed(bundle + "!plain.txt", new SQLSyntaxErrorException("bad\tsyntax"));
+        DocumentResult unparsable = DocumentResult.failed(bundle + "!orders.zip!b.txt",
+                new IllegalArgumentException("No ISA segment"));
+
+        String content = ok.toLine() + "\n" + lostConnection.toLine() + "\n" + timeout.toLine() + "\n" +
+                badSql.toLine() + "\n" + unparsable.toLine() + "\nTRANSI";
+        List<DocumentResult> results = DocumentResult.parseAll(content);
+        System.out.println("parsed " + results.size() + " results (expected 5)");
+        for (DocumentResult result : results) {
+            System.out.println(result.getStatus() + " " + EDIDocumentBundle.getSourceName(result.getDocumentName()) +
+                    " " + result.getError());
+        }
+        System.out.println("expected OK plain.txt, TRANSIENT orders.zip, TRANSIENT zipped.gz, PERMANENT plain.txt, " +
+                "PERMANENT orders.zip");
+        System.out.println("source of zipped.gz=" + EDIDocumentBundle.getSourceName(new File("zipped.gz")) +
+                " (expected zipped.gz)");
+    }
+}
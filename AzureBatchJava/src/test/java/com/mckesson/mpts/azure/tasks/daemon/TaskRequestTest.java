@@ -0,0 +1,63 @@
+package com.mckesson.mpts.azure.tasks.daemon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes a TaskRequest as a client would and reads it back as the daemon does, then routes the console output of two
+ * threads through TaskConsole to check each lands in its own stream.
+ */
+public class TaskRequestTest {
+
+    public static void main(String[] args) throws Exception {
+        File directory = Files.createTempDirectory("task-daemon").toFile();
+        Map<String, String> environment = new HashMap<String, String>();
+        environment.put("AZ_BATCH_JOB_ID", "OpioidJob-1");
+        environment.put("AZ_BATCH_TASK_ID", "parse855task");
+        environment.put("WORK_QUEUE_LOCATION", "C:\\queue dir\\OpioidJob-1");
+        environment.put("STORAGE_ACCOUNT_KEY", "secret");
+
+        File requestFile = new File(directory, "OpioidJob-1-parse855task" + TaskDaemon.REQUEST_SUFFIX);
+        new TaskRequest(new File(directory, "wd"), new String[] {"jdbc:mysql://host/db?a=1&b=2", "-queue"}, environment)
+                .write(requestFile);
+        TaskRequest request = TaskRequest.read(requestFile);
+        System.out.println("workingDir=" + request.getWorkingDir().getName() + " (expected wd)");
+        System.out.println("args=" + Arrays.toString(request.getArgs()) + " (expected [jdbc:mysql://host/db?a=1&b=2, -queue])");
+        System.out.println("queue=" + request.getEnvironment().get("WORK_QUEUE_LOCATION") + " (expected C:\\queue dir\\OpioidJob-1)");
+        System.out.println("key carried=" + request.getEnvironment().containsKey("STORAGE_ACCOUNT_KEY") + " (expected false)");
+        System.out.println("daemon running=" + TaskDaemon.isRunning(directory) + " (expected false)");
+
+        PrintStream console = System.out;
+        TaskConsole.install();
+        final ByteArrayOutputStream first = new ByteArrayOutputStream();
+        final ByteArrayOutputStream second = new ByteArrayOutputStream();
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            final ByteArrayOutputStream target = (i == 0) ? first : second;
+            final String name = "task" + i;
+            threads[i] = new Thread() {
+                public void run() {
+                    TaskConsole.redirect(new PrintStream(target, true), new PrintStream(target, true));
+                    for (int line = 0; line < 100; line++) {
+                        System.out.println(name);
+                    }
+                    TaskConsole.clear();
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        console.println("first only task0=" + !first.toString().contains("task1") + ", second only task1=" +
+                !second.toString().contains("task0") + " (expected true, true)");
+
+        requestFile.delete();
+        directory.delete();
+    }
+}
@@ -0,0 +1,121 @@
+package com.mckesson.mpts.azure.tasks.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Bundles a plain file, a .gz of the same name, a .zip repeating an entry name, a plain file named like the old index
+ * entry and two corrupt archives, then checks the bundle's Contents, its index and the document names
+ * EDIDocumentReader reports for it.
+ */
+public class EDIDocumentBundleTest {
+
+    public static void main(String[] args) throws Exception {
+        File inputDir = Files.createTempDirectory("bundle").toFile();
+        File plain = EDIDocumentBundleTest.createPlain(inputDir, "a.txt", "ISA*plain~");
+        File gzipped = EDIDocumentBundleTest.createGzip(inputDir, "a.txt.gz", "ISA*gzipped~");
+        File zipped = EDIDocumentBundleTest.createZip(inputDir, "orders.zip", true);
+        File truncated = EDIDocumentBundleTest.createGzip(inputDir, "truncated.txt.gz", "ISA*truncated~");
+        EDIDocumentBundleTest.truncate(truncated, 6);
+        File badCrc = EDIDocumentBundleTest.createZip(inputDir, "badcrc.zip", false);
+        EDIDocumentBundleTest.corruptData(badCrc);
+        File indexNamed = EDIDocumentBundleTest.createPlain(inputDir, "bundle-index.txt", "ISA*index~");
+
+        File[] inputFiles = new File[] {plain, gzipped, zipped, truncated, badCrc, indexNamed};
+        Path bundlePath = new File(inputDir, EDIDocumentBundle.getBundleName("OpioidJob-1")).toPath();
+        EDIDocumentBundle.Contents contents = EDIDocumentBundle.write(inputFiles, bundlePath);
+        System.out.println("documents=" + contents.getDocumentCount() + " (expected 5)");
+        System.out.println("per file=" + contents.getDocuments("a.txt") + " " + contents.getDocuments("a.txt.gz") + " " +
+                contents.getDocuments("orders.zip") + " " + contents.getDocuments("truncated.txt.gz") +
+                " (expected 1 1 2 -1)");
+        System.out.println("unreadable=" + contents.getUnreadableFiles().size() + " (expected 2)");
+        EDIDocumentBundle.Contents scanned = EDIDocumentBundle.scan(inputFiles);
+        System.out.println("scanned documents=" + scanned.getDocumentCount() + " unreadable=" +
+                scanned.getUnreadableFiles().size() + " (expected 5 unreadable=2)");
+
+        ZipInputStream bundleIn = new ZipInputStream(new FileInputStream(bundlePath.toFile()));
+        ZipEntry entry = bundleIn.getNextEntry();
+        while (entry != null && !EDIDocumentBundle.INDEX_ENTRY_NAME.equals(entry.getName())) {
+            entry = bundleIn.getNextEntry();
+        }
+        System.out.println("index lists " + (entry != null ? EDIDocumentBundle.readIndexCount(bundleIn) : -1) +
+                " documents (expected 5)");
+        bundleIn.close();
+
+        EDIDocumentReader reader = new EDIDocumentReader(new File[] {bundlePath.toFile()}, new FileIngestor());
+        while (reader.next()) {
+            System.out.println(EDIDocumentBundle.getSourceName(reader.getDocumentName()) + " <- " +
+                    reader.getDocumentName().substring(reader.getDocumentName().indexOf('!') + 1) + " " +
+                    reader.getDocumentData());
+        }
+        reader.close();
+        System.out.println("expected a.txt <- a.txt ISA*plain~, a.txt.gz <- a.txt.gz!a.txt ISA*gzipped~, " +
+                "orders.zip <- orders.zip!po.txt ISA*first~, orders.zip <- orders.zip!po.txt (2) ISA*second~, " +
+                "bundle-index.txt <- bundle-index.txt ISA*index~");
+
+        for (File file : inputDir.listFiles()) {
+            file.delete();
+        }
+        inputDir.delete();
+    }
+
+    private static File createPlain(File dir, String name, String content) throws IOException {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static File createGzip(File dir, String name, String content) throws IOException {
+        File file = new File(dir, name);
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+        out.write(content.getBytes(StandardCharsets.UTF_8));
+        out.close();
+        return file;
+    }
+
+    /**
+     * Write a zip with two entries. When repeatName is true the second entry is renamed to match the first, which
+     * ZipOutputStream itself does not allow
+     */
+    private static File createZip(File dir, String name, boolean repeatName) throws IOException {
+        File file = new File(dir, name);
+        ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(file));
+        zipOut.putNextEntry(new ZipEntry("po.txt"));
+        zipOut.write("ISA*first~".getBytes(StandardCharsets.UTF_8));
+        zipOut.putNextEntry(new ZipEntry("px.txt"));
+        zipOut.write("ISA*second~".getBytes(StandardCharsets.UTF_8));
+        zipOut.close();
+        if (repeatName) {
+            String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1);
+            Files.write(file.toPath(), content.replace("px.txt", "po.txt").getBytes(StandardCharsets.ISO_8859_1));
+        }
+        return file;
+    }
+
+    private static void truncate(File file, int bytes) throws IOException {
+        byte[] content = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(content, content.length - bytes));
+    }
+
+    /**
+     * Change the first bytes of the first entry's compressed data, just after its local header and name
+     */
+    private static void corruptData(File file) throws IOException {
+        byte[] content = Files.readAllBytes(file.toPath());
+        int dataStart = 30 + "po.txt".length();
+        content[dataStart] ^= 0x55;
+        content[dataStart + 1] ^= 0x55;
+        Files.write(file.toPath(), content);
+    }
+}
@@ -0,0 +1,68 @@
+package com.mckesson.mpts.azure.tasks.io;
+
+import com.mckesson.mpts.azure.tasks.model.OrderedDrug;
+import com.mckesson.mpts.azure.tasks.model.OrderedDrugBatch;
+import com.mckesson.mpts.azure.tasks.model.OrderedDrugs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+public class OrderedDrugBinaryTest {
+
+    public static void main(String[] args) {
+        OrderedDrugBinaryTest.testRoundTrip(OrderedDrugBinaryFormat.Compression.NONE);
+        OrderedDrugBinaryTest.testRoundTrip(OrderedDrugBinaryFormat.Compression.DEFLATE);
+    }
+
+    public static void testRoundTrip(OrderedDrugBinaryFormat.Compression compression) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            OrderedDrugBinaryWriter writer = new OrderedDrugBinaryWriter(bytes, compression);
+            for (int i=0; i<100; i++) {
+                writer.write(createDrugs(i));
+            }
+            writer.close();
+
+            OrderedDrugBinaryReader reader = new OrderedDrugBinaryReader(new ByteArrayInputStream(bytes.toByteArray()));
+            OrderedDrugs first = reader.read();
+            OrderedDrugBatch rest = reader.readBatch();
+            reader.close();
+
+            OrderedDrug drug = first.getOrderedDrugs()[1];
+            System.out.println(compression + ": " + bytes.size() + " bytes, first record drugs=" +
+                    first.getOrderedDrugs().length + ", remaining rows=" + rest.size() + " (expected 198)" +
+                    ", shippedNDC=" + drug.getShippedNDC() + ", shippedOpioid=" + drug.getShippedNDCOpiodFlag() +
+                    ", orderedOpioid=" + drug.getOrderedNDCOpiodFlag() + ", line=" + drug.getInterchangeControlNumber() +
+                    "/" + drug.getTransactionControlNumber() + "/" + drug.getLineNumber() +
+                    " (expected 000014493/144930001/2)");
+        }
+        catch (Exception e) {
+            System.out.println("Exception caught in binary round trip: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private static OrderedDrugs createDrugs(int document) {
+        OrderedDrug[] drugs = new OrderedDrug[2];
+        for (int i=0; i<drugs.length; i++) {
+            OrderedDrug drug = new OrderedDrug();
+            drug.setIsaSenderId("987654321      ");
+            drug.setAccountNumber("0008111575");
+            drug.setOrderDate("20180206");
+            drug.setPurchaseOrderNumber(Integer.toString(document));
+            drug.setOrderedNDC("00093573201");
+            drug.setOrderedQuantity("1");
+            drug.setShippedNDC(i == 0 ? "00093573201" : null);
+            drug.setShippedQuantity("1");
+            drug.setShippedNDCOpiodFlag(i == 0 ? Boolean.TRUE : null);
+            drug.setAckStatusCode("IA");
+            drug.setInterchangeControlNumber("000014493");
+            drug.setTransactionControlNumber("144930001");
+            drug.setLineNumber(i + 1);
+            drugs[i] = drug;
+        }
+        OrderedDrugs drugSet = new OrderedDrugs();
+        drugSet.setOrderedDrugs(drugs);
+        return drugSet;
+    }
+}
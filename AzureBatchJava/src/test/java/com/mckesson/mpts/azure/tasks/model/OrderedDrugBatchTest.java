@@ -0,0 +1,76 @@
+package com.mckesson.mpts.azure.tasks.model;
+
+import java.util.Arrays;
+
+public class OrderedDrugBatchTest {
+
+    public static void main(String[] args) {
+        OrderedDrugBatchTest.testRoundTrip();
+        OrderedDrugBatchTest.testMergeAndSelect();
+    }
+
+    public static void testRoundTrip() {
+        OrderedDrugBatch batch = new OrderedDrugBatch();
+        batch.add(createDrug("0008111575", "00093573201", "00093573201"));
+        batch.add(createDrug("0008111575", "54092038301", "12345678901"));
+        batch.add(createDrug("01-0019509", "63304029601", null));
+
+        OrderedDrug drug = batch.toOrderedDrug(1);
+        System.out.println("Round trip 1 = " + batch + ", account=" + drug.getAccountNumber() + ", orderedNDC=" +
+                drug.getOrderedNDC() + ", shippedNDC=" + drug.getShippedNDC() + ", orderDate=" + drug.getOrderDate() +
+                ", orderedQuantity=" + drug.getOrderedQuantity());
+        drug = batch.toOrderedDrug(2);
+        System.out.println("Round trip 2 = account=" + drug.getAccountNumber() + ", orderedNDC=" +
+                drug.getOrderedNDC() + ", shippedNDC=" + drug.getShippedNDC());
+
+        //NDCs and order dates are kept exactly as recorded
+        OrderedDrug unusual = createDrug("0008111575", "0009357320", "NDC-1234");
+        unusual.setOrderDate("0206");
+        batch.add(unusual);
+        drug = batch.toOrderedDrug(3);
+        System.out.println("Round trip 3 = orderedNDC=" + drug.getOrderedNDC() + ", shippedNDC=" +
+                drug.getShippedNDC() + ", orderDate=" + drug.getOrderDate() + " (expected 0009357320, NDC-1234, 0206)");
+    }
+
+    public static void testMergeAndSelect() {
+        OrderedDrugBatch batch = new OrderedDrugBatch();
+        batch.add(createDrug("0008111575", "00093573201", "00093573201"));
+        batch.add(createDrug("0008111575", "54092038301", "12345678901"));
+        batch.add(createDrug("01-0019509", "00093573201", "00093573201"));
+
+        //Only the first account is known
+        batch.applyAccountDemographics(new String[] {"OH", null}, new String[] {"43004", null});
+
+        String[] ndcs = batch.getDistinctNdcs();
+        System.out.println("Distinct NDCs for known accounts = " + Arrays.toString(ndcs) +
+                " (expected [00093573201, 12345678901, 54092038301])");
+
+        //Only 12345678901 is an Opioid, 54092038301 is not found
+        batch.applyDrugInfo(new String[] {"00093573201", "12345678901"}, new String[] {"CIV", "CII"},
+                new boolean[] {false, true});
+
+        int[] rows = batch.selectHistoryRows();
+        System.out.println("History rows selected = " + rows.length + " (expected 1)");
+        OrderedDrug drug = batch.toOrderedDrug(rows[0]);
+        System.out.println("Selected drug: orderedNDC=" + drug.getOrderedNDC() + " orderedSchedule=" +
+                drug.getOrderedNDCSchedule() + " shippedNDC=" + drug.getShippedNDC() + " shippedSchedule=" +
+                drug.getShippedNDCSchedule() + " shippedOpioid=" + drug.getShippedNDCOpiodFlag() + " state=" +
+                drug.getAccountStateCode());
+    }
+
+    private static OrderedDrug createDrug(String account, String orderedNdc, String shippedNdc) {
+        OrderedDrug drug = new OrderedDrug();
+        drug.setIsaSenderId("987654321      ");
+        drug.setAccountNumber(account);
+        drug.setOrderDate("20180206");
+        drug.setPurchaseOrderNumber("00002720");
+        drug.setOrderedNDC(orderedNdc);
+        drug.setOrderedItem("5197983");
+        drug.setOrderedQuantity("1");
+        drug.setShippedNDC(shippedNdc);
+        drug.setShippedItem("5197983");
+        drug.setShippedQuantity("1");
+        drug.setAckStatusCode("IA");
+        return drug;
+    }
+}
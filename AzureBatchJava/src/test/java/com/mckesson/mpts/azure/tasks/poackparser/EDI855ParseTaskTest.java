@@ -0,0 +1,259 @@
+package com.mckesson.mpts.azure.tasks.poackparser;
+
+import com.mckesson.mpts.azure.tasks.DocumentResult;
+import com.mckesson.mpts.azure.tasks.TaskSummary;
+import com.mckesson.mpts.azure.tasks.io.OrderedDrugFiles;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLDataException;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLSyntaxErrorException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Runs parse tasks over three documents against a stub JDBC driver whose history insert rejects the rows of one
+ * account. Two of the documents hold the same lines under different control numbers.
+ *
+ * A task is first run against a history table without the source_key column, which must stop with a configuration
+ * error and report no results, so the input files are kept rather than dead-lettered.
+ *
+ * Finally a task is run with -multitask, which must write the parsed drugs to its intermediate file in the shared
+ * directory, report every document OK and record nothing to history itself.
+ *
+ * The documents are first recorded one per task, then again by one task in a single batch. Checks that every line
+ * gets its own source key and keeps it however the documents are batched, so the second run inserts nothing. Checks
+ * that the failed batch is processed again one document at a time so only the document holding the rejected account
+ * is reported as failed, and that the values reach the database as bound parameters.
+ */
+public class EDI855ParseTaskTest {
+
+    public static void main(String[] args) throws Exception {
+        DriverManager.registerDriver(new StubDriver());
+        File workingDir = Files.createTempDirectory("parsetask").toFile();
+        EDI855ParseTaskTest.createDocument(workingDir, "a.txt", "0008111575", "000014493");
+        EDI855ParseTaskTest.createDocument(workingDir, "b.txt", "O'BRIEN", "000014494");
+        EDI855ParseTaskTest.createDocument(workingDir, "c.txt", "0008111575", "000014495");
+
+        Map<String, String> environment = new HashMap<String, String>();
+        environment.put("AZ_BATCH_JOB_ID", "OpioidJob-1");
+        environment.put("AZ_BATCH_TASK_ID", "parse855task");
+
+        StubDriver.migrated = false;
+        int unmigratedExit = EDI855ParseTask.runTask(new String[] {StubDriver.URL}, environment, workingDir);
+        System.out.println("not migrated exit code=" + unmigratedExit + " results=" + DocumentResult.parseAll(new String(
+                Files.readAllBytes(new File(workingDir, DocumentResult.RESULTS_FILENAME).toPath()),
+                StandardCharsets.UTF_8)).size() + " rows inserted=" + StubDriver.committed.size() +
+                " (expected 2 results=0 rows inserted=0)");
+        StubDriver.migrated = true;
+
+        for (int slice=0; slice<3; slice++) {
+            EDI855ParseTask.runTask(new String[] {StubDriver.URL, EDI855ParseTask.SLICE_OPTION + slice + "/3"},
+                    environment, workingDir);
+        }
+        System.out.println("rows inserted one document per task=" + StubDriver.committed.size() + " (expected 4)");
+        Set<String> slicedKeys = new HashSet<String>(StubDriver.committed);
+
+        int exitCode = EDI855ParseTask.runTask(new String[] {StubDriver.URL}, environment, workingDir);
+        System.out.println("exit code=" + exitCode + " (expected 0)");
+
+        File resultsFile = new File(workingDir, DocumentResult.RESULTS_FILENAME);
+        for (DocumentResult result : DocumentResult.parseAll(
+                new String(Files.readAllBytes(resultsFile.toPath()), StandardCharsets.UTF_8))) {
+            System.out.println(result.getDocumentName() + " " + result.getStatus());
+        }
+        System.out.println("expected a.txt OK, b.txt PERMANENT, c.txt OK");
+        TaskSummary summary = TaskSummary.parse(new String(Files.readAllBytes(
+                new File(workingDir, TaskSummary.SUMMARY_FILENAME).toPath()), StandardCharsets.UTF_8));
+        System.out.println("failedDocuments=" + summary.getFailedDocuments() + " (expected 1)");
+        System.out.println("rows inserted in total=" + StubDriver.committed.size() + " same keys=" +
+                slicedKeys.equals(StubDriver.committed) + " (expected 4 same keys=true)");
+        System.out.println("account queried as a parameter=" + StubDriver.accounts.containsKey("O'BRIEN") + " (expected true)");
+
+        File sharedDir = Files.createTempDirectory("parsetask-shared").toFile();
+        environment.put("AZ_BATCH_NODE_SHARED_DIR", sharedDir.getPath());
+        int committedBefore = StubDriver.committed.size();
+        int multiTaskExit = EDI855ParseTask.runTask(new String[] {StubDriver.URL, EDI855ParseTask.MULTI_TASK_OPTION},
+                environment, workingDir);
+        File intermediateFile = OrderedDrugFiles.getIntermediateFilePath(sharedDir.getPath(), "OpioidJob-1",
+                "parse855task").toFile();
+        int okResults = 0;
+        for (DocumentResult result : DocumentResult.parseAll(
+                new String(Files.readAllBytes(resultsFile.toPath()), StandardCharsets.UTF_8))) {
+            if (result.getStatus() == DocumentResult.Status.OK) {
+                okResults++;
+            }
+        }
+        System.out.println("multitask exit code=" + multiTaskExit + " " + intermediateFile.getName() + " drugs=" +
+                OrderedDrugFiles.readBatch(intermediateFile.toPath()).size() + " OK results=" + okResults +
+                " rows inserted=" + (StubDriver.committed.size() - committedBefore) +
+                " (expected 0 OpioidJob-1_parse855task.odb drugs=6 OK results=3 rows inserted=0)");
+        intermediateFile.delete();
+        sharedDir.delete();
+
+        for (File file : workingDir.listFiles()) {
+            file.delete();
+        }
+        workingDir.delete();
+    }
+
+    private static void createDocument(File dir, String name, String account, String control) throws Exception {
+        String document = "ISA*00*          *00*          *ZZ*987654321      *ZZ*CUSTABCD       *180207*0611*U*00401*" +
+                control + "*0*P*>~" +
+                "GS*PR*987654321*CUSTABCD*20180207*0611*14493*X*004010~" +
+                "ST*855*" + control + "~" +
+                "BAK*06*AC*00002720*20180206~" +
+                "N1*ST**91*" + account + "~" +
+                "PO1*1*1*UN*565.61**VN*5197983*N4*00093573201~" +
+                "ACK*IQ*0*UN****VN*5197983*N4*00093573201~" +
+                "PO1*2*1*UN*683.8**VN*3300365*N4*54092038301~" +
+                "ACK*IA*1*UN****VN*3300365*N4*54092038301~" +
+                "CTT*2~SE*9*" + control + "~GE*1*14493~IEA*1*" + control + "~";
+        Files.write(new File(dir, name).toPath(), document.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Driver for "jdbc:stub:" whose queries find every account and NDC, the NDCs being Opioids, and whose inserts fail
+     * with a data error for any row with an account number holding a quote. Until migrated is set, queries of the
+     * source_key column fail as MySQL fails them for an unknown column. The source keys of inserted rows are kept
+     * once committed, and a row whose key is already kept is not inserted again.
+     */
+    public static class StubDriver implements Driver {
+        static final String URL = "jdbc:stub:history";
+
+        public Connection connect(String url, Properties info) throws SQLException {
+            if (!acceptsURL(url)) {
+                return null;
+            }
+            final Set<String> uncommitted = new HashSet<String>();
+            return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] {Connection.class}, new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            if (method.getName().equals("prepareStatement")) {
+                                return StubDriver.prepare((String)args[0], uncommitted);
+                            }
+                            if (method.getName().equals("commit")) {
+                                committed.addAll(uncommitted);
+                            }
+                            if (method.getName().equals("commit") || method.getName().equals("rollback")) {
+                                uncommitted.clear();
+                            }
+                            if (method.getName().equals("isValid")) {
+                                return Boolean.TRUE;
+                            }
+                            return StubDriver.defaultValue(method);
+                        }
+                    });
+        }
+
+        public boolean acceptsURL(String url) {
+            return url.startsWith("jdbc:stub:");
+        }
+
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+
+        private static PreparedStatement prepare(final String sql, final Set<String> uncommitted) {
+            final Map<Integer, Object> parameters = new HashMap<Integer, Object>();
+            return (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[] {PreparedStatement.class}, new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+                            if (method.getName().equals("setString")) {
+                                parameters.put((Integer)args[0], args[1]);
+                                return null;
+                            }
+                            if (method.getName().equals("executeQuery")) {
+                                if (!migrated && sql.contains("source_key")) {
+                                    throw new SQLSyntaxErrorException("Unknown column 'source_key' in 'field list'",
+                                            "42S22", 1054);
+                                }
+                                if (sql.contains("account_number")) {
+                                    accounts.put((String)parameters.get(1), Boolean.TRUE);
+                                    return StubDriver.row("OH", "43001");
+                                }
+                                return StubDriver.row("00093573201", "Opioid Agonist [EPC]", "CII");
+                            }
+                            if (method.getName().equals("executeUpdate")) {
+                                if (String.valueOf(parameters.get(4)).contains("'")) {
+                                    throw new SQLDataException("Data too long for column 'account_number'");
+                                }
+                                String sourceKey = (String)parameters.get(1);
+                                if (committed.contains(sourceKey) || !uncommitted.add(sourceKey)) {
+                                    return Integer.valueOf(0);
+                                }
+                                return Integer.valueOf(1);
+                            }
+                            return StubDriver.defaultValue(method);
+                        }
+                    });
+        }
+
+        private static ResultSet row(final String... values) {
+            return (ResultSet)Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                    new Class<?>[] {ResultSet.class}, new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            if (method.getName().equals("next")) {
+                                return Boolean.valueOf(read++ == 0);
+                            }
+                            if (method.getName().equals("getString")) {
+                                return values[(Integer)args[0] - 1];
+                            }
+                            return StubDriver.defaultValue(method);
+                        }
+
+                        private int read = 0;
+                    });
+        }
+
+        private static Object defaultValue(Method method) {
+            Class<?> type = method.getReturnType();
+            if (type == boolean.class) {
+                return Boolean.FALSE;
+            }
+            if (type == int.class) {
+                return Integer.valueOf(0);
+            }
+            if (type == long.class) {
+                return Long.valueOf(0);
+            }
+            return null;
+        }
+
+        static Set<String> committed = new HashSet<String>();
+        static Map<String, Boolean> accounts = new HashMap<String, Boolean>();
+        static boolean migrated = true;
+    }
+}
@@ -1,11 +1,11 @@
 package com.mckesson.mpts.azure.tasks.poackparser;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mckesson.mpts.azure.tasks.io.FileIngestor;
 import com.mckesson.mpts.azure.tasks.model.OrderedDrug;
 import com.mckesson.mpts.azure.tasks.model.OrderedDrugs;
 
 import java.io.File;
-import java.io.FileReader;
 
 public class EDIX12TransactionTest {
 
@@ -16,8 +16,8 @@ public class EDIX12TransactionTest {
 
     public static void testParsing855(String filePath) {
         EDIX12TransactionData docParser = new EDIX12TransactionData();
-        String testFileData = getFileData(filePath);
         try {
+            String testFileData = new FileIngestor().read(new File(filePath).toPath());
             docParser.setTransactionData(testFileData);
             System.out.println("Parsed File data = ");
             System.out.println(docParser.toString());
@@ -43,41 +43,4 @@ public class EDIX12TransactionTest {
         }
     }
 
-    private static String getFileData(String filePath) {
-        String fileData = null;
-        File x12File = null;
-        FileReader fileReader = null;
-        StringBuffer fileBuff = new StringBuffer(1000);
-
-        if (filePath != null) {
-            try {
-                x12File = new File(filePath);
-                if (x12File.exists()) {
-                    fileReader = new FileReader(x12File);
-                    int nextCharacter = fileReader.read();
-                    while (nextCharacter != -1) {
-                        fileBuff.append((char)nextCharacter);
-                        nextCharacter = fileReader.read();
-                    }
-                }
-            }
-            catch (Exception e) {
-                e.printStackTrace();
-            }
-            finally {
-                if (fileReader != null) {
-                    try {
-                        fileReader.close();
-                    }
-                    catch (Exception ee) {
-
-                    }
-                }
-            }
-        }
-        fileData = fileBuff.toString();
-
-        return fileData;
-    }
-
 }
@@ -0,0 +1,143 @@
+package com.mckesson.mpts.azure.tasks.queue;
+
+import com.mckesson.mpts.azure.tasks.io.EDIDocumentReader;
+import com.mckesson.mpts.azure.tasks.io.FileIngestor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs several "tasks" as threads pulling documents from one LocalWorkQueue and checks that every document in the input
+ * files is processed exactly once. Then runs task 0 again, as Azure Batch does after a Node failure, and checks it gets
+ * back exactly the documents its first attempt claimed, and checks a BlobWorkQueue does the same against a stand-in
+ * for the Storage service. Pass the input files (plain EDI files or zip archives) as arguments, for example
+ * OpioidOrderingTracking/InboundEDI_855_sourcefiles.zip
+ */
+public class WorkQueueTest {
+
+    public static final int TASK_COUNT = 4;
+
+    public static void main(String[] args) throws Exception {
+        final File[] inputFiles = new File[args.length];
+        for (int i=0; i<args.length; i++) {
+            inputFiles[i] = new File(args[i]);
+        }
+        final Path queueDir = Files.createTempDirectory("workqueue");
+
+        int expected = 0;
+        EDIDocumentReader allDocuments = new EDIDocumentReader(inputFiles, new FileIngestor());
+        while (allDocuments.next()) {
+            expected++;
+        }
+        allDocuments.close();
+
+        final Set<String> processed = Collections.synchronizedSet(new HashSet<String>());
+        final Set<String> processedByTask0 = Collections.synchronizedSet(new HashSet<String>());
+        final int[] processedByTask = new int[TASK_COUNT];
+        final int[] duplicates = new int[1];
+        Thread[] tasks = new Thread[TASK_COUNT];
+        for (int t=0; t<TASK_COUNT; t++) {
+            final int taskIndex = t;
+            tasks[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        EDIDocumentReader documents = new EDIDocumentReader(inputFiles, new FileIngestor());
+                        documents.setSelector(new WorkQueueSelector(new LocalWorkQueue(queueDir, "task" + taskIndex), 10));
+                        while (documents.next()) {
+                            processedByTask[taskIndex]++;
+                            if (taskIndex == 0) {
+                                processedByTask0.add(documents.getDocumentName());
+                            }
+                            if (!processed.add(documents.getDocumentName())) {
+                                synchronized (duplicates) {
+                                    duplicates[0]++;
+                                }
+                            }
+                        }
+                        documents.close();
+                    }
+                    catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            tasks[t].start();
+        }
+        for (int t=0; t<TASK_COUNT; t++) {
+            tasks[t].join();
+        }
+
+        for (int t=0; t<TASK_COUNT; t++) {
+            System.out.println("Task " + t + " processed " + processedByTask[t] + " documents");
+        }
+        System.out.println("Documents expected=" + expected + " processed=" + processed.size() + " duplicates=" + duplicates[0]);
+
+        Set<String> requeued = new HashSet<String>();
+        EDIDocumentReader documents = new EDIDocumentReader(inputFiles, new FileIngestor());
+        documents.setSelector(new WorkQueueSelector(new LocalWorkQueue(queueDir, "task0"), 10));
+        while (documents.next()) {
+            requeued.add(documents.getDocumentName());
+        }
+        documents.close();
+        System.out.println("Requeued task 0 processed " + requeued.size() + " documents, same as its first attempt=" +
+                requeued.equals(processedByTask0) + " (expected true)");
+
+        WorkQueueTest.testBlobClaims();
+    }
+
+    /**
+     * Claim items through a BlobWorkQueue from a stand-in for the Storage service, which creates a claim only if none
+     * exists (If-None-Match: *) and returns it on GET
+     */
+    public static void testBlobClaims() throws Exception {
+        final Map<String, byte[]> claims = new ConcurrentHashMap<String, byte[]>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[1024];
+                for (int count = in.read(buffer); count != -1; count = in.read(buffer)) {
+                    body.write(buffer, 0, count);
+                }
+                byte[] claim = claims.get(path);
+                if ("PUT".equals(exchange.getRequestMethod())) {
+                    boolean created = claims.putIfAbsent(path, body.toByteArray()) == null;
+                    exchange.sendResponseHeaders(created ? 201 : 409, -1);
+                }
+                else if (claim != null) {
+                    exchange.sendResponseHeaders(200, claim.length);
+                    exchange.getResponseBody().write(claim);
+                }
+                else {
+                    exchange.sendResponseHeaders(404, -1);
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        String location = "http://127.0.0.1:" + server.getAddress().getPort() + "/container/queue/job1?sv=sas";
+
+        WorkQueue first = new BlobWorkQueue(location, "job1-task0");
+        WorkQueue other = new BlobWorkQueue(location, "job1-task1");
+        WorkQueue requeued = new BlobWorkQueue(location, "job1-task0");
+        System.out.println("Blob claims: first=" + first.claim(7) + " other=" + other.claim(7) + " requeued=" +
+                requeued.claim(7) + " (expected true false true)");
+        server.stop(0);
+    }
+}
@@ -59,6 +59,61 @@ REM WARNING!! all output and files will be lost when the job is removed
 set DELETE_JOBS=false
 
 
+REM DISPATCH_MODE={chunk|queue}
+REM
+REM chunk sends the input files to Azure in sets of inputFileLimit files, one job per set
+REM queue sends all input files as one job whose tasks pull small work items from a shared queue until it is empty
+REM
+
+set DISPATCH_MODE=chunk
+
+REM JOB_THREAD_MODE={platform|virtual}
+REM
+REM platform runs jobs in waves of MAX_PARALLEL jobs, adjusted between waves
+REM virtual starts every job at once and limits the jobs in flight by the task slots in the pool (virtual threads on Java 21+)
+REM
+set JOB_THREAD_MODE=platform
+
+REM COMPUTE_BACKEND={azure|local}
+REM
+REM azure runs the parse tasks on the Azure Batch pool
+REM local runs the parse tasks as child JVMs on this machine, in LOCAL_WORK_DIR with LOCAL_TASK_SLOTS tasks at once
+REM
+set COMPUTE_BACKEND=azure
+REM set LOCAL_WORK_DIR=%TEMP%\opioid-local
+REM set LOCAL_TASK_SLOTS=4
+
+REM RUN_MANIFEST is the journal of each input file's progress, used to resume an interrupted run
+REM By default it is opioid-run-manifest.log in the input directory
+REM
+REM set RUN_MANIFEST=%TEMP%\opioid-run-manifest.log
+
+REM DEAD_LETTER_DIR is where files holding documents that can never be processed are moved, with their errors
+REM By default it is dead-letter in the input directory
+REM
+REM set DEAD_LETTER_DIR=%TEMP%\opioid-dead-letter
+
+REM SPECULATIVE_JOBS=false stops a copy of a job that runs well past its expected time being started on other nodes
+REM
+REM set SPECULATIVE_JOBS=false
+
+REM TASK_DAEMON=true runs the parse tasks in a long-running JVM on each node, started by the pool's start task. Only applies
+REM to a pool created by the application; reboot the nodes after deploying new jar files
+REM
+REM set TASK_DAEMON=true
+
+REM TASK_RUNTIME=native runs the parse tasks as the native executable lib\opioid-parse-task built with "mvn -P native package".
+REM Ignored when TASK_DAEMON=true or the executable is not in lib
+REM
+REM set TASK_RUNTIME=native
+
+REM INGEST_MODE=watch keeps running and sends files as they arrive in the input directory, in jobs of up to MAX_FILES_PER_JOB
+REM files or whatever has arrived within WATCH_BATCH_SECONDS. Stop it with Ctrl-C
+REM
+REM set INGEST_MODE=watch
+REM set WATCH_BATCH_SECONDS=30
+
+
 rem
 rem The next 2 parameters should not be changed provided this bat file remains in the directory structure created
 rem when the project was downloaded from GitHub...
@@ -82,6 +137,9 @@ rem
 rem MAX_PARALLEL_THREADS controls how many jobs can run in parallel within the thread pool. More threads means the overall load can take less time
 rem  and can make use of larger sized VM pools.
 rem
+rem Both values are only starting points. Jobs are sent in waves and the job size (by estimated EDI segments rather than file count) and the
+rem  number of parallel jobs are adjusted between waves from the measured job turnaround and throughput, up to 4 x MAX_PARALLEL_THREADS jobs.
+rem
 rem The below settings are defaults. The process accepts two parameters for the Max Files and Max Parallel threads. In order to set the Max Parallel
 rem  Threads, you MUST also include a setting for MAX_FILES!
 rem
@@ -58,6 +58,10 @@ create table opiod_ordering_tracking.ordering_history (
   shipped_item_number varchar(50),
   shipped_quantity integer(9) not null,
   date_added date,
+  source_key char(40),
   PRIMARY KEY (ordering_history_num)
 );
 
+create unique index ordering_history_source on opiod_ordering_tracking.ordering_history
+  (source_key);
+
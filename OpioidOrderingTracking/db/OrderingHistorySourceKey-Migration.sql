@@ -0,0 +1,5 @@
+alter table opiod_ordering_tracking.ordering_history
+  add column source_key char(40);
+
+create unique index ordering_history_source on opiod_ordering_tracking.ordering_history
+  (source_key);